@@ -0,0 +1,80 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.keys.CHKBlock;
+
+/**
+ * Encoding and decoding a full splitfile segment: 128 data blocks and 128 check blocks of 32KB.
+ * Decoding starts with every other data block missing, so half the segment is recovered from
+ * check blocks. Compares the default TableFECCodec with the original OnionFECCodec. Set
+ * -Dfreenet.fec.threads (e.g. with -jvmArgs) to see how TableFECCodec scales with cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FECCodecBenchmark {
+
+	@Param({"table", "onion"})
+	public String codecName;
+
+	static final int DATA_BLOCKS = 128;
+	static final int CHECK_BLOCKS = 128;
+	static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+	private FECCodec codec;
+	private byte[][] dataBlocks;
+	private byte[][] checkBlocks;
+	private boolean[] checkBlocksPresent;
+	private byte[][] decodeData;
+	private boolean[] decodeDataPresent;
+	private boolean[] decodeCheckPresent;
+
+	@Setup
+	public void setup() {
+		codec = codecName.equals("onion") ? new OnionFECCodec() : new TableFECCodec();
+		Random random = new Random(1234);
+		dataBlocks = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		for(byte[] block : dataBlocks)
+			random.nextBytes(block);
+		checkBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		checkBlocksPresent = new boolean[CHECK_BLOCKS];
+		codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, BLOCK_SIZE);
+		// Decoding overwrites only the missing blocks, so it can be repeated on the same arrays.
+		decodeData = new byte[DATA_BLOCKS][];
+		decodeDataPresent = new boolean[DATA_BLOCKS];
+		for(int i=0;i<DATA_BLOCKS;i++) {
+			decodeDataPresent[i] = (i % 2 == 0);
+			decodeData[i] = decodeDataPresent[i] ? dataBlocks[i].clone() : new byte[BLOCK_SIZE];
+		}
+		decodeCheckPresent = new boolean[CHECK_BLOCKS];
+		for(int i=0;i<CHECK_BLOCKS;i++)
+			decodeCheckPresent[i] = true;
+	}
+
+	@Benchmark
+	public byte[][] encode() {
+		codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, BLOCK_SIZE);
+		return checkBlocks;
+	}
+
+	@Benchmark
+	public byte[][] decode() {
+		codec.decode(decodeData, checkBlocks, decodeDataPresent, decodeCheckPresent, BLOCK_SIZE);
+		return decodeData;
+	}
+
+}
@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+
+/**
+ * A cache hit on a large manifest followed by looking up one file in it, as SingleFileFetcher
+ * does. Compares MetadataCache.get(), which returns a shared copy, with deep cloning the whole
+ * manifest, which is what the cache used to do on every hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetadataCacheBenchmark {
+
+	@Param({"100", "10000"})
+	public int files;
+
+	private MetadataCache cache;
+	private ClientCHK key;
+	private Metadata manifest;
+	private String name;
+
+	@Setup
+	public void setup() throws Exception {
+		HashMap<String, Object> dir = new HashMap<String, Object>();
+		for(int i=0;i<files;i++)
+			dir.put("file"+i+".html", "file"+i+".html");
+		manifest = new Metadata(dir, "");
+		cache = new MetadataCache(Long.MAX_VALUE);
+		key = new ClientCHK(new FreenetURI("CHK@DUiGC5D1ZsnFpH07WGkNVDujNlxhtgGxXBKrMT-9Rkw,~GrAWp02o9YylpxL1Fr4fPDozWmebhGv4qUoFlrxnY4,AAIC--8"));
+		cache.put(key, manifest, 100);
+		name = "file"+(files/2)+".html";
+	}
+
+	@Benchmark
+	public Metadata sharedCopy() {
+		Metadata doc = cache.get(key).grabDocument(name);
+		doc.setSimpleRedirect();
+		return doc;
+	}
+
+	@Benchmark
+	public Metadata deepClone() {
+		Metadata doc = ((Metadata) manifest.clone()).grabDocument(name);
+		doc.setSimpleRedirect();
+		return doc;
+	}
+
+}
@@ -0,0 +1,85 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.client.async.ClientRequestSelectorTest.NullExclusionList;
+import freenet.client.async.ClientRequestSelectorTest.NullSendableGet;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.node.RequestStarter;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.WaitableExecutor;
+
+/**
+ * Choosing a request to send from many queued SendableGet's, from 10 clients, and queueing and
+ * removing them all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClientRequestSelectorBenchmark {
+
+	static final int CLIENTS = 10;
+	static final short PRIO = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+
+	@Param({"1000", "100000"})
+	public int requests;
+
+	private ClientContext context;
+	private ClientRequestSelector selector;
+	private RandomGrabArrayItemExclusionList starter;
+	private RandomSource random;
+
+	@Setup
+	public void setup() {
+		WaitableExecutor executor = new WaitableExecutor(new PooledExecutor());
+		context = new ClientContext(0, null, executor, null, null, null, null, null, null, null,
+				new DummyRandomSource(3030303), new CheatingTicker(executor), null, null, null,
+				null, null, null, null, null, null, null, null, null, null, null);
+		starter = new NullExclusionList();
+		random = new DummyRandomSource(3030303);
+		selector = newSelector();
+		ClientRequestSelectorTest.queueRequests(selector, context, CLIENTS, requests, requests, PRIO);
+	}
+
+	private static ClientRequestSelector newSelector() {
+		return new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+	}
+
+	@Benchmark
+	public ClientRequestSelector.SelectorReturn chooseRequest() {
+		return selector.chooseRequestInner(0, random, null, starter, false, context, 0);
+	}
+
+	/** Queue all the requests on a new selector, then remove them. */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ClientRequestSelector queueAndRemove() {
+		ClientRequestSelector s = newSelector();
+		List<NullSendableGet> gets =
+			ClientRequestSelectorTest.queueRequests(s, context, CLIENTS, requests, requests, PRIO);
+		for(NullSendableGet get : gets)
+			get.getParentGrabArray().remove(get, context);
+		return s;
+	}
+
+}
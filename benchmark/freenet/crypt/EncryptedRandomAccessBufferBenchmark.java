@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.SkippingStreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+/**
+ * Reading and writing a whole segment (128 blocks of 32KB) through an
+ * EncryptedRandomAccessBuffer, compared with a single cipher over the same data as we used to.
+ * Set -Dfreenet.crypt.threads (e.g. with -jvmArgs) to change the number of threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncryptedRandomAccessBufferBenchmark {
+
+	static final int LENGTH = 128 * 32768;
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Param({"ChaCha128", "ChaCha256"})
+	public String type;
+
+	private byte[] data;
+	private byte[] out;
+	private EncryptedRandomAccessBuffer buffer;
+	private SkippingStreamCipher cipher;
+
+	@Setup
+	public void setup() throws Exception {
+		EncryptedRandomAccessBufferType t = EncryptedRandomAccessBufferType.valueOf(type);
+		data = new byte[LENGTH];
+		new Random(1234).nextBytes(data);
+		out = new byte[LENGTH];
+		buffer = new EncryptedRandomAccessBuffer(t,
+				new ByteArrayRandomAccessBuffer(new byte[LENGTH + t.headerLen]),
+				new MasterSecret(), true);
+		cipher = t.get();
+		cipher.init(true, new ParametersWithIV(
+				new KeyParameter(new byte[t.encryptKey.keySize >> 3]), new byte[8]));
+	}
+
+	@TearDown
+	public void tearDown() {
+		buffer.close();
+	}
+
+	@Benchmark
+	public byte[] singleCipher() {
+		cipher.seekTo(0);
+		cipher.processBytes(data, 0, LENGTH, out, 0);
+		return out;
+	}
+
+	@Benchmark
+	public EncryptedRandomAccessBuffer pwrite() throws Exception {
+		buffer.pwrite(0, data, 0, LENGTH);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] pread() throws Exception {
+		buffer.pread(0, out, 0, LENGTH);
+		return out;
+	}
+
+}
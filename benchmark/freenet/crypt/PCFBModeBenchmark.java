@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * PCFB mode over Rijndael, as used for CHK blocks (256-bit blocks) and for packets (128-bit
+ * blocks), including creating the PCFBMode with a fresh IV as the callers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PCFBModeBenchmark {
+
+	@Param({"128", "256"})
+	public int blockSize;
+
+	/** 32KB is a CHK block, 1280 bytes is a packet. */
+	@Param({"32768", "1280"})
+	public int length;
+
+	private Rijndael cipher;
+	private byte[] iv;
+	private byte[] data;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(1234);
+		cipher = new Rijndael(256, blockSize);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		cipher.initialize(key);
+		iv = new byte[blockSize / 8];
+		random.nextBytes(iv);
+		data = new byte[length];
+		random.nextBytes(data);
+	}
+
+	@Benchmark
+	public byte[] encipher() {
+		PCFBMode pcfb = PCFBMode.create(cipher, iv);
+		pcfb.blockEncipher(data, 0, data.length);
+		return data;
+	}
+
+	@Benchmark
+	public byte[] decipher() {
+		PCFBMode pcfb = PCFBMode.create(cipher, iv);
+		pcfb.blockDecipher(data, 0, data.length);
+		return data;
+	}
+
+}
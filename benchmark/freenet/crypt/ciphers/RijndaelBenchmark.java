@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Rijndael block encryption. 128-bit blocks use JCA AES if available (disable with
+ * -Dfreenet.crypt.jcaRijndael=false), 256-bit blocks always use Rijndael_Algorithm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RijndaelBenchmark {
+
+	@Param({"128", "256"})
+	public int blockSize;
+
+	private Rijndael cipher;
+	private byte[] block;
+	private byte[] result;
+	/** A CHK block, encrypted one cipher block at a time. */
+	private byte[] data;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(1234);
+		cipher = new Rijndael(256, blockSize);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		cipher.initialize(key);
+		block = new byte[blockSize / 8];
+		random.nextBytes(block);
+		result = new byte[block.length];
+		data = new byte[32768];
+		random.nextBytes(data);
+	}
+
+	@Benchmark
+	public byte[] encipherBlock() {
+		cipher.encipher(block, result);
+		return result;
+	}
+
+	@Benchmark
+	public byte[] decipherBlock() {
+		cipher.decipher(block, result);
+		return result;
+	}
+
+	@Benchmark
+	public byte[] encipher32KB() {
+		for(int i=0;i<data.length;i+=block.length) {
+			System.arraycopy(data, i, block, 0, block.length);
+			cipher.encipher(block, result);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,72 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+
+/**
+ * Encoding and decoding typical DMT messages: a CHK request, the reply to it, and one packet
+ * of a block transfer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageBenchmark {
+
+	@Param({"FNPCHKDataRequest", "FNPAccepted", "packetTransmit"})
+	public String message;
+
+	private Message msg;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1234);
+		long uid = random.nextLong();
+		if(message.equals("FNPCHKDataRequest")) {
+			byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+			random.nextBytes(routingKey);
+			msg = DMT.createFNPCHKDataRequest(uid, (short)18,
+					new NodeCHK(routingKey, NodeCHK.ALGO_AES_CTR_256_SHA256));
+		} else if(message.equals("FNPAccepted")) {
+			msg = DMT.createFNPAccepted(uid);
+		} else if(message.equals("packetTransmit")) {
+			// One of the 32 1KB packets of a CHK block.
+			byte[] data = new byte[1024];
+			random.nextBytes(data);
+			BitArray sent = new BitArray(32);
+			for(int i=0;i<16;i++)
+				sent.setBit(i, true);
+			msg = DMT.createPacketTransmit(uid, 16, sent, new Buffer(data), false);
+		} else {
+			throw new IllegalArgumentException(message);
+		}
+		encoded = msg.encodeToPacket();
+	}
+
+	@Benchmark
+	public byte[] encodeToPacket() {
+		return msg.encodeToPacket();
+	}
+
+	@Benchmark
+	public Message decodeFromPacket() {
+		return Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+	}
+
+}
@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding splitfile CHK blocks with the same key, one at a time, and computing the
+ * keys for a whole segment (128 data and 128 check blocks) with ParallelCHKEncoder. Set
+ * -Dfreenet.chk.threads (e.g. with -jvmArgs) to change the number of threads for a segment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CHKBlockBenchmark {
+
+	static final int SEGMENT_BLOCKS = 256;
+
+	private byte[] splitfileKey;
+	private byte[][] segment;
+	private ClientCHKBlock block;
+	private byte[] output;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(1234);
+		splitfileKey = new byte[32];
+		random.nextBytes(splitfileKey);
+		segment = new byte[SEGMENT_BLOCKS][CHKBlock.DATA_LENGTH];
+		for(byte[] buf : segment)
+			random.nextBytes(buf);
+		block = ClientCHKBlock.encodeSplitfileBlock(segment[0], splitfileKey, Key.ALGO_AES_CTR_256_SHA256);
+		output = new byte[CHKBlock.DATA_LENGTH];
+	}
+
+	@Benchmark
+	public ClientCHKBlock encode() throws CHKEncodeException {
+		return ClientCHKBlock.encodeSplitfileBlock(segment[0], splitfileKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	/** Verifies the hash as well, as when a block is fetched. */
+	@Benchmark
+	public byte[] decode() throws CHKVerifyException, CHKDecodeException {
+		new ClientCHKBlock(block.getBlock(), block.getClientKey()).decodeInto(output, 0);
+		return output;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ClientCHK[] encodeSegmentKeys() {
+		return ParallelCHKEncoder.encodeSplitfileKeys(segment, splitfileKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+}
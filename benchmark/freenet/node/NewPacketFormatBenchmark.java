@@ -0,0 +1,106 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+
+/**
+ * Sending and receiving full size encrypted packets between two NewPacketFormat's, carrying
+ * fragments of 32KB messages, as when transferring a CHK block. Both sides send one packet per
+ * operation, so the acks are piggybacked and the sent packets don't pile up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NewPacketFormatBenchmark {
+
+	static final int MESSAGE_SIZE = 32768;
+
+	private NullBasePeerNode nodeA;
+	private NullBasePeerNode nodeB;
+	private NewPacketFormat npfA;
+	private NewPacketFormat npfB;
+	private SessionKey keyA;
+	private SessionKey keyB;
+	private byte[] message;
+	private Peer peer;
+
+	@Setup
+	public void setup() throws Exception {
+		NewPacketFormat.DO_KEEPALIVES = false;
+		Random random = new Random(1234);
+		Rijndael cipherAB = cipher(random);
+		Rijndael cipherBA = cipher(random);
+		Rijndael ivCipher = cipher(random);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		int seqA = 1000;
+		int seqB = 2000;
+		nodeA = new NullBasePeerNode();
+		nodeB = new NullBasePeerNode();
+		keyA = new SessionKey(null, cipherAB, null, cipherBA, null, ivCipher, ivNonce, hmacKey,
+				new NewPacketFormatKeyContext(seqA, seqB), 0);
+		keyB = new SessionKey(null, cipherBA, null, cipherAB, null, ivCipher, ivNonce, hmacKey,
+				new NewPacketFormatKeyContext(seqB, seqA), 0);
+		nodeA.currentKey = keyA;
+		nodeB.currentKey = keyB;
+		nodeA.messageQueue = new PeerMessageQueue();
+		nodeB.messageQueue = new PeerMessageQueue();
+		nodeA.decryptedMessages = new ArrayList<byte[]>();
+		nodeB.decryptedMessages = new ArrayList<byte[]>();
+		npfA = new NewPacketFormat(nodeA, seqA, seqB);
+		npfB = new NewPacketFormat(nodeB, seqB, seqA);
+		message = new byte[MESSAGE_SIZE];
+		random.nextBytes(message);
+		peer = new Peer(new FreenetInetAddress("127.0.0.1", true), 1234);
+	}
+
+	private static Rijndael cipher(Random random) {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		Rijndael cipher = new Rijndael();
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	private void send(NullBasePeerNode from, NewPacketFormat fromNPF, SessionKey key,
+			NullBasePeerNode to, NewPacketFormat toNPF) throws BlockedTooLongException {
+		from.sentEncryptedPacket = null;
+		if(!fromNPF.maybeSendPacket(false, key)) {
+			// Finished the last message, start another one.
+			from.messageQueue.queueAndEstimateSize(new MessageItem(message, null, false, null,
+					(short) 0, false, false), MESSAGE_SIZE);
+			if(!fromNPF.maybeSendPacket(false, key))
+				throw new IllegalStateException("Didn't send a packet");
+		}
+		byte[] data = from.sentEncryptedPacket;
+		if(!toNPF.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), peer))
+			throw new IllegalStateException("Didn't decode the packet");
+		to.decryptedMessages.clear();
+	}
+
+	/** One packet each way. */
+	@Benchmark
+	public void roundTrip() throws BlockedTooLongException {
+		send(nodeA, npfA, keyA, nodeB, npfB);
+		send(nodeB, npfB, keyB, nodeA, npfA);
+	}
+
+}
@@ -0,0 +1,101 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Each of the COMPRESSOR_TYPE codecs, compressing and decompressing text-like data the size of
+ * one CHK block and of a small multi-block file, and decompressing through a DecompressorChain
+ * as a fetch does. Set -Dfreenet.compress.bzip2.threads (e.g. with -jvmArgs) to see how
+ * BZIP2_PARALLEL compression scales with cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompressorBenchmark {
+
+	@Param({"GZIP", "BZIP2", "LZMA", "LZMA_NEW", "BZIP2_PARALLEL"})
+	public String type;
+
+	@Param({"32768", "1048576"})
+	public int size;
+
+	private static final String[] WORDS = { "<p>", "</p>", "<a href=\"/USK@", "freenet", "the",
+		"node", "key", "of", "and", "to", "a", "in", "is", "data", "peer", "block", "splitfile",
+		"request", "insert", "content", "filter", "index.html", "\n" };
+
+	private COMPRESSOR_TYPE compressor;
+	private byte[] data;
+	private byte[] compressed;
+
+	@Setup
+	public void setup() throws Exception {
+		compressor = COMPRESSOR_TYPE.valueOf(type);
+		data = text(new Random(1234), size);
+		compressed = compress();
+	}
+
+	/** Words in random order, which compresses roughly like HTML. */
+	static byte[] text(Random random, int size) throws Exception {
+		StringBuilder sb = new StringBuilder(size + 32);
+		while(sb.length() < size) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+			sb.append(' ');
+		}
+		byte[] buf = sb.toString().getBytes("UTF-8");
+		byte[] data = new byte[size];
+		System.arraycopy(buf, 0, data, 0, size);
+		return data;
+	}
+
+	@Benchmark
+	public byte[] compress() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(size);
+		compressor.compress(new ByteArrayInputStream(data), os, size, Long.MAX_VALUE);
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] decompress() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(size);
+		compressor.decompress(new ByteArrayInputStream(compressed), os, size, -1);
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] decompressChain() throws Throwable {
+		DecompressorChain chain = new DecompressorChain(new ByteArrayInputStream(compressed),
+				Collections.singletonList(compressor), size);
+		InputStream is = chain.execute();
+		byte[] buf = new byte[size];
+		try {
+			int read = 0;
+			int x;
+			while(read < size && (x = is.read(buf, read, size - read)) != -1)
+				read += x;
+		} finally {
+			is.close();
+		}
+		chain.waitFinished();
+		return buf;
+	}
+
+}
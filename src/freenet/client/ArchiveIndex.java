@@ -0,0 +1,369 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.RAFBucket;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * The directory of an archive whose data we have kept, so that we can serve its elements by
+ * reading them from the archive, rather than unpacking the whole archive into separate buckets.
+ * Only used for TAR, where each file is stored as is after its header, once the archive has been
+ * decompressed.
+ *
+ * The archive is freed when the index has been dropped from the cache and all the buckets
+ * returned by getElement() have been freed.
+ */
+class ArchiveIndex {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ArchiveIndex.class);
+	}
+
+	final FreenetURI key;
+	private final LockableRandomAccessBuffer data;
+	private final long size;
+	/** Frees the data when the index and all the element buckets have been freed. */
+	private final MultiReaderBucket readers;
+	/** Held by the index itself, freed by close(). */
+	private final Bucket indexReader;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	/** Entries which have been read at least once. */
+	private final HashSet<String> touched = new HashSet<String>();
+	/** Total size of the entries which have been read. */
+	private long touchedBytes;
+
+	/** A file within the archive. */
+	static class Entry {
+		final String name;
+		final long offset;
+		final long size;
+
+		Entry(String name, long offset, long size) {
+			this.name = name;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		@Override
+		public String toString() {
+			return name+" at "+offset+" size "+size;
+		}
+	}
+
+	/** @param data The archive, already decompressed. Will be freed by the index. */
+	ArchiveIndex(FreenetURI key, LockableRandomAccessBuffer data) throws IOException {
+		this.key = key;
+		this.data = data;
+		this.size = data.size();
+		readers = new MultiReaderBucket(new RAFBucket(data));
+		indexReader = readers.getReaderBucket();
+	}
+
+	/** Size of the archive we are keeping. */
+	long size() {
+		return size;
+	}
+
+	synchronized void put(Entry e) {
+		entries.put(e.name, e);
+	}
+
+	synchronized boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	synchronized int entryCount() {
+		return entries.size();
+	}
+
+	/** Record that the element is being read.
+	 * @return The number of bytes newly touched, i.e. the size of the element the first time it
+	 * is read, otherwise 0. */
+	synchronized long touch(String name) {
+		Entry e = entries.get(name);
+		if(e == null) return 0;
+		if(!touched.add(name)) return 0;
+		touchedBytes += e.size;
+		return e.size;
+	}
+
+	/** Total size of the elements that have been read. */
+	synchronized long touchedBytes() {
+		return touchedBytes;
+	}
+
+	/** @return A read-only bucket for the element, or null if it is not in the archive, or the
+	 * index has been closed. The caller must free it. */
+	Bucket getElement(String name) {
+		Entry e;
+		synchronized(this) {
+			e = entries.get(name);
+		}
+		if(e == null) return null;
+		return getElement(e);
+	}
+
+	/** @return A read-only bucket for the entry, or null if the index has been closed. */
+	Bucket getElement(Entry e) {
+		Bucket reader = readers.getReaderBucket();
+		if(reader == null) return null;
+		return new ElementBucket(reader, e);
+	}
+
+	/** Drop the index. The data is freed once nobody is reading it. */
+	void close() {
+		if(logMINOR) Logger.minor(this, "Closing index for "+key);
+		indexReader.free();
+	}
+
+	/**
+	 * Find the files in a TAR archive by reading the headers. Directories, links etc are skipped.
+	 * Understands GNU long names and PAX headers, like TarArchiveInputStream.
+	 */
+	static List<Entry> readTAR(LockableRandomAccessBuffer data) throws IOException, ArchiveFailureException {
+		ArrayList<Entry> list = new ArrayList<Entry>();
+		long size = data.size();
+		byte[] header = new byte[TAR_RECORD_SIZE];
+		long pos = 0;
+		String longName = null;
+		String paxName = null;
+		long paxSize = -1;
+		while(pos + TAR_RECORD_SIZE <= size) {
+			data.pread(pos, header, 0, TAR_RECORD_SIZE);
+			if(isZero(header)) break;
+			TarArchiveEntry entry;
+			try {
+				entry = new TarArchiveEntry(header);
+			} catch (IllegalArgumentException e) {
+				// Annoyingly, it can throw this on some corruptions...
+				throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+			}
+			long start = pos + TAR_RECORD_SIZE;
+			long entrySize = entry.getSize();
+			if(paxSize >= 0 && !entry.isGNULongNameEntry() && !entry.isPaxHeader())
+				entrySize = paxSize;
+			if(entrySize < 0 || start + entrySize > size)
+				throw new ArchiveFailureException("Truncated archive: "+entry.getName()+" needs "+entrySize+" bytes at "+start+" but archive is "+size+" bytes");
+			pos = start + (entrySize + TAR_RECORD_SIZE - 1) / TAR_RECORD_SIZE * TAR_RECORD_SIZE;
+			if(entry.isGNULongNameEntry()) {
+				longName = readName(data, start, entrySize);
+				continue;
+			}
+			if(entry.isPaxHeader()) {
+				byte[] buf = readBytes(data, start, entrySize);
+				paxName = null;
+				paxSize = -1;
+				for(String[] kv : parsePax(buf)) {
+					if(kv[0].equals("path"))
+						paxName = kv[1];
+					else if(kv[0].equals("size")) {
+						try {
+							paxSize = Long.parseLong(kv[1]);
+						} catch (NumberFormatException e) {
+							throw new ArchiveFailureException("Bad size in PAX header: "+kv[1]);
+						}
+					}
+				}
+				continue;
+			}
+			if(entry.isGlobalPaxHeader()) continue;
+			String name = paxName != null ? paxName : longName != null ? longName : entry.getName();
+			longName = null;
+			paxName = null;
+			paxSize = -1;
+			if(entry.isGNUSparse())
+				throw new ArchiveFailureException("Sparse files not supported: "+name);
+			if(entry.isDirectory() || !entry.isFile()) continue;
+			list.add(new Entry(name, start, entrySize));
+		}
+		return list;
+	}
+
+	static final int TAR_RECORD_SIZE = 512;
+	/** The longest long name or PAX header we will read. */
+	static final int MAX_HEADER_DATA = 65536;
+
+	private static boolean isZero(byte[] buf) {
+		for(byte b : buf)
+			if(b != 0) return false;
+		return true;
+	}
+
+	private static byte[] readBytes(LockableRandomAccessBuffer data, long offset, long length) throws IOException, ArchiveFailureException {
+		if(length > MAX_HEADER_DATA) throw new ArchiveFailureException("Header too long: "+length);
+		byte[] buf = new byte[(int)length];
+		data.pread(offset, buf, 0, buf.length);
+		return buf;
+	}
+
+	/** GNU long names use the same encoding as the names in headers. */
+	private static String readName(LockableRandomAccessBuffer data, long offset, long length) throws IOException, ArchiveFailureException {
+		byte[] buf = readBytes(data, offset, length);
+		int len = buf.length;
+		while(len > 0 && buf[len-1] == 0) len--;
+		return new String(buf, 0, len, Charset.defaultCharset());
+	}
+
+	/** Parse PAX records: "length key=value\n", in UTF-8. */
+	private static List<String[]> parsePax(byte[] buf) throws ArchiveFailureException {
+		ArrayList<String[]> list = new ArrayList<String[]>();
+		Charset utf8 = Charset.forName("UTF-8");
+		int pos = 0;
+		while(pos < buf.length) {
+			int space = pos;
+			while(space < buf.length && buf[space] != ' ') space++;
+			if(space == buf.length) break;
+			int length;
+			try {
+				length = Integer.parseInt(new String(buf, pos, space - pos, utf8));
+			} catch (NumberFormatException e) {
+				throw new ArchiveFailureException("Bad PAX header");
+			}
+			if(length <= space - pos || pos + length > buf.length)
+				throw new ArchiveFailureException("Bad PAX header");
+			String record = new String(buf, space + 1, pos + length - space - 2, utf8);
+			int eq = record.indexOf('=');
+			if(eq > 0)
+				list.add(new String[] { record.substring(0, eq), record.substring(eq+1) });
+			pos += length;
+		}
+		return list;
+	}
+
+	/** A read-only view of one element. Keeps the archive from being freed until it is freed. */
+	private class ElementBucket implements Bucket {
+
+		private final Bucket reader;
+		private final Entry entry;
+
+		ElementBucket(Bucket reader, Entry entry) {
+			this.reader = reader;
+			this.entry = entry;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return getInputStreamUnbuffered();
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			// Check that we haven't been freed.
+			reader.getInputStreamUnbuffered().close();
+			return new ElementInputStream(entry.offset, entry.size);
+		}
+
+		@Override
+		public String getName() {
+			return "ArchiveElement:"+key+":"+entry.name;
+		}
+
+		@Override
+		public long size() {
+			return entry.size;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only.
+		}
+
+		@Override
+		public void free() {
+			reader.free();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(java.io.DataOutputStream dos) throws IOException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+	}
+
+	private class ElementInputStream extends InputStream {
+
+		private long pos;
+		private final long end;
+
+		ElementInputStream(long offset, long length) {
+			pos = offset;
+			end = offset + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			if(read(buf, 0, 1) <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			if(pos >= end) return -1;
+			length = (int) Math.min(length, end - pos);
+			data.pread(pos, buf, offset, length);
+			pos += length;
+			return length;
+		}
+
+		@Override
+		public long skip(long n) {
+			n = Math.max(0, Math.min(n, end - pos));
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - pos);
+		}
+
+	}
+
+}
@@ -10,9 +10,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
@@ -33,6 +35,8 @@ import freenet.support.MutableBoolean;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
@@ -45,6 +49,10 @@ import freenet.support.io.Closer;
  * files open due to the limitations of the java.util.zip API)
  * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
  * (the OS is quite capable of determining what to keep in actual RAM)
+ * - TAR archives are not unpacked: we keep the (decompressed) archive and an
+ * ArchiveIndex of where each file starts, and read elements from the archive
+ * on demand. Only the elements actually read count towards the data limit,
+ * the archives themselves are limited separately.
  *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
@@ -128,6 +136,22 @@ public class ArchiveManager {
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
+	// Indexed archives
+	/** Indexes of TAR archives by key */
+	private final LRUMap<FreenetURI, ArchiveIndex> archiveIndexes;
+	/** Maximum total size of the archives kept for the indexes */
+	final long maxIndexedArchiveData;
+	/** Total size of the archives kept for the indexes */
+	private long indexedRetained;
+	/** Total size of the elements read from indexed archives. Counts towards maxCachedData. */
+	private long indexedTouched;
+	/** Parsed metadata from CHKs and from containers fetched from CHKs */
+	public final MetadataCache metadataCache;
+
+	/** If false, unpack TAR archives like ZIP's. */
+	private volatile boolean indexArchives =
+		Boolean.parseBoolean(System.getProperty("freenet.client.indexArchives", "true"));
+
 	/**
 	 * Create an ArchiveManager.
 	 * @param maxHandlers The maximum number of cached ArchiveHandler's i.e. the
@@ -151,6 +175,11 @@ public class ArchiveManager {
 		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
+		archiveIndexes = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
+		// The archives are on disk, and only read from when needed.
+		maxIndexedArchiveData = maxCachedData * 4;
+		// Parsed metadata is in RAM, unlike the rest.
+		metadataCache = new MetadataCache(maxCachedData / 4);
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
@@ -214,16 +243,106 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
+		ArchiveIndex index = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null) {
+				// Promote to top of LRU
+				storedData.push(k, asi);
+			} else {
+				index = archiveIndexes.get(key);
+				if(index == null) return null;
+				archiveIndexes.push(key, index);
+			}
 		}
+		if(asi == null) return getIndexed(index, filename);
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
 
+	/** Get an element from an indexed archive, and count it against the cache limit.
+	 * @return A Bucket for the element, which the caller must free, or null. */
+	private Bucket getIndexed(ArchiveIndex index, String filename) {
+		// Get the bucket first, so it is still readable if the index is dropped.
+		Bucket data = index.getElement(filename);
+		if(data == null) return null;
+		if(logMINOR) Logger.minor(this, "Found data in index for "+index.key);
+		touch(index, filename);
+		return data;
+	}
+
+	/** Count an element read from an index against the cache limit. */
+	private void touch(ArchiveIndex index, String filename) {
+		synchronized(this) {
+			if(archiveIndexes.get(index.key) == index)
+				indexedTouched += index.touch(filename);
+		}
+		trimIndexes();
+	}
+
+	/** Add an index, replacing any older index for the same key. */
+	private void addIndex(ArchiveIndex index) {
+		synchronized(this) {
+			ArchiveIndex old = archiveIndexes.push(index.key, index);
+			if(old != null && old != index) dropIndex(old);
+			indexedRetained += index.size();
+		}
+		if(logMINOR) Logger.minor(this, "Indexed "+index.entryCount()+" files in "+index.key+" ("+index.size()+" bytes)");
+		trimIndexes();
+	}
+
+	/** Remove the index for a key, if there is one. */
+	private synchronized void removeIndex(FreenetURI key) {
+		ArchiveIndex index = archiveIndexes.get(key);
+		if(index == null) return;
+		archiveIndexes.removeKey(key);
+		dropIndex(index);
+	}
+
+	/** Call synchronized, after removing it from archiveIndexes. */
+	private void dropIndex(ArchiveIndex index) {
+		indexedRetained -= index.size();
+		indexedTouched -= index.touchedBytes();
+		index.close();
+	}
+
+	/**
+	 * Drop indexes while the elements read from them, plus the unpacked data, are over
+	 * maxCachedData, or the archives are over maxIndexedArchiveData.
+	 */
+	private void trimIndexes() {
+		synchronized(this) {
+			while(!archiveIndexes.isEmpty()) {
+				if(indexedTouched + cachedData <= maxCachedData &&
+						indexedRetained <= maxIndexedArchiveData &&
+						archiveIndexes.size() <= maxArchiveHandlers) return;
+				ArchiveIndex index = archiveIndexes.popValue();
+				if(logMINOR)
+					Logger.minor(this, "Dropping index for "+index.key+" : touched="+indexedTouched+" cachedData="+cachedData+" of "+maxCachedData+" retained="+indexedRetained+" of "+maxIndexedArchiveData);
+				dropIndex(index);
+			}
+		}
+	}
+
+	/** Total size of the elements read from the indexed archives we are keeping. */
+	synchronized long indexedBytesTouched() {
+		return indexedTouched;
+	}
+
+	/** Total size of the indexed archives we are keeping. */
+	synchronized long indexedBytesRetained() {
+		return indexedRetained;
+	}
+
+	synchronized int indexedArchives() {
+		return archiveIndexes.size();
+	}
+
+	/** Turn indexing of TAR archives on or off. Existing indexes are kept. */
+	void setIndexArchives(boolean index) {
+		indexArchives = index;
+	}
+
 	/**
 	 * Remove a file from the cache. Called after it has been removed from its
 	 * ArchiveHandler.
@@ -258,10 +377,11 @@ public class ArchiveManager {
 	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 
-		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
+		MutableBoolean gotElement = new MutableBoolean();
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
+		removeIndex(key);
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -299,7 +419,7 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "No compression");
 				is = data.getInputStream();
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
+			} else if(ctype == COMPRESSOR_TYPE.BZIP2 || ctype == COMPRESSOR_TYPE.BZIP2_PARALLEL) {
 				if(logMINOR) Logger.minor(this, "dealing with BZIP2");
 				is = new BZip2CompressorInputStream(data.getInputStream());
 				wrapper = null;
@@ -350,6 +470,8 @@ public class ArchiveManager {
 
 			if(ARCHIVE_TYPE.ZIP == archiveType)
 				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+			else if(ARCHIVE_TYPE.TAR == archiveType && indexArchives)
+				handleIndexedTAR(ctx, key, is, element, callback, gotElement, throwAtExit, context);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
 				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
 		else
@@ -365,6 +487,110 @@ public class ArchiveManager {
 	}
 	}
 
+	/**
+	 * Keep the decompressed TAR and index it, instead of unpacking it. Falls back to
+	 * handleTARArchive() if the archive is too big to keep.
+	 */
+	private void handleIndexedTAR(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		if(logMINOR) Logger.minor(this, "Indexing a TAR Archive");
+		RandomAccessBucket copy = null;
+		ArchiveIndex index = null;
+		boolean success = false;
+		try {
+			copy = tempBucketFactory.makeBucket(-1);
+			OutputStream os = copy.getOutputStream();
+			long copied = 0;
+			boolean tooBig = false;
+			try {
+				byte[] buf = new byte[32768];
+				int readBytes;
+				while((readBytes = data.read(buf)) > 0) {
+					os.write(buf, 0, readBytes);
+					copied += readBytes;
+					if(copied > maxCachedData) {
+						tooBig = true;
+						break;
+					}
+				}
+			} finally {
+				os.close();
+			}
+			if(tooBig) {
+				if(logMINOR) Logger.minor(this, "Archive too big to index, unpacking "+key);
+				InputStream is = copy.getInputStream();
+				try {
+					handleTARArchive(ctx, key, new SequenceInputStream(is, data), element, callback, gotElement, throwAtExit, context);
+				} finally {
+					Closer.close(is);
+				}
+				return;
+			}
+			LockableRandomAccessBuffer raf = copy.toRandomAccessBuffer();
+			copy = null;
+			try {
+				index = new ArchiveIndex(key, raf);
+			} catch (IOException e) {
+				raf.free();
+				throw e;
+			}
+			List<ArchiveIndex.Entry> entries = ArchiveIndex.readTAR(raf);
+			HashSet<String> names = new HashSet<String>();
+			boolean gotMetadata = false;
+			for(ArchiveIndex.Entry entry : entries) {
+				String name = stripLeadingSlashes(entry.name);
+				if(names.contains(name)) {
+					Logger.error(this, "Duplicate key "+name+" in archive "+key);
+					continue;
+				}
+				if(name.equals(METADATA_NAME))
+					gotMetadata = true;
+				if(entry.size > maxArchivedFileSize) {
+					if(name.equals(element) && !gotElement.value) {
+						// We are here because they asked for this file.
+						Bucket b = index.getElement(entry);
+						if(b != null) {
+							callback.gotBucket(b, context);
+							gotElement.value = true;
+						}
+					}
+					addErrorElement(ctx, key, name, "File too big: "+entry.size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+					continue;
+				}
+				names.add(name);
+				index.put(new ArchiveIndex.Entry(name, entry.offset, entry.size));
+			}
+
+			// If no metadata, generate some
+			if(!gotMetadata) {
+				generateMetadata(ctx, key, names, gotElement, element, callback, context);
+				trimStoredData();
+			}
+			// Get the element before adding the index, which may drop older indexes.
+			Bucket b = null;
+			if(element != null && !gotElement.value)
+				b = index.getElement(element);
+			addIndex(index);
+			success = true;
+			if(b != null) {
+				touch(index, element);
+				callback.gotBucket(b, context);
+				gotElement.value = true;
+			}
+			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+
+			if((!gotElement.value) && element != null)
+				callback.notInArchive(context);
+
+		} catch (IOException e) {
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		} finally {
+			if(!success) {
+				if(index != null) index.close();
+				if(copy != null) copy.free();
+			}
+		}
+	}
+
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
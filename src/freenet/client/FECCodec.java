@@ -43,12 +43,30 @@ public abstract class FECCodec {
     public abstract void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
             int blockLength);
 
+    /** Whether to use the table-driven implementation rather than the original onionnetworks
+     * code. Both produce identical check blocks. Set by the node config (tableFECCodec), or for
+     * tests and benchmarks with -Dfreenet.fec.codec=onion. */
+    private static volatile boolean useTableCodec =
+        !"onion".equalsIgnoreCase(System.getProperty("freenet.fec.codec", "table"));
+
+    /** Use the table-driven codec for segments encoded or decoded from now on, or go back to the
+     * onionnetworks codec. Splitfiles which already have a codec keep it. */
+    public static void setUseTableCodec(boolean useTable) {
+        useTableCodec = useTable;
+    }
+
+    public static boolean getUseTableCodec() {
+        return useTableCodec;
+    }
+
     public static FECCodec getInstance(SplitfileAlgorithm splitfileType) {
         switch(splitfileType) {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
-            return new OnionFECCodec();
+            if(!useTableCodec)
+                return new OnionFECCodec();
+            return new TableFECCodec();
         default:
             throw new IllegalArgumentException();
         }
@@ -158,6 +158,10 @@ public class InsertContext implements Cloneable, Serializable {
      * because an attacker can usually only identify the datastream once he has the top block, or 
      * once you have announced the key. */
     public boolean earlyEncode;
+    /** If a directory in a site has more than this many files, insert it as an indexed
+     * manifest, so that fetching a file doesn't need the whole directory listing. 0 means never.
+     * Indexed manifests can't be read by older nodes. */
+    public int indexedManifestThreshold;
 	
 	public CompatibilityMode getCompatibilityMode() {
 	    return realCompatMode;
@@ -208,6 +212,7 @@ public class InsertContext implements Cloneable, Serializable {
 		this.realCompatMode = ctx.realCompatMode;
 		this.localRequestOnly = ctx.localRequestOnly;
 		this.ignoreUSKDatehints = ctx.ignoreUSKDatehints;
+		this.indexedManifestThreshold = ctx.indexedManifestThreshold;
 	}
 	
 	/** Make public, but just call parent for a field for field copy */
@@ -236,6 +241,7 @@ public class InsertContext implements Cloneable, Serializable {
         result = prime * result + extraInsertsSplitfileHeaderBlock;
         result = prime * result + (forkOnCacheable ? 1231 : 1237);
         result = prime * result + (ignoreUSKDatehints ? 1231 : 1237);
+        result = prime * result + indexedManifestThreshold;
         result = prime * result + (localRequestOnly ? 1231 : 1237);
         result = prime * result + maxInsertRetries;
         result = prime * result + splitfileAlgo.code;
@@ -277,6 +283,8 @@ public class InsertContext implements Cloneable, Serializable {
             return false;
         if (ignoreUSKDatehints != other.ignoreUSKDatehints)
             return false;
+        if (indexedManifestThreshold != other.indexedManifestThreshold)
+            return false;
         if (localRequestOnly != other.localRequestOnly)
             return false;
         if (maxInsertRetries != other.maxInsertRetries)
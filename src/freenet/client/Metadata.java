@@ -13,9 +13,13 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -72,7 +76,11 @@ public class Metadata implements Cloneable, Serializable {
 	    ARCHIVE_MANIFEST((byte)3),
 	    ARCHIVE_INTERNAL_REDIRECT((byte)4),
 	    ARCHIVE_METADATA_REDIRECT((byte)5),
-	    SYMBOLIC_SHORTLINK((byte)6);
+	    SYMBOLIC_SHORTLINK((byte)6),
+	    /** One node of a B-tree of manifest entries, split across separately inserted
+	     * blocks. Points to the next level down for each range of names. The leaves are
+	     * ordinary simple manifests. */
+	    INDEXED_MANIFEST((byte)7);
 	    
 	    final byte code;
 	    
@@ -193,6 +201,20 @@ public class Metadata implements Cloneable, Serializable {
 	// Manifests
 	/** Manifest entries by name */
 	HashMap<String, Metadata> manifestEntries;
+	/** If true, this is a view made by sharedCopy(): manifestEntries, the documents in it, the
+	 * segments and the hashes belong to the original, and must be copied before changing them.
+	 * Not persisted: after deserialization everything is our own. */
+	private transient boolean shared;
+
+	// Indexed manifests
+	/** The lowest name covered by each child, in ascending order */
+	String[] indexNames;
+	/** The children, once inserted or when parsed */
+	FreenetURI[] indexKeys;
+	/** The children, when building, before they have been inserted */
+	Metadata[] indexChildren;
+	/** Soft limit on the number of children of an index node, to avoid memory DoS */
+	static final int MAX_INDEX_CHILDREN = 4096;
 
 	/** Archive internal redirect: name of file in archive
 	 *  SympolicShortLink: Target name*/
@@ -232,8 +254,27 @@ public class Metadata implements Cloneable, Serializable {
 		}
 	}
 	
+	/**
+	 * Make a cheap copy for a caller that may change it, without copying the documents in a
+	 * manifest or the splitfile keys. getDocument() and grabDocument() return shared copies of
+	 * the documents, so only the part of the tree that is actually walked is copied. The
+	 * original must not be changed afterwards.
+	 */
+	Metadata sharedCopy() {
+		try {
+			Metadata meta = (Metadata) super.clone();
+			meta.shared = true;
+			if(clientMetadata != null)
+				meta.clientMetadata = clientMetadata.clone();
+			return meta;
+		} catch (CloneNotSupportedException e) {
+			throw new Error("Yes it is!");
+		}
+	}
+
 	/** Deep copy those fields that need to be deep copied after clone() */
 	private void finishClone(Metadata orig) {
+		shared = false;
 		if(orig.segments != null) {
 			segments = new SplitFileSegmentKeys[orig.segments.length];
 			for(int i=0;i<segments.length;i++) {
@@ -703,6 +744,26 @@ public class Metadata implements Cloneable, Serializable {
 			if(logMINOR) Logger.minor(this, "End of manifest"); // Make it easy to search for it!
 		}
 
+		if(documentType == DocumentType.INDEXED_MANIFEST) {
+			int count = dis.readInt();
+			if(count <= 0 || count > MAX_INDEX_CHILDREN)
+				throw new MetadataParseException("Invalid indexed manifest child count: "+count);
+			if(logMINOR) Logger.minor(this, "Indexed manifest, "+count+" children");
+			indexNames = new String[count];
+			indexKeys = new FreenetURI[count];
+			for(int i=0;i<count;i++) {
+				short nameLength = dis.readShort();
+				if(nameLength < 0)
+					throw new MetadataParseException("Invalid indexed manifest name length: "+nameLength);
+				byte[] buf = new byte[nameLength];
+				dis.readFully(buf);
+				indexNames[i] = new String(buf, "UTF-8");
+				if(i > 0 && indexNames[i].compareTo(indexNames[i-1]) <= 0)
+					throw new MetadataParseException("Indexed manifest not in order: "+indexNames[i]+" after "+indexNames[i-1]);
+				indexKeys[i] = FreenetURI.readFullBinaryKeyWithLength(dis);
+			}
+		}
+
 		if((documentType == DocumentType.ARCHIVE_INTERNAL_REDIRECT) || (documentType == DocumentType.ARCHIVE_METADATA_REDIRECT) || (documentType == DocumentType.SYMBOLIC_SHORTLINK)) {
 			int len = dis.readShort();
 			if(logMINOR) Logger.minor(this, "Reading archive internal redirect length "+len);
@@ -1289,20 +1350,114 @@ public class Metadata implements Cloneable, Serializable {
 		return documentType == DocumentType.SIMPLE_MANIFEST;
 	}
 
+	/** Is a node of an indexed manifest? */
+	public boolean isIndexedManifest() {
+		return documentType == DocumentType.INDEXED_MANIFEST;
+	}
+
+	/**
+	 * Find the block of an indexed manifest which covers a name. This is either another
+	 * index node or a simple manifest which will contain the name if it exists.
+	 * @return A redirect to the block, which the caller should fetch without consuming the name.
+	 */
+	public Metadata getIndexedRedirect(String name) {
+		if(documentType != DocumentType.INDEXED_MANIFEST || indexKeys == null)
+			throw new IllegalStateException();
+		int i = Arrays.binarySearch(indexNames, name);
+		if(i < 0) {
+			// Insertion point, i.e. the first child with a higher name.
+			i = -i - 2;
+			// Lower than anything here, the simple manifest will say not found.
+			if(i < 0) i = 0;
+		}
+		// The fetcher merges the client metadata of each redirect it follows.
+		return new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, indexKeys[i], new ClientMetadata());
+	}
+
+	/**
+	 * Create an indexed manifest for a directory with a lot of entries, so that fetching one
+	 * file only needs the blocks on the path to it rather than the whole directory. The
+	 * entries are sorted and split into simple manifests of up to leafSize entries, and then
+	 * index nodes of up to fanout children are built on top of them. Each node and leaf must
+	 * be inserted separately, so writing the result will throw MetadataUnresolvedException
+	 * until they have been.
+	 *
+	 * Symbolic short links are replaced with their targets, since the target may end up in a
+	 * different leaf.
+	 * @return A simple manifest if there are no more than leafSize entries, otherwise the
+	 * root of the index.
+	 */
+	public static Metadata mkIndexedManifest(Map<String, Metadata> entries, int leafSize, int fanout) {
+		if(leafSize < 1 || fanout < 2) throw new IllegalArgumentException();
+		TreeMap<String, Metadata> sorted = new TreeMap<String, Metadata>(entries);
+		for(Map.Entry<String, Metadata> entry : sorted.entrySet()) {
+			Metadata m = entry.getValue();
+			if(m.isSymbolicShortlink()) {
+				Metadata target = entries.get(m.getSymbolicShortlinkTargetName());
+				if(target != null && !target.isSymbolicShortlink())
+					entry.setValue(target);
+			}
+		}
+		ArrayList<Metadata> level = new ArrayList<Metadata>();
+		ArrayList<String> names = new ArrayList<String>();
+		SimpleManifestComposer smc = null;
+		int count = 0;
+		for(Map.Entry<String, Metadata> entry : sorted.entrySet()) {
+			if(smc == null) {
+				smc = new SimpleManifestComposer();
+				names.add(entry.getKey());
+			}
+			smc.addItem(entry.getKey(), entry.getValue());
+			if(++count == leafSize) {
+				level.add(smc.getMetadata());
+				smc = null;
+				count = 0;
+			}
+		}
+		if(smc != null) level.add(smc.getMetadata());
+		if(level.size() == 1) return level.get(0);
+		while(true) {
+			ArrayList<Metadata> nextLevel = new ArrayList<Metadata>();
+			ArrayList<String> nextNames = new ArrayList<String>();
+			for(int i=0;i<level.size();i+=fanout) {
+				int end = Math.min(level.size(), i+fanout);
+				nextLevel.add(mkIndexNode(names.subList(i, end), level.subList(i, end)));
+				nextNames.add(names.get(i));
+			}
+			if(nextLevel.size() == 1) return nextLevel.get(0);
+			level = nextLevel;
+			names = nextNames;
+		}
+	}
+
+	private static Metadata mkIndexNode(List<String> names, List<Metadata> children) {
+		Metadata m = new Metadata();
+		m.documentType = DocumentType.INDEXED_MANIFEST;
+		m.noMIME = true;
+		m.indexNames = names.toArray(new String[names.size()]);
+		m.indexChildren = children.toArray(new Metadata[children.size()]);
+		return m;
+	}
+
 	/**
 	 * Get the sub-document in a manifest file with the given name.
 	 * @throws MetadataParseException
 	 */
 	public Metadata getDocument(String name) {
-		return manifestEntries.get(name);
+		Metadata doc = manifestEntries.get(name);
+		if(shared && doc != null) doc = doc.sharedCopy();
+		return doc;
 	}
 
 	/**
 	 * Return and remove a specific document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
-	 * removed, since it is being processed.
+	 * removed, since it is being processed. If this is a shared copy the
+	 * manifest isn't ours to change, and the document returned is already
+	 * separate from it, so it is left in place.
 	 */
 	public Metadata grabDocument(String name) {
+		if(shared) return getDocument(name);
 		return manifestEntries.remove(name);
 	}
 
@@ -1332,7 +1487,7 @@ public class Metadata implements Cloneable, Serializable {
 		for (Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
         	String st = entry.getKey();
         	if (st.length()>0)
-        		docs.put(st, entry.getValue());
+        		docs.put(st, shared ? entry.getValue().sharedCopy() : entry.getValue());
         }
         return docs;
     }
@@ -1621,6 +1776,32 @@ public class Metadata implements Cloneable, Serializable {
 			}
 		}
 
+		if(documentType == DocumentType.INDEXED_MANIFEST) {
+			FreenetURI[] keys = indexKeys;
+			if(keys == null) {
+				// Each child is a separate block, so they must all have been inserted.
+				keys = new FreenetURI[indexChildren.length];
+				ArrayList<Metadata> unresolved = null;
+				for(int i=0;i<indexChildren.length;i++) {
+					keys[i] = indexChildren[i].resolvedURI;
+					if(keys[i] == null) {
+						if(unresolved == null) unresolved = new ArrayList<Metadata>();
+						unresolved.add(indexChildren[i]);
+					}
+				}
+				if(unresolved != null)
+					throw new MetadataUnresolvedException(unresolved.toArray(new Metadata[unresolved.size()]), "Indexed manifest children not inserted yet");
+			}
+			dos.writeInt(keys.length);
+			for(int i=0;i<keys.length;i++) {
+				byte[] nameData = indexNames[i].getBytes("UTF-8");
+				if(nameData.length > Short.MAX_VALUE) throw new IllegalArgumentException("Manifest name too long");
+				dos.writeShort(nameData.length);
+				dos.write(nameData);
+				keys[i].writeFullBinaryKeyWithLength(dos);
+			}
+		}
+
 		if((documentType == DocumentType.ARCHIVE_INTERNAL_REDIRECT) || (documentType == DocumentType.ARCHIVE_METADATA_REDIRECT) || (documentType == DocumentType.SYMBOLIC_SHORTLINK)) {
 			byte[] data = targetName.getBytes("UTF-8");
 			if(data.length > Short.MAX_VALUE) throw new IllegalArgumentException("Archive internal redirect name too long");
@@ -1807,6 +1988,10 @@ public class Metadata implements Cloneable, Serializable {
 		}
 		if(targetName != null)
 			dumpline(indent, sb, "Target name: "+targetName);
+		if(indexNames != null) {
+			for(int i=0;i<indexNames.length;i++)
+				dumpline(indent, sb, "Index: "+indexNames[i]+" -> "+(indexKeys != null ? indexKeys[i] : indexChildren[i].resolvedURI));
+		}
 
 		if(manifestEntries != null) {
 			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+
+/**
+ * Cache of parsed Metadata, so that following the same manifests and redirects again doesn't
+ * need to fetch, decompress and parse them again. Only immutable sources are cached: metadata
+ * blocks fetched from a CHK, and the metadata inside a container fetched from a CHK.
+ *
+ * The cached Metadata is never given out, because SingleFileFetcher modifies the Metadata it is
+ * working on. Instead get() and put() return a Metadata.sharedCopy(), which only copies the
+ * documents the fetcher actually walks, not the whole manifest.
+ *
+ * Not persistent. Owned by the ArchiveManager.
+ */
+public class MetadataCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(MetadataCache.class);
+	}
+
+	/** Parsed metadata takes several times the space of the binary form: a Metadata object for
+	 * each manifest entry, Strings rather than UTF-8, HashMap's etc. */
+	static final int SIZE_FACTOR = 4;
+	/** Fixed overhead per item, including the cache's own map entry and key. */
+	static final int ITEM_OVERHEAD = 512;
+
+	/** Maximum estimated memory usage in bytes */
+	private final long maxSize;
+	/** Estimated memory usage in bytes */
+	private long size;
+	/** By ClientCHK for blocks, ArchiveKey for files in containers */
+	private final LRUMap<Object, Item> items = new LRUMap<Object, Item>();
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static class Item {
+		final Metadata metadata;
+		final long size;
+
+		Item(Metadata metadata, long size) {
+			this.metadata = metadata;
+			this.size = size;
+		}
+	}
+
+	/** @param maxSize The maximum estimated memory usage, in bytes. */
+	public MetadataCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** @return A shared copy of the metadata fetched from the key, or null. */
+	public Metadata get(ClientCHK key) {
+		return get((Object) key);
+	}
+
+	/** @return A shared copy of the metadata stored under the name in the container fetched
+	 * from the key, or null. */
+	public Metadata get(FreenetURI archive, String name) {
+		if(!archive.isCHK()) return null;
+		return get(new ArchiveKey(archive, name));
+	}
+
+	/**
+	 * Cache the metadata fetched from a CHK. The cache takes over the metadata, which the caller
+	 * must not change afterwards.
+	 * @param serializedSize The size of the binary metadata it was parsed from.
+	 * @return The metadata to carry on with: a shared copy if it was cached, otherwise the
+	 * metadata passed in.
+	 */
+	public Metadata put(ClientCHK key, Metadata metadata, long serializedSize) {
+		return put((Object) key, metadata, serializedSize);
+	}
+
+	/**
+	 * Cache the metadata stored under a name in a container. Ignored unless the container was
+	 * fetched from a CHK. The cache takes over the metadata, as for put(ClientCHK, ...).
+	 * @param serializedSize The size of the binary metadata it was parsed from.
+	 * @return The metadata to carry on with.
+	 */
+	public Metadata put(FreenetURI archive, String name, Metadata metadata, long serializedSize) {
+		if(!archive.isCHK()) return metadata;
+		return put(new ArchiveKey(archive, name), metadata, serializedSize);
+	}
+
+	private Metadata get(Object key) {
+		Item item;
+		synchronized(this) {
+			item = items.get(key);
+			if(item == null) {
+				misses++;
+				return null;
+			}
+			items.push(key, item);
+			hits++;
+		}
+		if(logMINOR) Logger.minor(this, "Cache hit for "+key);
+		return item.metadata.sharedCopy();
+	}
+
+	private Metadata put(Object key, Metadata metadata, long serializedSize) {
+		long itemSize = serializedSize * SIZE_FACTOR + ITEM_OVERHEAD;
+		// Don't let one huge splitfile push out all the manifests.
+		if(itemSize > maxSize / 8) return metadata;
+		Item item = new Item(metadata, itemSize);
+		synchronized(this) {
+			Item old = items.push(key, item);
+			if(old != null) size -= old.size;
+			size += itemSize;
+			while(size > maxSize && !items.isEmpty()) {
+				Item dropped = items.popValue();
+				size -= dropped.size;
+				evictions++;
+			}
+		}
+		return metadata.sharedCopy();
+	}
+
+	/** Remove everything. */
+	public synchronized void clear() {
+		items.clear();
+		size = 0;
+	}
+
+	/** Estimated memory usage in bytes. */
+	public synchronized long size() {
+		return size;
+	}
+
+	public long maxSize() {
+		return maxSize;
+	}
+
+	public synchronized int items() {
+		return items.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/** @return The fraction of lookups that found something, or 0 if there haven't been any. */
+	public synchronized double hitRate() {
+		long total = hits + misses;
+		if(total == 0) return 0.0;
+		return ((double) hits) / total;
+	}
+
+}
@@ -0,0 +1,461 @@
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.support.HelperThreads;
+import freenet.support.LRUMap;
+
+/**
+ * Pure Java Reed-Solomon codec over GF(2^8), producing exactly the same check blocks as
+ * OnionFECCodec (i.e. Luigi Rizzo's Vandermonde code as implemented by
+ * com.onionnetworks.fec.PureCode), so it can be used interchangeably for existing splitfiles.
+ *
+ * The difference is in the inner loops. PureCode multiplies a byte at a time via log and exp
+ * tables, and makes a full pass over the output for every input block. We use a full 64KB
+ * multiplication table, so multiplying a block by a constant is a single lookup per byte, and
+ * we process the blocks in stripes small enough that all the inputs for a stripe stay in the
+ * CPU cache while we compute all the outputs for it. Coefficients of 1 (common in decoding)
+ * are a plain XOR, which the JIT compiles to wide vector operations.
+ *
+ * The encoding matrix is built the same way as in Rizzo's fec.c: Take the n x k matrix whose
+ * first row is [1, 0, ... 0] and whose row (r+1) is alpha^(r*col), multiply it by the inverse
+ * of its top k x k square, so that the top k rows are the identity and the code is systematic.
+ * Decoding inverts the k x k matrix of rows for the blocks we have.
+ *
+ * Every byte offset within a block is independent, so a single segment can be split by stripe
+ * across a fork/join pool. Each encode or decode uses a share of the available cores
+ * proportional to how many others are running at the same time: A single segment decoding at
+ * the end of a big download uses all the cores, while many segments running at once (limited
+ * by MemoryLimitedJobRunner) each run on their own thread as before. The extra threads come from
+ * the shared, low priority HelperThreads pool, and count against MemoryLimitedJobRunner's limits.
+ */
+public class TableFECCodec extends FECCodec {
+
+    /** Bytes of each block processed at a time. Small enough that 256 stripes fit in L2. */
+    static final int STRIPE_SIZE = 2048;
+
+    /** Maximum number of threads for a single encode or decode. Set with
+     * -Dfreenet.fec.threads, default is the number of cores; 1 disables parallel FEC. */
+    static final int MAX_THREADS;
+    /** Don't split jobs smaller than this (output bytes times input blocks). */
+    static final long MIN_PARALLEL_WORK = 4*1024*1024;
+    /** Number of encodes and decodes currently running, used to share out the cores. */
+    private static final AtomicInteger running = new AtomicInteger();
+
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = cores;
+        try {
+            threads = Integer.parseInt(System.getProperty("freenet.fec.threads",
+                    Integer.toString(cores)));
+        } catch (NumberFormatException e) {
+            // Use the default.
+        }
+        MAX_THREADS = Math.max(1, threads);
+    }
+
+    private static final int GF_BITS = 8;
+    private static final int GF_SIZE = (1 << GF_BITS) - 1;
+    /** Primitive polynomial, x^8+x^4+x^3+x^2+1, least significant bit first as in fec.c. */
+    private static final String PRIM_POLY = "101110001";
+
+    /** gfExp[i] = alpha^i. Doubled so we don't need to reduce sums of logs. */
+    private static final int[] gfExp = new int[2 * GF_SIZE];
+    private static final int[] gfLog = new int[GF_SIZE + 1];
+    private static final int[] inverse = new int[GF_SIZE + 1];
+    /** MUL[a][b] = a * b in GF(2^8). 64KB. */
+    static final byte[][] MUL = new byte[GF_SIZE + 1][GF_SIZE + 1];
+
+    static {
+        int mask = 1;
+        gfExp[GF_BITS] = 0;
+        for(int i=0;i<GF_BITS;i++, mask <<= 1) {
+            gfExp[i] = mask;
+            gfLog[gfExp[i]] = i;
+            if(PRIM_POLY.charAt(i) == '1')
+                gfExp[GF_BITS] ^= mask;
+        }
+        gfLog[gfExp[GF_BITS]] = GF_BITS;
+        mask = 1 << (GF_BITS - 1);
+        for(int i=GF_BITS+1;i<GF_SIZE;i++) {
+            if(gfExp[i-1] >= mask)
+                gfExp[i] = gfExp[GF_BITS] ^ ((gfExp[i-1] ^ mask) << 1);
+            else
+                gfExp[i] = gfExp[i-1] << 1;
+            gfLog[gfExp[i]] = i;
+        }
+        gfLog[0] = GF_SIZE;
+        for(int i=0;i<GF_SIZE;i++)
+            gfExp[i + GF_SIZE] = gfExp[i];
+        inverse[0] = 0;
+        inverse[1] = 1;
+        for(int i=2;i<=GF_SIZE;i++)
+            inverse[i] = gfExp[GF_SIZE - gfLog[i]];
+        for(int a=1;a<=GF_SIZE;a++)
+            for(int b=1;b<=GF_SIZE;b++)
+                MUL[a][b] = (byte) gfExp[gfLog[a] + gfLog[b]];
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+
+    private static int modnn(int x) {
+        while(x >= GF_SIZE) {
+            x -= GF_SIZE;
+            x = (x >> GF_BITS) + (x & GF_SIZE);
+        }
+        return x;
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        int missing = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) missing++;
+        }
+        // Choose k blocks to decode from: All the data blocks we have, then check blocks.
+        int[] blockNumbers = new int[k];
+        byte[][] inputs = new byte[k][];
+        int x = 0;
+        for(int i=0;i<k;i++) {
+            if(!dataBlocksPresent[i]) continue;
+            blockNumbers[x] = i;
+            inputs[x++] = dataBlocks[i];
+        }
+        for(int i=0;i<checkBlocks.length && x < k;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            blockNumbers[x] = i + k;
+            inputs[x++] = checkBlocks[i];
+        }
+        if(missing == 0) return;
+        if(x < k) throw new IllegalArgumentException("Not enough blocks to decode");
+        byte[] enc = getEncodeMatrix(k, n);
+        // Rows of the encode matrix for the blocks we have.
+        int[] m = new int[k*k];
+        for(int row=0;row<k;row++) {
+            int b = blockNumbers[row];
+            for(int col=0;col<k;col++)
+                m[row*k+col] = enc[b*k+col] & 0xFF;
+        }
+        invert(m, k);
+        // Each missing data block is a row of the inverse times the inputs.
+        byte[][] coefficients = new byte[missing][k];
+        byte[][] outputs = new byte[missing][];
+        int y = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) continue;
+            for(int col=0;col<k;col++)
+                coefficients[y][col] = (byte) m[i*k+col];
+            outputs[y++] = dataBlocks[i];
+        }
+        multiplyShared(coefficients, inputs, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[] enc = getEncodeMatrix(k, n);
+        byte[][] coefficients = new byte[mustEncode][k];
+        byte[][] outputs = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            System.arraycopy(enc, (i+k)*k, coefficients[x], 0, k);
+            outputs[x++] = checkBlocks[i];
+        }
+        multiplyShared(coefficients, dataBlocks, outputs, blockLength);
+    }
+
+    private static void multiplyShared(byte[][] coefficients, byte[][] inputs,
+            byte[][] outputs, int blockLength) {
+        int active = running.incrementAndGet();
+        int reserved = 0;
+        try {
+            int threads = threadsFor(active, (long)outputs.length * inputs.length * blockLength,
+                    blockLength);
+            // We already have a thread, from the runner or otherwise.
+            reserved = HelperThreads.reserve(threads - 1, helperMemory(inputs.length,
+                    outputs.length));
+            multiply(coefficients, inputs, outputs, blockLength, 1 + reserved);
+        } finally {
+            running.decrementAndGet();
+            HelperThreads.release(reserved, helperMemory(inputs.length, outputs.length));
+        }
+    }
+
+    /** Memory to reserve for each extra thread: The helper doesn't allocate anything itself,
+     * but keeps a stripe of every input and output block in its CPU cache. */
+    static long helperMemory(int inputs, int outputs) {
+        return (long)(inputs + outputs) * STRIPE_SIZE;
+    }
+
+    /** How many threads to use for a job, given the number of jobs running, and the size of
+     * this one. */
+    static int threadsFor(int active, long work, int blockLength) {
+        if(MAX_THREADS == 1 || work < MIN_PARALLEL_WORK) return 1;
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        int threads = MAX_THREADS / Math.max(1, active);
+        threads = Math.min(threads, stripes);
+        threads = Math.min(threads, (int)Math.min(Integer.MAX_VALUE, work / MIN_PARALLEL_WORK));
+        return Math.max(1, threads);
+    }
+
+    /** outputs[i] = sum over j of coefficients[i][j] * inputs[j]. The outputs may not overlap
+     * the inputs.
+     * @param threads Split the work by stripe across up to this many threads. */
+    static void multiply(byte[][] coefficients, byte[][] inputs, byte[][] outputs,
+            int blockLength, int threads) {
+        if(threads <= 1) {
+            multiplyRange(coefficients, inputs, outputs, 0, blockLength);
+            return;
+        }
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        int stripesPerTask = (stripes + threads - 1) / threads;
+        HelperThreads.getPool().invoke(new StripeTask(coefficients, inputs, outputs, 0, stripes,
+                stripesPerTask, blockLength));
+    }
+
+    /** Computes the outputs for a range of stripes, splitting itself until each task has at most
+     * stripesPerTask stripes. */
+    private static class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[][] coefficients;
+        private final byte[][] inputs;
+        private final byte[][] outputs;
+        private final int firstStripe;
+        private final int endStripe;
+        private final int stripesPerTask;
+        private final int blockLength;
+
+        StripeTask(byte[][] coefficients, byte[][] inputs, byte[][] outputs, int firstStripe,
+                int endStripe, int stripesPerTask, int blockLength) {
+            this.coefficients = coefficients;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.firstStripe = firstStripe;
+            this.endStripe = endStripe;
+            this.stripesPerTask = stripesPerTask;
+            this.blockLength = blockLength;
+        }
+
+        @Override
+        protected void compute() {
+            int count = endStripe - firstStripe;
+            if(count <= stripesPerTask) {
+                multiplyRange(coefficients, inputs, outputs, firstStripe * STRIPE_SIZE,
+                        Math.min(blockLength, endStripe * STRIPE_SIZE));
+                return;
+            }
+            // Split on a multiple of stripesPerTask so we get the intended number of tasks.
+            int mid = firstStripe + ((count / stripesPerTask + 1) / 2) * stripesPerTask;
+            invokeAll(new StripeTask(coefficients, inputs, outputs, firstStripe, mid,
+                    stripesPerTask, blockLength),
+                    new StripeTask(coefficients, inputs, outputs, mid, endStripe,
+                    stripesPerTask, blockLength));
+        }
+
+    }
+
+    /** Compute bytes [from, to) of the outputs, one stripe at a time. */
+    static void multiplyRange(byte[][] coefficients, byte[][] inputs, byte[][] outputs, int from,
+            int to) {
+        for(int start=from;start<to;start+=STRIPE_SIZE) {
+            int end = Math.min(to, start + STRIPE_SIZE);
+            for(int i=0;i<outputs.length;i++) {
+                byte[] out = outputs[i];
+                byte[] row = coefficients[i];
+                boolean first = true;
+                for(int j=0;j<inputs.length;j++) {
+                    int c = row[j] & 0xFF;
+                    if(c == 0) continue;
+                    if(first) {
+                        if(c == 1)
+                            System.arraycopy(inputs[j], start, out, start, end - start);
+                        else
+                            multiplyInto(MUL[c], inputs[j], out, start, end);
+                        first = false;
+                    } else {
+                        if(c == 1)
+                            xorInto(inputs[j], out, start, end);
+                        else
+                            multiplyXorInto(MUL[c], inputs[j], out, start, end);
+                    }
+                }
+                if(first) {
+                    // All zero. Can't happen with a valid matrix.
+                    for(int x=start;x<end;x++) out[x] = 0;
+                }
+            }
+        }
+    }
+
+    private static void multiplyInto(byte[] table, byte[] in, byte[] out, int start, int end) {
+        for(int x=start;x<end;x++)
+            out[x] = table[in[x] & 0xFF];
+    }
+
+    private static void xorInto(byte[] in, byte[] out, int start, int end) {
+        for(int x=start;x<end;x++)
+            out[x] ^= in[x];
+    }
+
+    private static void multiplyXorInto(byte[] table, byte[] in, byte[] out, int start,
+            int end) {
+        int x = start;
+        // Unrolled, the loads from the table are independent.
+        for(;x+4<=end;x+=4) {
+            out[x] ^= table[in[x] & 0xFF];
+            out[x+1] ^= table[in[x+1] & 0xFF];
+            out[x+2] ^= table[in[x+2] & 0xFF];
+            out[x+3] ^= table[in[x+3] & 0xFF];
+        }
+        for(;x<end;x++)
+            out[x] ^= table[in[x] & 0xFF];
+    }
+
+    /** Invert a k x k matrix in place by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular. */
+    static void invert(int[] m, int k) {
+        int[] inv = new int[k*k];
+        for(int i=0;i<k;i++) inv[i*k+i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && m[pivot*k+col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                swapRows(m, k, pivot, col);
+                swapRows(inv, k, pivot, col);
+            }
+            int c = inverse[m[col*k+col]];
+            if(c != 1) {
+                byte[] table = MUL[c];
+                for(int j=0;j<k;j++) {
+                    m[col*k+j] = table[m[col*k+j]] & 0xFF;
+                    inv[col*k+j] = table[inv[col*k+j]] & 0xFF;
+                }
+            }
+            for(int row=0;row<k;row++) {
+                if(row == col) continue;
+                int f = m[row*k+col];
+                if(f == 0) continue;
+                byte[] table = MUL[f];
+                for(int j=0;j<k;j++) {
+                    m[row*k+j] ^= table[m[col*k+j]] & 0xFF;
+                    inv[row*k+j] ^= table[inv[col*k+j]] & 0xFF;
+                }
+            }
+        }
+        System.arraycopy(inv, 0, m, 0, k*k);
+    }
+
+    private static void swapRows(int[] m, int k, int a, int b) {
+        for(int j=0;j<k;j++) {
+            int t = m[a*k+j];
+            m[a*k+j] = m[b*k+j];
+            m[b*k+j] = t;
+        }
+    }
+
+    /** Build the n x k systematic encoding matrix, as fec.c does. */
+    static byte[] createEncodeMatrix(int k, int n) {
+        if(k > n || n > GF_SIZE + 1) throw new IllegalArgumentException();
+        int[] tmp = new int[n*k];
+        tmp[0] = 1;
+        for(int row=0;row<n-1;row++)
+            for(int col=0;col<k;col++)
+                tmp[(row+1)*k+col] = gfExp[modnn(row*col)];
+        int[] top = new int[k*k];
+        System.arraycopy(tmp, 0, top, 0, k*k);
+        invert(top, k);
+        byte[] enc = new byte[n*k];
+        for(int i=0;i<k;i++)
+            enc[i*k+i] = 1;
+        for(int row=k;row<n;row++) {
+            for(int col=0;col<k;col++) {
+                int acc = 0;
+                for(int j=0;j<k;j++)
+                    acc ^= mul(tmp[row*k+j], top[j*k+col]);
+                enc[row*k+col] = (byte) acc;
+            }
+        }
+        return enc;
+    }
+
+    /** Cache of encoding matrices by {k,n}. Like OnionFECCodec, these are small, and we account
+     * for them in maxMemoryOverheadDecode() etc. */
+    private synchronized static byte[] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) + k;
+        SoftReference<byte[]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(key);
+        if(ref != null) {
+            byte[] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(key, ref);
+                return matrix;
+            }
+        }
+        byte[] matrix = createEncodeMatrix(k, n);
+        recentlyUsedMatrices.push(key, new SoftReference<byte[]>(matrix));
+        return matrix;
+    }
+
+    private static final LRUMap<Integer, SoftReference<byte[]>> recentlyUsedMatrices =
+        LRUMap.createSafeMap();
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Encode matrix, plus the matrix being inverted and its inverse as int[]'s, plus the
+        // coefficients for the missing blocks.
+        return n*k + k*k*4*2 + k*k;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Encode matrix plus the coefficients for the check blocks.
+        return n*k*2;
+    }
+
+    @Override
+    public int getCheckBlocks(int dataBlocks, CompatibilityMode cmode) {
+        // Same code, same redundancy.
+        return ONION.getCheckBlocks(dataBlocks, cmode);
+    }
+
+    private static final OnionFECCodec ONION = new OnionFECCodec();
+
+}
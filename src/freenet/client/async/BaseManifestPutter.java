@@ -515,9 +515,10 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			}
 			synchronized(BaseManifestPutter.this) {
 				runningPutHandlers.remove(this);
-				if(putHandlersWaitingForMetadata.remove(this)) {
-					Logger.error(this, "PutHandler '"+this.itemName+"' was in waitingForMetadata in onSuccess() on "+this+" for "+BaseManifestPutter.this, new Error("debug"));
-				}
+				// A small file's key can be reported after the insert has finished, so leave it
+				// to onMetadata() to remove it.
+				if(logMINOR && putHandlersWaitingForMetadata.contains(this))
+					Logger.minor(this, "PutHandler '"+this.itemName+"' still waiting for metadata in onSuccess() on "+this+" for "+BaseManifestPutter.this);
 
 				if(putHandlerWaitingForBlockSets.remove(this)) {
 					Logger.error(this, "PutHandler was in waitingForBlockSets in onSuccess() on "+this+" for "+BaseManifestPutter.this, new Error("debug"));
@@ -562,6 +563,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			synchronized (this) {
 				if (currentState == oldState) {
 					currentState = newState;
+					BaseManifestPutter.this.markChanged();
 					if(logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
 					return;
@@ -938,8 +940,15 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		resolveAndStartBase(context);
 	}
 
+	/** Number of entries in each simple manifest at the bottom of an indexed manifest. */
+	static final int INDEXED_MANIFEST_LEAF_SIZE = 128;
+	/** Number of children of each node of an indexed manifest. */
+	static final int INDEXED_MANIFEST_FANOUT = 128;
+
 	@SuppressWarnings("unchecked")
 	private Metadata makeMetadata(HashMap<String, Object> dir) {
+		if(ctx.indexedManifestThreshold > 0 && dir.size() > ctx.indexedManifestThreshold)
+			return makeIndexedMetadata(dir);
 		SimpleManifestComposer smc = new SimpleManifestComposer();
 		for(Map.Entry<String, Object> entry:dir.entrySet()) {
 			String name = entry.getKey();
@@ -958,6 +967,26 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		return smc.getMetadata();
 	}
 
+	/** Split a big directory into an indexed manifest. The nodes are inserted separately by
+	 * resolve(), since they are unresolved until their children have been inserted. */
+	@SuppressWarnings("unchecked")
+	private Metadata makeIndexedMetadata(HashMap<String, Object> dir) {
+		HashMap<String, Metadata> entries = new HashMap<String, Metadata>();
+		for(Map.Entry<String, Object> entry:dir.entrySet()) {
+			Object item = entry.getValue();
+			if (item == null) throw new NullPointerException();
+			Metadata m;
+			if (item instanceof HashMap)
+				m = makeMetadata((HashMap<String, Object>) item);
+			else
+				m = ((PutHandler)item).metadata;
+			if (m == null) throw new NullPointerException("HERE!!" +item);
+			entries.put(entry.getKey(), m);
+		}
+		if(logMINOR) Logger.minor(this, "Indexed manifest for "+entries.size()+" entries");
+		return Metadata.mkIndexedManifest(entries, INDEXED_MANIFEST_LEAF_SIZE, INDEXED_MANIFEST_FANOUT);
+	}
+
 	/**
 	 * Attempt to insert the base metadata and the container. If the base metadata cannot be resolved,
 	 * try to resolve it: start inserts for each part that cannot be resolved, and wait for them to generate
@@ -998,17 +1027,19 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			}
 		}
 		if(bucket == null) return;
+		InsertBlock block;
+		block = new InsertBlock(bucket, null, targetURI);
+		MetaPutHandler root;
 		synchronized(this) {
 			if(hasResolvedBase) return;
 			hasResolvedBase = true;
+			// Set together, so tryComplete() doesn't see neither.
+			root = new MetaPutHandler(this, null, block);
+			rootMetaPutHandler = root;
 		}
-		InsertBlock block;
-		block = new InsertBlock(bucket, null, targetURI);
 		try {
-			rootMetaPutHandler = new MetaPutHandler(this, null, block);
-
-			if(logMINOR) Logger.minor(this, "Inserting main metadata: "+rootMetaPutHandler+" for "+baseMetadata);
-			rootMetaPutHandler.start(context);
+			if(logMINOR) Logger.minor(this, "Inserting main metadata: "+root+" for "+baseMetadata);
+			root.start(context);
 		} catch (InsertException e) {
 			fail(e, context);
 			return;
@@ -1031,7 +1062,15 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		for(Metadata m: metas) {
 			if(logMINOR) Logger.minor(this, "Resolving "+m);
 			if(m.isResolved()) {
-				Logger.error(this, "Already resolved: "+m+" in resolve() - race condition???");
+				// Finished since the caller tried to write its parent, e.g. another child
+				// of the same index node.
+				if(logMINOR) Logger.minor(this, "Already resolved: "+m);
+				continue;
+			}
+			if(isResolving(m)) {
+				// An index node waits for all its children, so we will see the same
+				// children again before they have all been inserted.
+				if(logMINOR) Logger.minor(this, "Already inserting "+m);
 				continue;
 			}
 			try {
@@ -1043,6 +1082,16 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		}
 	}
 
+	/** Is there already a MetaPutHandler inserting this Metadata? */
+	private boolean isResolving(Metadata m) {
+		synchronized (runningPutHandlers) {
+			for(PutHandler ph : runningPutHandlers) {
+				if(ph instanceof MetaPutHandler && ph.metadata == m) return true;
+			}
+		}
+		return false;
+	}
+
 	private void tryComplete(ClientContext context) {
 		//debugDecompose("try complete");
 		if(logDEBUG) Logger.debug(this, "try complete", new Error("trace tryComplete()"));
@@ -1065,6 +1114,10 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 					return;
 				}
 			} else {
+				if (!hasResolvedBase) {
+					if (logDEBUG) Logger.debug(this, "Not finished, base metadata not inserted yet.");
+					return;
+				}
 				if (rootMetaPutHandler != null) {
 					if (logDEBUG) Logger.debug(this, "Not finished, rootMetaPutHandler not empty.");
 					return;
@@ -1411,7 +1464,9 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		public void addExternal(String name, RandomAccessBucket data, ClientMetadata cm, boolean isDefaultDoc) {
 			PutHandler ph;
 			ph = new ExternPutHandler(BaseManifestPutter.this, null, name, data, cm);
-//			putHandlersWaitingForMetadata.add(ph);
+			// Otherwise every file calls gotAllMetadata(), and an indexed manifest gets
+			// built and inserted again for each file finishing after the last one started.
+			putHandlersWaitingForMetadata.add(ph);
 //			putHandlersWaitingForFetchable.add(ph);
 			if(logMINOR) Logger.minor(this, "Inserting separately as PutHandler: "+name+" : "+ph+" persistent="+ph.persistent());
 			numberOfFiles++;
@@ -46,7 +46,7 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorChain;
 import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
@@ -300,10 +300,11 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// doing massive encrypted I/Os while holding a lock.
 
 		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		PipedInputStream dataInput = new PipedInputStream(DecompressorChain.PIPE_SIZE);
+		InputStream decompressedInput = dataInput;
 		OutputStream output = null;
 
-		DecompressorThreadManager decompressorManager = null;
+		DecompressorChain decompressorManager = null;
 		ClientGetWorkerThread worker = null;
 		Bucket finalResult = null;
 		FetchResult result = null;
@@ -332,13 +333,13 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+				decompressorManager =  new DecompressorChain(dataInput, decompressors, maxLen);
+				decompressedInput = decompressorManager.execute();
 			}
 
 			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+			worker = new ClientGetWorkerThread(new BufferedInputStream(decompressedInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
 			worker.start();
 			try {
 				streamGenerator.writeTo(dataOutput, context);
@@ -439,7 +440,6 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             InputStream is = new BufferedInputStream(new FileInputStream(raf.getFD()));
             // Check hashes...
             
-            DecompressorThreadManager decompressorManager = null;
             ClientGetWorkerThread worker = null;
 
             worker = new ClientGetWorkerThread(is, new NullOutputStream(), uri, null, hashes, false, null, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
@@ -703,6 +703,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		synchronized(this) {
 			if(currentState == oldState) {
 				currentState = newState;
+				markChanged();
 				if(logMINOR) Logger.minor(this, "Transition: "+oldState+" -> "+newState+" on "+this+" persistent = "+persistent()+" instance = "+super.toString(), new Exception("debug"));
 			} else {
 				if(logMINOR) Logger.minor(this, "Ignoring transition: "+oldState+" -> "+newState+" because current = "+currentState+" on "+this+" persistent = "+persistent(), new Exception("debug"));
@@ -0,0 +1,327 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.ChecksumChecker;
+import freenet.node.DatabaseKey;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/** The journal of changes to client.dat, so that a checkpoint only has to write the requests
+ * which have changed, rather than serializing all of them and rewriting the whole file.
+ *
+ * client.dat is a snapshot, and records the sequence number of the last journal segment it
+ * includes. Each checkpoint writes the next segment, client.dat.journal.N[.crypt], containing the
+ * requests which have been added or have changed since the last checkpoint, and those which have
+ * been removed, followed by the stats and the buckets to free, as in client.dat. Loading reads
+ * the snapshot and then replays the later segments in order.
+ *
+ * Once the segments get big, compact() merges them into a new snapshot. This copies the entries
+ * as bytes, without deserializing any requests, so it doesn't need the requests to be suspended
+ * and runs in the background while jobs continue.
+ *
+ * An entry has the same format in a segment as in the snapshot: The checksummed
+ * RequestIdentifier, then the checksummed serialized request, then the checksummed recovery data.
+ * @see ClientLayerPersister
+ */
+class ClientLayerJournal {
+
+    static final long MAGIC = 0x7a2dc5cf1fe3b0c4L;
+    static final int VERSION = 1;
+
+    /** End of the records in a segment. The stats and the buckets to free follow. */
+    static final byte RECORD_END = 0;
+    /** A request which has been added or has changed. Followed by the complete entry. */
+    static final byte RECORD_UPDATE = 1;
+    /** A request which has been removed. Followed by the checksummed RequestIdentifier. */
+    static final byte RECORD_REMOVE = 2;
+
+    private static final String SEGMENT_SUFFIX = ".journal.";
+    private static final String ENCRYPTED_SUFFIX = ".crypt";
+
+    private final File dir;
+    private final String baseName;
+    private final ChecksumChecker checker;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(ClientLayerJournal.class);
+    }
+
+    ClientLayerJournal(File dir, String baseName, ChecksumChecker checker) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.checker = checker;
+    }
+
+    File getFile(long sequence, boolean encrypted) {
+        return new File(dir, baseName + SEGMENT_SUFFIX + sequence +
+                (encrypted ? ENCRYPTED_SUFFIX : ""));
+    }
+
+    static boolean isEncrypted(File segment) {
+        return segment.getName().endsWith(ENCRYPTED_SUFFIX);
+    }
+
+    /** Create a Bucket for a segment.
+     * @param encryptionKey Non-null if the segment is encrypted. */
+    Bucket makeBucket(long sequence, DatabaseKey encryptionKey) {
+        return makeBucket(getFile(sequence, encryptionKey != null), encryptionKey);
+    }
+
+    static Bucket makeBucket(File file, DatabaseKey encryptionKey) {
+        Bucket bucket = new FileBucket(file, false, false, false, false);
+        if(encryptionKey != null)
+            bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+        return bucket;
+    }
+
+    /** @return All the segments on disk, encrypted or not, by sequence number. */
+    SortedMap<Long, File> listSegments() {
+        SortedMap<Long, File> segments = new TreeMap<Long, File>();
+        String[] names = dir.list();
+        if(names == null) return segments;
+        String prefix = baseName + SEGMENT_SUFFIX;
+        for(String name : names) {
+            if(!name.startsWith(prefix)) continue;
+            String seq = name.substring(prefix.length());
+            if(seq.endsWith(ENCRYPTED_SUFFIX))
+                seq = seq.substring(0, seq.length() - ENCRYPTED_SUFFIX.length());
+            try {
+                segments.put(Long.parseLong(seq), new File(dir, name));
+            } catch (NumberFormatException e) {
+                Logger.warning(this, "Ignoring "+name);
+            }
+        }
+        return segments;
+    }
+
+    /** Delete all the segments up to and including a sequence number.
+     * @param secure If true, overwrite them first. */
+    void deleteSegments(long upTo, boolean secure) {
+        for(File f : listSegments().headMap(upTo == Long.MAX_VALUE ? upTo : upTo + 1).values()) {
+            if(secure) {
+                try {
+                    FileUtil.secureDelete(f);
+                    continue;
+                } catch (IOException e) {
+                    // Fall through.
+                }
+            }
+            if(!f.delete() && f.exists())
+                Logger.error(this, "Unable to delete journal segment "+f);
+        }
+    }
+
+    /** Start writing a segment. */
+    ObjectOutputStream startSegment(OutputStream os, long sequence) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(os);
+        oos.writeLong(MAGIC);
+        oos.writeInt(VERSION);
+        oos.writeLong(sequence);
+        return oos;
+    }
+
+    /** Read the header of a segment.
+     * @throws IOException If it is not a segment, or it is the wrong segment. */
+    void readHeader(ObjectInputStream ois, long sequence) throws IOException {
+        if(ois.readLong() != MAGIC) throw new IOException("Bad magic");
+        if(ois.readInt() != VERSION) throw new IOException("Bad version");
+        long seq = ois.readLong();
+        if(seq != sequence)
+            throw new IOException("Segment contains "+seq+" but should contain "+sequence);
+    }
+
+    /** An entry read as bytes. */
+    private static class RawEntry {
+        /** Null if the checksum failed. */
+        final RequestIdentifier id;
+        final byte[] data;
+        RawEntry(RequestIdentifier id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /** Read an entry without deserializing it. */
+    private RawEntry readEntry(ObjectInputStream ois, long maxLength) throws IOException {
+        byte[] id = readRequestIdentifierBytes(ois);
+        byte[] request = readChecksummedBytes(ois, maxLength);
+        byte[] recovery = readChecksummedBytes(ois, maxLength);
+        byte[] data = new byte[id.length + request.length + recovery.length];
+        System.arraycopy(id, 0, data, 0, id.length);
+        System.arraycopy(request, 0, data, id.length, request.length);
+        System.arraycopy(recovery, 0, data, id.length + request.length, recovery.length);
+        return new RawEntry(parseRequestIdentifier(id), data);
+    }
+
+    /** @return The RequestIdentifier as written by ClientLayerPersister, including the length
+     * and the checksum. */
+    private byte[] readRequestIdentifierBytes(ObjectInputStream ois) throws IOException {
+        short length = ois.readShort();
+        int dataLength = length <= 0 ? 0 : length + checker.checksumLength();
+        byte[] buf = new byte[2 + dataLength];
+        buf[0] = (byte) (length >> 8);
+        buf[1] = (byte) length;
+        ois.readFully(buf, 2, dataLength);
+        return buf;
+    }
+
+    private RequestIdentifier parseRequestIdentifier(byte[] buf) {
+        int length = buf.length - 2 - checker.checksumLength();
+        if(length <= 0) return null;
+        byte[] checksum = new byte[checker.checksumLength()];
+        System.arraycopy(buf, 2 + length, checksum, 0, checksum.length);
+        if(!checker.checkChecksum(buf, 2, length, checksum)) return null;
+        try {
+            return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(buf, 2, length)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** @return A checksummed object including its length and checksum. */
+    private byte[] readChecksummedBytes(ObjectInputStream ois, long maxLength) throws IOException {
+        long length = ois.readLong();
+        if(length < 0 || length > maxLength || length > Integer.MAX_VALUE - 16)
+            throw new IOException("Bad length "+length);
+        byte[] buf = new byte[8 + (int)length + checker.checksumLength()];
+        for(int i=0;i<8;i++)
+            buf[i] = (byte) (length >>> (56 - i*8));
+        ois.readFully(buf, 8, buf.length - 8);
+        return buf;
+    }
+
+    /** Merge a snapshot and the segments after it into a new snapshot. Entries are copied as
+     * bytes, in the order of the old snapshot, followed by those added in the journal. The stats
+     * are taken from the last segment, and the buckets to free are not copied, because they
+     * were freed when the segment was written.
+     * @param snapshot The current client.dat.
+     * @param segments The segments to merge into it, in order.
+     * @param upTo The sequence number of the last segment.
+     * @param output Where to write the new snapshot.
+     * @param bf Temporary space, for the entries kept from the old snapshot.
+     * @return The number of requests in the new snapshot.
+     * @throws IOException If any of the files cannot be read, in which case the new snapshot
+     * must not be used. */
+    int compact(Bucket snapshot, List<Bucket> segments, long upTo, Bucket output,
+            BucketFactory bf) throws IOException {
+        // Latest entry for each request, null if it has been removed.
+        Map<RequestIdentifier, byte[]> changed = new LinkedHashMap<RequestIdentifier, byte[]>();
+        // Entries whose identifier is corrupt. We can't tell which request they replace.
+        List<byte[]> unidentified = new ArrayList<byte[]>();
+        Object stats = null;
+        for(Bucket segment : segments) {
+            InputStream is = segment.getInputStream();
+            try {
+                ObjectInputStream ois = new ObjectInputStream(is);
+                if(ois.readLong() != MAGIC) throw new IOException("Bad magic in "+segment);
+                if(ois.readInt() != VERSION) throw new IOException("Bad version in "+segment);
+                ois.readLong();
+                byte type;
+                while((type = ois.readByte()) != RECORD_END) {
+                    if(type == RECORD_UPDATE) {
+                        RawEntry entry = readEntry(ois, segment.size());
+                        if(entry.id == null)
+                            unidentified.add(entry.data);
+                        else {
+                            changed.remove(entry.id);
+                            changed.put(entry.id, entry.data);
+                        }
+                    } else if(type == RECORD_REMOVE) {
+                        RequestIdentifier id =
+                            parseRequestIdentifier(readRequestIdentifierBytes(ois));
+                        if(id != null) changed.put(id, null);
+                    } else {
+                        throw new IOException("Unknown record type "+type+" in "+segment);
+                    }
+                }
+                stats = ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                Closer.close(is);
+            }
+        }
+        Bucket kept = bf.makeBucket(-1);
+        try {
+            InputStream is = snapshot.getInputStream();
+            byte[] salt;
+            int count = 0;
+            try {
+                ObjectInputStream ois = new ObjectInputStream(is);
+                if(ois.readLong() != ClientLayerPersister.MAGIC) throw new IOException("Bad magic");
+                int version = ois.readInt();
+                if(version != ClientLayerPersister.VERSION && version != 1)
+                    throw new IOException("Bad version");
+                salt = new byte[32 + checker.checksumLength()];
+                ois.readFully(salt);
+                if(version > 1) ois.readLong();
+                int requestCount = ois.readInt();
+                OutputStream os = kept.getOutputStream();
+                try {
+                    for(int i=0;i<requestCount;i++) {
+                        RawEntry entry = readEntry(ois, snapshot.size());
+                        if(entry.id != null && changed.containsKey(entry.id)) continue;
+                        os.write(entry.data);
+                        count++;
+                    }
+                } finally {
+                    os.close();
+                }
+                if(stats == null) stats = ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                Closer.close(is);
+            }
+            for(byte[] data : changed.values())
+                if(data != null) count++;
+            count += unidentified.size();
+            OutputStream os = output.getOutputStream();
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(os);
+                oos.writeLong(ClientLayerPersister.MAGIC);
+                oos.writeInt(ClientLayerPersister.VERSION);
+                oos.write(salt);
+                oos.writeLong(upTo);
+                oos.writeInt(count);
+                BucketTools.copyTo(kept, oos, Long.MAX_VALUE);
+                for(byte[] data : changed.values())
+                    if(data != null) oos.write(data);
+                for(byte[] data : unidentified)
+                    oos.write(data);
+                oos.writeObject(stats);
+                oos.writeInt(0); // Buckets to free.
+                oos.close();
+                os = null;
+            } finally {
+                Closer.close(os);
+            }
+            if(logMINOR) Logger.minor(this, "Merged "+segments.size()+" segments, "+count+" requests");
+            return count;
+        } finally {
+            kept.free();
+        }
+    }
+
+}
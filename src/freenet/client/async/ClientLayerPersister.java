@@ -13,41 +13,59 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
+import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
 import freenet.support.io.TempBucketFactory;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /** Top level of persistence mechanism for ClientRequest's (persistent downloads and uploads).
  * Note that we use three different persistence mechanisms here:
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Checkpoints after the first only write the requests which have 
+ * changed, to a journal, which is merged back into client.dat in the background 
+ * (see ClientLayerJournal).
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -100,9 +118,60 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Null if we are not writing encrypted files. */
+    private DatabaseKey writeEncryptionKey;
     
-    private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    // Journal state, protected by serializeCheckpoints.
+    private ClientLayerJournal journal;
+    /** SHA-256 of each request as last written, so we can tell which requests have changed. */
+    private final Map<RequestIdentifier, byte[]> written = new HashMap<RequestIdentifier, byte[]>();
+    /** If true, the next checkpoint writes all the requests to client.dat rather than writing
+     * to the journal. Set on startup, when we don't know what is in the journal, and when we
+     * change between encrypted and unencrypted. */
+    private boolean mustWriteSnapshot = true;
+    /** The last journal segment written. */
+    private long journalSequence;
+    /** Sizes of the journal segments written since client.dat. */
+    private final SortedMap<Long, Long> segmentLengths = new TreeMap<Long, Long>();
+    private long snapshotLength;
+    private long lastSnapshotTime;
+    /** When we last serialized every request to look for changes not flagged by
+     * ClientRequest.markChanged(). */
+    private long lastFullCheckTime;
+    private boolean compacting;
+    /** Changed whenever client.dat is written other than by compaction, so a running compaction
+     * knows to discard its output. */
+    private int filesGeneration;
+    
+    /** If true, only register the requests on startup, so they are listed and saved, and 
+     * resume them (opening and checking their files) in the background, most urgent first, or 
+     * when they are first used by FCP or the web interface. Startup is much faster with a big 
+     * queue. The recovery data is kept in memory until a request has been resumed, so that if
+     * it fails to resume it can be restarted, just as when resuming everything on startup. */
+    private boolean lazyResume;
+    /** Resume requests in the background for this long before letting other jobs and 
+     * checkpoints run. */
+    static final long RESUME_BATCH_TIME = SECONDS.toMillis(1);
+    /** Requests loaded lazily and not yet resumed in the background, most urgent last. */
+    private final List<ClientRequest> pendingResume = new ArrayList<ClientRequest>();
+    /** True from startBackgroundResume() until the last batch has finished. Protected by 
+     * pendingResume. */
+    private boolean resumingInBackground;
+    /** Jobs to run once the background resume has finished. Protected by pendingResume. */
+    private final List<Runnable> afterResume = new ArrayList<Runnable>();
+    
+    static final long MAGIC = 0xd332925f3caf4aedL;
+    /** Version 2 adds the sequence number of the last journal segment included. */
+    static final int VERSION = 2;
+    /** Merge the journal into client.dat once it is bigger than this and more than half the size
+     * of client.dat ... */
+    static final long MIN_COMPACT_LENGTH = 1024*1024;
+    /** ... or if it is non-empty and client.dat is older than this. */
+    static final long COMPACT_INTERVAL = HOURS.toMillis(6);
+    /** Normally a checkpoint only serializes the requests which have called markChanged(). As a
+     * safety net in case some change doesn't, serialize all of them this often, and on 
+     * shutdown, and write any that differ from what is on disk. */
+    static final long FULL_CHECK_INTERVAL = HOURS.toMillis(1);
     
     private static volatile boolean logMINOR;
     static {
@@ -125,6 +194,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         this.bandwidthStatsPutter = stats;
     }
     
+    /** Set whether to resume requests lazily. Must be called before setFilesAndLoad(). */
+    public void setLazyResume(boolean lazyResume) {
+        this.lazyResume = lazyResume;
+    }
+    
     /** Set the files to write to and set up encryption
      * @param noWrite If true, don't write the data to disk at all, and delete existing 
      * client.dat*.
@@ -138,14 +212,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         synchronized(serializeCheckpoints) {
             this.dir = dir;
             this.baseName = baseName;
+            this.journal = new ClientLayerJournal(dir, baseName, checker);
             if(noWrite) {
                 writeToBucket = null;
                 writeToFilename = null;
                 writeToBackupFilename = null;
+                writeEncryptionKey = null;
                 deleteFile(dir, baseName, false, false);
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                journal.deleteSegments(Long.MAX_VALUE, true);
+                filesGeneration++;
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -164,6 +242,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                             requestStarters, random);
                 }
                 onStarted(noWrite);
+                startBackgroundResume();
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
                 onStarted(false);
@@ -193,8 +272,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
         if(writeToFilename.equals(oldWriteToFilename)) return;
         System.out.println("Will save downloads to "+writeToFilename);
+        // The journal is in the old format, so start again.
+        mustWriteSnapshot = true;
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
         queueNormalOrDrop(new PersistentJob() {
@@ -217,28 +299,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         File clientDatCrypt = new File(dir, baseName+".crypt");
         File clientDatBak = new File(dir, baseName+".bak");
         File clientDatBakCrypt = new File(dir, baseName+".bak.crypt");
-        boolean clientDatExists = clientDat.exists();
-        boolean clientDatCryptExists = clientDatCrypt.exists();
-        boolean clientDatBakExists = clientDatBak.exists();
-        boolean clientDatBakCryptExists = clientDatBakCrypt.exists();
-        if(encryptionKey == null) {
-            if(clientDatCryptExists || clientDatBakCryptExists)
-                throw new MasterKeysWrongPasswordException();
-        }
         boolean failedSerialize = false;
-        PartialLoad loaded = new PartialLoad();
-        if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
-        }
-        if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
-        }
-        if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
-        }
-        if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
-        }
+        PartialLoad loaded = load(journal, dir, baseName, encryptionKey, noSerialize, context, 
+                requestStarters, random);
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
@@ -246,6 +309,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        // We haven't got the digests of what was written, so the first checkpoint will write 
+        // everything to client.dat, after the last segment.
+        journalSequence = Math.max(loaded.journalEnd, loaded.snapshotSequence);
+        mustWriteSnapshot = true;
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -269,10 +337,14 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 ClientRequest req = partial.request;
                 if(req == null) continue;
                 try {
-                    req.onResume(context);
-                    if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
-                            partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
+                    boolean restored = partial.status == RequestLoadStatus.RESTORED_FULLY || 
+                            partial.status == RequestLoadStatus.RESTORED_RESTARTED;
+                    if(lazyResume) {
+                        // A request restored from the recovery data can't be restarted again.
+                        loadLazily(req, context, restored, restored ? null : partial.recoveryData);
+                    } else {
+                        req.onResume(context);
+                        if(restored) req.start(context);
                     }
                     switch(partial.status) {
                     case LOADED:
@@ -302,7 +374,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 }
             }
             if(success > 0)
-                System.out.println("Resumed "+success+" requests ...");
+                System.out.println((lazyResume ? "Loaded " : "Resumed ")+success+" requests ...");
             if(restoredFully > 0)
                 System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
             if(restoredRestarted > 0)
@@ -321,6 +393,135 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Read the requests from client.dat, falling back to the encrypted copy and the backups if 
+     * it is missing or some requests failed to load, and then replay the journal written after 
+     * it. Does not resume anything.
+     * @throws MasterKeysWrongPasswordException If some of the files are encrypted and we don't
+     * have the key. */
+    PartialLoad load(ClientLayerJournal journal, File dir, String baseName, 
+            DatabaseKey encryptionKey, boolean noSerialize, ClientContext context, 
+            RequestStarterGroup requestStarters, Random random) throws MasterKeysWrongPasswordException {
+        boolean clientDatExists = makeFilename(dir, baseName, false, false).exists();
+        boolean clientDatCryptExists = makeFilename(dir, baseName, false, true).exists();
+        boolean clientDatBakExists = makeFilename(dir, baseName, true, false).exists();
+        boolean clientDatBakCryptExists = makeFilename(dir, baseName, true, true).exists();
+        SortedMap<Long, File> segments = journal.listSegments();
+        boolean segmentsCrypt = false;
+        for(File segment : segments.values())
+            if(ClientLayerJournal.isEncrypted(segment)) segmentsCrypt = true;
+        if(encryptionKey == null) {
+            if(clientDatCryptExists || clientDatBakCryptExists || segmentsCrypt)
+                throw new MasterKeysWrongPasswordException();
+        }
+        PartialLoad loaded = new PartialLoad();
+        loaded.journalEnd = segments.isEmpty() ? 0 : segments.lastKey();
+        if(clientDatExists) {
+            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+        }
+        if(clientDatCryptExists && loaded.needsMore()) {
+            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+        }
+        // client.dat.bak may be much older than the journal, so only use it if we have to, 
+        // otherwise it may bring back requests which have been removed.
+        if(clientDatBakExists && loaded.needsMore()) {
+            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+        }
+        if(clientDatBakCryptExists && loaded.needsMore()) {
+            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+        }
+        replayJournal(journal, loaded, segments, encryptionKey, noSerialize, context);
+        return loaded;
+    }
+    
+    /** Register a request without resuming it, and add it to the requests to resume in the 
+     * background. */
+    void loadLazily(ClientRequest req, ClientContext context, boolean start, byte[] recoveryData) throws ResumeFailedException {
+        req.onLoad(context, start, recoveryData);
+        synchronized(pendingResume) {
+            pendingResume.add(req);
+        }
+    }
+    
+    /** Sort the requests loaded lazily by priority and start resuming them in the background. */
+    void startBackgroundResume() {
+        synchronized(pendingResume) {
+            if(pendingResume.isEmpty()) return;
+            resumingInBackground = true;
+            System.out.println("Resuming "+pendingResume.size()+" requests in the background ...");
+            // Most urgent (lowest priority class) last, so we can take from the end.
+            Collections.sort(pendingResume, new Comparator<ClientRequest>() {
+
+                @Override
+                public int compare(ClientRequest req0, ClientRequest req1) {
+                    return req1.getPriority() - req0.getPriority();
+                }
+                
+            });
+        }
+        queueBackgroundResume();
+    }
+    
+    private void queueBackgroundResume() {
+        try {
+            queue(new PersistentJob() {
+
+                @Override
+                public boolean run(ClientContext context) {
+                    resumeSome();
+                    return false;
+                }
+                
+            }, NativeThread.LOW_PRIORITY);
+        } catch (PersistenceDisabledException e) {
+            // Shutting down. Anything used before then will still be resumed on demand.
+        }
+    }
+    
+    /** Run a job once every request loaded lazily has been resumed: now if none are waiting,
+     * otherwise after the last background batch. Persistent temp files and slab slots are only
+     * claimed when the request using them is resumed, so anything which deletes the unclaimed 
+     * ones must wait for this. Never runs if we shut down before then. */
+    public void whenResumed(Runnable job) {
+        synchronized(pendingResume) {
+            if(resumingInBackground || !pendingResume.isEmpty()) {
+                afterResume.add(job);
+                return;
+            }
+        }
+        job.run();
+    }
+    
+    /** Resume requests for up to RESUME_BATCH_TIME, then queue another job for the rest. */
+    void resumeSome() {
+        long end = System.currentTimeMillis() + RESUME_BATCH_TIME;
+        int count = 0;
+        while(true) {
+            ClientRequest req = null;
+            Runnable[] jobs = null;
+            synchronized(pendingResume) {
+                if(pendingResume.isEmpty()) {
+                    resumingInBackground = false;
+                    jobs = afterResume.toArray(new Runnable[afterResume.size()]);
+                    afterResume.clear();
+                } else {
+                    req = pendingResume.remove(pendingResume.size()-1);
+                }
+            }
+            if(req == null) {
+                System.out.println("Finished resuming requests in the background");
+                for(Runnable job : jobs)
+                    job.run();
+                return;
+            }
+            // Already resumed if it has been used.
+            req.finishResume();
+            count++;
+            if(System.currentTimeMillis() >= end) break;
+        }
+        if(logMINOR) Logger.minor(this, "Resumed "+count+" requests in the background");
+        queueBackgroundResume();
+    }
+    
     /** Create a Bucket for client.dat[.bak][.crypt].
      * @param dir The parent directory.
      * @param baseName The base name, usually "client.dat".
@@ -351,13 +552,15 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private class PartiallyLoadedRequest {
         final ClientRequest request;
         final RequestLoadStatus status;
+        /** The recovery data, kept if we are resuming lazily and the request was loaded. */
+        byte[] recoveryData;
         PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status) {
             this.request = request;
             this.status = status;
         }
     }
     
-    private class PartialLoad {
+    class PartialLoad {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
@@ -367,11 +570,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         
         private boolean doneSomething;
         
+        /** The last journal segment on disk. */
+        private long journalEnd;
+        
+        /** The last journal segment included in the first client.dat we loaded, -1 if none. */
+        private long snapshotSequence = -1;
+        
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
-         * necessary. */
+         * necessary. 
+         * @param newer True if this is from the journal, so replaces an equally good copy. */
         void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
-                RequestLoadStatus status) {
+                RequestLoadStatus status, boolean newer) {
             if(reqID == null) {
                 if(request == null) {
                     somethingFailed = true;
@@ -381,7 +591,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 }
             }
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
-            if(old == null || old.status.ordinal() > status.ordinal()) {
+            if(old == null || old.status.ordinal() > status.ordinal() || 
+                    (newer && old.status.ordinal() == status.ordinal())) {
                 partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
                 if(!(status == RequestLoadStatus.LOADED || status == RequestLoadStatus.RESTORED_FULLY))
                     somethingFailed = true;
@@ -389,6 +600,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
         }
 
+        /** Keep the recovery data for a request, if it is the copy we are going to use. */
+        void setRecoveryData(RequestIdentifier reqID, ClientRequest request, byte[] data) {
+            PartiallyLoadedRequest partial = partiallyLoadedRequests.get(reqID);
+            if(partial != null && partial.request == request)
+                partial.recoveryData = data;
+        }
+
+        /** A request has been removed, according to the journal. */
+        void removeRequest(RequestIdentifier reqID) {
+            partiallyLoadedRequests.remove(reqID);
+        }
+
         public boolean needsMore() {
             return somethingFailed || !doneSomething;
         }
@@ -407,9 +630,26 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             return salt;
         }
         
+        void setSnapshotSequence(long sequence) {
+            if(snapshotSequence == -1)
+                snapshotSequence = sequence;
+        }
+        
         public boolean doneSomething() {
             return doneSomething;
         }
+        
+        /** @return The requests which have been loaded or restored, by request identifier. */
+        Map<RequestIdentifier, ClientRequest> getRequests() {
+            Map<RequestIdentifier, ClientRequest> requests = 
+                new HashMap<RequestIdentifier, ClientRequest>();
+            for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : 
+                    partiallyLoadedRequests.entrySet()) {
+                if(entry.getValue().request != null)
+                    requests.put(entry.getKey(), entry.getValue().request);
+            }
+            return requests;
+        }
     }
     
     private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
@@ -447,7 +687,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         long magic = ois.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
         int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        if(version != VERSION && version != 1) throw new IOException("Bad version");
         byte[] salt = new byte[32];
         try {
             checker.readAndChecksum(ois, salt, 0, salt.length);
@@ -456,83 +696,154 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             Logger.error(this, "Unable to read global salt (checksum failed)");
         }
         requestStarters.setGlobalSalt(salt);
+        long sequence = version > 1 ? ois.readLong() : 0;
+        loaded.setSnapshotSequence(sequence);
         int requestCount = ois.readInt();
-        for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
-            }
+        for(int i=0;i<requestCount;i++)
+            readRequest(loaded, ois, length, noSerialize, false, context);
+        if(latest && sequence >= loaded.journalEnd) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak, and no journal after it).
+                readStatsAndBuckets(ois, length, context);
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+        }
+        ois.close();
+        fis = null;
+    }
+
+    /** Read a request: The request identifier, the serialized request, and the recovery data.
+     * @param fromJournal True if the request replaces any earlier copy. */
+    private void readRequest(PartialLoad loaded, ObjectInputStream ois, long length, 
+            boolean noSerialize, boolean fromJournal, ClientContext context) throws IOException {
+        ClientRequest request = null;
+        RequestIdentifier reqID = readRequestIdentifier(ois);
+        if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+            Logger.warning(this, "Not reading request because already have it");
+            skipChecksummedObject(ois, length); // Request itself
+            skipChecksummedObject(ois, length); // Recovery data
+            return;
+        }
+        try {
+            if(!noSerialize) {
+                request = readClientRequest(ois, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED, fromJournal);
+                        }
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                 }
-            } else {
+            } else
                 skipChecksummedObject(ois, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR || lazyResume) {
+            try {
+                byte[] recoveryData = readChecksummedBytes(ois, length);
+                // Needed if the request fails to resume later on.
+                if(request != null && reqID != null && lazyResume)
+                    loaded.setRecoveryData(reqID, request, recoveryData);
+                ClientRequest restored = null;
+                if(request == null || logMINOR)
+                    restored = readRequestFromRecoveryData(recoveryData, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED,
+                            fromJournal);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Checksum failed for recovery data for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED, fromJournal);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED, fromJournal);
             }
+        } else {
+            skipChecksummedObject(ois, length);
         }
-        if(latest) {
+    }
+
+    /** Deserialize a request, as written by writeChecksummedObject(). 
+     * @return Null if it can't be deserialized. */
+    ClientRequest readClientRequest(ObjectInputStream ois, long length) throws IOException, ChecksumFailedException, ClassNotFoundException {
+        return (ClientRequest) readChecksummedObject(ois, length);
+    }
+
+    /** Replay the journal segments written after the client.dat we loaded. A segment which can't
+     * be read is skipped, and we use the earlier copies of the requests in it. */
+    private void replayJournal(ClientLayerJournal journal, PartialLoad loaded, SortedMap<Long, File> segments, 
+            DatabaseKey encryptionKey, boolean noSerialize, ClientContext context) {
+        for(Map.Entry<Long, File> entry : segments.tailMap(loaded.snapshotSequence + 1).entrySet()) {
+            long sequence = entry.getKey();
+            boolean encrypted = ClientLayerJournal.isEncrypted(entry.getValue());
+            Bucket bucket = ClientLayerJournal.makeBucket(entry.getValue(), 
+                    encrypted ? encryptionKey : null);
+            long length = bucket.size();
+            InputStream is = null;
+            int updated = 0;
+            int removed = 0;
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
+                is = bucket.getInputStream();
+                ObjectInputStream ois = new ObjectInputStream(is);
+                journal.readHeader(ois, sequence);
+                byte type;
+                while((type = ois.readByte()) != ClientLayerJournal.RECORD_END) {
+                    if(type == ClientLayerJournal.RECORD_UPDATE) {
+                        readRequest(loaded, ois, length, noSerialize, true, context);
+                        updated++;
+                    } else if(type == ClientLayerJournal.RECORD_REMOVE) {
+                        RequestIdentifier reqID = readRequestIdentifier(ois);
+                        if(reqID != null) loaded.removeRequest(reqID);
+                        removed++;
+                    } else {
+                        throw new IOException("Unknown record type "+type);
+                    }
+                }
+                if(!noSerialize && sequence == loaded.journalEnd) {
+                    try {
+                        readStatsAndBuckets(ois, length, context);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                    }
+                }
+                if(logMINOR) Logger.minor(this, "Replayed "+updated+" changed and "+removed+
+                        " removed requests from "+bucket);
             } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                Logger.error(this, "Failed to replay journal "+bucket+" after "+updated+
+                        " requests: "+t, t);
+                System.err.println("Failed to replay journal "+bucket+" : "+t);
+                loaded.setSomethingFailed();
+            } finally {
+                Closer.close(is);
             }
         }
-        ois.close();
-        fis = null;
     }
 
     private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
@@ -557,9 +868,6 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
-        if(writeToFilename.exists()) {
-            FileUtil.renameTo(writeToFilename, writeToBackupFilename);
-        }
         if(innerSave(shutdown)) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
@@ -574,6 +882,38 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     private boolean innerSave(boolean shutdown) {
         DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
+        }
+        bandwidthStatsPutter.updateData(node);
+        boolean success;
+        if(mustWriteSnapshot)
+            success = writeSnapshot(requests, buckets);
+        else
+            success = writeJournal(requests, buckets, shutdown);
+        if(success) {
+            persistentTempFactory.finishDelayedFree(buckets);
+            maybeCompact();
+        }
+        return success;
+    }
+    
+    /** Write all the requests to client.dat. Deletes the journal, which is now redundant. */
+    private boolean writeSnapshot(ClientRequest[] requests, DelayedFree[] buckets) {
+        if(writeToFilename.exists()) {
+            FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+        }
+        filesGeneration++;
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
@@ -582,57 +922,219 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             oos.writeLong(MAGIC);
             oos.writeInt(VERSION);
             checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
+            oos.writeLong(journalSequence);
             oos.writeInt(requests.length);
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
+                req.clearChanged();
+                byte[] entry = serializeRequest(req, buffer);
+                oos.write(entry);
+                digests.put(req.getRequestIdentifier(), SHA256.digest(entry));
             }
+            writeStatsAndBuckets(oos, buckets);
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
-            persistentTempFactory.finishDelayedFree(buckets);
-            return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
             e.printStackTrace();
+            for(ClientRequest req : requests)
+                req.markChanged();
             return false;
         } finally {
-            try {
-                if(fos != null) fos.close();
-            } catch (IOException e) {
-                System.err.println("Failed to write persistent requests: "+e);
-                e.printStackTrace();
+            Closer.close(fos);
+        }
+        written.clear();
+        written.putAll(digests);
+        mustWriteSnapshot = false;
+        journal.deleteSegments(Long.MAX_VALUE, false);
+        segmentLengths.clear();
+        snapshotLength = writeToFilename.length();
+        lastSnapshotTime = System.currentTimeMillis();
+        lastFullCheckTime = lastSnapshotTime;
+        return true;
+    }
+    
+    /** Write the requests which have been added, changed or removed since the last checkpoint to
+     * the next journal segment. Doesn't write anything if nothing has changed, unless forced.
+     * Only the requests which have been marked as changed (by progress, events or changes of 
+     * state, see ClientRequest.markChanged()) are serialized, except every FULL_CHECK_INTERVAL 
+     * and when forced, when we check all of them. A marked request is only written if its 
+     * serialized form differs from what we last wrote. We also check all of them when freeing
+     * buckets, as the buckets are gone after this checkpoint, so a request which still refers
+     * to one on disk because it missed a markChanged() would be broken after a restart. */
+    private boolean writeJournal(ClientRequest[] requests, DelayedFree[] buckets, boolean force) {
+        long now = System.currentTimeMillis();
+        boolean fullCheck = force || (buckets != null && buckets.length > 0) || 
+            now - lastFullCheckTime >= FULL_CHECK_INTERVAL;
+        List<ClientRequest> cleared = new ArrayList<ClientRequest>();
+        long sequence = journalSequence + 1;
+        Bucket bucket = journal.makeBucket(sequence, writeEncryptionKey);
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+        Set<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream fos = null;
+        ObjectOutputStream oos = null;
+        try {
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                current.add(reqID);
+                // Always write new requests, even if they haven't been marked.
+                if(req.clearChanged())
+                    cleared.add(req);
+                else if(!fullCheck && written.containsKey(reqID))
+                    continue;
+                byte[] entry = serializeRequest(req, buffer);
+                byte[] digest = SHA256.digest(entry);
+                if(Arrays.equals(digest, written.get(reqID))) continue;
+                if(oos == null) {
+                    fos = bucket.getOutputStream();
+                    oos = journal.startSegment(new BufferedOutputStream(fos), sequence);
+                }
+                oos.writeByte(ClientLayerJournal.RECORD_UPDATE);
+                oos.write(entry);
+                digests.put(reqID, digest);
+            }
+            for(RequestIdentifier reqID : written.keySet()) {
+                if(current.contains(reqID)) continue;
+                if(oos == null) {
+                    fos = bucket.getOutputStream();
+                    oos = journal.startSegment(new BufferedOutputStream(fos), sequence);
+                }
+                oos.writeByte(ClientLayerJournal.RECORD_REMOVE);
+                writeRequestIdentifier(oos, reqID);
+                removed.add(reqID);
             }
+            if(oos == null) {
+                if(!force && (buckets == null || buckets.length == 0)) {
+                    if(logMINOR) Logger.minor(this, "Nothing changed, not writing");
+                    if(fullCheck) lastFullCheckTime = now;
+                    return true;
+                }
+                fos = bucket.getOutputStream();
+                oos = journal.startSegment(new BufferedOutputStream(fos), sequence);
+            }
+            oos.writeByte(ClientLayerJournal.RECORD_END);
+            writeStatsAndBuckets(oos, buckets);
+            oos.close();
+            fos = null;
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            Closer.close(fos);
+            fos = null;
+            journal.getFile(sequence, writeEncryptionKey != null).delete();
+            for(ClientRequest req : cleared)
+                req.markChanged();
+            return false;
+        } finally {
+            Closer.close(fos);
         }
+        journalSequence = sequence;
+        if(fullCheck) lastFullCheckTime = now;
+        written.putAll(digests);
+        for(RequestIdentifier reqID : removed)
+            written.remove(reqID);
+        File file = journal.getFile(sequence, writeEncryptionKey != null);
+        segmentLengths.put(sequence, file.length());
+        Logger.normal(this, "Saved "+digests.size()+" changed and "+removed.size()+
+                " removed requests of "+requests.length+" to "+file+
+                (fullCheck ? " (checked all)" : " ("+cleared.size()+" marked)"));
+        return true;
+    }
+    
+    /** Serialize a request as it is stored in client.dat and the journal: The request identifier,
+     * the request itself, and the recovery data. */
+    byte[] serializeRequest(ClientRequest req, ByteArrayOutputStream buffer) throws IOException {
+        buffer.reset();
+        DataOutputStream dos = new DataOutputStream(buffer);
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(dos, req.getRequestIdentifier());
+        // Write the actual request.
+        writeChecksummedObject(dos, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch, 
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        writeRecoveryData(dos, req);
+        dos.flush();
+        return buffer.toByteArray();
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+    }
+    
+    /** If the journal is big enough, or old enough, merge it into client.dat in the background.
+     * Checkpoints continue to write to the journal meanwhile. */
+    private void maybeCompact() {
+        if(compacting || segmentLengths.isEmpty()) return;
+        long journalLength = 0;
+        for(long length : segmentLengths.values())
+            journalLength += length;
+        if(journalLength < Math.max(MIN_COMPACT_LENGTH, snapshotLength / 2) &&
+                System.currentTimeMillis() - lastSnapshotTime < COMPACT_INTERVAL)
+            return;
+        compacting = true;
+        final long upTo = journalSequence;
+        final int generation = filesGeneration;
+        final DatabaseKey encryptionKey = writeEncryptionKey;
+        final Bucket snapshot = writeToBucket;
+        final List<Bucket> segments = new ArrayList<Bucket>();
+        for(long sequence : segmentLengths.keySet())
+            segments.add(journal.makeBucket(sequence, encryptionKey));
+        final File newFile = new File(dir, baseName + ".new" + (encryptionKey != null ? ".crypt" : ""));
+        final Bucket output = ClientLayerJournal.makeBucket(newFile, encryptionKey);
+        if(logMINOR) Logger.minor(this, "Merging "+journalLength+" bytes of journal into "+writeToFilename);
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                boolean success = false;
+                int count = 0;
+                try {
+                    count = journal.compact(snapshot, segments, upTo, output, tempBucketFactory);
+                    success = true;
+                } catch (Throwable t) {
+                    Logger.error(this, "Unable to merge journal into "+snapshot+" : "+t, t);
+                }
+                synchronized(serializeCheckpoints) {
+                    compacting = false;
+                    if(!success || generation != filesGeneration || writeToFilename == null) {
+                        newFile.delete();
+                        return;
+                    }
+                    if(writeToFilename.exists())
+                        FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+                    if(!FileUtil.renameTo(newFile, writeToFilename)) {
+                        // Carry on with the old client.dat and the whole journal.
+                        if(writeToBackupFilename.exists())
+                            FileUtil.renameTo(writeToBackupFilename, writeToFilename);
+                        return;
+                    }
+                    journal.deleteSegments(upTo, false);
+                    segmentLengths.headMap(upTo + 1).clear();
+                    snapshotLength = writeToFilename.length();
+                    lastSnapshotTime = System.currentTimeMillis();
+                    Logger.normal(this, "Merged journal into "+writeToFilename+": "+count+" requests");
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.LOW_PRIORITY;
+            }
+            
+        });
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,24 +1151,31 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
-        InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+    private ClientRequest readRequestFromRecoveryData(byte[] recoveryData, RequestIdentifier reqID) throws IOException, StorageFormatException {
         try {
-            DataInputStream dis = new DataInputStream(tmp);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(recoveryData));
             ClientRequest request = ClientRequest.restartFrom(dis, reqID, getClientContext(), checker);
             dis.close();
-            dis = null;
-            tmp = null;
             return request;
         } catch (Throwable t) {
             Logger.error(this, "Serialization failed: "+t, t);
             return null;
+        }
+    }
+    
+    /** Read data written with checksumWriterWithLength(), e.g. the recovery data. */
+    private byte[] readChecksummedBytes(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException {
+        InputStream cis = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            FileUtil.copy(cis, baos, -1);
+            return baos.toByteArray();
         } finally {
-            if(tmp != null) tmp.close();
+            cis.close();
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -704,7 +1213,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
 
-    private ClientRequest[] getRequests() {
+    ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
 
@@ -757,6 +1266,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            if(journal != null)
+                journal.deleteSegments(Long.MAX_VALUE, true);
+            new File(dir, baseName + ".new").delete();
+            new File(dir, baseName + ".new.crypt").delete();
+            filesGeneration++;
         }
     }
 
@@ -765,6 +1279,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToFilename = null;
             writeToBackupFilename = null;
             writeToBucket = null;
+            writeEncryptionKey = null;
+            filesGeneration++;
         }
         super.disableWrite();
     }
@@ -410,6 +410,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		synchronized (this) {
 			if (currentState == oldState) {
 				currentState = newState;
+				markChanged();
 				return;
 			}
 		}
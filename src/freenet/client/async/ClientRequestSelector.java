@@ -2,6 +2,7 @@ package freenet.client.async;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
@@ -26,6 +27,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -44,18 +46,26 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: Consequently we need to lock the entire subtree for a priority whenever we access 
+ * either the tree or the cooldown times: When a request completes, we start at the request itself
+ * and go up the tree until we stop updating the wakeup times. However when we choose a request to 
+ * send, we start at the top and go down (and update the cooldown times when backtracking back up 
+ * the tree if we don't find anything).
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
+ * **We lock on the priority's RequestClientRGANode** when using its subtree, including the 
+ * cooldown times. The priorities are created up front and never change, so choosing a priority
+ * doesn't need a lock, and threads choosing requests from different priorities, or adding 
+ * requests to different priorities, don't contend. Moving a request between priorities takes both
+ * locks, lower priority number first.
  * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
+ * Each node in the tree keeps its children indexed and caches the number of items in its 
+ * subtree, so choosing a request, adding one and removing one are all bounded by the depth of the
+ * tree rather than the number of queued requests.
+ * 
+ * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the 
+ * subtree, and then update the cooldowns; and/or we could avoid updating the cooldowns during 
+ * request selection, e.g. by making sure that each structure always does a bottom-up update when
+ * something changes, although that would not help with locking...
  * 
  * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
  * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
@@ -77,24 +87,25 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	static class ClientRequestRGANode extends SectoredRandomGrabArraySimple<RequestClient,ClientRequestSchedulerGroup> {
 
         public ClientRequestRGANode(RequestClient object, RemoveRandomParent parent,
-                ClientRequestSelector root) {
-            super(object, parent, root);
+                ClientRequestSelector root, Object lock) {
+            super(object, parent, root, lock);
         }
 	    
 	}
 	
 	static class RequestClientRGANode extends SectoredRandomGrabArray<RequestClient,ClientRequestRGANode> {
 
-        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root) {
-            super(parent, root);
+        /** The top of a priority's subtree, which is also the lock for the subtree. */
+        public RequestClientRGANode(ClientRequestSelector root) {
+            super(null, root, null);
         }
 	    
 	}
 	
 	/**
-     * The base of the tree.
+     * The base of the tree. One node per priority, created in the constructor.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +125,8 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++)
+			priorities[i] = new RequestClientRGANode(this);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +158,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Not synchronized. The priorities never change, and each priority's wakeup time and
+	 * emptiness are read under that priority's lock. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -309,7 +322,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * most of the time.
 	 * @return Either a chosen request or the time at which we should try again if all priorities 
 	 * are waiting for requests to finish / cooldown periods to expire. */
-	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
+	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
@@ -337,7 +350,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS;choosenPriorityClass++) {
 			if(logMINOR) Logger.minor(this, "Using priority "+choosenPriorityClass);
 			RequestClientRGANode chosenTracker = priorities[choosenPriorityClass];
-			if(chosenTracker == null) {
+			if(chosenTracker.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
 			}
@@ -352,8 +365,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
+				synchronized(chosenTracker) {
+				    // We must hold the priority's lock, just as in addToGrabArrays.
 				    // This is important for keeping the cooldown tracker consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
 				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
@@ -386,7 +399,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
 							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
+							synchronized(chosenTracker) {
 								baseRGA.remove(req, context);
 							}
 						} else {
@@ -618,7 +631,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorities[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
@@ -628,15 +641,10 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
-            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this);
+            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this, clientGrabber);
             if(logMINOR)
                 Logger.minor(this, "Creating new grabber: "+requestGrabber+" for "+client+" from "+clientGrabber+" : prio="+priorityClass);
             clientGrabber.addGrabber(client, requestGrabber, context);
@@ -653,68 +661,67 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
+        // Lock both priorities, in a consistent order.
+        RequestClientRGANode first = priorities[Math.min(oldPrio, newPrio)];
+        RequestClientRGANode second = priorities[Math.max(oldPrio, newPrio)];
+        synchronized(first) {
+            synchronized(second) {
+                // First by priority
+                RequestClientRGANode clientGrabber = priorities[oldPrio];
+                // Then by RequestClient
+                ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+                if(requestGrabber == null) {
+                    // Normal as most of the schedulers aren't relevant to any given insert/request.
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+                if(rga == null) {
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                // The RGA's lock is its priority's, so move the requests rather than the RGA.
+                ClientRequestRGANode newRequestGrabber = makeSRGAForClient(newPrio, client, context);
+                rga.moveElementsTo(newRequestGrabber.makeGrabber(group), context);
                 requestGrabber.maybeRemove(rga, context);
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
+        sched.wakeStarter();
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    /** Count the keys queued on all the requests in the tree. We only hold each priority's lock
+     * while copying its requests, so this doesn't block request selection while we ask every 
+     * request how many keys it has. */
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
+        ArrayList<SendableRequest> requests = new ArrayList<SendableRequest>();
         for(int i=0;i<priorities.length;i++) {
             RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
-                System.out.println("Priority "+i+" : empty");
-            else {
-                System.out.println("Priority "+i+" : "+prio.size());
-                    System.out.println("Clients: "+prio.size()+" for "+prio);
-                    for(int k=0;k<prio.size();k++) {
-                        RequestClient client = prio.getClient(k);
-                        System.out.println("Client "+k+" : "+client);
-                        ClientRequestRGANode requestGrabber = prio.getGrabber(client);
-                        System.out.println("SRGA for client: "+requestGrabber);
-                        for(int l=0;l<requestGrabber.size();l++) {
-                            ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
-                            System.out.println("Request "+l+" : "+cr);
-                            RandomGrabArray rga = requestGrabber.getGrabber(cr);
-                            System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
-                            long sendable = 0;
-                            long all = 0;
-                            for(int m=0;m<rga.size();m++) {
-                                SendableRequest req = (SendableRequest) rga.get(m);
-                                if(req == null) continue;
-                                sendable += req.countSendableKeys(context);
-                                all += req.countAllKeys(context);
-                            }
-                            System.out.println("Sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
-                            total += all;
-                        }
+            requests.clear();
+            synchronized(prio) {
+                if(prio.countItems() == 0) {
+                    if(logMINOR) Logger.minor(this, "Priority "+i+" : empty");
+                    continue;
+                }
+                if(logMINOR) Logger.minor(this, "Priority "+i+" : "+prio.countItems()+" requests from "+prio.size()+" clients");
+                requests.ensureCapacity((int)Math.min(Integer.MAX_VALUE, prio.countItems()));
+                for(int k=0;k<prio.size();k++) {
+                    ClientRequestRGANode requestGrabber = prio.getGrabber(prio.getClient(k));
+                    for(int l=0;l<requestGrabber.size();l++) {
+                        RandomGrabArray rga = requestGrabber.getGrabber(requestGrabber.getClient(l));
+                        for(int m=0;m<rga.size();m++)
+                            requests.add((SendableRequest) rga.get(m));
                     }
+                }
+            }
+            long sendable = 0;
+            long all = 0;
+            for(SendableRequest req : requests) {
+                sendable += req.countSendableKeys(context);
+                all += req.countAllKeys(context);
             }
+            if(logMINOR) Logger.minor(this, "Priority "+i+" : sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
+            total += all;
         }
         return total;
     }   
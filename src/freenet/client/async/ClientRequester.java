@@ -52,6 +52,10 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	 * persistent, and also we round-robin between different RequestClient's
 	 * in scheduling within a given priority class and retry count. */
 	protected transient RequestClient client;
+	/** Set when anything we persist may have changed, so ClientLayerPersister must write the 
+	 * request at the next checkpoint. Not restored on loading: The first checkpoint after
+	 * startup writes everything anyway. */
+	private transient volatile boolean changed = true;
 
 	/** What is our priority class? */
 	public short getPriorityClass() {
@@ -89,9 +93,27 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected synchronized boolean cancel() {
 		boolean ret = cancelled;
 		cancelled = true;
+		changed = true;
 		return ret;
 	}
 
+	/** Record that the persistent state of the request may have changed, for example because of
+	 * progress or a change of state, so it must be written at the next checkpoint. Subclasses 
+	 * should call this for changes that don't go through the block counters, notifyClients() or 
+	 * the callback. */
+	public void markChanged() {
+		changed = true;
+	}
+
+	/** @return True if markChanged() has been called since the last call to this method. The
+	 * caller must serialize the request after calling this, so it includes any change marked
+	 * before the flag was cleared. */
+	public boolean clearChanged() {
+		if(!changed) return false;
+		changed = false;
+		return true;
+	}
+
 	/** Cancel the request. Subclasses must implement to actually tell the
 	 * ClientGetState's or ClientPutState's to cancel.
 	 * @param context The ClientContext object including essential but 
@@ -174,6 +196,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
     }
 
 	protected synchronized void resetBlocks() {
+		changed = true;
 		totalBlocks = 0;
 		successfulBlocks = 0;
         // See ClientRequester.getLatestSuccess() for why this defaults to current time.
@@ -195,6 +218,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(blockSetFinalized) return;
 			blockSetFinalized = true;
+			changed = true;
 		}
 		if(logMINOR)
 			Logger.minor(this, "Finalized set of blocks for "+this, new Exception("debug"));
@@ -207,6 +231,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized (this) {
 			totalBlocks++;
 			wasFinalized = blockSetFinalized;
+			changed = true;
 		}
 
 		if (wasFinalized) {
@@ -225,6 +250,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized (this) {
 			totalBlocks += num;
 			wasFinalized = blockSetFinalized;
+			changed = true;
 		}
 
 		if (wasFinalized) {
@@ -245,6 +271,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(cancelled) return;
 			successfulBlocks++;
             latestSuccess = CurrentTimeUTC.get();
+			changed = true;
 		}
 		if(dontNotify) return;
 		notifyClients(context);
@@ -257,6 +284,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         synchronized(this) {
             failedBlocks++;
             latestFailure = CurrentTimeUTC.get();
+            changed = true;
         }
         if(!dontNotify)
             notifyClients(context);
@@ -272,6 +300,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			fatallyFailedBlocks++;
             latestFailure = CurrentTimeUTC.get();
+			changed = true;
 		}
 		notifyClients(context);
 	}
@@ -280,6 +309,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addMustSucceedBlocks(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed = true;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 
@@ -287,11 +317,13 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addRedundantBlocksInsert(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed = true;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
 	/** Notify clients by calling innerNotifyClients off-thread. */
 	public final void notifyClients(ClientContext context) {
+	    markChanged();
 	    context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -316,6 +348,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(sentToNetwork) return;
 			sentToNetwork = true;
+			changed = true;
 		}
 		innerToNetwork(context);
 	}
@@ -325,6 +358,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected abstract void innerToNetwork(ClientContext context);
 
 	protected void clearCountersOnRestart() {
+		markChanged();
 		this.blockSetFinalized = false;
 		this.cancelled = false;
 		this.failedBlocks = 0;
@@ -352,6 +386,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
+			changed = true;
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
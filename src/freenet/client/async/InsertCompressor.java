@@ -3,6 +3,8 @@ package freenet.client.async;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -18,6 +20,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
+import freenet.support.compress.CompressionSampler;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
@@ -47,6 +50,10 @@ public class InsertCompressor implements CompressJob {
 	private static volatile boolean logMINOR;
 	private final long generateHashes;
 	private final boolean pre1254;
+	/** Set -Dfreenet.compress.sample=false to try every codec on the whole of a big file, rather
+	 * than skipping codecs which do badly on samples of it. See CompressionSampler. */
+	static final boolean SAMPLE_CODECS =
+		!"false".equalsIgnoreCase(System.getProperty("freenet.compress.sample", "true"));
 	
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -100,6 +107,23 @@ public class InsertCompressor implements CompressJob {
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
+			if(SAMPLE_CODECS && comps.length > 1)
+				comps = CompressionSampler.selectCodecs(origData, comps);
+			// If there are spare compression threads, run the codecs at the same time.
+			int helpers = 0;
+			if(comps.length > 1 && context.rc != null)
+				helpers = context.rc.reserveHelperThreads(comps.length - 1);
+			if(helpers > 0) {
+				CompressAttempt best = compressParallel(comps, helpers, origSize, context);
+				hashes = best.hashes;
+				if(best.data != null) {
+					bestCodec = best.codec;
+					bestCompressedData = best.data;
+					bestCompressedDataSize = bestCompressedData.size();
+				}
+				// Skip the serial loop.
+				comps = new COMPRESSOR_TYPE[0];
+			}
 			boolean first = true;
 			for (final COMPRESSOR_TYPE comp : comps) {
 				boolean shouldFreeOnFinally = true;
@@ -108,23 +132,7 @@ public class InsertCompressor implements CompressJob {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
 					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					notifyStartCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -202,6 +210,11 @@ public class InsertCompressor implements CompressJob {
 				}
 			}
 			
+			if(hashes == null && generateHashes != 0) {
+				// Every codec was skipped or failed before we could hash the data.
+				hashes = hashData();
+			}
+			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 			
 			if(persistent) {
@@ -248,6 +261,185 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** The output of one codec, and the hashes if we generated them at the same time. */
+	private static class CompressAttempt {
+		final COMPRESSOR_TYPE codec;
+		/** Null if the codec failed or its output was too big. */
+		RandomAccessBucket data;
+		HashResult[] hashes;
+		
+		CompressAttempt(COMPRESSOR_TYPE codec) {
+			this.codec = codec;
+		}
+	}
+	
+	/**
+	 * Compress with several codecs at once, on this thread and on helper threads reserved from
+	 * RealCompressor, and return the best result. We choose the same codec that the serial loop
+	 * would have: The first one whose output fits in minSize, otherwise the one with the fewest
+	 * blocks, earlier codecs winning ties. The first codec also generates the hashes if needed.
+	 * @param helpers The number of helper threads reserved with 
+	 * RealCompressor.reserveHelperThreads(). We must start exactly this many, or release them if
+	 * we fail before compressing anything.
+	 */
+	private CompressAttempt compressParallel(final COMPRESSOR_TYPE[] comps, int helpers, 
+			final long origSize, ClientContext context) throws IOException, PersistenceDisabledException {
+		final CompressAttempt[] results = new CompressAttempt[comps.length];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(helpers);
+		final IOException[] failure = new IOException[1];
+		final Runnable worker = new Runnable() {
+			
+			@Override
+			public void run() {
+				int i;
+				while((i = next.getAndIncrement()) < comps.length) {
+					try {
+						results[i] = compressWith(comps[i], i == 0, origSize);
+					} catch (IOException e) {
+						synchronized(failure) {
+							if(failure[0] == null) failure[0] = e;
+						}
+					}
+				}
+			}
+			
+		};
+		// Don't start compressing until the notifications have succeeded, so there are no 
+		// results to free if they fail.
+		boolean notified = false;
+		try {
+			for(COMPRESSOR_TYPE comp : comps)
+				notifyStartCompression(comp, context);
+			notified = true;
+		} finally {
+			if(!notified) context.rc.releaseHelperThreads(helpers);
+		}
+		for(int i=0;i<helpers;i++) {
+			context.rc.runHelper(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						worker.run();
+					} finally {
+						done.countDown();
+					}
+				}
+				
+			});
+		}
+		worker.run();
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		CompressAttempt best = null;
+		if(failure[0] == null) {
+			long bestNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
+			for(CompressAttempt attempt : results) {
+				if(attempt == null || attempt.data == null) continue;
+				long resultSize = attempt.data.size();
+				if(resultSize <= minSize) {
+					best = attempt;
+					break;
+				}
+				if(resultSize/CHKBlock.DATA_LENGTH < bestNumberOfBlocks) {
+					best = attempt;
+					bestNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
+				}
+			}
+		}
+		for(CompressAttempt attempt : results) {
+			if(attempt != null && attempt != best && attempt.data != null)
+				attempt.data.free();
+		}
+		if(failure[0] != null) throw failure[0];
+		if(best == null) best = new CompressAttempt(null);
+		if(results[0] != null) best.hashes = results[0].hashes;
+		if(logMINOR) Logger.minor(this, "Compressed "+comps.length+" ways in parallel, best is "+best.codec);
+		return best;
+	}
+	
+	/** Compress the whole of the original data with one codec.
+	 * @param hash If true, and we need to generate hashes, do so while reading the data.
+	 * @param maxSize Give up if the output is bigger than this. */
+	private CompressAttempt compressWith(COMPRESSOR_TYPE comp, boolean hash, long maxSize) throws IOException {
+		CompressAttempt attempt = new CompressAttempt(comp);
+		InputStream is = null;
+		OutputStream os = null;
+		MultiHashInputStream hasher = null;
+		RandomAccessBucket result = null;
+		boolean success = false;
+		try {
+			is = origData.getInputStream();
+			result = bucketFactory.makeBucket(-1);
+			os = result.getOutputStream();
+			if(hash && generateHashes != 0)
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			try {
+				comp.compress(is, os, maxSize, maxSize);
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+				return attempt;
+			} catch (CompressionOutputSizeException e) {
+				if(hasher != null) {
+					is.skip(Long.MAX_VALUE);
+					attempt.hashes = hasher.getResults();
+				}
+				return attempt;
+			}
+			if(hasher != null)
+				attempt.hashes = hasher.getResults();
+			success = true;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(!success && result != null) result.free();
+		}
+		attempt.data = result;
+		return attempt;
+	}
+	
+	private HashResult[] hashData() throws IOException {
+		InputStream is = null;
+		try {
+			MultiHashInputStream hasher = new MultiHashInputStream(origData.getInputStream(), generateHashes);
+			is = hasher;
+			hasher.skip(Long.MAX_VALUE);
+			return hasher.getResults();
+		} finally {
+			Closer.close(is);
+		}
+	}
+	
+	private void notifyStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+				
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+				
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
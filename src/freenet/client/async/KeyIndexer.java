@@ -0,0 +1,21 @@
+package freenet.client.async;
+
+/** A KeySalter which also maintains a global index from salted keys to the KeyListener's that
+ * want them, so that matching a block against the queue does not have to ask every listener.
+ * KeyListener's that can enumerate their keys (e.g. SplitFileFetcherKeyListener) add them here
+ * and then call finishedIndexing(); until then they are checked individually as before.
+ * @see KeyListenerIndex
+ */
+public interface KeyIndexer extends KeySalter {
+
+    /** Add a key to the index for a listener. The key must have been salted by this object. */
+    void indexKey(KeyListener listener, byte[] saltedKey);
+
+    /** Remove a key from the index for a listener, e.g. because it has been found. */
+    void unindexKey(KeyListener listener, byte[] saltedKey);
+
+    /** All the keys the listener wants have been added. From now on, the listener will only be
+     * consulted for keys that match the index. */
+    void finishedIndexing(KeyListener listener);
+
+}
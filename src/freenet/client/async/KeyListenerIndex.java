@@ -0,0 +1,325 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Node-wide index from salted keys to the KeyListener's which want them. Used by
+ * KeyListenerTracker so that checking an incoming block costs a single hash lookup rather than
+ * a Bloom filter probe (and a local salt SHA256) for every queued download.</p>
+ *
+ * <p>The salted keys are already SHA256 output, so we only keep the first 64 bits of each as a
+ * fingerprint. The odd false positive just costs a definitelyWantKey() call, exactly as a
+ * Bloom filter false positive would. The index is split into shards, each an open addressing
+ * multi-map with its own lock, chosen by the top bits of the fingerprint.</p>
+ *
+ * <p>Removing a listener is O(1): its entry is flagged as removed, and its slots are purged
+ * lazily when they are encountered or when the shard is next resized. If too many stale slots
+ * accumulate we sweep all the shards.</p>
+ *
+ * LOCKING: Each shard is locked separately. The listener registry is locked on the index itself.
+ * We never call out to a KeyListener while holding either lock.
+ */
+class KeyListenerIndex {
+
+    /** Must be a power of 2. */
+    static final int SHARDS = 32;
+    private static final int SHARD_SHIFT = 64 - Integer.numberOfTrailingZeros(SHARDS);
+    private static final int MIN_SHARD_CAPACITY = 64;
+
+    /** Per-listener state. The flags are volatile so lookups can check them without taking the
+     * registry lock. */
+    private static final class Entry {
+        final KeyListener listener;
+        /** All the listener's keys are in the index. */
+        volatile boolean complete;
+        /** The listener is registered with the tracker, so lookups should return it. */
+        volatile boolean registered;
+        /** The listener has been removed. Any slots referring to it are stale. */
+        volatile boolean removed;
+        /** Number of slots in the index referring to this entry. Protected by the registry
+         * lock. */
+        long keys;
+
+        Entry(KeyListener listener) {
+            this.listener = listener;
+        }
+
+        boolean isActive() {
+            return complete && registered && !removed;
+        }
+    }
+
+    /** Marks a deleted slot. */
+    private static final Entry TOMBSTONE = new Entry(null);
+
+    private final Shard[] shards;
+    private final HashMap<KeyListener, Entry> entries;
+    /** Total slots currently referring to live entries. Protected by the registry lock. */
+    private long liveKeys;
+    /** Total slots referring to removed entries which haven't been purged yet. Only used to
+     * decide when to sweep, so it doesn't need to be exact. */
+    private final AtomicLong staleKeys;
+
+    KeyListenerIndex() {
+        shards = new Shard[SHARDS];
+        for(int i=0;i<SHARDS;i++)
+            shards[i] = new Shard();
+        entries = new HashMap<KeyListener, Entry>();
+        staleKeys = new AtomicLong();
+    }
+
+    /** Add a salted key for a listener. Adding the same key twice for the same listener is
+     * harmless. */
+    void add(KeyListener listener, byte[] saltedKey) {
+        Entry entry = getEntry(listener, true);
+        long fingerprint = fingerprint(saltedKey);
+        if(shardFor(fingerprint).add(fingerprint, entry)) {
+            synchronized(this) {
+                if(entry.removed) {
+                    // Raced with removeListener().
+                    staleKeys.incrementAndGet();
+                } else {
+                    entry.keys++;
+                    liveKeys++;
+                }
+            }
+        }
+    }
+
+    /** Remove a single salted key for a listener. */
+    void remove(KeyListener listener, byte[] saltedKey) {
+        Entry entry = getEntry(listener, false);
+        if(entry == null) return;
+        long fingerprint = fingerprint(saltedKey);
+        if(shardFor(fingerprint).remove(fingerprint, entry)) {
+            synchronized(this) {
+                if(!entry.removed) {
+                    entry.keys--;
+                    liveKeys--;
+                }
+            }
+        }
+    }
+
+    /** Mark a listener as having added all its keys. */
+    void setComplete(KeyListener listener) {
+        getEntry(listener, true).complete = true;
+    }
+
+    /** @return True if the listener has added all its keys and has not been removed since. */
+    boolean isComplete(KeyListener listener) {
+        Entry entry = getEntry(listener, false);
+        return entry != null && entry.complete;
+    }
+
+    /** Set whether lookups should return the listener. Listeners may add their keys before they
+     * are registered with the tracker. */
+    void setRegistered(KeyListener listener, boolean registered) {
+        getEntry(listener, true).registered = registered;
+    }
+
+    /** @return True if the listener is complete and registered, i.e. it will be returned by
+     * lookups. */
+    boolean isActive(KeyListener listener) {
+        Entry entry = getEntry(listener, false);
+        return entry != null && entry.isActive();
+    }
+
+    /** Forget about a listener and all its keys. Its slots are purged lazily. */
+    void removeListener(KeyListener listener) {
+        boolean sweep;
+        synchronized(this) {
+            Entry entry = entries.remove(listener);
+            if(entry == null) return;
+            entry.removed = true;
+            liveKeys -= entry.keys;
+            long stale = staleKeys.addAndGet(entry.keys);
+            entry.keys = 0;
+            sweep = stale > MIN_SHARD_CAPACITY * SHARDS && stale > liveKeys;
+        }
+        if(sweep) purge();
+    }
+
+    /** Add all the active listeners which want the given salted key to the list. */
+    void get(byte[] saltedKey, List<KeyListener> matches) {
+        long fingerprint = fingerprint(saltedKey);
+        shardFor(fingerprint).get(fingerprint, matches);
+    }
+
+    /** @return True if any active listener wants the given salted key. */
+    boolean contains(byte[] saltedKey) {
+        ArrayList<KeyListener> matches = new ArrayList<KeyListener>(1);
+        get(saltedKey, matches);
+        return !matches.isEmpty();
+    }
+
+    /** Add all the complete, registered listeners to the list. */
+    synchronized void getActiveListeners(List<KeyListener> listeners) {
+        for(Entry entry : entries.values()) {
+            if(entry.isActive())
+                listeners.add(entry.listener);
+        }
+    }
+
+    synchronized int countListeners() {
+        return entries.size();
+    }
+
+    synchronized long countKeys() {
+        return liveKeys;
+    }
+
+    /** Drop all slots referring to removed listeners. */
+    void purge() {
+        for(Shard shard : shards)
+            shard.purge();
+    }
+
+    private synchronized Entry getEntry(KeyListener listener, boolean create) {
+        Entry entry = entries.get(listener);
+        if(entry == null && create) {
+            entry = new Entry(listener);
+            entries.put(listener, entry);
+        }
+        return entry;
+    }
+
+    private Shard shardFor(long fingerprint) {
+        return shards[(int) (fingerprint >>> SHARD_SHIFT)];
+    }
+
+    private static int slot(long fingerprint, int mask) {
+        // The top bits chose the shard, so use the bottom bits.
+        return (int) fingerprint & mask;
+    }
+
+    static long fingerprint(byte[] saltedKey) {
+        long l = 0;
+        for(int i=0;i<8;i++)
+            l = (l << 8) | (saltedKey[i] & 0xFF);
+        return l;
+    }
+
+    /** Open addressing multi-map from fingerprint to Entry, with linear probing. The same
+     * fingerprint may appear several times for different entries. Empty slots are null, deleted
+     * slots are TOMBSTONE. Stale slots are dropped as they are found. */
+    private final class Shard {
+
+        private long[] fingerprints;
+        private Entry[] owners;
+        /** Number of non-null slots, including tombstones. */
+        private int used;
+        /** Number of non-null, non-tombstone slots, including stale ones. */
+        private int size;
+
+        Shard() {
+            fingerprints = new long[MIN_SHARD_CAPACITY];
+            owners = new Entry[MIN_SHARD_CAPACITY];
+        }
+
+        /** @return True if the fingerprint was added, false if it was already present for this
+         * entry. */
+        synchronized boolean add(long fingerprint, Entry entry) {
+            if((used + 1) * 4 > owners.length * 3)
+                resize();
+            int mask = owners.length - 1;
+            int firstFree = -1;
+            for(int i = slot(fingerprint, mask);;i = (i + 1) & mask) {
+                Entry owner = owners[i];
+                if(owner == null) {
+                    if(firstFree == -1) {
+                        firstFree = i;
+                        used++;
+                    }
+                    break;
+                }
+                if(owner == TOMBSTONE) {
+                    if(firstFree == -1) firstFree = i;
+                } else if(owner == entry && fingerprints[i] == fingerprint) {
+                    return false;
+                }
+            }
+            fingerprints[firstFree] = fingerprint;
+            owners[firstFree] = entry;
+            size++;
+            return true;
+        }
+
+        synchronized boolean remove(long fingerprint, Entry entry) {
+            int mask = owners.length - 1;
+            for(int i = slot(fingerprint, mask);;i = (i + 1) & mask) {
+                Entry owner = owners[i];
+                if(owner == null) return false;
+                if(owner == entry && fingerprints[i] == fingerprint) {
+                    owners[i] = TOMBSTONE;
+                    size--;
+                    return true;
+                }
+            }
+        }
+
+        synchronized void get(long fingerprint, List<KeyListener> matches) {
+            int mask = owners.length - 1;
+            for(int i = slot(fingerprint, mask);;i = (i + 1) & mask) {
+                Entry owner = owners[i];
+                if(owner == null) return;
+                if(owner == TOMBSTONE || fingerprints[i] != fingerprint) continue;
+                if(owner.removed) {
+                    owners[i] = TOMBSTONE;
+                    size--;
+                    staleKeys.decrementAndGet();
+                } else if(owner.isActive()) {
+                    matches.add(owner.listener);
+                }
+            }
+        }
+
+        synchronized void purge() {
+            rehash(owners.length);
+        }
+
+        /** Grow if full of live slots, otherwise rehash in place to clear tombstones and stale
+         * slots. */
+        private void resize() {
+            int live = 0;
+            for(Entry owner : owners) {
+                if(owner != null && owner != TOMBSTONE && !owner.removed) live++;
+            }
+            int capacity = owners.length;
+            while((live + 1) * 2 > capacity) capacity <<= 1;
+            while(capacity > MIN_SHARD_CAPACITY && (live + 1) * 8 < capacity) capacity >>= 1;
+            rehash(capacity);
+        }
+
+        private void rehash(int capacity) {
+            long[] oldFingerprints = fingerprints;
+            Entry[] oldOwners = owners;
+            fingerprints = new long[capacity];
+            owners = new Entry[capacity];
+            used = 0;
+            size = 0;
+            int mask = capacity - 1;
+            int purged = 0;
+            for(int j=0;j<oldOwners.length;j++) {
+                Entry owner = oldOwners[j];
+                if(owner == null || owner == TOMBSTONE) continue;
+                if(owner.removed) {
+                    purged++;
+                    continue;
+                }
+                int i = slot(oldFingerprints[j], mask);
+                while(owners[i] != null) i = (i + 1) & mask;
+                fingerprints[i] = oldFingerprints[j];
+                owners[i] = owner;
+                used++;
+                size++;
+            }
+            if(purged > 0) staleKeys.addAndGet(-purged);
+        }
+
+    }
+
+}
@@ -5,7 +5,6 @@ package freenet.client.async;
 
 import static java.lang.String.format;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,12 +28,15 @@ import freenet.support.Logger.LogLevel;
  * <p>The queue of requests to run, and the algorithm to choose which to start, is in
  * @see ClientRequestSchedulerSelector .</p>
  * 
+ * <p>KeyListener's which can enumerate their keys add them to a global index (see KeyIndexer), so
+ * matching a key costs O(1) in the number of downloads. Other listeners are asked individually.</p>
+ * 
  * PERSISTENCE: This class is NOT serialized, it is recreated on every startup, and downloads are
  * re-registered with this class (for KeyListeners) and downloads and uploads are re-registered 
  * with the ClientRequestSelector.
  * @author toad
  */
-class KeyListenerTracker implements KeySalter {
+class KeyListenerTracker implements KeyIndexer {
 	
 	private static volatile boolean logMINOR;
 	
@@ -60,8 +62,13 @@ class KeyListenerTracker implements KeySalter {
 	final boolean isRTScheduler;
 	
 	protected final ClientRequestScheduler sched;
-	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
+	/** Transient even for persistent scheduler. There is one for each of transient, persistent.
+	 * Only includes listeners which are not fully indexed in keyIndex; these must be asked 
+	 * individually whether they want a key. */
 	private final ArrayList<KeyListener> keyListeners;
+	/** Index from salted key to the listeners which want it. Transient. Listeners in the index 
+	 * are not in keyListeners once they have finished indexing. */
+	private final KeyListenerIndex keyIndex;
 
 	final boolean persistent;
 	
@@ -75,6 +82,7 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		keyIndex = new KeyListenerIndex();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -99,29 +107,61 @@ class KeyListenerTracker implements KeySalter {
 		if(listener == null) throw new NullPointerException();
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
-			if(keyListeners.contains(listener))
+			if(keyIndex.isActive(listener) || keyListeners.contains(listener))
 				return;
-			keyListeners.add(listener);
+			if(keyIndex.isComplete(listener))
+				keyIndex.setRegistered(listener, true);
+			else
+				keyListeners.add(listener);
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+countListeners()+" : "+listener);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			if(keyIndex.isActive(listener))
+				ret = true;
+			keyIndex.removeListener(listener);
 		}
 		listener.onRemove();
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+countListeners()+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
+	@Override
+	public void indexKey(KeyListener listener, byte[] saltedKey) {
+		keyIndex.add(listener, saltedKey);
+	}
+	
+	@Override
+	public void unindexKey(KeyListener listener, byte[] saltedKey) {
+		keyIndex.remove(listener, saltedKey);
+	}
+	
+	@Override
+	public void finishedIndexing(KeyListener listener) {
+		synchronized (this) {
+			keyIndex.setComplete(listener);
+			// If it is already registered, stop asking it about every key.
+			if(keyListeners.remove(listener))
+				keyIndex.setRegistered(listener, true);
+		}
+		if (logMINOR)
+			Logger.minor(this, "Finished indexing "+keyIndex.countKeys()+" keys on "+this+" for "+listener);
+	}
+	
+	private synchronized int countListeners() {
+		return keyListeners.size() + keyIndex.countListeners();
+	}
+	
 	public boolean removePendingKeys(HasKeyListener hasListener) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			for (KeyListener listener : allListeners()) {
 				HasKeyListener hkl;
 				try {
 					hkl = listener.getHasKeyListener();
@@ -170,7 +210,7 @@ class KeyListenerTracker implements KeySalter {
 	
 	public synchronized long countWaitingKeys() {
 		long count = 0;
-		for (KeyListener listener : keyListeners) {
+		for (KeyListener listener : allListeners()) {
 			try {
 				count += listener.countKeys();
 			} catch (Throwable t) {
@@ -201,6 +241,9 @@ class KeyListenerTracker implements KeySalter {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
+		if (keyIndex.contains(saltedKey)) {
+			return true;
+		}
 		for (KeyListener listener : keyListeners) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
@@ -284,12 +327,7 @@ class KeyListenerTracker implements KeySalter {
 	public byte[] globalSalt;
 	
 	public byte[] saltKey(Key key) {
-		MessageDigest md = SHA256.getMessageDigest();
-		md.update(key.getRoutingKey());
-		md.update(globalSalt);
-		byte[] ret = md.digest();
-		SHA256.returnMessageDigest(md);
-		return ret;
+		return SHA256.digest(key.getRoutingKey(), globalSalt);
 	}
 	
 	protected void hintGlobalSalt(byte[] globalSalt2) {
@@ -297,11 +335,21 @@ class KeyListenerTracker implements KeySalter {
 			globalSalt = globalSalt2;
 	}
 
+	/** All registered listeners, both indexed and not. Caller must hold the lock. */
+	private List<KeyListener> allListeners() {
+		ArrayList<KeyListener> listeners = new ArrayList<KeyListener>(keyListeners);
+		keyIndex.getActiveListeners(listeners);
+		return listeners;
+	}
+
 	/**
-	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
+	 * Returns all KeyListeners that are indexed for saltedKey, plus all unindexed KeyListeners that 
+	 * return true on probablyWantKey(key, saltedKey).
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
+		// The index has its own locking.
+		keyIndex.get(saltedKey, matches);
 		synchronized (this) {
 			for (KeyListener listener : keyListeners) {
 				try {
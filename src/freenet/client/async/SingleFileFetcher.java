@@ -29,6 +29,7 @@ import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
 import freenet.client.Metadata;
+import freenet.client.MetadataCache;
 import freenet.client.MetadataParseException;
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.crypt.HashResult;
@@ -45,7 +46,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorChain;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
@@ -226,6 +227,57 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		}
 	}
 
+	@Override
+	public void schedule(ClientContext context) {
+		if(startWithCachedMetadata(context)) return;
+		super.schedule(context);
+	}
+
+	/** If we have already parsed the metadata for our key, use it rather than fetching it
+	 * again. We can't tell whether a key is metadata until we have fetched it, but the cache
+	 * only contains metadata.
+	 * @return True if we found it and will handle it off-thread. */
+	private boolean startWithCachedMetadata(ClientContext context) {
+		if(!(key instanceof ClientCHK) || !ctx.followRedirects) return false;
+		MetadataCache cache = getMetadataCache(context);
+		if(cache == null) return false;
+		final Metadata cached = cache.get((ClientCHK) key);
+		if(cached == null) return false;
+		if(logMINOR) Logger.minor(this, "Using cached metadata for "+key+" on "+this);
+		parent.completedBlock(true, context);
+		// Break locks, we may be called from within another SFF's handleMetadata().
+		context.getJobRunner(persistent).queueInternal(new PersistentJob() {
+
+			@Override
+			public boolean run(ClientContext context) {
+				synchronized(SingleFileFetcher.this) {
+					metadata = cached;
+				}
+				innerWrapHandleMetadata(false, context);
+				return true;
+			}
+
+		});
+		return true;
+	}
+
+	/** @return The metadata cache, or null if we must not use it: if we are collecting a
+	 * binary blob we need the actual blocks, and if ignoreStore is set the caller wants a
+	 * fresh copy. */
+	private MetadataCache getMetadataCache(ClientContext context) {
+		if(ctx.ignoreStore || bucketSnoop != null) return null;
+		if(parent instanceof ClientGetter && ((ClientGetter)parent).collectingBinaryBlob()) return null;
+		return context.archiveManager.metadataCache;
+	}
+
+	/** Cache metadata just parsed from a file in the current archive.
+	 * @return The metadata to carry on with, see MetadataCache.put(). */
+	private Metadata cacheArchiveMetadata(String name, Metadata m, long size, ClientContext context) {
+		MetadataCache cache = getMetadataCache(context);
+		if(cache == null || ah == null) return m;
+		return cache.put(ah.getKey(), name, m, size);
+	}
+
 	// Package-local so that ClientGetter can call it instead of schedule().
 	void startWithMetadata(Bucket data, ClientContext context) {
 		parent.completedBlock(true, context);
@@ -250,7 +302,12 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		}
 		// Parse metadata
 		try {
+			long size = data.size();
 			metadata = Metadata.construct(data);
+			if(key instanceof ClientCHK) {
+				MetadataCache cache = getMetadataCache(context);
+				if(cache != null) metadata = cache.put((ClientCHK) key, metadata, size);
+			}
             data.free();
             data = null;
 			innerWrapHandleMetadata(false, context);
@@ -422,6 +479,21 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 						throw new FetchException(FetchExceptionMode.NOT_IN_ARCHIVE, "can't find "+name);
 				}
 				continue; // loop
+			} else if(metadata.isIndexedManifest()) {
+				if(logMINOR) Logger.minor(this, "Is indexed manifest");
+				if(metaStrings.isEmpty()) {
+					FreenetURI u = uri;
+					String last = u.lastMetaString();
+					if(last == null || !last.equals(""))
+						u = u.addMetaStrings(new String[] { "" });
+					else
+						u = null;
+					throw new FetchException(FetchExceptionMode.NOT_ENOUGH_PATH_COMPONENTS, -1, false, null, u);
+				}
+				// Fetch the next block down, which will look up the same name.
+				metadata = metadata.getIndexedRedirect(metaStrings.get(0));
+				if(logMINOR) Logger.minor(this, "Following index to "+metadata.getSingleTarget()+" for "+metaStrings.get(0));
+				continue; // loop
 			} else if(metadata.isArchiveManifest()) {
 				if(logMINOR) Logger.minor(this, "Is archive manifest (type="+metadata.getArchiveType()+" codec="+metadata.getCompressionCodec()+')');
 				if(metaStrings.isEmpty() && ctx.returnZIPManifests) {
@@ -442,11 +514,17 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				archiveMetadata = metadata;
 				metadata = null; // Copied to archiveMetadata, so do not need to clear it
 				// ah is set. This means we are currently handling an archive.
+				MetadataCache cache = getMetadataCache(context);
+				if(cache != null) {
+					metadata = cache.get(ah.getKey(), ArchiveManager.METADATA_NAME);
+					if(metadata != null) continue;
+				}
 				Bucket metadataBucket;
 				metadataBucket = ah.getMetadata(actx, context.archiveManager);
 				if(metadataBucket != null) {
 					try {
-						metadata = Metadata.construct(metadataBucket);
+						metadata = cacheArchiveMetadata(ArchiveManager.METADATA_NAME,
+								Metadata.construct(metadataBucket), metadataBucket.size(), context);
 						metadataBucket.free();
 					} catch (InsufficientDiskSpaceException e) {
 					    throw new FetchException(FetchExceptionMode.NOT_ENOUGH_DISK_SPACE);
@@ -462,7 +540,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 						public void gotBucket(Bucket data, ClientContext context) {
 							if(logMINOR) Logger.minor(this, "gotBucket on "+SingleFileFetcher.this+" persistent="+persistent);
 							try {
-								metadata = Metadata.construct(data);
+								metadata = cacheArchiveMetadata(ArchiveManager.METADATA_NAME,
+										Metadata.construct(data), data.size(), context);
 								data.free();
 								innerWrapHandleMetadata(true, context);
 							} catch (MetadataParseException e) {
@@ -497,15 +576,24 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				// Fetch it from the archive
 				if(ah == null)
 					throw new FetchException(FetchExceptionMode.UNKNOWN_METADATA, "Archive redirect not in an archive manifest");
-				String filename = metadata.getArchiveInternalName();
+				final String filename = metadata.getArchiveInternalName();
 				if(logMINOR) Logger.minor(this, "Fetching "+filename);
+				MetadataCache cache = getMetadataCache(context);
+				if(cache != null) {
+					Metadata cached = cache.get(ah.getKey(), filename);
+					if(cached != null) {
+						metadata = cached;
+						continue;
+					}
+				}
 				Bucket dataBucket = ah.get(filename, actx, context.archiveManager);
 				if(dataBucket != null) {
 					if(logMINOR) Logger.minor(this, "Returning data");
 					final Metadata newMetadata;
 					try {
 						
-						newMetadata = Metadata.construct(dataBucket);
+						newMetadata = cacheArchiveMetadata(filename, Metadata.construct(dataBucket),
+								dataBucket.size(), context);
 						dataBucket.free();
 					} catch (InsufficientDiskSpaceException e) {
 					    throw new FetchException(FetchExceptionMode.NOT_ENOUGH_DISK_SPACE);
@@ -529,7 +617,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 							if(logMINOR) Logger.minor(this, "Returning data");
 							final Metadata newMetadata;
 							try {
-								newMetadata = Metadata.construct(data);
+								newMetadata = cacheArchiveMetadata(filename, Metadata.construct(data),
+										data.size(), context);
 								synchronized(SingleFileFetcher.this) {
 									metadata = newMetadata;
 								}
@@ -903,7 +992,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorChain.PIPE_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket data = null;
 			// FIXME not strictly correct and unnecessary - archive size already checked against ctx.max*Length inside SingleFileFetcher
@@ -914,9 +1003,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					DecompressorChain decompressorManager =  new DecompressorChain(pipeIn, decompressors, maxLen);
+					InputStream decompressed = decompressorManager.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, context);
 					decompressorManager.waitFinished();
@@ -1050,7 +1139,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorChain.PIPE_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket finalData = null;
 			// does matter only on pre-1255 keys (1255 keys have top block sizes)
@@ -1064,9 +1153,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					DecompressorChain decompressorManager =  new DecompressorChain(pipeIn, decompressors, maxLen);
+					InputStream decompressed = decompressorManager.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, context);
 					decompressorManager.waitFinished();
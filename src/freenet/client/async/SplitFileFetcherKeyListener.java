@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -63,6 +62,17 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private boolean dirty;
     private transient boolean mustRegenerateMainFilter;
     private transient boolean mustRegenerateSegmentFilters;
+    /** True if all our keys have been added to the global KeyIndexer, if there is one. Not 
+     * persisted: The index is rebuilt on startup. */
+    private transient boolean indexed;
+    /** For the locally salted key in probablyWantKey() and definitelyWantKey(), which are called
+     * for every key we are offered or fetch, against every splitfile on the queue. */
+    private static final ThreadLocal<byte[]> saltedBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[NodeCHK.KEY_LENGTH];
+        }
+    };
     
     /** Create a set of bloom filters for a new download.
      * @throws FetchException */
@@ -184,29 +194,64 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     synchronized void addKey(Key key, int segNo, KeySalter salter) {
         if(finishedSetup && !(mustRegenerateMainFilter || mustRegenerateSegmentFilters)) 
             throw new IllegalStateException();
+        byte[] saltedKey = null;
         if(mustRegenerateMainFilter || !finishedSetup) {
-            byte[] saltedKey = salter.saltKey(key);
+            saltedKey = salter.saltKey(key);
             filter.addKey(saltedKey);
         }
         if(mustRegenerateSegmentFilters || !finishedSetup) {
             byte[] localSalted = localSaltKey(key);
             segmentFilters[segNo].addKey(localSalted);
         }
+        if(!indexed && salter instanceof KeyIndexer) {
+            if(saltedKey == null) saltedKey = salter.saltKey(key);
+            ((KeyIndexer)salter).indexKey(this, saltedKey);
+        }
 //      if(!segmentFilters[segNo].checkFilter(localSalted))
 //          Logger.error(this, "Key added but not in filter: "+key+" on "+this);
     }
     
-    synchronized void finishedSetup() {
-        finishedSetup = true;
+    /** Add a key to the global index only, after restarting when the Bloom filters were read
+     * from disk. */
+    void indexKey(Key key, KeyIndexer indexer) {
+        synchronized(this) {
+            if(indexed) return;
+        }
+        indexer.indexKey(this, indexer.saltKey(key));
+    }
+    
+    void finishedSetup(KeySalter salter) {
+        synchronized(this) {
+            finishedSetup = true;
+        }
+        finishedIndexing(salter);
+    }
+    
+    /** Tell the KeyIndexer, if any, that we have added all our keys. Must not be called with the
+     * lock held, as it calls into the scheduler. */
+    void finishedIndexing(KeySalter salter) {
+        if(!(salter instanceof KeyIndexer)) return;
+        synchronized(this) {
+            if(indexed) return;
+            indexed = true;
+        }
+        ((KeyIndexer)salter).finishedIndexing(this);
+    }
+    
+    synchronized boolean isIndexed() {
+        return indexed;
     }
 
     private byte[] localSaltKey(Key key) {
-        MessageDigest md = SHA256.getMessageDigest();
-        md.update(key.getRoutingKey());
-        md.update(localSalt);
-        byte[] ret = md.digest();
-        SHA256.returnMessageDigest(md);
-        return ret;
+        return SHA256.digest(key.getRoutingKey(), localSalt);
+    }
+
+    /** @return The locally salted key, in a per-thread buffer which will be overwritten by the
+     * next call on the same thread. */
+    private byte[] localSaltKeyTemporary(Key key) {
+        byte[] salted = saltedBuffer.get();
+        SHA256.digestInto(key.getRoutingKey(), localSalt, salted, 0);
+        return salted;
     }
     
     /** The segment bloom filters should only need to be written ONCE, and can all be written at 
@@ -246,7 +291,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     @Override
     public boolean probablyWantKey(Key key, byte[] saltedKey) {
         if(filter.checkFilter(saltedKey)) {
-            byte[] salted = localSaltKey(key);
+            byte[] salted = localSaltKeyTemporary(key);
             for(int i=0;i<segmentFilters.length;i++) {
                 if(segmentFilters[i].checkFilter(salted)) {
                     return true;
@@ -259,7 +304,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     @Override
     public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
-        byte[] salted = localSaltKey(key);
+        byte[] salted = localSaltKeyTemporary(key);
         for(int i=0;i<segmentFilters.length;i++) {
             if(segmentFilters[i].checkFilter(salted)) {
                 if(storage.segments[i].definitelyWantKey((NodeCHK)key))
@@ -301,6 +346,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
                 dirty = true;
             }
             filter.removeKey(saltedKey);
+            KeySalter salter = fetcher.getSalter();
+            if(salter instanceof KeyIndexer)
+                ((KeyIndexer)salter).unindexKey(this, saltedKey);
             if(persistent)
                 storage.lazyWriteMetadata();
         }
@@ -355,10 +403,13 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return mustRegenerateMainFilter || mustRegenerateSegmentFilters;
     }
 
-    public void addedAllKeys() {
-        mustRegenerateMainFilter = false;
-        mustRegenerateSegmentFilters = false;
-        finishedSetup = true;
+    public void addedAllKeys(KeySalter salter) {
+        synchronized(this) {
+            mustRegenerateMainFilter = false;
+            mustRegenerateSegmentFilters = false;
+            finishedSetup = true;
+        }
+        finishedIndexing(salter);
     }
 
 }
@@ -460,7 +460,7 @@ public class SplitFileFetcherStorage {
          * Progress over 100% is apparently more annoying than finishing at 98%... */
         fetcher.setSplitfileBlocks(splitfileDataBlocks + totalCrossCheckBlocks, splitfileCheckBlocks);
         
-        keyListener.finishedSetup();
+        keyListener.finishedSetup(salt);
         
         if(crossCheckBlocks != 0) {
             Random crossSegmentRandom = new MersenneTwister(Metadata.getCrossSegmentSeed(metadata.getHashes(), metadata.getHashThisLayerOnly()));
@@ -974,7 +974,7 @@ public class SplitFileFetcherStorage {
                                 return false;
                             }
                         }
-                        keyListener.addedAllKeys();
+                        keyListener.addedAllKeys(salt);
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
@@ -994,9 +994,47 @@ public class SplitFileFetcherStorage {
             }
             return false;
         }
+        if(!keyListener.isIndexed())
+            queueIndexKeys();
         return true;
     }
     
+    /** After restarting with valid Bloom filters, we don't need to read the keys to regenerate
+     * them, but we do need to add them to the global key index. Until that is done the key listener
+     * will be checked individually, so it doesn't matter if this is dropped. */
+    private void queueIndexKeys() {
+        final KeySalter salt = fetcher.getSalter();
+        if(!(salt instanceof KeyIndexer)) return;
+        jobRunner.queueNormalOrDrop(new PersistentJob() {
+
+            @Override
+            public boolean run(ClientContext context) {
+                KeyIndexer indexer = (KeyIndexer) salt;
+                for(SplitFileFetcherSegmentStorage segment : segments) {
+                    if(segment.isFinished()) continue;
+                    try {
+                        SplitFileSegmentKeys keys = segment.readSegmentKeys();
+                        // Blocks we already have won't be found again, so would never be unindexed.
+                        boolean[] downloaded = segment.copyDownloadedBlocks();
+                        for(int j=0;j<keys.totalKeys();j++) {
+                            if(downloaded[j]) continue;
+                            keyListener.indexKey(keys.getKey(j, null, false).getNodeKey(false), indexer);
+                        }
+                    } catch (IOException e) {
+                        failOnDiskError(e);
+                        return false;
+                    } catch (ChecksumFailedException e) {
+                        failOnDiskError(e);
+                        return false;
+                    }
+                }
+                keyListener.finishedIndexing(salt);
+                return false;
+            }
+            
+        });
+    }
+    
     OutputStream checksumOutputStream(OutputStream os) {
         return checksumChecker.checksumWriter(os);
     }
@@ -18,6 +18,7 @@ import freenet.keys.CHKBlock;
 import freenet.keys.CHKEncodeException;
 import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
+import freenet.keys.ParallelCHKEncoder;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
@@ -456,8 +457,10 @@ public class SplitFileInserterSegmentStorage {
                 checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
             if(dataBlocks == null || checkBlocks == null) return; // Failed with disk error.
             parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
-            for(int i=0;i<checkBlocks.length;i++)
-                writeCheckBlock(i, checkBlocks[i]);
+            if(parent.storeCheckBlocks) {
+                for(int i=0;i<checkBlocks.length;i++)
+                    writeCheckBlock(i, checkBlocks[i]);
+            }
             generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
             synchronized(this) {
                 encoded = true;
@@ -473,11 +476,14 @@ public class SplitFileInserterSegmentStorage {
         }
     }
 
-    /** Generate keys for each block and record them. 
+    /** Generate keys for each block and record them. The blocks are encoded in parallel, then
+     * the keys are written on this thread.
      * @throws IOException */
     private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
-        for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+        ClientCHK[] keys = ParallelCHKEncoder.encodeSplitfileKeys(dataBlocks, splitfileCryptoKey,
+                splitfileCryptoAlgorithm);
+        for(int i=0;i<keys.length;i++) {
+            setKey(i + offset, keys[i]);
         }
     }
 
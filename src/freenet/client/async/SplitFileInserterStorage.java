@@ -177,6 +177,11 @@ public class SplitFileInserterStorage {
     private final int keyLength;
     private final int maxRetries;
     private final int consecutiveRNFsCountAsSuccess;
+    /** If false, we are only computing the keys (InsertContext.getCHKOnly), so the segments
+     * don't need to write their check blocks: Nothing will ever read them, so we don't allocate
+     * any space for them either. Cross-segment check blocks are always written, as the segments
+     * read them. Not persisted, but on resume we can tell from the offsets. */
+    final boolean storeCheckBlocks;
 
     // System utilities.
     final MemoryLimitedJobRunner memoryLimitedJobRunner;
@@ -272,6 +277,7 @@ public class SplitFileInserterStorage {
         this.origDataSize = origDataSize;
         this.origCompressedDataSize = origCompressedDataSize;
         this.maxRetries = ctx.maxInsertRetries;
+        this.storeCheckBlocks = !ctx.getCHKOnly;
         this.errors = new FailureCodeTracker(true);
         this.ticker = ticker;
         this.random = random;
@@ -506,7 +512,8 @@ public class SplitFileInserterStorage {
 
         for (int i = 0; i < segments.length; i++) {
             offsetSegmentCheckBlocks[i] = ptr;
-            ptr += segments[i].checkBlockCount * CHKBlock.DATA_LENGTH;
+            if(storeCheckBlocks)
+                ptr += segments[i].checkBlockCount * CHKBlock.DATA_LENGTH;
         }
 
         if (persistent) {
@@ -760,6 +767,8 @@ public class SplitFileInserterStorage {
         offsetSegmentStatus = new long[segmentCount];
         for(int i=0;i<segmentCount;i++)
             offsetSegmentStatus[i] = readOffset(dis, rafLength, "segment status offset");
+        // The segment status follows the check blocks, if there are any.
+        storeCheckBlocks = offsetSegmentStatus[0] != offsetSegmentCheckBlocks[0];
         if(crossSegments != null) {
             offsetCrossSegmentStatus = new long[crossSegments.length];
             for(int i=0;i<crossSegments.length;i++)
@@ -1357,6 +1366,7 @@ public class SplitFileInserterStorage {
         assert (segNo >= 0 && segNo < segments.length);
         assert (checkBlockNo >= 0 && checkBlockNo < segments[segNo].checkBlockCount);
         assert (buf.length == CHKBlock.DATA_LENGTH);
+        assert (storeCheckBlocks);
         long offset = offsetSegmentCheckBlocks[segNo] + checkBlockNo * CHKBlock.DATA_LENGTH;
         raf.pwrite(offset, buf, 0, buf.length);
     }
@@ -1364,6 +1374,7 @@ public class SplitFileInserterStorage {
     public byte[] readSegmentCheckBlock(int segNo, int checkBlockNo) throws IOException {
         assert (segNo >= 0 && segNo < segments.length);
         assert (checkBlockNo >= 0 && checkBlockNo < segments[segNo].checkBlockCount);
+        assert (storeCheckBlocks);
         byte[] buf = new byte[CHKBlock.DATA_LENGTH];
         long offset = offsetSegmentCheckBlocks[segNo] + checkBlockNo * CHKBlock.DATA_LENGTH;
         raf.pread(offset, buf, 0, buf.length);
@@ -8,6 +8,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -55,7 +56,7 @@ import freenet.support.RemoveRangeArrayList;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorChain;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 
@@ -214,7 +215,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorChain.PIPE_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
@@ -224,9 +225,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					DecompressorChain decompressorManager =  new DecompressorChain(pipeIn, decompressors, maxLen);
+					InputStream decompressed = decompressorManager.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, context);
 					decompressorManager.waitFinished();
@@ -372,8 +373,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	class USKAttempt implements USKCheckerCallback {
 		/** Edition number */
 		long number;
-		/** Attempt to fetch that edition number (or null if the fetch has finished) */
-		USKChecker checker;
+		/** Attempt to fetch that edition number, shared with other fetchers for the same USK
+		 * (or null if the fetch has finished) */
+		USKPollScheduler.Probe checker;
 		/** Successful fetch? */
 		boolean succeeded;
 		/** DNF? */
@@ -388,7 +390,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			this.succeeded = false;
 			this.dnf = false;
 			this.forever = forever;
-			this.checker = new USKChecker(this, l.key, forever ? -1 : ctx.maxUSKRetries, l.ignoreStore ? ctxNoStore : ctx, parent, realTimeFlag);
+			this.checker = uskManager.pollScheduler.join(this, l.key, forever ? -1 : ctx.maxUSKRetries, l.ignoreStore ? ctxNoStore : ctx, parent, realTimeFlag);
+			// If another fetcher has been polling it, it has already done all its fetches once.
+			this.everInCooldown = checker.everInCooldown();
 		}
 		@Override
 		public void onDNF(ClientContext context) {
@@ -435,17 +439,17 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		
 		public void cancel(ClientContext context) {
 			cancelled = true;
-            USKChecker c;
+            USKPollScheduler.Probe c;
             synchronized(this) {
                 c = checker;
             }
 			if(c != null)
-				c.cancel(context);
+				c.leave(this, context);
 			onCancelled(context);
 		}
 		
 		public void schedule(ClientContext context) {
-		    USKChecker c;
+		    USKPollScheduler.Probe c;
 		    synchronized(this) {
 		        c = checker;
 		    }
@@ -453,7 +457,6 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				if(logMINOR)
 					Logger.minor(this, "Checker == null in schedule() for "+this, new Exception("debug"));
 			} else {
-				assert(!c.persistent());
 				c.schedule(context);
 			}
 		}
@@ -496,7 +499,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			return everInCooldown;
 		}
 		public void reloadPollParameters(ClientContext context) {
-			USKChecker c;
+			USKPollScheduler.Probe c;
 			synchronized(this) {
 			    c = checker;
 			}
@@ -737,7 +740,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
                 
                 //Find out when we should check next ('end'), in an increasing delay (unless we make progress).
                 long newSleepTime = sleepTime * 2;
-				if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
+				// Don't back off much longer than the USK usually takes to update.
+				long maxSleep = uskManager.pollScheduler.getMaxSleepTime(origUSK.clearCopy(), origSleepTime, maxSleepTime);
+				if(newSleepTime > maxSleep) newSleepTime = maxSleep;
 				sleepTime = newSleepTime;
 				end = now + context.random.nextInt((int) sleepTime);
 
@@ -998,7 +1003,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		synchronized(this) {
 			if(cancelled) return;
 			if(completed) return;
-			if(!scheduledDBRs && !ctx.ignoreUSKDatehints) {
+			if(!scheduledDBRs && !ctx.ignoreUSKDatehints && 
+					uskManager.pollScheduler.shouldFetchDateHints(origUSK.clearCopy(), System.currentTimeMillis())) {
 				atts = addDBRs(context);
 			}
 			scheduledDBRs = true;
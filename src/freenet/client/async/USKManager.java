@@ -93,6 +93,9 @@ public class USKManager {
 	
 	final Executor executor;
 	
+	/** Shares edition checks and date hints between fetchers, and tracks update intervals. */
+	final USKPollScheduler pollScheduler = new USKPollScheduler();
+	
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
@@ -445,6 +448,7 @@ public class USKManager {
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
+				pollScheduler.onNewSlot(clear, System.currentTimeMillis());
 			} 
 			
 			callbacks = subscribersByClearUSK.get(clear);
@@ -475,6 +479,7 @@ public class USKManager {
 				l = Long.valueOf(number);
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
+				pollScheduler.onNewSlot(clear, System.currentTimeMillis());
 			} else
 				return;
 			
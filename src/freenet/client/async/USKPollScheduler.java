@@ -0,0 +1,482 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.client.FetchContext;
+import freenet.keys.ClientSSK;
+import freenet.keys.ClientSSKBlock;
+import freenet.keys.Key;
+import freenet.keys.USK;
+import freenet.node.RequestStarter;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Polling state shared by all the USKFetcher's, owned by the USKManager. There may be several
+ * fetchers for the same USK: a background fetcher for subscribers, a temporary one started by
+ * fetching an edition, USKFetcherTag's from FCP and so on. Without this they would all probe the
+ * same editions and fetch the same date hints separately.
+ *
+ * - Probes: A check of one edition of a USK is shared by all the USKAttempt's that want it, with
+ * the same settings. The USKChecker runs at the best priority of the attempts waiting for it, and
+ * its result is passed to all of them. It is cancelled when the last one leaves, and moved to
+ * another attempt's requester if the one it runs under leaves or is cancelled.
+ * - Date hints: Only fetched for a USK once every DATE_HINT_INTERVAL. The editions they find are
+ * passed to every subscriber via USKManager.hintUpdate() anyway.
+ * - Update intervals: We record when each USK advances, and don't let background fetchers back off
+ * much longer than the USK's average interval between updates.
+ *
+ * Not persistent.
+ */
+class USKPollScheduler {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Don't fetch date hints for the same USK more often than this. */
+	static final long DATE_HINT_INTERVAL = MINUTES.toMillis(15);
+	/** Maximum number of USKs to remember update intervals and date hint times for. */
+	static final int MAX_HISTORY = 4096;
+	/** Weight of the latest interval in the average. */
+	static final double INTERVAL_WEIGHT = 0.25;
+
+	private final Map<ProbeKey, Probe> probes = new HashMap<ProbeKey, Probe>();
+	/** Update history by clear USK */
+	private final LRUMap<USK, History> history = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+
+	private long probesStarted;
+	private long probesShared;
+
+	private static class History {
+		/** When we last saw a new slot */
+		long lastUpdate;
+		/** Exponential moving average of the time between new slots, or 0 if not known yet */
+		long averageInterval;
+		/** When we last fetched date hints */
+		long lastDateHints;
+	}
+
+	/** Identifies a probe that can be shared. Attempts with different settings get different
+	 * checkers. */
+	private static class ProbeKey {
+		final Key key;
+		final int maxRetries;
+		final boolean ignoreStore;
+		final boolean localRequestOnly;
+		final boolean realTimeFlag;
+		private final int hashCode;
+
+		ProbeKey(Key key, int maxRetries, FetchContext ctx, boolean realTimeFlag) {
+			this.key = key;
+			this.maxRetries = maxRetries;
+			this.ignoreStore = ctx.ignoreStore;
+			this.localRequestOnly = ctx.localRequestOnly;
+			this.realTimeFlag = realTimeFlag;
+			hashCode = key.hashCode() ^ maxRetries ^ (ignoreStore ? 1 : 2) ^ (localRequestOnly ? 4 : 8) ^
+				(realTimeFlag ? 16 : 32);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof ProbeKey)) return false;
+			ProbeKey k = (ProbeKey) o;
+			return k.maxRetries == maxRetries && k.ignoreStore == ignoreStore &&
+				k.localRequestOnly == localRequestOnly && k.realTimeFlag == realTimeFlag &&
+				k.key.equals(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/** A USKAttempt waiting for a probe, with the settings and requester it joined with. */
+	private static class Waiter {
+		final USKCheckerCallback cb;
+		final FetchContext ctx;
+		final ClientRequester parent;
+
+		Waiter(USKCheckerCallback cb, FetchContext ctx, ClientRequester parent) {
+			this.cb = cb;
+			this.ctx = ctx;
+			this.parent = parent;
+		}
+
+		boolean isCancelled() {
+			return parent != null && parent.isCancelled();
+		}
+	}
+
+	/** A check of a single edition, on behalf of one or more USKAttempt's. The USKChecker runs
+	 * under the requester and FetchContext of one of the waiters, the home. If the home leaves, or
+	 * the checker is cancelled because the home's requester was cancelled, the check is restarted
+	 * under one of the remaining waiters, so they don't see a cancellation they didn't ask for. */
+	class Probe implements USKCheckerCallback {
+
+		private final ProbeKey probeKey;
+		private final ClientSSK key;
+		private final ArrayList<Waiter> waiters = new ArrayList<Waiter>(1);
+		/** Created when first scheduled. */
+		private USKChecker checker;
+		/** The waiter the checker runs on behalf of. */
+		private Waiter home;
+		private boolean finished;
+		private boolean everInCooldown;
+
+		private Probe(ProbeKey probeKey, ClientSSK key) {
+			this.probeKey = probeKey;
+			this.key = key;
+		}
+
+		/** Start the check if it isn't already running. */
+		public void schedule(ClientContext context) {
+			USKChecker c;
+			synchronized(this) {
+				if(finished || checker != null) return;
+				c = makeChecker();
+				if(c == null) return;
+			}
+			start(c, context);
+		}
+
+		/** Create a checker under the first waiter whose requester hasn't been cancelled.
+		 * @return The new checker, or null if there is no such waiter. */
+		private synchronized USKChecker makeChecker() {
+			home = null;
+			checker = null;
+			for(Waiter w : waiters) {
+				if(!w.isCancelled()) {
+					home = w;
+					break;
+				}
+			}
+			if(home == null) return null;
+			checker = new USKChecker(new CheckerCallback(), key, probeKey.maxRetries, home.ctx, home.parent, probeKey.realTimeFlag);
+			return checker;
+		}
+
+		private Waiter remove(USKCheckerCallback cb) {
+			for(int i=0;i<waiters.size();i++) {
+				if(waiters.get(i).cb == cb) return waiters.remove(i);
+			}
+			return null;
+		}
+
+		/** The caller no longer wants the result. Cancels the check if nobody else does, or moves it
+		 * to another waiter if it was running for the caller. */
+		public void leave(USKCheckerCallback cb, ClientContext context) {
+			USKChecker c;
+			USKChecker replacement = null;
+			synchronized(USKPollScheduler.this) {
+				synchronized(this) {
+					Waiter w = remove(cb);
+					if(finished) return;
+					if(!waiters.isEmpty()) {
+						if(w == null || w != home) return;
+						c = checker;
+						replacement = makeChecker();
+						// If all the others are cancelled too, they will leave soon.
+						if(replacement == null) {
+							checker = c;
+							return;
+						}
+						if(logMINOR) Logger.minor(this, "Moving "+this+" from "+cb+" to "+home.cb);
+					} else {
+						finished = true;
+						c = checker;
+					}
+				}
+				if(replacement == null) probes.remove(probeKey);
+			}
+			if(logMINOR && replacement == null) Logger.minor(this, "Cancelling unwanted "+this);
+			if(c != null) stop(c, context);
+			if(replacement != null) start(replacement, context);
+		}
+
+		public void onChangedFetchContext(ClientContext context) {
+			USKChecker c;
+			synchronized(this) {
+				c = checker;
+			}
+			if(c != null) c.onChangedFetchContext(context);
+		}
+
+		/** True if the checker has already tried everything once, so new waiters don't need
+		 * to wait for it to do so again. */
+		public synchronized boolean everInCooldown() {
+			return everInCooldown;
+		}
+
+		synchronized int waiters() {
+			return waiters.size();
+		}
+
+		/** Remove from the shared probes and return the waiters to call. */
+		private USKCheckerCallback[] finish() {
+			synchronized(USKPollScheduler.this) {
+				synchronized(this) {
+					if(finished) return new USKCheckerCallback[0];
+					finished = true;
+				}
+				probes.remove(probeKey);
+			}
+			return getWaiters();
+		}
+
+		private synchronized USKCheckerCallback[] getWaiters() {
+			USKCheckerCallback[] ret = new USKCheckerCallback[waiters.size()];
+			for(int i=0;i<ret.length;i++)
+				ret[i] = waiters.get(i).cb;
+			return ret;
+		}
+
+		@Override
+		public void onDNF(ClientContext context) {
+			for(USKCheckerCallback cb : finish())
+				cb.onDNF(context);
+		}
+
+		@Override
+		public void onSuccess(ClientSSKBlock block, ClientContext context) {
+			for(USKCheckerCallback cb : finish())
+				cb.onSuccess(block, context);
+		}
+
+		@Override
+		public void onFatalAuthorError(ClientContext context) {
+			for(USKCheckerCallback cb : finish())
+				cb.onFatalAuthorError(context);
+		}
+
+		@Override
+		public void onNetworkError(ClientContext context) {
+			for(USKCheckerCallback cb : finish())
+				cb.onNetworkError(context);
+		}
+
+		/** The checker was cancelled. If that is because the home's requester was cancelled, only
+		 * the waiters whose requesters were cancelled are told, and the check is restarted for the
+		 * rest. */
+		@Override
+		public void onCancelled(ClientContext context) {
+			ArrayList<USKCheckerCallback> cancelled = new ArrayList<USKCheckerCallback>();
+			USKChecker replacement;
+			synchronized(USKPollScheduler.this) {
+				synchronized(this) {
+					if(finished) return;
+					if(home != null && !home.isCancelled() && waiters.contains(home)) {
+						// Cancelled for some other reason, so it will be for everyone.
+						replacement = null;
+					} else {
+						for(int i=0;i<waiters.size();) {
+							Waiter w = waiters.get(i);
+							if(w.isCancelled()) {
+								waiters.remove(i);
+								cancelled.add(w.cb);
+							} else i++;
+						}
+						replacement = makeChecker();
+					}
+					if(replacement == null) {
+						finished = true;
+						for(Waiter w : waiters)
+							cancelled.add(w.cb);
+					}
+				}
+				if(replacement == null) probes.remove(probeKey);
+			}
+			if(replacement != null) {
+				if(logMINOR) Logger.minor(this, "Restarting cancelled "+this);
+				start(replacement, context);
+			}
+			for(USKCheckerCallback cb : cancelled)
+				cb.onCancelled(context);
+		}
+
+		@Override
+		public short getPriority() {
+			short prio = RequestStarter.PAUSED_PRIORITY_CLASS;
+			for(USKCheckerCallback cb : getWaiters()) {
+				short p = cb.getPriority();
+				if(p < prio) prio = p;
+			}
+			return prio;
+		}
+
+		@Override
+		public void onEnterFiniteCooldown(ClientContext context) {
+			synchronized(this) {
+				everInCooldown = true;
+			}
+			for(USKCheckerCallback cb : getWaiters())
+				cb.onEnterFiniteCooldown(context);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+" for "+key.getURI()+" ("+waiters()+" waiting)";
+		}
+
+		/** Passes results from one checker to the probe, unless it has been replaced. */
+		private class CheckerCallback implements USKCheckerCallback {
+
+			private boolean isCurrent() {
+				synchronized(Probe.this) {
+					return checker != null && checker.cb == this;
+				}
+			}
+
+			@Override
+			public void onDNF(ClientContext context) {
+				if(isCurrent()) Probe.this.onDNF(context);
+			}
+
+			@Override
+			public void onSuccess(ClientSSKBlock block, ClientContext context) {
+				if(isCurrent()) Probe.this.onSuccess(block, context);
+			}
+
+			@Override
+			public void onFatalAuthorError(ClientContext context) {
+				if(isCurrent()) Probe.this.onFatalAuthorError(context);
+			}
+
+			@Override
+			public void onNetworkError(ClientContext context) {
+				if(isCurrent()) Probe.this.onNetworkError(context);
+			}
+
+			@Override
+			public void onCancelled(ClientContext context) {
+				if(isCurrent()) Probe.this.onCancelled(context);
+			}
+
+			@Override
+			public short getPriority() {
+				return Probe.this.getPriority();
+			}
+
+			@Override
+			public void onEnterFiniteCooldown(ClientContext context) {
+				if(isCurrent()) Probe.this.onEnterFiniteCooldown(context);
+			}
+
+		}
+
+	}
+
+	/** Start a checker. Overridden by tests. */
+	void start(USKChecker checker, ClientContext context) {
+		checker.schedule(context);
+	}
+
+	/** Cancel a checker. Overridden by tests. */
+	void stop(USKChecker checker, ClientContext context) {
+		checker.cancel(context);
+	}
+
+	/**
+	 * Get the probe for an edition, creating it if nobody else is checking it already.
+	 * The caller must call schedule() on it, and leave() if it no longer wants the result.
+	 * @param cb Will be called when the check completes.
+	 */
+	Probe join(USKCheckerCallback cb, ClientSSK key, int maxRetries, FetchContext ctx,
+			ClientRequester parent, boolean realTimeFlag) {
+		ProbeKey k = new ProbeKey(key.getNodeKey(false), maxRetries, ctx, realTimeFlag);
+		synchronized(this) {
+			Probe p = probes.get(k);
+			if(p == null) {
+				p = new Probe(k, key);
+				probes.put(k, p);
+				probesStarted++;
+			} else {
+				probesShared++;
+				if(logMINOR) Logger.minor(this, "Sharing "+p+" with "+cb);
+			}
+			synchronized(p) {
+				p.waiters.add(new Waiter(cb, ctx, parent));
+			}
+			return p;
+		}
+	}
+
+	/** Called by USKManager when we find a new latest slot for a USK. */
+	synchronized void onNewSlot(USK clear, long now) {
+		History h = history.get(clear);
+		if(h == null) {
+			h = new History();
+		} else if(h.lastUpdate > 0) {
+			long interval = now - h.lastUpdate;
+			if(h.averageInterval == 0)
+				h.averageInterval = interval;
+			else
+				h.averageInterval = (long) (h.averageInterval * (1.0 - INTERVAL_WEIGHT) + interval * INTERVAL_WEIGHT);
+		}
+		h.lastUpdate = now;
+		push(clear, h);
+	}
+
+	/**
+	 * How long should a background fetcher wait between rounds, at most? If the USK is updated
+	 * regularly, there is no point waiting much longer than the usual interval, but if it is
+	 * rarely updated we can back off all the way to maxSleepTime.
+	 * @param minSleepTime The sleep time when starting polling.
+	 */
+	synchronized long getMaxSleepTime(USK clear, long minSleepTime, long maxSleepTime) {
+		History h = history.get(clear);
+		if(h == null || h.averageInterval == 0) return maxSleepTime;
+		return Math.max(minSleepTime, Math.min(maxSleepTime, h.averageInterval / 2));
+	}
+
+	/** @return True if the caller should fetch the date hints for the USK, false if they have
+	 * been fetched recently. */
+	synchronized boolean shouldFetchDateHints(USK clear, long now) {
+		History h = history.get(clear);
+		if(h == null) h = new History();
+		else if(h.lastDateHints > 0 && now - h.lastDateHints < DATE_HINT_INTERVAL) {
+			if(logMINOR) Logger.minor(this, "Already fetched date hints recently for "+clear);
+			return false;
+		}
+		h.lastDateHints = now;
+		push(clear, h);
+		return true;
+	}
+
+	private void push(USK clear, History h) {
+		history.push(clear, h);
+		while(history.size() > MAX_HISTORY)
+			history.popKey();
+	}
+
+	synchronized int runningProbes() {
+		return probes.size();
+	}
+
+	/** @return The number of edition checks started. */
+	synchronized long probesStarted() {
+		return probesStarted;
+	}
+
+	/** @return The number of times an edition check was shared rather than started. */
+	synchronized long probesShared() {
+		return probesShared;
+	}
+
+}
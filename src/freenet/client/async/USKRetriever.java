@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -27,7 +28,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.DecompressorChain;
 import freenet.support.io.Closer;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.Logger.LogLevel;
@@ -112,7 +113,7 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 	public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, final ClientGetState state, ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "Success on "+this+" from "+state+" : length "+streamGenerator.size()+"mime type "+clientMetadata.getMIMEType());
-		DecompressorThreadManager decompressorManager = null;
+		DecompressorChain decompressorManager = null;
 		OutputStream output = null;
 		Bucket finalResult = null;
 		long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
@@ -138,11 +139,11 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
+				pipeIn = new PipedInputStream(DecompressorChain.PIPE_SIZE);
 				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-				pipeIn = decompressorManager.execute();
-				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+				decompressorManager = new DecompressorChain(pipeIn, decompressors, maxLen);
+				InputStream decompressed = decompressorManager.execute();
+				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(decompressed), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 				worker.start();
 				streamGenerator.writeTo(pipeOut, context);
 				worker.waitFinished();
@@ -322,6 +322,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			synchronized(this) {
 				if(finished) return;
 			}
+			markChanged();
 			getter.start(context);
 			if(persistence != Persistence.CONNECTION && !finished) {
 				FCPMessage msg = persistentTagMessage();
@@ -575,6 +576,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    markChanged();
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -872,6 +874,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
 		if(!canRestart()) return false;
+		markChanged();
 		FreenetURI redirect = null;
 		synchronized(this) {
 			finished = false;
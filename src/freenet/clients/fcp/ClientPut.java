@@ -293,6 +293,7 @@ public class ClientPut extends ClientPutBase {
 			if(finished) return;
 		}
 		try {
+			markChanged();
 			putter.start(false, context);
 			if(persistence != Persistence.CONNECTION && !finished) {
 				FCPMessage msg = persistentTagMessage();
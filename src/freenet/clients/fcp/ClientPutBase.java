@@ -215,6 +215,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
+		markChanged();
 		trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -230,6 +231,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	
 	@Override
 	public void onGeneratedMetadata(Bucket metadata, BaseClientPutter state) {
+		markChanged();
 		boolean delete = false;
 		synchronized(this) {
 			if(generatedURI != null)
@@ -290,6 +292,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
+		markChanged();
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = 
@@ -333,6 +336,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	@Override
 	public void onFetchable(BaseClientPutter putter) {
 		if(finished) return;
+		markChanged();
 		if((verbosity & VERBOSITY_PUT_FETCHABLE) == VERBOSITY_PUT_FETCHABLE) {
 			FreenetURI temp;
 			synchronized (this) {
@@ -529,6 +533,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	}
 	
 	public synchronized void setVarsRestart() {
+	    markChanged();
 	    finished = false;
 	    this.putFailedMessage = null;
 	    this.progressMessage = null;
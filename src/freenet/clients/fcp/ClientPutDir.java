@@ -65,6 +65,7 @@ public class ClientPutDir extends ClientPutBase {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		this.wasDiskPut = wasDiskPut;
 		this.overrideSplitfileCryptoKey = message.overrideSplitfileCryptoKey;
+		ctx.indexedManifestThreshold = message.indexedManifestThreshold;
 		
 		// objectOnNew is called once, objectOnUpdate is never called, yet manifestElements get blanked anyway!
 		
@@ -194,6 +195,7 @@ public class ClientPutDir extends ClientPutBase {
 	public void start(ClientContext context) {
 		if(finished) return;
 		if(started) return;
+		markChanged();
 		try {
 			if(putter != null)
 				putter.start(context);
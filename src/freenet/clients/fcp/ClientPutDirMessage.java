@@ -33,6 +33,8 @@ import freenet.support.compress.InvalidCompressionCodecException;
  * ClientToken=<ClientToken as ClientPut>
  * Persistence=<Persistence as ClientPut>
  * Global=<Global as ClientPut>
+ * IndexedManifestThreshold=<directories with more files than this are inserted as indexed
+ *  manifests, which older nodes can't read; 0 = never (default)>
  */
 public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	// Some subtypes of this (ClientPutComplexDirMessage) may carry a payload.
@@ -60,6 +62,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	final boolean realTimeFlag;
 	final String targetFilename;
 	final boolean ignoreUSKDatehints;
+	final int indexedManifestThreshold;
 	
 	public ClientPutDirMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
@@ -172,6 +175,9 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 		extraInsertsSplitfileHeaderBlock = fs.getInt("ExtraInsertsSplitfileHeaderBlock", HighLevelSimpleClientImpl.EXTRA_INSERTS_SPLITFILE_HEADER);
 		realTimeFlag = fs.getBoolean("RealTimeFlag", false);
 		ignoreUSKDatehints = fs.getBoolean("IgnoreUSKDatehints", false);
+		indexedManifestThreshold = fs.getInt("IndexedManifestThreshold", 0);
+		if(indexedManifestThreshold < 0)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "IndexedManifestThreshold must not be negative", identifier, global);
 	}
 
 	@Override
@@ -1,5 +1,6 @@
 package freenet.clients.fcp;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -9,6 +10,7 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequester;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
+import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.keys.FreenetURI;
 import freenet.node.PrioRunnable;
@@ -64,6 +66,22 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Set by onLoad() until finishResume() has resumed the ClientRequester. */
+	private transient ClientContext resumeContext;
+	/** If true, finishResume() will start() the request. */
+	private transient boolean startOnResume;
+	/** True while finishResume() is resuming the ClientRequester. */
+	private transient boolean resuming;
+	/** Set by onLoad(): The recovery data, to restart the request if it fails to resume. */
+	private transient byte[] recoveryData;
+	/** Set by finishResume() if we failed to resume and were replaced by a copy restarted from
+	 * the recovery data. */
+	private transient ClientRequest restartedAs;
+	/** Set when anything we persist may have changed, so ClientLayerPersister must write the
+	 * request at the next checkpoint. Not restored on loading: The first checkpoint after 
+	 * startup writes everything anyway. Changes to the ClientRequester are tracked by the 
+	 * ClientRequester. */
+	private transient volatile boolean changed = true;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -252,6 +270,7 @@ public abstract class ClientRequest implements Serializable {
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		markChanged();
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -306,6 +325,25 @@ public abstract class ClientRequest implements Serializable {
 	    return cr.getLatestSuccess().getTime();
 	}
 
+	/** Record that the persistent state of the request may have changed, e.g. because of an 
+	 * event or a change of state, so it must be written at the next checkpoint. */
+	public void markChanged() {
+		changed = true;
+	}
+
+	/** @return True if the request or its ClientRequester may have changed since the last call.
+	 * Clears the flags, so the caller must serialize the request afterwards. */
+	public boolean clearChanged() {
+		boolean ret = false;
+		if(changed) {
+			changed = false;
+			ret = true;
+		}
+		ClientRequester r = getClientRequest();
+		if(r != null && r.clearChanged()) ret = true;
+		return ret;
+	}
+
 	public abstract boolean canRestart();
 
 	public abstract boolean restart(ClientContext context, boolean disableFilterData) throws PersistenceDisabledException;
@@ -348,6 +386,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		markChanged();
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -510,6 +549,132 @@ public abstract class ClientRequest implements Serializable {
         context.persistentRoot.resume(this, global, clientName);
     }
     
+    /** Called just after serializing in the request, instead of onResume(), when resuming 
+     * lazily. Connects to the system utilities and registers the request, so it is listed, 
+     * shown on the queue page and saved, but does not resume the ClientRequester, which may 
+     * need to open and check large files. That happens in finishResume(), which is called in 
+     * the background, or when the request is first used by FCP or the web interface.
+     * @param start If true, start() the request once it has been resumed, because it was 
+     * restored from the recovery data.
+     * @param recoveryData The recovery data written by getClientDetail(), with the checksum 
+     * already checked, or null. If the ClientRequester fails to resume, the request is 
+     * restarted from this, as it would have been if it had failed to resume on startup. */
+    public final void onLoad(ClientContext context, boolean start, byte[] recoveryData) throws ResumeFailedException {
+        client = context.persistentRoot.makeClient(global, clientName);
+        lowLevelClient = client.lowLevelClient(realTime);
+        innerResume(context);
+        synchronized(this) {
+            resumeContext = context;
+            startOnResume = start;
+            this.recoveryData = recoveryData;
+        }
+        context.persistentRoot.resume(this, global, clientName);
+    }
+    
+    /** Resume the ClientRequester, if onLoad() was called instead of onResume(), and start it 
+     * if necessary. Does nothing if it has already been resumed. If another thread is resuming 
+     * it, waits for it to finish. If resuming fails, the request is cancelled, and restarted 
+     * from the recovery data if possible, replacing it on the PersistentRequestClient, just as
+     * when resuming fails on startup.
+     * @return The request to use: Either this request, or the copy restarted from the recovery
+     * data if resuming failed. */
+    public final ClientRequest finishResume() {
+        ClientContext context;
+        boolean start;
+        byte[] recovery;
+        synchronized(this) {
+            while(resuming) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            if(restartedAs != null) return restartedAs;
+            if(resumeContext == null) return this;
+            context = resumeContext;
+            start = startOnResume;
+            recovery = recoveryData;
+            resuming = true;
+        }
+        ClientRequest restarted = null;
+        try {
+            ClientRequester req = getClientRequest();
+            if(req != null) req.onResume(context);
+            if(start) start(context);
+        } catch (Throwable t) {
+            System.err.println("Unable to resume request "+this+" after loading it.");
+            Logger.error(this, "Unable to resume request "+this+" after loading it: "+t, t);
+            // Forget it before cancelling it, so the cancellation doesn't affect the new copy.
+            if(recovery != null && client != null) {
+                restarted = readRecoveryData(recovery, context);
+                if(restarted != null) client.removeFailedResume(this);
+            }
+            try {
+                cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+this+" after failure: "+t1, t1);
+            }
+            if(restarted != null && !resumeRestarted(restarted, context))
+                restarted = null;
+        } finally {
+            synchronized(this) {
+                resumeContext = null;
+                recoveryData = null;
+                restartedAs = restarted;
+                resuming = false;
+                notifyAll();
+            }
+        }
+        return restarted == null ? this : restarted;
+    }
+    
+    /** Restart the request from its recovery data, written by getClientDetail(). Does not 
+     * resume or register the copy.
+     * @return The restarted copy, or null if the recovery data can't be used. */
+    ClientRequest readRecoveryData(byte[] recoveryData, ClientContext context) {
+        try {
+            // ClientLayerPersister always uses CRC checksums.
+            ClientRequest restarted = restartFrom(new DataInputStream(
+                    new ByteArrayInputStream(recoveryData)), getRequestIdentifier(), context, 
+                    new CRCChecksumChecker());
+            if(restarted == null)
+                Logger.error(this, "Unable to restart "+this+" from recovery data: Not supported");
+            return restarted;
+        } catch (Throwable t) {
+            Logger.error(this, "Unable to restart "+this+" from recovery data: "+t, t);
+            return null;
+        }
+    }
+    
+    /** Resume and start a copy of a request restarted after it failed to resume, so that it 
+     * replaces it on the PersistentRequestClient. 
+     * @return False if it failed, in which case it has been cancelled. */
+    private boolean resumeRestarted(ClientRequest restarted, ClientContext context) {
+        try {
+            restarted.onResume(context);
+            restarted.start(context);
+            restarted.client.addToStatusCache(restarted);
+            System.err.println("Restarted request "+restarted+" from recovery data.");
+            return true;
+        } catch (Throwable t) {
+            System.err.println("Unable to restart request "+this+" from recovery data.");
+            Logger.error(this, "Unable to restart "+this+" from recovery data: "+t, t);
+            try {
+                restarted.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+restarted+" after failure: "+t1, t1);
+            }
+            return false;
+        }
+    }
+    
+    /** @return True if onLoad() was called and finishResume() has not yet resumed the 
+     * ClientRequester. */
+    public synchronized boolean isResumePending() {
+        return resumeContext != null;
+    }
+    
     protected abstract void innerResume(ClientContext context) throws ResumeFailedException;
 
     public RequestClient getRequestClient() {
@@ -542,6 +707,8 @@ public abstract class ClientRequest implements Serializable {
     /** Called just before the final write when the node is shutting down. Should write any dirty
      * data to disk etc. */
     public void onShutdown(ClientContext context) {
+        // Nothing has changed if it hasn't been resumed.
+        if(isResumePending()) return;
         ClientRequester request = getClientRequest();
         if(request != null)
             request.onShutdown(context);
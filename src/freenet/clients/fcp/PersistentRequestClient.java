@@ -228,6 +228,10 @@ public class PersistentRequestClient {
 			}
 			clientRequestsByIdentifier.put(ident, cg);
 		}
+		addToStatusCache(cg);
+	}
+
+	void addToStatusCache(ClientRequest cg) {
 		if(statusCache != null) {
 			if(cg instanceof ClientGet) {
 				statusCache.addDownload((DownloadRequestStatus)(cg.getStatus()));
@@ -237,9 +241,25 @@ public class PersistentRequestClient {
 		}
 	}
 
+	/** Forget a request which was loaded lazily and then failed to resume, so that a copy 
+	 * restarted from its recovery data can take its place. Does not call any callbacks. */
+	void removeFailedResume(ClientRequest req) {
+		String identifier = req.getIdentifier();
+		synchronized(this) {
+			runningPersistentRequests.remove(req);
+			completedUnackedRequests.remove(req);
+			if(clientRequestsByIdentifier.get(identifier) != req) return;
+			clientRequestsByIdentifier.remove(identifier);
+		}
+		if(statusCache != null)
+			statusCache.removeByIdentifier(identifier);
+	}
+
 	public boolean removeByIdentifier(String identifier, boolean kill, FCPServer server, ClientContext context) {
 		ClientRequest req;
 		if(logMINOR) Logger.minor(this, "removeByIdentifier("+identifier+ ',' +kill+ ')');
+		// Resume it first, if it was loaded lazily, since it may be replaced if that fails.
+		getRequest(identifier);
 		if(statusCache != null)
 			statusCache.removeByIdentifier(identifier);
 		synchronized(this) {
@@ -275,6 +295,7 @@ public class PersistentRequestClient {
 			}
 			clientRequestsByIdentifier.remove(identifier);
 		}
+		req.finishResume();
 		if(kill) {
 			if(logMINOR) Logger.minor(this, "Killing request "+req);
 			req.cancel(context);
@@ -409,8 +430,14 @@ public class PersistentRequestClient {
 		}
 	}
 
-	public synchronized ClientRequest getRequest(String identifier) {
-		ClientRequest req = clientRequestsByIdentifier.get(identifier);
+	/** Get a request, resuming it first if it was loaded lazily. */
+	public ClientRequest getRequest(String identifier) {
+		ClientRequest req;
+		synchronized(this) {
+			req = clientRequestsByIdentifier.get(identifier);
+		}
+		if(req != null)
+			req = req.finishResume();
 		return req;
 	}
 
@@ -490,7 +517,8 @@ public class PersistentRequestClient {
 			if(!(req instanceof ClientGet)) continue;
 			ClientGet getter = (ClientGet) req;
 			if(getter.getURI().equals(key)) {
-				return getter;
+				ClientRequest resumed = getter.finishResume();
+				return resumed instanceof ClientGet ? (ClientGet) resumed : null;
 			}
 		}
 		return null;
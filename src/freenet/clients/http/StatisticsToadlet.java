@@ -18,6 +18,7 @@ import java.util.Map;
 
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
+import freenet.client.MetadataCache;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
@@ -25,6 +26,7 @@ import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.keys.SSKVerifyCache;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -1278,6 +1280,17 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		MetadataCache metadataCache = core.archiveManager.metadataCache;
+		overviewList.addChild("li", "metadataCacheSize:\u00a0" + SizeUtil.formatSize(metadataCache.size()) + " / " + SizeUtil.formatSize(metadataCache.maxSize()) + "\u00a0(" + metadataCache.items() + "\u00a0items)");
+		overviewList.addChild("li", "metadataCacheHitRate:\u00a0" + fix3p1pct.format(metadataCache.hitRate()) + "\u00a0(" + metadataCache.hits() + "\u00a0/\u00a0" + (metadataCache.hits() + metadataCache.misses()) + ", " + metadataCache.evictions() + "\u00a0evicted)");
+		long sskSigsAvoided = SSKVerifyCache.avoidedVerifications();
+		long sskSigsVerified = SSKVerifyCache.verifications();
+		if(sskSigsAvoided + sskSigsVerified > 0)
+			overviewList.addChild("li", "sskVerificationsAvoided:\u00a0" + fix3p1pct.format(((double)sskSigsAvoided)/((double)(sskSigsAvoided + sskSigsVerified))) + "\u00a0(" + sskSigsAvoided + "\u00a0/\u00a0" + (sskSigsAvoided + sskSigsVerified) + ")");
+		long sskPubKeysAvoided = SSKVerifyCache.avoidedPubKeyChecks();
+		long sskPubKeysChecked = SSKVerifyCache.pubKeyChecks();
+		if(sskPubKeysAvoided + sskPubKeysChecked > 0)
+			overviewList.addChild("li", "sskPubKeyChecksAvoided:\u00a0" + fix3p1pct.format(((double)sskPubKeysAvoided)/((double)(sskPubKeysAvoided + sskPubKeysChecked))) + "\u00a0(" + sskPubKeysAvoided + "\u00a0/\u00a0" + (sskPubKeysAvoided + sskPubKeysChecked) + ")");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
@@ -3,6 +3,9 @@
  * GPL compatible. */
 package freenet.crypt;
 
+import freenet.crypt.ciphers.AESBlockCipher;
+import freenet.crypt.ciphers.Rijndael;
+
 /**
  * Implements the Segmented Integer Counter (SIC) mode on top of a simple
  * block cipher. This mode is also known as CTR mode.
@@ -28,6 +31,20 @@ public class CTRBlockCipher
 
     /** Offset within the current block. */
     private int blockOffset;
+
+    /** Number of counter blocks to encrypt at once when using JCA. */
+    static final int BULK_BLOCKS = 256;
+    /** If the cipher is JCA AES, we encrypt many counter blocks in one call, which is much 
+     * faster. Set by init(). */
+    private AESBlockCipher bulkCipher;
+    /** Several consecutive encrypted counter blocks, when using bulkCipher. Created on 
+     * demand. */
+    private byte[] bulkOut;
+    /** Number of valid bytes in bulkOut. Only used if bulkOffset < bulkLength. */
+    private int bulkLength;
+    /** Offset within bulkOut. If bulkOffset < bulkLength, we are using bulkOut rather than
+     * counterOut. */
+    private int bulkOffset;
     
     /**
      * Basic constructor.
@@ -69,6 +86,11 @@ public class CTRBlockCipher
     		throw new IllegalArgumentException();
     	System.arraycopy(iv, offset, IV, 0, IV.length);
         System.arraycopy(IV, 0, counter, 0, counter.length);
+        if(cipher instanceof AESBlockCipher)
+            bulkCipher = (AESBlockCipher) cipher;
+        else if(cipher instanceof Rijndael)
+            bulkCipher = ((Rijndael) cipher).getAESBlockCipher();
+        bulkOffset = bulkLength = 0;
         processBlock();
     }
     
@@ -84,6 +106,11 @@ public class CTRBlockCipher
     }
     
     public byte processByte(byte in) {
+    	if(bulkOffset < bulkLength) {
+    		byte b = (byte) (in ^ bulkOut[bulkOffset++]);
+    		if(bulkOffset == bulkLength) endBulk();
+    		return b;
+    	}
     	if(blockOffset == counterOut.length) {
     		processBlock();
     	}
@@ -99,6 +126,10 @@ public class CTRBlockCipher
      * @param offsetOut The offset within the output data array to the first byte.
      */
     public void processBytes(byte[] input, int offsetIn, int length, byte[] output, int offsetOut) {
+    	if(bulkCipher != null && (bulkOffset < bulkLength || length > 2 * blockSize)) {
+    		processBytesBulk(input, offsetIn, length, output, offsetOut);
+    		return;
+    	}
     	// XOR the plaintext with counterOut until we run out of blockOffset,
     	// then processBlock() to get a new counterOut.
 
@@ -128,6 +159,60 @@ public class CTRBlockCipher
 		}
     }
 
+    /** Like processBytes(), but encrypt up to BULK_BLOCKS counter blocks at a time into 
+     * bulkOut. The current block in counterOut is used first, so we can switch back and 
+     * forth. */
+    private void processBytesBulk(byte[] input, int offsetIn, int length, byte[] output, int offsetOut) {
+    	while(length > 0) {
+    		if(bulkOffset < bulkLength) {
+    			int len = Math.min(bulkLength - bulkOffset, length);
+    			xor(input, offsetIn, bulkOut, bulkOffset, output, offsetOut, len);
+    			bulkOffset += len;
+    			offsetIn += len;
+    			offsetOut += len;
+    			length -= len;
+    			if(bulkOffset == bulkLength) endBulk();
+    			continue;
+    		}
+    		if(blockOffset < blockSize) {
+    			int len = Math.min(blockSize - blockOffset, length);
+    			xor(input, offsetIn, counterOut, blockOffset, output, offsetOut, len);
+    			blockOffset += len;
+    			offsetIn += len;
+    			offsetOut += len;
+    			length -= len;
+    			continue;
+    		}
+    		fillBulk((length + blockSize - 1) / blockSize);
+    	}
+    }
+
+    /** Encrypt the next blocks (at most BULK_BLOCKS) counter values into bulkOut. */
+    private void fillBulk(int blocks) {
+    	blocks = Math.min(blocks, BULK_BLOCKS);
+    	if(bulkOut == null || bulkOut.length < blocks * blockSize)
+    		bulkOut = new byte[Math.min(BULK_BLOCKS, Math.max(blocks, 16)) * blockSize];
+    	for(int i=0;i<blocks;i++) {
+    		System.arraycopy(counter, 0, bulkOut, i * blockSize, blockSize);
+    		incrementCounter();
+    	}
+    	bulkCipher.encipherBlocks(bulkOut, 0, bulkOut, 0, blocks * blockSize);
+    	bulkLength = blocks * blockSize;
+    	bulkOffset = 0;
+    }
+
+    /** We have used all of bulkOut. Use counterOut again, and make it the next block, as 
+     * the normal code expects. */
+    private void endBulk() {
+    	bulkOffset = bulkLength = 0;
+    	processBlock();
+    }
+
+    private static void xor(byte[] input, int offsetIn, byte[] key, int offsetKey, byte[] output, int offsetOut, int length) {
+    	for(int i=0;i<length;i++)
+    		output[offsetOut+i] = (byte) (input[offsetIn+i] ^ key[offsetKey+i]);
+    }
+
     /** Encrypt counter to counterOut, and then increment counter. */
     private void processBlock()
           throws IllegalStateException
@@ -138,10 +223,14 @@ public class CTRBlockCipher
     	cipher.encipher(counterOut, counterOut);
     	
     	// Now increment counter.
+    	incrementCounter();
+		blockOffset = 0;
+    }
+
+    private void incrementCounter() {
         for (int i = counter.length; i-- > 0 && (++counter[i]) == (byte)0;) {
 			/* nothing here */
 		}
-		blockOffset = 0;
     }
 
 }
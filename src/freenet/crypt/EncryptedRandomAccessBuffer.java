@@ -11,6 +11,8 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.SecretKey;
@@ -21,6 +23,7 @@ import org.bouncycastle.crypto.params.ParametersWithIV;
 
 import freenet.client.async.ClientContext;
 import freenet.support.Fields;
+import freenet.support.HelperThreads;
 import freenet.support.Logger;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.io.BucketTools;
@@ -31,6 +34,13 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * Small reads and writes use one cipher each for reading and writing, which is skipped to the 
+ * offset, because most access is sequential. If that cipher is busy, we use a new one rather 
+ * than wait for it. Big reads and writes, e.g. a whole splitfile segment, are split into 
+ * CHUNK_SIZE chunks aligned to the file offset, and the chunks are encrypted in parallel, each 
+ * with its own cipher seeked to the start of the chunk. The stream cipher can start anywhere, so
+ * the data on disk is exactly the same either way.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
@@ -57,6 +67,33 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     
     private static final long END_MAGIC = 0x2c158a6c7772acd3L;
     private static final int VERSION_AND_MAGIC_LENGTH = 12;
+
+    /** Big reads and writes are encrypted in chunks of this size, aligned to the file offset. */
+    static final int CHUNK_SIZE = 32768;
+    /** Reads and writes shorter than this are always encrypted on the calling thread. */
+    static final int MIN_PARALLEL_LENGTH = 4 * CHUNK_SIZE;
+    /** Don't split into tasks of fewer chunks than this. */
+    static final int MIN_CHUNKS_PER_TASK = 2;
+    /** Maximum number of threads for a single read or write. Set with 
+     * -Dfreenet.crypt.threads, default is the number of cores; 1 disables parallel encryption. */
+    static final int MAX_THREADS;
+    /** Number of parallel reads and writes currently running, used to share out the cores. */
+    private static final AtomicInteger running = new AtomicInteger();
+    /** Memory to reserve for each extra thread. The output buffer belongs to the caller, so 
+     * this is just a cipher. */
+    static final long HELPER_MEMORY = 1024;
+
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = cores;
+        try {
+            threads = Integer.parseInt(System.getProperty("freenet.crypt.threads",
+                    Integer.toString(cores)));
+        } catch (NumberFormatException e) {
+            // Use the default.
+        }
+        MAX_THREADS = Math.max(1, threads);
+    }
     
     /**
      * Creates an instance of EncryptedRandomAccessBuffer wrapping underlyingBuffer. Keys for key 
@@ -166,21 +203,7 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
         byte[] cipherText = new byte[length];
         underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
 
-        readLock.lock();
-        try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
-        }finally{
-            readLock.unlock();
-        }
+        process(false, fileOffset, cipherText, 0, buf, bufOffset, length);
     }
 
     /**
@@ -202,23 +225,134 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
 
         byte[] cipherText = new byte[length];
 
-        writeLock.lock();
-        try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
-        }finally{
-            writeLock.unlock();
-        }
+        process(true, fileOffset, buf, bufOffset, cipherText, 0, length);
         underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
     }
+
+    /** Encrypt or decrypt data at the given offset, in parallel if it is big enough. */
+    private void process(boolean encrypt, long fileOffset, byte[] input, int inputOffset, 
+            byte[] output, int outputOffset, int length) {
+        if(length >= MIN_PARALLEL_LENGTH && MAX_THREADS > 1) {
+            int firstChunk = (int) (fileOffset / CHUNK_SIZE);
+            int endChunk = (int) ((fileOffset + length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            int chunks = endChunk - firstChunk;
+            int active = running.incrementAndGet();
+            int reserved = 0;
+            try {
+                // Extra threads come from the shared low priority pool. If none are free, 
+                // encrypt on this thread.
+                reserved = HelperThreads.reserve(threadsFor(active, chunks) - 1, HELPER_MEMORY);
+                if(reserved > 0) {
+                    int threads = 1 + reserved;
+                    int chunksPerTask = (chunks + threads - 1) / threads;
+                    HelperThreads.getPool().invoke(new ChunksTask(encrypt, fileOffset, input, 
+                            inputOffset, output, outputOffset, length, firstChunk, endChunk, 
+                            chunksPerTask));
+                    return;
+                }
+            } finally {
+                running.decrementAndGet();
+                HelperThreads.release(reserved, HELPER_MEMORY);
+            }
+        }
+        processSequential(encrypt, fileOffset, input, inputOffset, output, outputOffset, length);
+    }
+
+    /** Encrypt or decrypt on this thread, using the shared cipher if it is free. */
+    private void processSequential(boolean encrypt, long fileOffset, byte[] input, 
+            int inputOffset, byte[] output, int outputOffset, int length) {
+        ReentrantLock lock = encrypt ? writeLock : readLock;
+        if(lock.tryLock()) {
+            try{
+                SkippingStreamCipher cipher = encrypt ? cipherWrite : cipherRead;
+                //cipher.seekTo(fileOffset);
+                // seekTo() does reset() and then skip(). So it always skips from 0. 
+                // This is ridiculously slow for big tempfiles.
+                // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
+                long position = cipher.getPosition();
+                long delta = fileOffset - position;
+                cipher.skip(delta);
+                assert(cipher.getPosition() == fileOffset);
+                cipher.processBytes(input, inputOffset, length, output, outputOffset);
+                assert(cipher.getPosition() == fileOffset+length);
+            }finally{
+                lock.unlock();
+            }
+        } else {
+            // Another thread is using it, don't wait for it.
+            newCipher(encrypt, fileOffset).processBytes(input, inputOffset, length, output, 
+                    outputOffset);
+        }
+    }
+
+    /** @return A new cipher, positioned at fileOffset. */
+    private SkippingStreamCipher newCipher(boolean encrypt, long fileOffset) {
+        SkippingStreamCipher cipher = type.get();
+        cipher.init(encrypt, cipherParams);
+        cipher.seekTo(fileOffset);
+        return cipher;
+    }
+
+    /** How many threads to use for a read or write, given the number of parallel reads and 
+     * writes running, and the number of chunks. */
+    static int threadsFor(int active, int chunks) {
+        if(MAX_THREADS == 1) return 1;
+        int threads = MAX_THREADS / Math.max(1, active);
+        threads = Math.min(threads, chunks / MIN_CHUNKS_PER_TASK);
+        return Math.max(1, threads);
+    }
+
+    /** Encrypts or decrypts a range of chunks, splitting itself until each task has at most 
+     * chunksPerTask chunks. The first and last chunks may be partial. Each task uses its own 
+     * cipher. */
+    private class ChunksTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final boolean encrypt;
+        /** Offset and length of the whole read or write. */
+        private final long fileOffset;
+        private final int length;
+        private final byte[] input;
+        private final int inputOffset;
+        private final byte[] output;
+        private final int outputOffset;
+        private final int startChunk;
+        private final int endChunk;
+        private final int chunksPerTask;
+
+        ChunksTask(boolean encrypt, long fileOffset, byte[] input, int inputOffset, 
+                byte[] output, int outputOffset, int length, int startChunk, int endChunk, 
+                int chunksPerTask) {
+            this.encrypt = encrypt;
+            this.fileOffset = fileOffset;
+            this.input = input;
+            this.inputOffset = inputOffset;
+            this.output = output;
+            this.outputOffset = outputOffset;
+            this.length = length;
+            this.startChunk = startChunk;
+            this.endChunk = endChunk;
+            this.chunksPerTask = chunksPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if(endChunk - startChunk > chunksPerTask) {
+                int mid = startChunk + (endChunk - startChunk) / 2;
+                invokeAll(new ChunksTask(encrypt, fileOffset, input, inputOffset, output, 
+                        outputOffset, length, startChunk, mid, chunksPerTask),
+                        new ChunksTask(encrypt, fileOffset, input, inputOffset, output, 
+                        outputOffset, length, mid, endChunk, chunksPerTask));
+                return;
+            }
+            long start = Math.max(fileOffset, (long)startChunk * CHUNK_SIZE);
+            long end = Math.min(fileOffset + length, (long)endChunk * CHUNK_SIZE);
+            int skip = (int) (start - fileOffset);
+            newCipher(encrypt, start).processBytes(input, inputOffset + skip, (int) (end - start),
+                    output, outputOffset + skip);
+        }
+
+    }
     
     @Override
     public void  close() {
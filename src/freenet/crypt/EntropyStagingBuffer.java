@@ -0,0 +1,86 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects timing samples from a frequent event, e.g. receiving a packet, without taking any
+ * locks, and passes them to the RandomSource in batches. Calling acceptTimerEntropy() for every
+ * event would take the RandomSource's lock every time, and the same lock is used by everything
+ * that needs random bytes.
+ *
+ * Like acceptTimerEntropy(), we pass the number of milliseconds since the previous event, not the
+ * time itself, so the entropy estimate is the same as before. Each slot is cleared when its
+ * batch is passed on, so if several threads add samples at once and a slot hasn't been written
+ * yet, it is skipped rather than counted again. A sample written just after its batch was
+ * passed on goes in the next batch.
+ */
+public class EntropyStagingBuffer {
+
+	/** Number of samples in each batch. Must be a power of 2. */
+	static final int BATCH_SIZE = 64;
+
+	private final RandomSource random;
+	private final EntropySource source;
+	private final double bias;
+	/** Times of events, in nanoseconds, or 0 if not written since the last batch. */
+	private final AtomicLongArray samples = new AtomicLongArray(BATCH_SIZE);
+	private final AtomicInteger next = new AtomicInteger();
+	/** The time of the last event passed on, or 0. Protected by the lock on this. */
+	private long lastTime;
+
+	/**
+	 * @param random The RandomSource to pass batches to.
+	 * @param bias Value by which we multiply the entropy before counting it.
+	 * Must be <= 1.0.
+	 */
+	public EntropyStagingBuffer(RandomSource random, double bias) {
+		this.random = random;
+		this.source = new EntropySource();
+		this.bias = bias;
+	}
+
+	/** Record the time of an event. Only the thread which fills a batch does any more work. */
+	public void timerEvent() {
+		timerEvent(System.nanoTime());
+	}
+
+	void timerEvent(long now) {
+		int index = next.getAndIncrement() & (BATCH_SIZE - 1);
+		// 0 means an empty slot. Losing one event in 2^64 nanoseconds doesn't matter.
+		if(now != 0)
+			samples.lazySet(index, now);
+		if(index == BATCH_SIZE - 1)
+			flush();
+	}
+
+	private void flush() {
+		long[] times = new long[BATCH_SIZE];
+		int count = 0;
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			long t = samples.getAndSet(i, 0);
+			if(t != 0) times[count++] = t;
+		}
+		long[] deltas = new long[count];
+		int deltaCount = 0;
+		synchronized(this) {
+			// Threads may have written their slots out of order.
+			Arrays.sort(times, 0, count);
+			for(int i = 0; i < count; i++) {
+				if(lastTime != 0 && times[i] >= lastTime)
+					deltas[deltaCount++] = MILLISECONDS.convert(times[i] - lastTime, NANOSECONDS);
+				lastTime = Math.max(lastTime, times[i]);
+			}
+			if(deltaCount == 0) return;
+			random.acceptEntropySamples(source, deltas, deltaCount, 32, bias);
+		}
+	}
+
+}
@@ -6,8 +6,10 @@ package freenet.crypt;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import freenet.support.Logger;
@@ -22,37 +24,128 @@ public enum HMAC {
   final String algo;
   final int digestSize;
 
+  /** A Mac for each thread, and the key it was last initialized with. Most callers use the same
+   * key many times in a row (a packet HMAC key, the offer authenticator key), so we only need to
+   * call init() when it changes. The copy of the key is kept only as long as the initialized Mac,
+   * which holds state derived from the key until it is initialized with another one anyway, and
+   * is wiped when it is replaced. */
+  private final ThreadLocal<LocalMac> localMacs = new ThreadLocal<LocalMac>() {
+    @Override
+    protected LocalMac initialValue() {
+      try {
+        return new LocalMac(Mac.getInstance(algo));
+      } catch (NoSuchAlgorithmException e) {
+        Logger.error(HMAC.class, "No such AlgorithmException", e);
+        throw new Error(e);
+      }
+    }
+  };
+
+  private static class LocalMac {
+    final Mac mac;
+    byte[] key;
+    /** For MACs which are truncated or only compared. */
+    final byte[] buf;
+
+    LocalMac(Mac mac) {
+      this.mac = mac;
+      this.buf = new byte[mac.getMacLength()];
+    }
+  }
+
   HMAC(String name, int size) {
     this.algo = name;
     this.digestSize = size;
   }
 
-  public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
+  /** @return The calling thread's Mac, initialized with key. It must not be used after calling
+   * anything else which might use it. */
+  private static LocalMac getMac(HMAC hash, byte[] key) {
     if(key.length != hash.digestSize)
       throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
                                          key.length+" expected "+hash.digestSize);
 
-    SecretKeySpec signingKey = new SecretKeySpec(key, hash.algo);
-    Mac mac;
-    try {
-      mac = Mac.getInstance(hash.algo);
-    } catch (NoSuchAlgorithmException e) {
-      Logger.error(HMAC.class, "No such AlgorithmException", e);
-      throw new Error(e);
+    LocalMac local = hash.localMacs.get();
+    if(local.key != null && MessageDigest.isEqual(local.key, key)) {
+      // Only does anything if a previous caller threw half way through.
+      local.mac.reset();
+      return local;
+    }
+    if(local.key != null) {
+      Arrays.fill(local.key, (byte)0);
+      local.key = null;
     }
     try {
-      mac.init(signingKey);
+      local.mac.init(new SecretKeySpec(key, hash.algo));
     } catch (InvalidKeyException e) {
       Logger.error(HMAC.class, "Impossible InvalidKeyException", e);
       throw new Error(e);
     }
-    return mac.doFinal(data);
+    local.key = key.clone();
+    return local;
+  }
+
+  public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
+    return getMac(hash, key).mac.doFinal(data);
+  }
+
+  /** @return The MAC of length bytes of data starting at offset. */
+  public static byte[] mac(HMAC hash, byte[] key, byte[] data, int offset, int length) {
+    Mac mac = getMac(hash, key).mac;
+    mac.update(data, offset, length);
+    return mac.doFinal();
+  }
+
+  /**
+   * Compute the MAC of length bytes of data starting at offset, truncate it to macLength bytes,
+   * and write it to out at outOffset, without allocating anything. out may be data, e.g. a MAC
+   * in front of the packet it authenticates.
+   * @param macLength The number of bytes of the MAC to write, at most the digest size.
+   */
+  public static void macInto(HMAC hash, byte[] key, byte[] data, int offset, int length,
+      byte[] out, int outOffset, int macLength) {
+    if(macLength > hash.digestSize || macLength <= 0)
+      throw new IllegalArgumentException("Bad MAC length "+macLength);
+    if(outOffset < 0 || outOffset + macLength > out.length)
+      throw new IllegalArgumentException("Not enough space for the MAC");
+    LocalMac local = getMac(hash, key);
+    local.mac.update(data, offset, length);
+    try {
+      local.mac.doFinal(local.buf, 0);
+    } catch (ShortBufferException e) {
+      throw new Error(e); // Impossible
+    }
+    System.arraycopy(local.buf, 0, out, outOffset, macLength);
   }
 
   public static boolean verify(HMAC hash, byte[] key, byte[] data, byte[] mac) {
     return MessageDigest.isEqual(mac, mac(hash, key, data));
   }
 
+  /**
+   * Check a MAC, which may be truncated, against length bytes of data starting at offset.
+   * Takes the same time wherever the first difference is.
+   * @param mac The buffer containing the expected MAC.
+   * @param macOffset The offset of the expected MAC.
+   * @param macLength The length of the expected MAC, at most the digest size.
+   */
+  public static boolean verify(HMAC hash, byte[] key, byte[] data, int offset, int length,
+      byte[] mac, int macOffset, int macLength) {
+    if(macLength > hash.digestSize || macLength <= 0)
+      throw new IllegalArgumentException("Bad MAC length "+macLength);
+    LocalMac local = getMac(hash, key);
+    local.mac.update(data, offset, length);
+    try {
+      local.mac.doFinal(local.buf, 0);
+    } catch (ShortBufferException e) {
+      throw new Error(e); // Impossible
+    }
+    int diff = 0;
+    for(int i=0;i<macLength;i++)
+      diff |= local.buf[i] ^ mac[macOffset+i];
+    return diff == 0;
+  }
+
   public static byte[] macWithSHA256(byte[] K, byte[] text) {
     return mac(HMAC.SHA2_256, K, text);
   }
@@ -60,4 +153,9 @@ public enum HMAC {
   public static boolean verifyWithSHA256(byte[] K, byte[] text, byte[] mac) {
     return verify(HMAC.SHA2_256, K, text, mac);
   }
+
+  public static boolean verifyWithSHA256(byte[] K, byte[] text, int offset, int length,
+      byte[] mac, int macOffset, int macLength) {
+    return verify(HMAC.SHA2_256, K, text, offset, length, mac, macOffset, macLength);
+  }
 }	
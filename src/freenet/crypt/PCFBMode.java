@@ -7,6 +7,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import freenet.crypt.ciphers.AESBlockCipher;
+import freenet.crypt.ciphers.Rijndael;
+
 /**
  * Control mechanism for the Periodic Cipher Feed Back mode.  This is
  * a CFB variant used apparently by a number of programs, including PGP. 
@@ -30,6 +33,11 @@ public class PCFBMode {
     /** When this reaches the end of the register, we refillBuffer() i.e. re-encrypt the
      * register. */
     protected int registerPointer;
+    /** Maximum number of blocks to decrypt at once using AESBlockCipher.encipherBlocks(). */
+    static final int BULK_BLOCKS = 256;
+    /** The register followed by the encrypted ciphertext blocks, when decrypting many blocks
+     * at once. Created on demand. */
+    private byte[] bulkBuffer;
     
     /** Create the PCFB with no IV. The caller must either:
      * a) Call reset() with a proper IV, or 
@@ -160,6 +168,15 @@ public class PCFBMode {
 			refillBuffer();
 		}
 		// assert(registerPointer == 0);
+		AESBlockCipher bulk = getBulkCipher();
+		if (bulk != null && len > feedback_length) {
+			/* The keystream for each block is the encryption of the previous ciphertext 
+			 * block, which we already have, so we can encrypt them all at once. */
+			int blocks = (len - 1) / feedback_length;
+			bulkDecipher(bulk, buf, off, blocks);
+			off += blocks * feedback_length;
+			len -= blocks * feedback_length;
+		}
         while (len > feedback_length) {
 			/* consume full blocks */
 			// note: we skip *last* full block to avoid extra refillBuffer()
@@ -181,6 +198,33 @@ public class PCFBMode {
         return;
     }
 
+    /** @return The JCA cipher if we can use it to encrypt many blocks at once, otherwise 
+     * null. */
+    private AESBlockCipher getBulkCipher() {
+        if (c instanceof AESBlockCipher) return (AESBlockCipher) c;
+        if (c instanceof Rijndael) return ((Rijndael) c).getAESBlockCipher();
+        return null;
+    }
+
+    /** Decipher whole blocks, starting with an empty register (registerPointer == 0), and
+     * leaving the register as refillBuffer() would after the last block. */
+    private void bulkDecipher(AESBlockCipher bulk, byte[] buf, int off, int blocks) {
+        final int feedback_length = feedback_register.length;
+        while (blocks > 0) {
+            int count = Math.min(blocks, BULK_BLOCKS);
+            int bytes = count * feedback_length;
+            if (bulkBuffer == null || bulkBuffer.length < bytes + feedback_length)
+                bulkBuffer = new byte[bytes + feedback_length];
+            System.arraycopy(feedback_register, 0, bulkBuffer, 0, feedback_length);
+            bulk.encipherBlocks(buf, off, bulkBuffer, feedback_length, bytes);
+            for (int i = 0; i < bytes; i++)
+                buf[off + i] ^= bulkBuffer[i];
+            System.arraycopy(bulkBuffer, bytes, feedback_register, 0, feedback_length);
+            off += bytes;
+            blocks -= count;
+        }
+    }
+
     /**
      * Enciphers one byte of data, by XOR'ing the plaintext byte with
      * one byte from the encrypted buffer.  Then places the enciphered 
@@ -57,6 +57,19 @@ public abstract class RandomSource extends Random {
      */
     public abstract int acceptTimerEntropy(EntropySource fnpTimingSource, double bias);
 
+    /**
+     * Accept several values from the same source at once, e.g. from an EntropyStagingBuffer.
+     * @param bias Value by which we multiply the entropy before counting it.
+     * Must be <= 1.0.
+     * @return The total entropy counted.
+     */
+    public int acceptEntropySamples(EntropySource source, long[] samples, int count, int entropyGuess, double bias) {
+    	int total = 0;
+    	for(int i = 0; i < count; i++)
+    		total += acceptEntropy(source, samples[i], (int) (entropyGuess * bias));
+    	return total;
+    }
+
     /**
      * Accepts larger amounts of entropy data from a source, with a bias
      * @param myPacketDataSource The source from which the data has come.
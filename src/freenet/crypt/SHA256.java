@@ -36,6 +36,7 @@ package freenet.crypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.SoftReference;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
@@ -56,6 +57,14 @@ public class SHA256 {
 	/** Size (in bytes) of this hash */
 	private static final int HASH_SIZE = 32;
 	private static final Queue<SoftReference<MessageDigest>> digests = new ConcurrentLinkedQueue<>();
+	/** One digest per thread for digest() and digestInto(), which don't call anything else while
+	 * holding it, so need neither the pool nor the checks in returnMessageDigest(). */
+	private static final ThreadLocal<MessageDigest> localDigests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return getMessageDigest();
+		}
+	};
 
 	/**
 	 * It won't reset the Message Digest for you!
@@ -118,13 +127,42 @@ public class SHA256 {
 		digests.add(new SoftReference<>(md256));
 	}
 
+	private static MessageDigest localDigest() {
+		MessageDigest md = localDigests.get();
+		// Only does anything if a previous caller threw half way through.
+		md.reset();
+		return md;
+	}
+
 	public static byte[] digest(byte[] data) {
-		MessageDigest md = null;
+		return localDigest().digest(data);
+	}
+
+	/** @return The hash of a followed by b. */
+	public static byte[] digest(byte[] a, byte[] b) {
+		MessageDigest md = localDigest();
+		md.update(a);
+		md.update(b);
+		return md.digest();
+	}
+
+	/** @return The hash of length bytes of data starting at offset. */
+	public static byte[] digest(byte[] data, int offset, int length) {
+		MessageDigest md = localDigest();
+		md.update(data, offset, length);
+		return md.digest();
+	}
+
+	/** Hash a followed by b, and write the hash to out at outOffset, without allocating
+	 * anything. */
+	public static void digestInto(byte[] a, byte[] b, byte[] out, int outOffset) {
+		MessageDigest md = localDigest();
+		md.update(a);
+		md.update(b);
 		try {
-			md = getMessageDigest();
-			return md.digest(data);
-		} finally {
-			returnMessageDigest(md);
+			md.digest(out, outOffset, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
 		}
 	}
 
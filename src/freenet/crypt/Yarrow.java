@@ -499,7 +499,43 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 			Math.min(estimateEntropy(source, data), entropyGuess))));
 	}
 
+	/**
+	 * Accept many samples while only taking the lock once. Estimating the entropy happens
+	 * inside the lock too, as the source's state is shared.
+	 */
+	@Override
+	public int acceptEntropySamples(EntropySource source, long[] samples, int count, int entropyGuess, double bias) {
+		int totalEntropy = 0;
+		boolean performedPoolReseed = false;
+		synchronized(this) {
+			for(int i = 0; i < count; i++) {
+				int actualEntropy = (int) (bias * Math.min(32,
+					Math.min(estimateEntropy(source, samples[i]), entropyGuess)));
+				if(add_entropy(samples[i], source, actualEntropy))
+					performedPoolReseed = true;
+				totalEntropy += actualEntropy;
+			}
+		}
+		if(performedPoolReseed)
+			writeSeedAfterReseed();
+		return totalEntropy;
+	}
+
 	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
+		boolean performedPoolReseed;
+		synchronized(this) {
+			performedPoolReseed = add_entropy(data, source, actualEntropy);
+		}
+		if(performedPoolReseed)
+			writeSeedAfterReseed();
+		return actualEntropy;
+	}
+
+	/**
+	 * Add one value to one of the pools, reseeding if necessary. Caller must hold the lock.
+	 * @return True if we reseeded.
+	 */
+	private boolean add_entropy(long data, EntropySource source, int actualEntropy) {
 
 		boolean performedPoolReseed = false;
 		byte[] b = new byte[] {
@@ -513,53 +549,55 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 				(byte) (data >> 56)
 		};
 
-		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
 							}
 						}
 					}
 				}
 			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, LogLevel.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
 		}
-		if(performedPoolReseed && (seedfile != null)) {
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, LogLevel.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
+	}
+
+	private void writeSeedAfterReseed() {
+		if(seedfile != null) {
 			//Dont do this while synchronized on 'this' since
 			//opening a file seems to be suprisingly slow on windows
 			if(logMINOR)
@@ -568,8 +606,6 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 			if(logMINOR)
 				Logger.minor(this, "Written seedfile");
 		}
-
-		return actualEntropy;
 	}
 
 	private int estimateEntropy(EntropySource source, long newVal) {
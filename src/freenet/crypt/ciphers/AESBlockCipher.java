@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.support.Logger;
+
+/**
+ * AES, i.e. Rijndael with 128-bit blocks, using a JCA Cipher in ECB mode. On most JVMs this uses
+ * the AES instructions of the CPU, so it is much faster than Rijndael_Algorithm. Rijndael uses
+ * this for 128-bit blocks, and CTRBlockCipher and PCFBMode use encipherBlocks() to encrypt many
+ * blocks in one call.
+ *
+ * Like Rijndael, the methods are synchronized, as a JCA Cipher is not thread-safe.
+ */
+public class AESBlockCipher implements BlockCipher {
+
+	static final String ALGORITHM = "AES/ECB/NoPadding";
+	static final int BLOCK_SIZE = 16;
+
+	/** Set freenet.crypt.jcaRijndael=false to always use Rijndael_Algorithm. */
+	private static final boolean ENABLED =
+		Boolean.parseBoolean(System.getProperty("freenet.crypt.jcaRijndael", "true"));
+
+	private final int keysize;
+	private Cipher encryptCipher;
+	private Cipher decryptCipher;
+
+	/**
+	 * @param keysize The key size in bits: 128, 192 or 256.
+	 * @throws UnsupportedCipherException If the key size is invalid, or JCA can't do it.
+	 */
+	public AESBlockCipher(int keysize) throws UnsupportedCipherException {
+		if(keysize != 128 && keysize != 192 && keysize != 256)
+			throw new UnsupportedCipherException("Invalid keysize");
+		if(!isAvailable(keysize))
+			throw new UnsupportedCipherException("JCA AES not available for "+keysize+"-bit keys");
+		this.keysize = keysize;
+	}
+
+	/** @return True if JCA can do AES with this key size, and hasn't been disabled. */
+	public static boolean isAvailable(int keysize) {
+		if(!ENABLED) return false;
+		// Rijndael only picks a provider if 256-bit keys work.
+		return keysize == 128 || Rijndael.AesCtrProvider != null;
+	}
+
+	private static Cipher getCipher() throws GeneralSecurityException {
+		// Use the same provider as for CTR, which was chosen by benchmarking.
+		Provider provider = Rijndael.AesCtrProvider;
+		if(provider != null) {
+			try {
+				return Cipher.getInstance(ALGORITHM, provider);
+			} catch (GeneralSecurityException e) {
+				// Fall through.
+			}
+		}
+		return Cipher.getInstance(ALGORITHM);
+	}
+
+	@Override
+	public final int getBlockSize() {
+		return 128;
+	}
+
+	@Override
+	public final int getKeySize() {
+		return keysize;
+	}
+
+	/**
+	 * Initialize with a key. Only the first keysize bits are used.
+	 * @throws IllegalArgumentException If JCA rejects the key.
+	 */
+	@Override
+	public synchronized final void initialize(byte[] key) {
+		try {
+			SecretKeySpec k = new SecretKeySpec(key, 0, keysize >> 3, "AES");
+			if(encryptCipher == null) {
+				encryptCipher = getCipher();
+				decryptCipher = getCipher();
+			}
+			encryptCipher.init(Cipher.ENCRYPT_MODE, k);
+			decryptCipher.init(Cipher.DECRYPT_MODE, k);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("JCA refused key: "+e, e);
+		}
+	}
+
+	@Override
+	public synchronized final void encipher(byte[] block, byte[] result) {
+		if(block.length != BLOCK_SIZE)
+			throw new IllegalArgumentException();
+		process(encryptCipher, block, 0, result, 0, BLOCK_SIZE);
+	}
+
+	@Override
+	public synchronized final void decipher(byte[] block, byte[] result) {
+		if(block.length != BLOCK_SIZE)
+			throw new IllegalArgumentException();
+		process(decryptCipher, block, 0, result, 0, BLOCK_SIZE);
+	}
+
+	/**
+	 * Encrypt several consecutive blocks independently, i.e. in ECB mode.
+	 * @param length The number of bytes, a multiple of the block size.
+	 * The input and output may overlap.
+	 */
+	public synchronized final void encipherBlocks(byte[] input, int inputOffset, byte[] output, int outputOffset, int length) {
+		if(length % BLOCK_SIZE != 0)
+			throw new IllegalArgumentException();
+		process(encryptCipher, input, inputOffset, output, outputOffset, length);
+	}
+
+	/**
+	 * Decrypt several consecutive blocks independently, i.e. in ECB mode.
+	 * @param length The number of bytes, a multiple of the block size.
+	 * The input and output may overlap.
+	 */
+	public synchronized final void decipherBlocks(byte[] input, int inputOffset, byte[] output, int outputOffset, int length) {
+		if(length % BLOCK_SIZE != 0)
+			throw new IllegalArgumentException();
+		process(decryptCipher, input, inputOffset, output, outputOffset, length);
+	}
+
+	private static void process(Cipher cipher, byte[] input, int inputOffset, byte[] output, int outputOffset, int length) {
+		if(cipher == null) throw new IllegalStateException("Not initialized");
+		try {
+			// doFinal() is copy-safe, and in ECB with no padding it doesn't need to be reset.
+			int written = cipher.doFinal(input, inputOffset, length, output, outputOffset);
+			if(written != length) throw new IllegalStateException("Wrote "+written+" bytes, expected "+length);
+		} catch (GeneralSecurityException e) {
+			// Impossible, we checked the length.
+			Logger.error(AESBlockCipher.class, "JCA failed: "+e, e);
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
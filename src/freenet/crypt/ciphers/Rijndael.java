@@ -21,11 +21,14 @@ import freenet.support.Logger;
 
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
- * algorithm
+ * algorithm. With 128-bit blocks (i.e. AES) we use JCA via AESBlockCipher if we can, which is
+ * much faster; 256-bit blocks always use Rijndael_Algorithm.
  */
 public class Rijndael implements BlockCipher {
 	private Object sessionKey;
 	private final int keysize, blocksize;
+	/** JCA implementation for 128-bit blocks, or null if we are using Rijndael_Algorithm. */
+	private AESBlockCipher aes;
 
 	public static final Provider AesCtrProvider = getAesCtrProvider();
 	
@@ -134,12 +137,28 @@ public class Rijndael implements BlockCipher {
 			throw new UnsupportedCipherException("Invalid blocksize");
 		this.keysize=keysize;
 		this.blocksize=blocksize;
+		if(blocksize == 128 && AESBlockCipher.isAvailable(keysize))
+			aes = new AESBlockCipher(keysize);
 	}
 
 	// for Util.getCipherByName..  and yes, screw you too, java
 	public Rijndael() {
 		this.keysize   = 128;
 		this.blocksize = 128;
+		if(AESBlockCipher.isAvailable(keysize)) {
+			try {
+				aes = new AESBlockCipher(keysize);
+			} catch (UnsupportedCipherException e) {
+				// Impossible.
+				throw new Error(e);
+			}
+		}
+	}
+
+	/** @return The JCA cipher we are using, which can encrypt many blocks at once, or null if
+	 * we are using Rijndael_Algorithm. Only valid after initialize(). */
+	public final AESBlockCipher getAESBlockCipher() {
+		return aes;
 	}
 
 	@Override
@@ -154,6 +173,15 @@ public class Rijndael implements BlockCipher {
 
 	@Override
 	public final void initialize(byte[] key) {
+		if(aes != null) {
+			try {
+				aes.initialize(key);
+				return;
+			} catch (IllegalArgumentException e) {
+				Logger.error(this, "JCA failed, using built-in Rijndael: "+e, e);
+				aes = null;
+			}
+		}
 		try {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
@@ -168,6 +196,10 @@ public class Rijndael implements BlockCipher {
 	public synchronized final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
+		if(aes != null) {
+			aes.encipher(block, result);
+			return;
+		}
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 
@@ -175,6 +207,10 @@ public class Rijndael implements BlockCipher {
 	public synchronized final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
+		if(aes != null) {
+			aes.decipher(block, result);
+			return;
+		}
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 }
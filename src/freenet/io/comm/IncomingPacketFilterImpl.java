@@ -5,7 +5,7 @@ package freenet.io.comm;
 
 import java.util.concurrent.atomic.AtomicLong;
 
-import freenet.crypt.EntropySource;
+import freenet.crypt.EntropyStagingBuffer;
 import freenet.node.FNPPacketMangler;
 import freenet.node.Node;
 import freenet.node.NodeCrypto;
@@ -29,13 +29,13 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	private FNPPacketMangler mangler;
 	private NodeCrypto crypto;
 	private Node node;
-	private final EntropySource fnpTimingSource;
+	private final EntropyStagingBuffer fnpTimingEntropy;
 
 	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto) {
 		this.mangler = mangler;
 		this.node = node;
 		this.crypto = crypto;
-		fnpTimingSource = new EntropySource();
+		fnpTimingEntropy = new EntropyStagingBuffer(node.random, 0.25);
 	}
 
 	@Override
@@ -57,7 +57,7 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
-		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+		fnpTimingEntropy.timerEvent();
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
 
 		if(opn != null) {
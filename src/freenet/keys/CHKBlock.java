@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.keys;
 
-import java.security.MessageDigest;
 import java.util.Arrays;
 
 import freenet.crypt.SHA256;
@@ -27,6 +26,14 @@ public class CHKBlock implements KeyBlock {
     public static final int DATA_LENGTH = 32768;
     /* Maximum length of compressed payload */
 	public static final int MAX_COMPRESSED_DATA_LENGTH = DATA_LENGTH - 4;
+    /** For checking the hash when we already know the key, which happens for every block we
+     * fetch or read from the store. */
+    private static final ThreadLocal<byte[]> hashBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[NodeCHK.KEY_LENGTH];
+        }
+    };
     
     @Override
 	public String toString() {
@@ -76,16 +83,12 @@ public class CHKBlock implements KeyBlock {
         // Check the hash
         if(hashIdentifier != HASH_SHA256)
             throw new CHKVerifyException("Hash not SHA-256");
-        MessageDigest md = SHA256.getMessageDigest();
-        
-        md.update(headers);
-        md.update(data);
-        byte[] hash = md.digest();
-        SHA256.returnMessageDigest(md);
         if(key == null) {
-        	chk = new NodeCHK(hash, cryptoAlgorithm);
+        	chk = new NodeCHK(SHA256.digest(headers, data), cryptoAlgorithm);
         } else {
         	chk = key;
+            byte[] hash = hashBuffer.get();
+            SHA256.digestInto(headers, data, hash, 0);
             byte[] check = chk.routingKey;
             if(!java.util.Arrays.equals(hash, check)) {
                 throw new CHKVerifyException("Hash does not verify");
@@ -4,10 +4,14 @@
 package freenet.keys;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.Provider;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
@@ -75,6 +79,12 @@ public class ClientCHKBlock implements ClientKeyBlock {
      */
 	@Override
 	public byte[] memoryDecode() throws CHKDecodeException {
+		if(!key.isCompressed()) {
+			// E.g. splitfile blocks. Avoid the copies via a Bucket.
+			byte[] buf = new byte[block.data.length];
+			int size = decodeInto(buf, 0);
+			return size == buf.length ? buf : Arrays.copyOf(buf, size);
+		}
 		try {
 			ArrayBucket a = (ArrayBucket) decode(new ArrayBucketFactory(), 32*1024, false);
 			return BucketTools.toByteArray(a); // FIXME
@@ -108,7 +118,29 @@ public class ClientCHKBlock implements ClientKeyBlock {
     		throw new UnsupportedOperationException();
     }
 
-	
+
+    /**
+     * Decrypt and verify the block into a buffer provided by the caller, without
+     * decompressing it. With JCA and the current crypto algorithm this decrypts directly into
+     * the buffer, rather than via a temporary array and a Bucket as decode() does.
+     * @param output The buffer to decrypt into. Must have room for CHKBlock.DATA_LENGTH bytes
+     * after the offset. Its contents are undefined if decoding fails.
+     * @return The length of the payload, which is compressed if the key says so.
+     */
+    public int decodeInto(byte[] output, int offset) throws CHKDecodeException {
+        if(output.length - offset < block.data.length)
+            throw new IllegalArgumentException("Buffer too small");
+        if(key.cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256 && Rijndael.AesCtrProvider != null)
+            return decodeNewInto(output, offset);
+        try {
+            byte[] buf = BucketTools.toByteArray(decode(new ArrayBucketFactory(), CHKBlock.DATA_LENGTH, true));
+            System.arraycopy(buf, 0, output, offset, buf.length);
+            return buf.length;
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
     /**
      * Decode the CHK and recover the original data
      * @return the original data
@@ -157,6 +189,48 @@ public class ClientCHKBlock implements ClientKeyBlock {
     }
     
 	private static final Provider hmacProvider;
+
+	/** A Cipher and Mac for the CTR format. Creating them, and looking up the provider, is a 
+	 * significant part of the cost of encoding or decoding a block, so we reuse them. Only 
+	 * used by one thread at a time. */
+	private static final class CryptoContext {
+		final Cipher cipher;
+		private final Mac hmac;
+		/** The key hmac was initialized with. Splitfile blocks often share a key, and then 
+		 * we don't need to initialize it again. */
+		private byte[] hmacKey;
+
+		CryptoContext() throws GeneralSecurityException {
+			cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+			hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+		}
+
+		Mac getMac(byte[] key) throws InvalidKeyException {
+			if(hmacKey == null || !Arrays.equals(hmacKey, key)) {
+				hmacKey = null;
+				hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+				hmacKey = key.clone();
+			}
+			return hmac;
+		}
+	}
+
+	private static final Queue<SoftReference<CryptoContext>> cryptoContexts = new ConcurrentLinkedQueue<SoftReference<CryptoContext>>();
+
+	private static CryptoContext getCryptoContext() throws GeneralSecurityException {
+		SoftReference<CryptoContext> item;
+		while((item = cryptoContexts.poll()) != null) {
+			CryptoContext ctx = item.get();
+			if(ctx != null) return ctx;
+		}
+		return new CryptoContext();
+	}
+
+	private static void returnCryptoContext(CryptoContext ctx) {
+		// Clear any partial input if we failed half way through.
+		ctx.hmac.reset();
+		cryptoContexts.add(new SoftReference<CryptoContext>(ctx));
+	}
 	static private long benchmark(Mac hmac) throws GeneralSecurityException
 	{
 		long times = Long.MAX_VALUE;
@@ -239,36 +313,48 @@ public class ClientCHKBlock implements ClientKeyBlock {
      * @throws IOException If there is a bucket error.
      */
     public Bucket decodeNew(BucketFactory bf, int maxLength, boolean dontCompress) throws CHKDecodeException, IOException {
+        byte[] plaintext = new byte[block.data.length];
+        int size = decodeNewInto(plaintext, 0);
+        return Key.decompress(dontCompress ? false : key.isCompressed(), plaintext, size, bf, 
+        		Math.min(maxLength, CHKBlock.MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
+    }
+
+    /** Decrypt and verify into the caller's buffer using JCA. @return The payload length. */
+    private int decodeNewInto(byte[] output, int offset) throws CHKDecodeException {
 		if(key.cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
 			throw new UnsupportedOperationException();
         byte[] headers = block.headers;
         byte[] data = block.data;
-    	byte[] hash = Arrays.copyOfRange(headers, 2, 2+32);
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
+        CryptoContext ctx = null;
 		try {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cryptoKey, "AES"), new IvParameterSpec(hash, 0, 16));
-        byte[] plaintext = new byte[data.length + 2];
-		int moved = cipher.update(data, 0, data.length, plaintext);
-		cipher.doFinal(headers, hash.length+2, 2, plaintext, moved);
-        int size = ((plaintext[data.length] & 0xff) << 8) + (plaintext[data.length + 1] & 0xff);
+		ctx = getCryptoContext();
+        Cipher cipher = ctx.cipher;
+        // IV is the first 16 bytes of the hash, which starts at 2.
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cryptoKey, "AES"), new IvParameterSpec(headers, 2, 16));
+		int moved = cipher.update(data, 0, data.length, output, offset);
+		byte[] tail = cipher.doFinal(headers, 32+2, 2);
+		System.arraycopy(tail, 0, output, offset+moved, tail.length-2);
+		byte[] lengthBytes = Arrays.copyOfRange(tail, tail.length-2, tail.length);
+        int size = ((lengthBytes[0] & 0xff) << 8) + (lengthBytes[1] & 0xff);
         if((size > 32768) || (size < 0)) {
             throw new CHKDecodeException("Invalid size: "+size);
         }
         // Check the hash.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
-        hmac.init(new SecretKeySpec(cryptoKey, "HmacSHA256"));
-        hmac.update(plaintext); // plaintext includes lengthBytes
+        Mac hmac = ctx.getMac(cryptoKey);
+        hmac.update(output, offset, data.length);
+        hmac.update(lengthBytes);
         byte[] hashCheck = hmac.doFinal();
-        if(!Arrays.equals(hash, hashCheck)) {
+        if(!MessageDigest.isEqual(Arrays.copyOfRange(headers, 2, 2+32), hashCheck)) {
         	throw new CHKDecodeException("HMAC is wrong, wrong decryption key?");
         }
-        return Key.decompress(dontCompress ? false : key.isCompressed(), plaintext, size, bf, 
-        		Math.min(maxLength, CHKBlock.MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
+        return size;
 		} catch(GeneralSecurityException e) {
 			throw new CHKDecodeException("Problem with JCA, should be impossible!", e);
+		} finally {
+			if(ctx != null) returnCryptoContext(ctx);
 		}
     }
 
@@ -444,15 +530,18 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // It's okay that this is the same for 2 blocks with the same key and the same content.
         // In fact that's the point; this is still a Content Hash Key.
         // FIXME And yes we should check on insert for multiple identical keys.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
-        hmac.init(new SecretKeySpec(encKey, "HmacSHA256"));
+        CryptoContext ctx = getCryptoContext();
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
             };
+        byte[] cdata = new byte[data.length];
+        byte[] header;
+        try {
+        Mac hmac = ctx.getMac(encKey);
         hmac.update(data);
         hmac.update(tmpLen);
         byte[] hash = hmac.doFinal();
-        byte[] header = new byte[hash.length+2+2];
+        header = new byte[hash.length+2+2];
     	if(blockHashAlgorithm == 0) cryptoAlgorithm = KeyBlock.HASH_SHA256;
     	if(blockHashAlgorithm != KeyBlock.HASH_SHA256)
     		throw new IllegalArgumentException("Unsupported block hash algorithm "+cryptoAlgorithm);
@@ -462,9 +551,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
         SecretKey ckey = new SecretKeySpec(encKey, "AES");
         // CTR mode IV is only 16 bytes.
         // That's still plenty though. It will still be unique.
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+        Cipher cipher = ctx.cipher;
         cipher.init(Cipher.ENCRYPT_MODE, ckey, new IvParameterSpec(hash, 0, 16));
-        byte[] cdata = new byte[data.length];
 		int moved = cipher.update(data, 0, data.length, cdata);
 		if (moved == data.length) {
 			cipher.doFinal(tmpLen, 0, 2, header, hash.length+2);
@@ -474,6 +562,9 @@ public class ClientCHKBlock implements ClientKeyBlock {
 			System.arraycopy(tmp, 0, cdata, moved, tmp.length-2);
 			System.arraycopy(tmp, tmp.length-2,	header, hash.length+2, 2);
 		}
+        } finally {
+        	returnCryptoContext(ctx);
+        }
         
         // Now calculate the final hash
         md256.update(header);
@@ -77,8 +77,7 @@ public class NodeSSK extends Key {
 		this.cryptoAlgorithm = cryptoAlgorithm;
 		this.pubKey = pubKey;
 		if(pubKey != null) {
-			byte[] hash = SHA256.digest(pubKey.asBytes());
-			if(!Arrays.equals(hash, pkHash))
+			if(!SSKVerifyCache.checkPubKey(pkHash, pubKey))
 				throw new SSKVerifyException("Invalid pubKey: wrong hash");
 		}
 		if(ehDocname.length != E_H_DOCNAME_SIZE)
@@ -164,8 +163,7 @@ public class NodeSSK extends Key {
 		if(pubKey2 == null) return;
 		if((pubKey == null) || !pubKey2.equals(pubKey)) {
 			if(pubKey2 != null) {
-				byte[] newPubKeyHash = SHA256.digest(pubKey2.asBytes());
-				if(Arrays.equals(pubKeyHash, newPubKeyHash)) {
+				if(SSKVerifyCache.checkPubKey(pubKeyHash, pubKey2)) {
 					if(pubKey != null) {
 						// same hash, yet different keys!
 						Logger.error(this, "Found SHA-256 collision or something... WTF?");
@@ -0,0 +1,142 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.HelperThreads;
+
+/**
+ * Encodes many splitfile blocks at once across all cores. Encoding a 32KB block (hash,
+ * encrypt, MAC) is independent of every other block, so a segment's keys can be generated in
+ * parallel rather than one after another on the encoding thread.
+ *
+ * Like TableFECCodec, the number of threads used for one call is shared out between the calls
+ * running at the same time: A single big segment uses all the cores, while many segments being
+ * encoded at once (limited by MemoryLimitedJobRunner) each run on their own thread as before.
+ * The extra threads are reserved from the shared low priority HelperThreads pool, so if the
+ * runner has none to spare the segment is encoded on the calling thread.
+ */
+public class ParallelCHKEncoder {
+
+    /** Maximum number of threads for a single call. Set with -Dfreenet.chk.threads, default is
+     * the number of cores; 1 disables parallel encoding. */
+    static final int MAX_THREADS;
+    /** Don't split into tasks of fewer blocks than this. */
+    static final int MIN_BLOCKS_PER_TASK = 8;
+    /** Number of calls currently running, used to share out the cores. */
+    private static final AtomicInteger running = new AtomicInteger();
+    /** Memory to reserve for each extra thread: Roughly two copies of the block it is encoding. */
+    static final long HELPER_MEMORY = 2 * CHKBlock.DATA_LENGTH;
+
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = cores;
+        try {
+            threads = Integer.parseInt(System.getProperty("freenet.chk.threads",
+                    Integer.toString(cores)));
+        } catch (NumberFormatException e) {
+            // Use the default.
+        }
+        MAX_THREADS = Math.max(1, threads);
+    }
+
+    private ParallelCHKEncoder() {
+        // Static only.
+    }
+
+    /** How many threads to use for a call, given the number of calls running, and the number
+     * of blocks. */
+    static int threadsFor(int active, int blocks) {
+        if(MAX_THREADS == 1) return 1;
+        int threads = MAX_THREADS / Math.max(1, active);
+        threads = Math.min(threads, blocks / MIN_BLOCKS_PER_TASK);
+        return Math.max(1, threads);
+    }
+
+    /**
+     * Encode each block as a splitfile block, and return only the keys, so we don't keep the
+     * encrypted data for the whole segment in memory at once.
+     * @param blocks The blocks, each exactly CHKBlock.DATA_LENGTH bytes. Not modified.
+     * @param cryptoKey The splitfile's crypto key, or null to use the hash of each block.
+     * @param cryptoAlgorithm The crypto algorithm.
+     * @return The key for each block.
+     */
+    public static ClientCHK[] encodeSplitfileKeys(byte[][] blocks, byte[] cryptoKey,
+            byte cryptoAlgorithm) {
+        ClientCHK[] keys = new ClientCHK[blocks.length];
+        int active = running.incrementAndGet();
+        int reserved = 0;
+        try {
+            // We already have a thread, from the runner or otherwise.
+            reserved = HelperThreads.reserve(threadsFor(active, blocks.length) - 1,
+                    HELPER_MEMORY);
+            if(reserved == 0) {
+                encodeRange(blocks, cryptoKey, cryptoAlgorithm, keys, 0, blocks.length);
+            } else {
+                int threads = 1 + reserved;
+                int blocksPerTask = (blocks.length + threads - 1) / threads;
+                HelperThreads.getPool().invoke(new KeysTask(blocks, cryptoKey, cryptoAlgorithm,
+                        keys, 0, blocks.length, blocksPerTask));
+            }
+        } finally {
+            running.decrementAndGet();
+            HelperThreads.release(reserved, HELPER_MEMORY);
+        }
+        return keys;
+    }
+
+    private static void encodeRange(byte[][] blocks, byte[] cryptoKey, byte cryptoAlgorithm,
+            ClientCHK[] keys, int start, int end) {
+        for(int i=start;i<end;i++) {
+            try {
+                keys[i] = ClientCHKBlock.encodeSplitfileBlock(blocks[i], cryptoKey,
+                        cryptoAlgorithm).getClientKey();
+            } catch (CHKEncodeException e) {
+                throw new Error(e); // Impossible!
+            }
+        }
+    }
+
+    /** Encodes a range of blocks, splitting itself until each task has at most blocksPerTask
+     * blocks. */
+    private static class KeysTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[][] blocks;
+        private final byte[] cryptoKey;
+        private final byte cryptoAlgorithm;
+        private final ClientCHK[] keys;
+        private final int start;
+        private final int end;
+        private final int blocksPerTask;
+
+        KeysTask(byte[][] blocks, byte[] cryptoKey, byte cryptoAlgorithm, ClientCHK[] keys,
+                int start, int end, int blocksPerTask) {
+            this.blocks = blocks;
+            this.cryptoKey = cryptoKey;
+            this.cryptoAlgorithm = cryptoAlgorithm;
+            this.keys = keys;
+            this.start = start;
+            this.end = end;
+            this.blocksPerTask = blocksPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start <= blocksPerTask) {
+                encodeRange(blocks, cryptoKey, cryptoAlgorithm, keys, start, end);
+                return;
+            }
+            int mid = start + (end - start) / 2;
+            invokeAll(new KeysTask(blocks, cryptoKey, cryptoAlgorithm, keys, start, mid,
+                    blocksPerTask),
+                    new KeysTask(blocks, cryptoKey, cryptoAlgorithm, keys, mid, end,
+                    blocksPerTask));
+        }
+
+    }
+
+}
@@ -13,6 +13,7 @@ import java.util.Arrays;
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.Global;
 import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
@@ -132,6 +133,7 @@ public class SSKBlock implements KeyBlock {
 		if(!dontVerify || logMINOR) {	// force verify on log minor
 			byte[] bufR = new byte[SIG_R_LENGTH];
 			byte[] bufS = new byte[SIG_S_LENGTH];
+			int sigOffset = x;
 			
 			System.arraycopy(headers, x, bufR, 0, SIG_R_LENGTH);
 			x+=SIG_R_LENGTH;
@@ -154,21 +156,27 @@ public class SSKBlock implements KeyBlock {
 				SHA256.returnMessageDigest(md);
 			}
 			
-			// Now verify it
-			BigInteger r = new BigInteger(1, bufR);
-			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
+			// Have we seen the same block before?
+			ByteArrayWrapper verifyEntry = SSKVerifyCache.signatureEntry(nodeKey.getPubKeyHash(), 
+					overallHash, headers, sigOffset, SIG_R_LENGTH + SIG_S_LENGTH);
+			if(!SSKVerifyCache.isVerified(verifyEntry)) {
+				// Now verify it
+				BigInteger r = new BigInteger(1, bufR);
+				BigInteger s = new BigInteger(1, bufS);
+				DSASigner dsa = new DSASigner();
+				dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
 
-			// We probably don't need to try both here...
-			// but that's what the legacy code was doing...
-			// @see comments in Global before touching it
-			if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
-			     dsa.verifySignature(overallHash, r, s))
-			  ) {
-				if (dontVerify)
-					Logger.error(this, "DSA verification failed with dontVerify!!!!");
-				throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				// We probably don't need to try both here...
+				// but that's what the legacy code was doing...
+				// @see comments in Global before touching it
+				if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
+				     dsa.verifySignature(overallHash, r, s))
+				  ) {
+					if (dontVerify)
+						Logger.error(this, "DSA verification failed with dontVerify!!!!");
+					throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				}
+				SSKVerifyCache.setVerified(verifyEntry);
 			}
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
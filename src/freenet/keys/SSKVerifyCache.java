@@ -0,0 +1,138 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
+
+/**
+ * Remembers SSK signatures and pubkeys which have already been verified, so we don't need to
+ * verify them again when we see the same block again: from another peer, from the datastore,
+ * offered again via a ULPR etc. Popular USK editions are seen many times, and DSA verification
+ * is expensive.
+ *
+ * A signature entry is a hash of the pubkey hash, the hash that was signed, and the signature,
+ * so a hit means exactly the same signature has already been verified for exactly the same
+ * data and key. Failures are not cached.
+ */
+public final class SSKVerifyCache {
+
+	/** Maximum number of signatures to remember. Each is one 32 byte hash. */
+	static final int MAX_SIGNATURES = 8192;
+	/** Maximum number of pubkeys to remember. */
+	static final int MAX_PUBKEYS = 1024;
+
+	private static final LRUMap<ByteArrayWrapper, Boolean> signatures =
+		LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+	/** Pubkeys by their hash */
+	private static final LRUMap<ByteArrayWrapper, DSAPublicKey> pubKeys =
+		LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+
+	private static long signatureHits;
+	private static long signatureMisses;
+	private static long pubKeyHits;
+	private static long pubKeyMisses;
+
+	private SSKVerifyCache() {
+		// Static only.
+	}
+
+	/**
+	 * @param pubKeyHash The hash of the pubkey, already checked against the pubkey.
+	 * @param signedHash The hash the signature is over.
+	 * @param headers The headers, containing the signature.
+	 * @param sigOffset The offset of the signature (R then S) in the headers.
+	 * @return The entry to pass to isVerified() and setVerified().
+	 */
+	static ByteArrayWrapper signatureEntry(byte[] pubKeyHash, byte[] signedHash, byte[] headers, int sigOffset, int sigLength) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(pubKeyHash);
+			md.update(signedHash);
+			md.update(headers, sigOffset, sigLength);
+			return new ByteArrayWrapper(md.digest());
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/** @return True if the signature has already been verified. */
+	static boolean isVerified(ByteArrayWrapper entry) {
+		boolean hit = signatures.get(entry) != null;
+		synchronized(SSKVerifyCache.class) {
+			if(hit) signatureHits++;
+			else signatureMisses++;
+		}
+		if(hit) signatures.push(entry, Boolean.TRUE);
+		return hit;
+	}
+
+	/** The signature has been verified successfully. */
+	static void setVerified(ByteArrayWrapper entry) {
+		synchronized(signatures) {
+			signatures.push(entry, Boolean.TRUE);
+			while(signatures.size() > MAX_SIGNATURES)
+				signatures.popKey();
+		}
+	}
+
+	/** @return True if the pubkey's hash is pubKeyHash. */
+	static boolean checkPubKey(byte[] pubKeyHash, DSAPublicKey pubKey) {
+		ByteArrayWrapper entry = new ByteArrayWrapper(pubKeyHash);
+		DSAPublicKey known = pubKeys.get(entry);
+		if(known != null && known.equals(pubKey)) {
+			synchronized(SSKVerifyCache.class) {
+				pubKeyHits++;
+			}
+			pubKeys.push(entry, known);
+			return true;
+		}
+		synchronized(SSKVerifyCache.class) {
+			pubKeyMisses++;
+		}
+		if(!Arrays.equals(SHA256.digest(pubKey.asBytes()), pubKeyHash))
+			return false;
+		synchronized(pubKeys) {
+			pubKeys.push(new ByteArrayWrapper(pubKeyHash.clone()), pubKey);
+			while(pubKeys.size() > MAX_PUBKEYS)
+				pubKeys.popKey();
+		}
+		return true;
+	}
+
+	/** @return The number of DSA signature verifications avoided. */
+	public static synchronized long avoidedVerifications() {
+		return signatureHits;
+	}
+
+	/** @return The number of DSA signature verifications we had to do. */
+	public static synchronized long verifications() {
+		return signatureMisses;
+	}
+
+	/** @return The number of pubkey hash checks avoided. */
+	public static synchronized long avoidedPubKeyChecks() {
+		return pubKeyHits;
+	}
+
+	/** @return The number of pubkey hash checks we had to do. */
+	public static synchronized long pubKeyChecks() {
+		return pubKeyMisses;
+	}
+
+	/** For tests. */
+	static void clear() {
+		signatures.clear();
+		pubKeys.clear();
+		synchronized(SSKVerifyCache.class) {
+			signatureHits = signatureMisses = pubKeyHits = pubKeyMisses = 0;
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SerialExecutor;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs incoming connection setup (JFK) packets for FNPPacketMangler, off the UDP receive thread.
+ * Most of the work is public key crypto (ECDH and ECDSA), so the packets are spread over several
+ * SerialExecutor's: A burst of handshakes, e.g. after a restart, can use more than one core. All
+ * the packets for one peer, or for one address if we don't know the peer, are still handled in
+ * order on the same thread.
+ *
+ * The queues are bounded, and each IP address (except localhost) can only have a few packets
+ * queued at once, so a single address can't fill the queues and delay everyone else's
+ * handshakes.
+ */
+class AuthHandlingExecutor {
+
+	/** Number of threads. Set with -Dfreenet.auth.threads, default is the number of cores, up to
+	 * 4. */
+	static final int THREADS;
+	/** Maximum number of queued packets, for all the threads together. */
+	static final int MAX_QUEUED = 1000;
+	/** Maximum number of queued packets from a single IP address. */
+	static final int MAX_QUEUED_PER_IP = 8;
+
+	static {
+		int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+		try {
+			threads = Integer.parseInt(System.getProperty("freenet.auth.threads",
+					Integer.toString(threads)));
+		} catch (NumberFormatException e) {
+			// Use the default.
+		}
+		THREADS = Math.max(1, threads);
+	}
+
+	private final SerialExecutor[] executors;
+	private final int maxQueuedPerIP;
+	/** Number of packets queued, by source address. */
+	private final HashMap<InetAddress, Integer> queuedByIP;
+	private long dropped;
+
+	AuthHandlingExecutor() {
+		this(THREADS, MAX_QUEUED, MAX_QUEUED_PER_IP);
+	}
+
+	AuthHandlingExecutor(int threads, int maxQueued, int maxQueuedPerIP) {
+		executors = new SerialExecutor[threads];
+		for(int i=0;i<threads;i++)
+			executors[i] = new SerialExecutor(NativeThread.HIGH_PRIORITY,
+					Math.max(1, maxQueued / threads));
+		this.maxQueuedPerIP = maxQueuedPerIP;
+		queuedByIP = new HashMap<InetAddress, Integer>();
+	}
+
+	void start(Executor executor, String name) {
+		for(int i=0;i<executors.length;i++)
+			executors[i].start(executor, executors.length == 1 ? name : name+" "+i);
+	}
+
+	/**
+	 * Queue a packet to be handled.
+	 * @param job Handles the packet.
+	 * @param peer The PeerNode the packet is for, or null if we don't know the peer yet. Packets
+	 * for the same peer run in order on the same thread.
+	 * @param source The address the packet came from, used for the per-address limit and if
+	 * we don't know the peer.
+	 * @return False if the packet was dropped because there are too many queued.
+	 */
+	boolean execute(final Runnable job, PeerNode peer, final InetAddress source) {
+		// Simulations and tests run many nodes on localhost.
+		if(source != null && !source.isLoopbackAddress()) {
+			synchronized(queuedByIP) {
+				Integer queued = queuedByIP.get(source);
+				int count = queued == null ? 0 : queued;
+				if(count >= maxQueuedPerIP) {
+					dropped++;
+					return false;
+				}
+				queuedByIP.put(source, count+1);
+			}
+		}
+		Object shard = peer != null ? peer : source;
+		int index = shard == null ? 0 : (shard.hashCode() & Integer.MAX_VALUE) % executors.length;
+		Runnable wrapper = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} finally {
+					release(source);
+				}
+			}
+
+		};
+		if(executors[index].tryExecute(wrapper, "Auth packet from "+source))
+			return true;
+		release(source);
+		synchronized(queuedByIP) {
+			dropped++;
+		}
+		return false;
+	}
+
+	private void release(InetAddress source) {
+		if(source == null || source.isLoopbackAddress()) return;
+		synchronized(queuedByIP) {
+			Integer queued = queuedByIP.get(source);
+			if(queued == null) {
+				Logger.error(this, "Released auth packet from "+source+" but none queued");
+			} else if(queued <= 1) {
+				queuedByIP.remove(source);
+			} else {
+				queuedByIP.put(source, queued-1);
+			}
+		}
+	}
+
+	/** @return The number of packets dropped because too many were queued. */
+	long getDropped() {
+		synchronized(queuedByIP) {
+			return dropped;
+		}
+	}
+
+	/** @return The number of addresses with packets queued. */
+	int queuedAddresses() {
+		synchronized(queuedByIP) {
+			return queuedByIP.size();
+		}
+	}
+
+}
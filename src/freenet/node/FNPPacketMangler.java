@@ -41,7 +41,6 @@ import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
-import freenet.support.SerialExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.FileUtil;
@@ -146,7 +145,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		for(int i=0;i<DH_CONTEXT_BUFFER_SIZE;i++) {
 			_fillJFKECDHFIFO();
 		}
-		this.authHandlingThread.start(node.executor, "FNP incoming auth packet handler thread");
+		authHandlers.start(node.executor, "FNP incoming auth packet handler thread");
 	}
 
 	/**
@@ -490,7 +489,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 1 and 3 here.
 
 		if(packetType == 0 || packetType == 2) {
-			this.authHandlingThread.execute(new Runnable() {
+			queueAuth(new Runnable() {
 
 				@Override
 				public void run() {
@@ -503,7 +502,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, null, replyTo);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the responder) from "+replyTo);
 		}
@@ -550,7 +549,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 2 and 4 here.
 
 		if(packetType == 1 || packetType == 3) {
-			authHandlingThread.execute(new Runnable() {
+			queueAuth(new Runnable() {
 				
 				@Override
 				public void run() {
@@ -563,14 +562,21 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, pn, replyTo);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the initiator) from "+replyTo);
 		}
 		
 	}
 	
-	private final SerialExecutor authHandlingThread = new SerialExecutor(NativeThread.HIGH_PRIORITY, 1000);
+	/** Handles the public key crypto for connection setup, off the UDP receive thread. */
+	private final AuthHandlingExecutor authHandlers = new AuthHandlingExecutor();
+
+	private void queueAuth(Runnable job, PeerNode pn, Peer replyTo) {
+		if(!authHandlers.execute(job, pn, replyTo.getAddress(false))) {
+			if(logMINOR) Logger.minor(this, "Dropping auth packet from "+replyTo+" for "+pn+": too many queued");
+		}
+	}
 
 	/**
 	 * Process a decrypted, authenticated auth packet.
@@ -644,7 +650,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			if(packetType<0 || packetType>3) {
 				Logger.error(this,"Unknown PacketType" + packetType + "from" + replyTo + "from" +pn);
 				return ;
-			} else authHandlingThread.execute(new Runnable() {
+			} else queueAuth(new Runnable() {
 
 				@Override
 				public void run() {
@@ -681,7 +687,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 						processJFKMessage4(payload, 3, pn, replyTo, oldOpennetPeer, false, -1, negType);
 					}
 				}
-			});
+			}, pn, replyTo);
 		} else {
 			Logger.error(this, "Decrypted auth packet but unknown negotiation type "+negType+" from "+replyTo+" possibly from "+pn);
 			return;
@@ -2079,6 +2085,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
     }
     
 	private void _fillJFKECDHFIFO() {
+        // Generating and signing is slow, don't hold the lock while the handshake threads need it.
+        ECDHLightContext ctx = _genECDHLightContext();
         synchronized (ecdhContextFIFO) {
             int size = ecdhContextFIFO.size();
             if((size > 0) && (size + 1 > DH_CONTEXT_BUFFER_SIZE)) {
@@ -2094,7 +2102,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
                 ecdhContextFIFO.remove(ecdhContextToBePrunned = result);
             }
 
-            ecdhContextFIFO.addLast(_genECDHLightContext());
+            ecdhContextFIFO.addLast(ctx);
         }
     }
 	
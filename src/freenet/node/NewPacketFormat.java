@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -395,10 +394,9 @@ public class NewPacketFormat implements PacketFormat {
 
 		ivCipher.encipher(IV, IV);
 
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
+		// Check the HMAC before copying anything, we may be trying the wrong key.
+		if (!HMAC.verifyWithSHA256(sessionKey.hmacKey, buf, offset + HMAC_LENGTH, length - HMAC_LENGTH,
+				buf, offset, HMAC_LENGTH)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
 			}
@@ -406,6 +404,7 @@ public class NewPacketFormat implements PacketFormat {
 			return null;
 		}
 
+		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
 		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
 		payloadCipher.blockDecipher(payload, 0, payload.length);
 
@@ -510,12 +509,8 @@ public class NewPacketFormat implements PacketFormat {
 		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		HMAC.macInto(HMAC.SHA2_256, sessionKey.hmacKey, data, HMAC_LENGTH, paddedLen - HMAC_LENGTH,
+				data, 0, HMAC_LENGTH);
 
 		try {
 			if(logMINOR) {
@@ -147,6 +147,7 @@ import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
+import freenet.support.math.ThreadLocalWeakRandom;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
 /**
@@ -1113,9 +1114,7 @@ public class Node implements TimeSkewDetectorCallback {
 		isPRNGReady = true;
 		toadlets.getStartupToadlet().setIsPRNGReady();
 		if(weakRandom == null) {
-			byte buffer[] = new byte[16];
-			random.nextBytes(buffer);
-			this.fastWeakRandom = new MersenneTwister(buffer);
+			this.fastWeakRandom = new ThreadLocalWeakRandom(random);
 		}else
 			this.fastWeakRandom = weakRandom;
 
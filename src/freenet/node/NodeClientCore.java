@@ -64,6 +64,7 @@ import freenet.pluginmanager.PluginStores;
 import freenet.store.KeyCollisionException;
 import freenet.support.Base64;
 import freenet.support.Executor;
+import freenet.support.HelperThreads;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.SimpleFieldSet;
@@ -170,6 +171,7 @@ public class NodeClientCore implements Persistable {
 	private boolean alwaysCommit;
 	private final PluginStores pluginStores;
 	private boolean lazyStartDatastoreChecker;
+	private boolean lazyResume;
 	
 	private boolean finishedInitStorage;
 	private boolean finishingInitStorage;
@@ -418,6 +420,27 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("offHeapRAMBuckets", false, sortOrder++, true, false,
+				    "NodeClientCore.offHeapRAMBuckets",
+				    "NodeClientCore.offHeapRAMBucketsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory == null ? false
+										  : tempBucketFactory
+									.isOffHeap());
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory
+									  == null))
+							return;
+						tempBucketFactory.setOffHeap(val);
+					}
+				});
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +451,7 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setOffHeap(nodeConfig.getBoolean("offHeapRAMBuckets"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -437,6 +461,31 @@ public class NodeClientCore implements Persistable {
 								tempBucketFactory,
 								bandwidthStatsPutter);
 
+		nodeConfig.register("lazyResume", false, sortOrder++, true, false,
+				"NodeClientCore.lazyResume", "NodeClientCore.lazyResumeLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(NodeClientCore.this) {
+							return lazyResume;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(NodeClientCore.this) {
+							if(val != lazyResume) {
+								lazyResume = val;
+								throw new NodeNeedRestartException(l10n("lazyResumeMustRestartNode"));
+							}
+						}
+					}
+
+				});
+		lazyResume = nodeConfig.getBoolean("lazyResume");
+		clientLayerPersister.setLazyResume(lazyResume);
+
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
 
 		shutdownHook.addEarlyJob(new NativeThread("Shutdown RealCompressor",
@@ -576,6 +625,24 @@ public class NodeClientCore implements Persistable {
 						nodeConfig.getInt("memoryLimitedJobThreadLimit"),
 						node.executor,
 						RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
+		HelperThreads.setJobRunner(memoryLimitedJobRunner);
+		nodeConfig.register("tableFECCodec", FECCodec.getUseTableCodec(), sortOrder++, true, false,
+				    "NodeClientCore.tableFECCodec",
+				    "NodeClientCore.tableFECCodecLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return FECCodec.getUseTableCodec();
+					    }
+
+					    @Override
+					    public void set(Boolean val) {
+						    FECCodec.setUseTableCodec(val);
+					    }
+
+				    });
+		FECCodec.setUseTableCodec(nodeConfig.getBoolean("tableFECCodec"));
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown FEC", NativeThread.HIGH_PRIORITY, true) {
 
@@ -1054,14 +1121,23 @@ public class NodeClientCore implements Persistable {
 			public void run() {
 				Logger.normal(this, "Resuming persistent requests");
 				if(node.getDatabaseKey() != null) {
-				    try {
-				        finishInitStorage();
-				    } catch (Throwable t) {
-				        Logger.error(this, "Failed to migrate and/or cleanup persistent temp buckets: "+t, t);
-				        System.err.println("Failed to migrate and/or cleanup persistent temp buckets: "+t);
-				        t.printStackTrace();
-				        // Start the rest of the node anyway ...
-				    }
+				    // Persistent temp files and slab slots are claimed as the requests using
+				    // them resume, so wait for any still being resumed in the background.
+				    clientLayerPersister.whenResumed(new Runnable() {
+
+				        @Override
+				        public void run() {
+				            try {
+				                finishInitStorage();
+				            } catch (Throwable t) {
+				                Logger.error(this, "Failed to migrate and/or cleanup persistent temp buckets: "+t, t);
+				                System.err.println("Failed to migrate and/or cleanup persistent temp buckets: "+t);
+				                t.printStackTrace();
+				                // Start the rest of the node anyway ...
+				            }
+				        }
+
+				    });
 				}
 				Logger.normal(this, "Completed startup: All persistent requests resumed or restarted");
 				alerts.unregister(startingUpAlert);
@@ -77,7 +77,6 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.WeakHashSet;
-import freenet.support.math.MersenneTwister;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.SimpleRunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
@@ -408,7 +407,6 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	}
 
 	private PacketFormat packetFormat;
-	MersenneTwister paddingGen;
 	
 	protected SimpleFieldSet fullFieldSet;
 
@@ -713,10 +711,6 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		bytesInAtStartup = fs.getLong("totalInput", 0);
 		bytesOutAtStartup = fs.getLong("totalOutput", 0);
 
-		byte buffer[] = new byte[16];
-		node.random.nextBytes(buffer);
-		paddingGen = new MersenneTwister(buffer);
-		
 		if(fromLocal) {
 			SimpleFieldSet f = fs.subset("full");
 			if(fullFieldSet == null && f != null)
@@ -5425,7 +5419,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	// FIXME move this to PacketFormat eventually.
 	@Override
 	public Random paddingGen() {
-		return paddingGen;
+		// Padding doesn't need to be strong, or different for each peer.
+		return node.fastWeakRandom;
 	}
 
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
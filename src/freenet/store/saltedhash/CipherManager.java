@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -76,22 +75,14 @@ public class CipherManager {
 				return dk;
 		}
 
-		MessageDigest digest = SHA256.getMessageDigest();
-		try {
-			digest.update(plainKey);
-			digest.update(salt);
-
-			byte[] hashedRoutingKey = digest.digest();
-			assert hashedRoutingKey.length == 0x20;
-
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+		byte[] hashedRoutingKey = SHA256.digest(plainKey, salt);
+		assert hashedRoutingKey.length == 0x20;
 
-			return hashedRoutingKey;
-		} finally {
-			SHA256.returnMessageDigest(digest);
+		synchronized (digestRoutingKeyCache) {
+			digestRoutingKeyCache.put(key, hashedRoutingKey);
 		}
+
+		return hashedRoutingKey;
 	}
 
 	/**
@@ -0,0 +1,65 @@
+package freenet.support;
+
+import java.util.concurrent.ForkJoinPool;
+
+import freenet.support.io.PriorityForkJoinWorkerThreadFactory;
+
+/** The fork/join pool shared by the jobs which split a single big CPU-bound task across cores:
+ * FEC encodes and decodes, generating a segment's keys, and encrypting big reads and writes.
+ * The pool's threads run at the same low priority as MemoryLimitedJobRunner's, and once the node
+ * has set the runner, extra threads must be reserved from it before using the pool, so all the
+ * helpers together count against its thread and memory limits instead of adding a pool's worth
+ * of busy threads each. */
+public final class HelperThreads {
+
+    /** Size of the pool. Callers can split their work into more tasks than this. */
+    static final int POOL_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ForkJoinPool pool;
+    /** If set, extra threads must be reserved from this. */
+    private static MemoryLimitedJobRunner jobRunner;
+
+    private HelperThreads() {
+        // Static only.
+    }
+
+    /** Set the MemoryLimitedJobRunner that extra threads must be reserved from. Until this is
+     * called, e.g. in tests, the whole pool is available. The node calls this on startup, before
+     * any helpers can be running. */
+    public static synchronized void setJobRunner(MemoryLimitedJobRunner runner) {
+        jobRunner = runner;
+    }
+
+    private static synchronized MemoryLimitedJobRunner getJobRunner() {
+        return jobRunner;
+    }
+
+    /** Reserve up to count extra threads for a task which is already running on a thread of its
+     * own. Never waits.
+     * @param memory The memory to reserve for each thread.
+     * @return The number of threads reserved, possibly 0, in which case the caller should do the
+     * work itself. The caller must pass the same number to release() when done. */
+    public static int reserve(int count, long memory) {
+        if(count <= 0) return 0;
+        MemoryLimitedJobRunner runner = getJobRunner();
+        if(runner == null) return count;
+        return runner.reserveThreads(count, memory);
+    }
+
+    /** Release threads reserved by reserve(). */
+    public static void release(int count, long memory) {
+        if(count <= 0) return;
+        MemoryLimitedJobRunner runner = getJobRunner();
+        if(runner != null)
+            runner.releaseThreads(count, memory);
+    }
+
+    /** The shared pool. Only use as many threads as have been reserved. */
+    public static synchronized ForkJoinPool getPool() {
+        if(pool == null)
+            pool = new ForkJoinPool(POOL_THREADS, new PriorityForkJoinWorkerThreadFactory(
+                    "Helper worker", MemoryLimitedJobRunner.THREAD_PRIORITY), null, false);
+        return pool;
+    }
+
+}
@@ -100,6 +100,38 @@ public class MemoryLimitedJobRunner {
         });
     }
 
+    /** Reserve up to count extra threads for a job that is already running and wants to split
+     * its work across several cores, e.g. a big FEC decode. The threads count against the same
+     * limits as jobs, each using memory bytes of the capacity, so helpers can't push the total
+     * past the configured budget. Never waits, and never takes threads that queued jobs are
+     * waiting for.
+     * @return The number of threads reserved, possibly 0. The caller must pass the same number
+     * to releaseThreads() when done. */
+    public synchronized int reserveThreads(int count, long memory) {
+        if(shutdown) return 0;
+        for(Deque<MemoryLimitedJob> queue : jobs)
+            if(!queue.isEmpty()) return 0;
+        int reserved = 0;
+        while(reserved < count && runningThreads < maxThreads && counter + memory <= capacity) {
+            runningThreads++;
+            counter += memory;
+            reserved++;
+        }
+        return reserved;
+    }
+
+    /** Release threads reserved by reserveThreads(). */
+    public synchronized void releaseThreads(int count, long memory) {
+        if(count == 0) return;
+        if(count < 0 || memory < 0) throw new IllegalArgumentException();
+        assert(count <= runningThreads);
+        assert(count * memory <= counter);
+        runningThreads -= count;
+        counter -= count * memory;
+        if(shutdown) notifyAll();
+        maybeStartJobs();
+    }
+
     /** For tests and stats. How much of the scarce resource is used right now? */
     long used() {
         return counter;
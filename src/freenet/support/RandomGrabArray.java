@@ -1,132 +1,95 @@
 package freenet.support;
 
-import static java.util.concurrent.TimeUnit.MINUTES;
-
 import java.util.Arrays;
-
-import org.tanukisoftware.wrapper.WrapperManager;
+import java.util.IdentityHashMap;
 
 import freenet.client.async.ClientContext;
-import freenet.client.async.ClientRequestSelector;
 import freenet.client.async.RequestSelectionTreeNode;
 
 /**
  * An array which supports very fast remove-and-return-a-random-element.
- * 
- * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
- * it used to be, and probably has a lot of cruft and inefficiency as a result. 
- * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
- * 
- * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
- * Memory usage was an issue but probably isn't now given that the individual items are now quite 
- * large (entire splitfiles or at least entire segments).
+ *
+ * This is *NOT* persistent. The request selection structures are reconstructed on restart.
+ *
+ * Items are kept in a flat array. Once there are more than a few items we also keep an identity
+ * map from each item to its position, so adding, removing and checking for an item are all O(1).
+ * Removing an item swaps the last item into its place; the order doesn't matter as we always 
+ * choose randomly. Most RGAs only have one or two items, so we don't create the map until we 
+ * need it.
+ *
+ * LOCKING: There is a single lock for each priority's subtree, the priority's
+ * SectoredRandomGrabArray, which is passed in to the constructor. This must be taken before
+ * calling any methods on RGA or SRGA. See the javadocs on ClientRequestSelector for deeper
+ * explanation.
  */
 public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
-	
+
 	static {
 		Logger.registerClass(RandomGrabArray.class);
 	}
-	
-	private static class Block {
-		RandomGrabArrayItem[] reqs;
-	}
-	
-	/** Array of items. Non-null's followed by null's. 
-	 * We used to have a Set so we could check whether something is in the set quickly.
-	 * We got rid of this because for persistent requests it is vastly faster to just loop the
-	 * loop and check ==, and for non-persistent requests it doesn't matter much. */
-	private Block[] blocks;
+
+	/** Array of items. Non-null's followed by null's. */
+	private RandomGrabArrayItem[] reqs;
+	/** Position of each item in reqs. Null until we have more than INDEX_THRESHOLD items. */
+	private IdentityHashMap<RandomGrabArrayItem, Integer> positions;
 	/** Index of first null item. */
 	private int index;
-	private final static int MIN_SIZE = 32;
-	private final static int BLOCK_SIZE = 1024;
+	private final static int MIN_SIZE = 4;
+	private final static int INDEX_THRESHOLD = 16;
 	private final int hashCode;
 	private RemoveRandomParent parent;
-	protected ClientRequestSelector root;
+	protected final Object lock;
 	private long wakeupTime;
 
-	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		this.blocks = new Block[] { new Block() };
-		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
+	public RandomGrabArray(RemoveRandomParent parent, Object lock) {
+		this.reqs = new RandomGrabArrayItem[MIN_SIZE];
 		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
-		this.root = root;
+		this.lock = lock;
 	}
-	
+
 	@Override
 	public int hashCode() {
 		return hashCode;
 	}
-	
+
 	public void add(RandomGrabArrayItem req, ClientContext context) {
-		if(context != null && req.getWakeupTime(context, System.currentTimeMillis()) < 0) { 
+		if(context != null && req.getWakeupTime(context, System.currentTimeMillis()) < 0) {
 			if(logMINOR) Logger.minor(this, "Is finished already: "+req);
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(lock) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
-			int x = 0;
-			if(blocks.length == 1 && index < BLOCK_SIZE) {
-				for(int i=0;i<index;i++) {
-					if(blocks[0].reqs[i] == req) {
-						return;
-					}
-				}
-				if(index >= blocks[0].reqs.length) {
-					blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.min(BLOCK_SIZE, blocks[0].reqs.length*2));
-				}
-				blocks[0].reqs[index++] = req;
-				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
+			if(indexOf(req) != -1) {
+				if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
 				return;
 			}
-			int targetBlock = index / BLOCK_SIZE;
-			for(int i=0;i<blocks.length;i++) {
-				Block block = blocks[i];
-				if(i != (blocks.length - 1) && block.reqs.length != BLOCK_SIZE) {
-					Logger.error(this, "Block "+i+" of "+blocks.length+" is wrong size: "+block.reqs.length+" should be "+BLOCK_SIZE);
-				}
-				for(int j=0;j<block.reqs.length;j++) {
-					if(x >= index) break;
-					if(block.reqs[j] == req) {
-						if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
-						return;
-					}
-					if(block.reqs[j] == null) {
-						Logger.error(this, "reqs["+i+"."+j+"] = null on "+this);
-					}
-					x++;
-				}
+			if(index >= reqs.length) {
+				reqs = Arrays.copyOf(reqs, reqs.length*2);
 			}
-			if(blocks.length <= targetBlock) {
-				if(logMINOR)
-					Logger.minor(this, "Adding blocks on "+this);
-				Block[] newBlocks = Arrays.copyOf(blocks, targetBlock+1);
-				for(int i=blocks.length;i<newBlocks.length;i++) {
-					newBlocks[i] = new Block();
-					newBlocks[i].reqs = new RandomGrabArrayItem[BLOCK_SIZE];
-				}
-				blocks = newBlocks;
+			reqs[index] = req;
+			setPosition(req, index++);
+			if(positions == null && index > INDEX_THRESHOLD) {
+				positions = new IdentityHashMap<RandomGrabArrayItem, Integer>();
+				for(int i=0;i<index;i++)
+					positions.put(reqs[i], i);
 			}
-			Block target = blocks[targetBlock];
-			target.reqs[index++ % BLOCK_SIZE] = req;
+			if(parent != null) parent.adjustItemCount(1);
 			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
 		}
 	}
-	
-	/** Must be less than BLOCK_SIZE */
+
 	static final int MAX_EXCLUDED = 10;
-	
+
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
+		synchronized(lock) {
 			if(index == 0) {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
@@ -144,70 +107,36 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return removeRandomExhaustiveSearch(excluding, context, now);
 		}
 	}
-	
+
+	/** Try a bounded number of random items. Cancelled items are removed as we find them, and
+	 * count towards the limit, so this is O(1) however big the array is.
+	 * @return An item which can be sent now, or null if we didn't find one. */
 	private RandomGrabArrayItem removeRandomLimited(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		int excluded = 0;
-		while(true) {
+		while(index > 0) {
 			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i);
-				continue;
-			}
-			if(ret.getWakeupTime(context, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			oret = ret;
+			RandomGrabArrayItem ret = reqs[i];
 			long itemWakeTime = ret.getWakeupTime(context, now);
 			if(itemWakeTime == -1) {
 				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
 				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null);
-			}
-			if(itemWakeTime == 0)
-				itemWakeTime = excluding.exclude(ret, context, now);
-			if(ret != null && itemWakeTime > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
+				ret.setParentGrabArray(null);
+				removeAt(i);
+				shrink();
+			} else {
+				if(itemWakeTime == 0)
+					itemWakeTime = excluding.exclude(ret, context, now);
+				if(itemWakeTime == 0) {
+					if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
+					return ret;
 				}
-				continue;
-			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				return ret;
 			}
-			// Remove an element.
-			do {
-				remove(blockNo, i);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				// Shrink array
-				blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.max(index * 2, MIN_SIZE));
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				blocks = Arrays.copyOf(blocks, newBlockCount);
-			}
-			return ret;
+			if(++excluded > MAX_EXCLUDED)
+				return null;
 		}
+		return null;
 	}
 
 	private RemoveRandomReturn removeRandomExhaustiveSearch(
@@ -219,32 +148,14 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		RandomGrabArrayItem ret = null;
 		int random = -1;
 		while(true) {
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
 			int exclude = 0;
 			int valid = 0;
-			int validIndex = -1;
 			int target = 0;
 			RandomGrabArrayItem chosenItem = null;
 			RandomGrabArrayItem validItem = null;
 			for(int i=0;i<index;i++) {
-				offset++;
 				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					blockNumReading++;
-					reqsReading = blocks[blockNumReading].reqs;
-				}
-				item = reqsReading[offset];
-				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
-					continue;
-				}
+				RandomGrabArrayItem item = reqs[i];
 				boolean excludeItem = false;
 				long itemWakeTime = item.getWakeupTime(context, now);
 				if (itemWakeTime > 0) {
@@ -259,7 +170,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 						Logger.minor(this, "Removing "+item+" on "+this);
 					}
 					// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-					reqsReading[offset] = null;
+					reqs[i] = null;
+					if(positions != null) positions.remove(item);
 					item.setParentGrabArray(null);
 					continue;
 				} else {
@@ -271,15 +183,10 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 						}
 					}
 				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					blockNumWriting++;
-					reqsWriting = blocks[blockNumWriting].reqs;
-				}
 				if(i != target) {
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
+					reqs[i] = null;
+					reqs[target] = item;
+					setPosition(item, target);
 				} // else the request can happily stay where it is
 				target++;
 				if(excludeItem) {
@@ -288,16 +195,18 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 					if(valid == random) { // Picked on previous round
 						chosenItem = item;
 					}
-					if(validIndex == -1) {
+					if(validItem == null) {
 						// Take the first valid item
-						validIndex = target-1;
 						validItem = item;
 					}
 					valid++;
 				}
 			}
 			if(index != target) {
+				int removed = index - target;
 				index = target;
+				if(parent != null) parent.adjustItemCount(-removed);
+				shrink();
 			}
 			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
 			// or 2) we are on the first round anyway.
@@ -325,70 +234,55 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		}
 	}
 
-	/**
-	 * blockNo is assumed to be already active. The last block is assumed not 
-	 * to be.
-	 */
-	private void remove(int blockNo, int i) {
+	/** Remove the item at position i by moving the last item into its place. Caller must hold
+	 * the lock. */
+	private void removeAt(int i) {
+		if(positions != null) positions.remove(reqs[i]);
 		index--;
-		int endBlock = index / BLOCK_SIZE;
-		if(blocks.length == 1 || blockNo == endBlock) {
-			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
-			int idx = index % BLOCK_SIZE;
-			items[i % BLOCK_SIZE] = items[idx];
-			items[idx] = null;
-		} else {
-			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
-			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
-			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
-			endItems[index % BLOCK_SIZE] = null;
+		if(i != index) {
+			RandomGrabArrayItem moved = reqs[index];
+			reqs[i] = moved;
+			setPosition(moved, i);
 		}
+		reqs[index] = null;
+		if(parent != null) parent.adjustItemCount(-1);
+	}
+
+	/** @return The position of the item, or -1. Caller must hold the lock. */
+	private int indexOf(RandomGrabArrayItem item) {
+		if(positions != null) {
+			Integer i = positions.get(item);
+			return i == null ? -1 : i;
+		}
+		for(int i=0;i<index;i++) {
+			if(reqs[i] == item) return i;
+		}
+		return -1;
+	}
+
+	private void setPosition(RandomGrabArrayItem item, int i) {
+		if(positions != null) positions.put(item, i);
+	}
+
+	private void shrink() {
+		if(index < reqs.length / 4 && reqs.length > MIN_SIZE)
+			reqs = Arrays.copyOf(reqs, Math.max(index * 2, MIN_SIZE));
 	}
 
 	public void remove(RandomGrabArrayItem it, ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "Removing "+it+" from "+this);
-		
+
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == it) {
-						block.reqs[i] = block.reqs[--index];
-						block.reqs[index] = null;
-						matched = true;
-						break;
-					}
-				}
-				if(index == 0) empty = true;
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[j] == it) {
-							int pullFrom = --index;
-							int idx = pullFrom % BLOCK_SIZE;
-							int endBlock = pullFrom / BLOCK_SIZE;
-							if(i == endBlock) {
-								block.reqs[j] = block.reqs[idx];
-								block.reqs[idx] = null;
-							} else {
-								Block fromBlock = blocks[endBlock];
-								block.reqs[j] = fromBlock.reqs[idx];
-								fromBlock.reqs[idx] = null;
-							}
-							matched = true;
-							break;
-						}
-					}
-				}
-				if(index == 0) empty = true;
+		synchronized(lock) {
+			int i = indexOf(it);
+			if(i != -1) {
+				removeAt(i);
+				shrink();
+				matched = true;
 			}
+			if(index == 0) empty = true;
 		}
 		// Caller will typically clear it before calling for synchronization reasons.
 		RandomGrabArray oldArray = it.getParentGrabArray();
@@ -406,100 +300,87 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index == 0;
 	    }
 	}
-	
+
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == item) {
-						return true;
-					}
-				}
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[i] == item) {
-							return true;
-						}
-					}
-				}
-			}
+		synchronized(lock) {
+			return indexOf(item) != -1;
 		}
-		return false;
 	}
-	
+
 	public int size() {
-	    synchronized(root) {
+	    synchronized(lock) {
+	        return index;
+	    }
+	}
+
+	@Override
+	public long countItems() {
+	    synchronized(lock) {
 	        return index;
 	    }
 	}
 
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
-	        int blockNo = idx / BLOCK_SIZE;
-	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
-	        return item;
+	    synchronized(lock) {
+	        return reqs[idx];
 	    }
 	}
-	
-	// REDFLAG this method does not move cooldown items.
-	// At present it is only called on startup so this is okay.
-	public void moveElementsTo(RandomGrabArray existingGrabber,
-			boolean canCommit) {
-		WrapperManager.signalStarting((int) MINUTES.toMillis(5));
-		for(Block block: blocks) {
-			for(int j=0;j<block.reqs.length;j++) {
-				RandomGrabArrayItem item = block.reqs[j];
-				if(item == null) continue;
-				item.setParentGrabArray(null);
-				existingGrabber.add(item, null);
-				block.reqs[j] = null;
-			}
-			System.out.println("Moved block in RGA "+this);
+
+	/** Move all the items which are still wanted to another RandomGrabArray, e.g. one for a
+	 * different priority. Caller must hold the locks for both arrays. Items which have already
+	 * been detached from us (e.g. because they are being unregistered) are dropped. */
+	public void moveElementsTo(RandomGrabArray existingGrabber, ClientContext context) {
+		RandomGrabArrayItem[] items;
+		synchronized(lock) {
+			items = Arrays.copyOf(reqs, index);
+			Arrays.fill(reqs, 0, index, null);
+			positions = null;
+			if(parent != null) parent.adjustItemCount(-index);
+			index = 0;
+		}
+		for(RandomGrabArrayItem item : items) {
+			if(item.knowsParentGrabArray() && item.getParentGrabArray() != this) continue;
+			item.setParentGrabArray(null);
+			existingGrabber.add(item, context);
 		}
 	}
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
     }
-    
+
     /** Set the wakeup time, and update parents recursively if it is reduced. If it is increased
      * we don't need to bother parents as they will recompute the next time they need to. Only
-     * called by removeRandomExhaustive() i.e. after checking <b>all</b> our 
+     * called by removeRandomExhaustive() i.e. after checking <b>all</b> our
      * RandomGrabArrayItem's and finding that none of them are ready to send.
      * @param wakeupTime
      * @param context
      */
     private void setWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime; // Set before calling parent.
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -512,7 +393,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -525,10 +406,10 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
     }
-	
+
 }
@@ -1,26 +1,24 @@
 package freenet.support;
 
-import freenet.client.async.ClientRequestSelector;
-
 public class RandomGrabArrayWithObject<T> extends RandomGrabArray implements RemoveRandomWithObject<T> {
 
 	private T client;
 	
-	public RandomGrabArrayWithObject(T client, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+	public RandomGrabArrayWithObject(T client, RemoveRandomParent parent, Object lock) {
+		super(parent, lock);
 		this.client = client;
 	}
 
 	@Override
 	public final T getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return client;
 	    }
 	}
 
 	@Override
 	public void setObject(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.client = client;
 	    }
 	}
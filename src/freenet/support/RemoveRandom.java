@@ -26,4 +26,8 @@ public interface RemoveRandom extends RequestSelectionTreeNode {
 
 	public void setParent(RemoveRandomParent newTopLevel);
 
+	/** @return The number of RandomGrabArrayItem's queued in this subtree. Cached, so this is
+	 * O(1). */
+	public long countItems();
+
 }
@@ -10,4 +10,8 @@ public interface RemoveRandomParent extends RequestSelectionTreeNode {
 	 */
 	public void maybeRemove(RemoveRandom r, ClientContext context);
 
+	/** Called by a child when items are added to or removed from its subtree, so we can keep a
+	 * cached count. Will recurse up the tree. Caller must hold the tree lock. */
+	public void adjustItemCount(long delta);
+
 }
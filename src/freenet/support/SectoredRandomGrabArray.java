@@ -1,6 +1,7 @@
 package freenet.support;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -9,53 +10,73 @@ import freenet.client.async.RequestSelectionTreeNode;
 /**
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
- * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
- * 
- * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
- * This is all kept in RAM now so we can change it at will, plus there is only one object 
- * queued per splitfile now, so memory pressure is much less of an issue. 
- * FIXME Simplify and improve performance!
+ *
+ * The children are kept in a flat array with an identity map from client to position, so
+ * finding, adding and removing a child are O(1). We also cache the total number of items in
+ * our subtree, which children keep up to date via adjustItemCount(). Hence choosing an item
+ * only costs a constant amount of work at each level of the tree, unless most of our children
+ * are in cooldown, in which case we do an exhaustive search and then set our own wakeup time.
+ *
+ * LOCKING: There is a single lock for each priority's subtree, which is the top level
+ * SectoredRandomGrabArray (the one with no parent). This must be taken before calling any
+ * methods on RGA or SRGA. See the javadocs on ClientRequestSelector for deeper explanation.
  */
 public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> implements RemoveRandom, RemoveRandomParent, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
-	
+
 	static {
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
+	private final static int MIN_SIZE = 4;
+
+	/** Children. Non-null's followed by null's. */
 	private RemoveRandomWithObject<T>[] grabArrays;
 	private T[] grabClients;
+	/** Number of children. */
+	private int count;
+	/** Position of each client in grabClients. */
+	private final IdentityHashMap<T, Integer> clientIndex;
+	/** Total number of items in our subtree. */
+	private long itemCount;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
+	protected final Object lock;
 	private long wakeupTime;
 
-	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		grabClients = newClientArray(0);
-		grabArrays = newGrabberArray(0);
+	/**
+	 * @param parent The parent node, or null if this is the top of a priority's subtree.
+	 * @param root The selector, which is woken up when our wakeup time is reduced.
+	 * @param lock The lock for the subtree. If null we are the top of the subtree and lock on
+	 * ourself.
+	 */
+	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		grabClients = newClientArray(MIN_SIZE);
+		grabArrays = newGrabberArray(MIN_SIZE);
+		clientIndex = new IdentityHashMap<T, Integer>();
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock == null ? this : lock;
 	}
 
 	protected void addElement(T client, C rga) {
-	    synchronized(root) {
-		final int len = grabArrays.length;
-
-		grabArrays = Arrays.copyOf(grabArrays, len+1);
-		grabArrays[len] = rga;
-		
-		grabClients = Arrays.copyOf(grabClients, len+1);
-		grabClients[len] = client;
+	    synchronized(lock) {
+		if(count == grabArrays.length) {
+			grabArrays = Arrays.copyOf(grabArrays, count*2);
+			grabClients = Arrays.copyOf(grabClients, count*2);
+		}
+		grabArrays[count] = rga;
+		grabClients[count] = client;
+		clientIndex.put(client, count);
+		count++;
+		adjustItemCount(rga.countItems());
 	    }
 	}
 
 	protected int haveClient(T client) {
-	    synchronized(root) {
-		for(int i=0;i<grabClients.length;i++) {
-			if(grabClients[i] == client) return i;
-		}
-		return -1;
+	    synchronized(lock) {
+		Integer x = clientIndex.get(client);
+		return x == null ? -1 : x;
 	    }
 	}
 
@@ -64,15 +85,15 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 */
 	@SuppressWarnings("unchecked")
 	public C getGrabber(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		int idx = haveClient(client);
 		if(idx == -1) return null;
 		else return (C)grabArrays[idx];
 	    }
 	}
-	
+
 	public T getClient(int x) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		return grabClients[x];
 	    }
 	}
@@ -81,7 +102,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 * Put a grabber.
 	 */
 	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		if(requestGrabber.getObject() != client)
 			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
 		addElement(client, requestGrabber);
@@ -93,13 +114,13 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		while(true) {
-			if(grabArrays.length == 0) return null;
-			if(grabArrays.length == 1) {
+			if(count == 0) return null;
+			if(count == 1) {
 				return removeRandomOneOnly(excluding, context, now);
 			}
-			if(grabArrays.length == 2) {
+			if(count == 2) {
 				RemoveRandomReturn ret = removeRandomTwoOnly(excluding, context, now);
 				if(ret == null) continue; // Go around loop again, it has reduced to 1 or 0.
 				return ret;
@@ -116,13 +137,13 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomExhaustive(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
-		if(grabArrays.length == 0) return null;
-		int x = context.fastWeakRandom.nextInt(grabArrays.length);
-		for(int i=0;i<grabArrays.length;i++) {
+		if(count == 0) return null;
+		int x = context.fastWeakRandom.nextInt(count);
+		for(int i=0;i<count;i++) {
 			x++;
-			if(x >= grabArrays.length) x = 0;
+			if(x >= count) x = 0;
 			RemoveRandomWithObject<T> rga = grabArrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
@@ -130,8 +151,8 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
+				Logger.minor(this, "Picked "+x+" of "+count+" : "+rga+" on "+this);
+
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 			if(val != null) {
@@ -142,7 +163,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				}
 			}
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+count+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
 			if(item != null) {
 				return new RemoveRandomReturn(item);
@@ -150,6 +171,10 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				if(logMINOR)
 					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
 				removeElement(x);
+				// The last element has been moved to x, check it next.
+				x--;
+				i--;
+				if(count == 0) break;
 			}
 		}
 		reduceWakeupTime(wakeupTime, context);
@@ -160,41 +185,38 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RandomGrabArrayItem removeRandomLimited(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
 		while(true) {
-			if(grabArrays.length == 0) return null;
-			int x = context.fastWeakRandom.nextInt(grabArrays.length);
+			if(count == 0) return null;
+			int x = context.fastWeakRandom.nextInt(count);
 			RemoveRandomWithObject<T> rga = grabArrays[x];
-			if(rga == null) {
-				// We handle this in the other cases so we should handle it here.
-				Logger.error(this, "Slot "+x+" is null for client "+grabClients[x]);
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
+			if(rga.countItems() == 0) {
+				// Cheap check, we don't need to ask it.
+				if(logMINOR)
+					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
+				removeElement(x);
 				continue;
 			}
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				excluded++;
 				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
+					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+count, new Exception("error"));
 					return null;
 				}
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
+				Logger.minor(this, "Picked "+x+" of "+count+" : "+rga+" on "+this);
+
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 			if(val != null && val.item != null) item = val.item;
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+count+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
 			// If it is not empty but returns null we exclude it, and count the exclusion.
 			// If it is empty we remove it, and don't count the exclusion.
@@ -208,7 +230,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				} else {
 					excluded++;
 					if(excluded > MAX_EXCLUDED) {
-						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
+						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+count, new Exception("error"));
 						return null;
 					}
 				}
@@ -221,26 +243,12 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomTwoOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Another simple common case
 		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
 		RemoveRandomWithObject<T> rga = grabArrays[x];
 		RemoveRandomWithObject<T> firstRGA = rga;
-		if(rga == null) {
-			Logger.error(this, "rga = null on "+this);
-			if(grabArrays[1-x] == null) {
-				Logger.error(this, "other rga is also null on "+this);
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-				return null;
-			} else {
-				Logger.error(this, "grabArrays["+(1-x)+"] is valid but ["+x+"] is null, correcting...");
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-				return null;
-			}
-		}
 		RandomGrabArrayItem item = null;
 		RemoveRandomReturn val = null;
 		if(logMINOR) Logger.minor(this, "Only 2, trying "+rga);
@@ -266,13 +274,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		} else {
 			x = 1-x;
 			rga = grabArrays[x];
-			if(rga == null) {
-				Logger.error(this, "Other RGA is null later on on "+this);
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			}
 			excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
@@ -289,17 +290,16 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			}
 			if(firstRGA != null && firstRGA.isEmpty() && rga != null && rga.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "Removing both on "+this+" : "+firstRGA+" and "+rga+" are empty");
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
+				removeElement(1);
+				removeElement(0);
 			} else if(firstRGA != null && firstRGA.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "Removing first: "+firstRGA+" is empty on "+this);
-				grabArrays = asGrabberArray(grabArrays[x]); // don't use RGA, it may be nulled out
-				grabClients = asClientArray(grabClients[x]);
+				removeElement(1-x);
 			}
 			if(logMINOR)
 				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
 			if(item == null) {
-				if(grabArrays.length == 0)
+				if(count == 0)
 					return null; // Remove this as well
                 reduceWakeupTime(wakeupTime, context);
 				return new RemoveRandomReturn(wakeupTime);
@@ -311,7 +311,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomOneOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Optimise the common case
 		RemoveRandomWithObject<T> rga = grabArrays[0];
@@ -319,13 +319,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		long excludeTime = rga.getWakeupTime(context, now);
 		if(excludeTime > 0)
 			return new RemoveRandomReturn(excludeTime);
-		if(rga == null) {
-			Logger.error(this, "Only one entry and that is null");
-			// We are sure
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-			return null;
-		}
 		RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 		RandomGrabArrayItem item = null;
 		if(val != null) { // val == null => remove it
@@ -338,13 +331,12 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		if(rga.isEmpty()) {
 			if(logMINOR)
 				Logger.minor(this, "Removing only grab array (0) : "+rga);
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
+			removeElement(0);
 		}
 		if(logMINOR)
 			Logger.minor(this, "Returning (one item only) "+item+" for "+rga);
 		if(item == null) {
-			if(grabArrays.length == 0) {
+			if(count == 0) {
 				if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
 				return null; // Remove this as well
 			}
@@ -354,62 +346,71 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	    }
 	}
 
+	/** Remove the child at position x by moving the last child into its place. */
 	private void removeElement(int x) {
-	    synchronized(root) {
-		final int grabArraysLength = grabArrays.length;
-		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
-		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabArrays, 0, newArray, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
-		grabArrays = newArray;
-		
-		T[] newClients = newClientArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabClients, 0, newClients, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
-		grabClients = newClients;
+	    synchronized(lock) {
+		RemoveRandomWithObject<T> removed = grabArrays[x];
+		clientIndex.remove(grabClients[x]);
+		count--;
+		if(x != count) {
+			grabArrays[x] = grabArrays[count];
+			grabClients[x] = grabClients[count];
+			clientIndex.put(grabClients[x], x);
+		}
+		grabArrays[count] = null;
+		grabClients[count] = null;
+		if(count < grabArrays.length / 4 && grabArrays.length > MIN_SIZE) {
+			int newLength = Math.max(count * 2, MIN_SIZE);
+			grabArrays = Arrays.copyOf(grabArrays, newLength);
+			grabClients = Arrays.copyOf(grabClients, newLength);
+		}
+		adjustItemCount(-removed.countItems());
 	    }
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
-		return grabArrays.length == 0;
+	    synchronized(lock) {
+		return count == 0;
 	    }
 	}
-	
+
 	public int size() {
-	    synchronized(root) {
-		return grabArrays.length;
+	    synchronized(lock) {
+		return count;
+	    }
+	}
+
+	@Override
+	public long countItems() {
+	    synchronized(lock) {
+		return itemCount;
+	    }
+	}
+
+	@Override
+	public void adjustItemCount(long delta) {
+	    synchronized(lock) {
+		itemCount += delta;
+		if(parent != null) parent.adjustItemCount(delta);
 	    }
 	}
-	
+
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
-		int count = 0;
+		boolean found = false;
 		int finalSize;
-		synchronized(root) {
-			while(true) {
-				int found = -1;
-				for(int i=0;i<grabArrays.length;i++) {
-					if(grabArrays[i] == r) {
-						found = i;
-						break;
-					}
-				}
-				if(found != -1) {
-					count++;
-					if(count > 1) Logger.error(this, "Found "+r+" many times in "+this, new Exception("error"));
-					removeElement(found);
-				} else {
-					break;
+		synchronized(lock) {
+			if(r instanceof RemoveRandomWithObject) {
+				Object client = ((RemoveRandomWithObject<?>)r).getObject();
+				Integer x = clientIndex.get(client);
+				if(x != null && grabArrays[x] == r) {
+					removeElement(x);
+					found = true;
 				}
 			}
-			finalSize = grabArrays.length;
+			finalSize = count;
 		}
-		if(count == 0) {
+		if(!found) {
 			// This is not unusual, it was e.g. removed because of being empty.
 			// And it has already been removeFrom()'ed.
 			if(logMINOR) Logger.minor(this, "Not in parent: "+r+" for "+this, new Exception("error"));
@@ -421,31 +422,31 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
-	
+
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
     }
-    
+
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         boolean reachedRoot = false;
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -456,33 +457,21 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
             root.wakeUp(context);
         return true;
     }
-    
+
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
     }
 
-    private T[] asClientArray(T client) {
-        T[] clients = newClientArray(1);
-        clients[0] = client;
-        return clients;
-    }
-
     @SuppressWarnings("unchecked")
     private T[] newClientArray(int length) {
         return (T[])new Object[length];
     }
 
-    private RemoveRandomWithObject<T>[] asGrabberArray(RemoveRandomWithObject<T> grabber) {
-        RemoveRandomWithObject<T>[] grabbers = newGrabberArray(1);
-        grabbers[0] = grabber;
-        return grabbers;
-    }
-
     @SuppressWarnings("unchecked")
     private RemoveRandomWithObject<T>[] newGrabberArray(int length) {
         return (RemoveRandomWithObject<T>[])new RemoveRandomWithObject<?>[length];
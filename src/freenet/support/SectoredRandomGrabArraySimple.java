@@ -16,20 +16,14 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
     }
     
     public SectoredRandomGrabArraySimple(MyType object, RemoveRandomParent parent,
-            ClientRequestSelector root) {
-        super(object, parent, root);
+            ClientRequestSelector root, Object lock) {
+        super(object, parent, root, lock);
     }
 
     /** Add directly to a RandomGrabArrayWithObject under us. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
-        RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
-        if(rga == null) {
-            if(logMINOR)
-                Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
-            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root);
-            addElement(client, rga);
-        }
+        synchronized(lock) {
+        RandomGrabArrayWithObject<ChildType> rga = makeGrabber(client);
         if(logMINOR)
             Logger.minor(this, "Adding "+item+" to RGA "+rga+" for "+client);
         rga.add(item, context);
@@ -41,4 +35,18 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
         }
     }
 
+    /** Get the RandomGrabArrayWithObject for a client, creating it if necessary. */
+    public RandomGrabArrayWithObject<ChildType> makeGrabber(ChildType client) {
+        synchronized(lock) {
+            RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
+            if(rga == null) {
+                if(logMINOR)
+                    Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this);
+                rga = new RandomGrabArrayWithObject<ChildType>(client, this, lock);
+                addElement(client, rga);
+            }
+            return rga;
+        }
+    }
+
 }
@@ -6,14 +6,14 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	private MyType object;
 	
-	public SectoredRandomGrabArrayWithObject(MyType object, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+	public SectoredRandomGrabArrayWithObject(MyType object, RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		super(parent, root, lock);
 		this.object = object;
 	}
 
 	@Override
 	public MyType getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return object;
 	    }
 	}
@@ -25,7 +25,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public void setObject(MyType client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        object = client;
 	    }
 	}
@@ -124,15 +124,24 @@ public class SerialExecutor implements Executor {
 
 	@Override
 	public void execute(Runnable job, String jobName) {
+		tryExecute(job, jobName);
+	}
+
+	/**
+	 * Queue a job.
+	 * @return False if the queue is bounded and full, in which case the job will not be run.
+	 */
+	public boolean tryExecute(Runnable job, String jobName) {
 		if (logMINOR)
 			Logger.minor(this, "Running " + jobName + " : " + job + " started=" + threadStarted + " waiting="
 			        + threadWaiting);
-		jobs.offer(job);
+		boolean queued = jobs.offer(job);
 
 		synchronized (syncLock) {
 			if (!threadStarted && realExecutor != null)
 				reallyStart();
 		}
+		return queued;
 	}
 
 	@Override
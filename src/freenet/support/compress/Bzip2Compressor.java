@@ -26,9 +26,29 @@ import freenet.support.io.HeaderStreams;
 ** Due to historical reasons (we used to use the ant-tools bz2 libraries,
 ** rather than commons-compress) the compressed streams **DO NOT** have the
 ** standard "BZ" header.
+**
+** BZIP2 compresses exactly as older builds did, on the calling thread, so that reinserting
+** a file gives the same CHK. BZIP2_PARALLEL compresses in chunks on several threads (see
+** {@link ParallelBzip2Compressor}): It is an ordinary bzip2 stream, decompressed in the same
+** way, but the bytes are different for anything bigger than a chunk.
 */
 public class Bzip2Compressor implements Compressor {
 
+	/** Maximum threads used by BZIP2_PARALLEL to compress one file. Set with
+	 * -Dfreenet.compress.bzip2.threads, default is the number of cores; 1 always compresses on
+	 * the calling thread. The output is the same whatever this is set to. */
+	static final int THREADS;
+	static {
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			threads = Integer.parseInt(System.getProperty("freenet.compress.bzip2.threads",
+					Integer.toString(threads)));
+		} catch (NumberFormatException e) {
+			// Use the default.
+		}
+		THREADS = Math.max(1, threads);
+	}
+
 	final public static byte[] BZ_HEADER;
 	static {
 		try {
@@ -38,6 +58,18 @@ public class Bzip2Compressor implements Compressor {
 		}
 	}
 
+	/** If true, compress in chunks, see ParallelBzip2Compressor. */
+	private final boolean parallel;
+
+	/** The legacy single stream compressor. */
+	public Bzip2Compressor() {
+		this(false);
+	}
+
+	Bzip2Compressor(boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	@Override
 	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
 		Bucket output = bf.makeBucket(maxWriteLength);
@@ -61,6 +93,10 @@ public class Bzip2Compressor implements Compressor {
 	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
 		if(maxReadLength <= 0)
 			throw new IllegalArgumentException();
+		if(parallel)
+			// Always the same format, so the output doesn't depend on the number of threads.
+			return ParallelBzip2Compressor.compress(is, os, maxReadLength, maxWriteLength,
+					THREADS > 1 ? ParallelBzip2Compressor.getExecutor() : null, THREADS);
 		BZip2CompressorOutputStream bz2os = null;
 		try {
 			CountedOutputStream cos = new CountedOutputStream(os);
@@ -130,6 +166,11 @@ public class Bzip2Compressor implements Compressor {
 		}
 	}
 
+	@Override
+	public InputStream decompressingStream(InputStream input) throws IOException {
+		return new BZip2CompressorInputStream(HeaderStreams.augInput(BZ_HEADER, input));
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
@@ -0,0 +1,125 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Predicts which compressors are worth running on a large file by compressing a few evenly
+ * spaced samples of it with each one. Trying every codec on the whole file takes three or four
+ * times as long as the best one alone, whereas sampling costs about as much as compressing
+ * 1MB with each.
+ *
+ * The prediction is only used to skip codecs: Whatever survives is still run on the whole file
+ * and the smallest output wins, so a wrong guess can only lose a little compression, never
+ * produce a bad insert.
+ */
+public class CompressionSampler {
+
+    /** Don't bother sampling files smaller than this, just try everything. */
+    public static final long MIN_SIZE = 8*1024*1024;
+    /** Number of samples to take. */
+    static final int SAMPLES = 4;
+    /** Size of each sample. Big enough for the codecs' dictionaries to warm up. */
+    static final int SAMPLE_SIZE = 256*1024;
+    /** Keep codecs whose predicted output is within this fraction of the best prediction. */
+    static final double MARGIN = 0.03;
+    /** If the best codec can't beat this ratio on the samples, the data is incompressible. */
+    static final double INCOMPRESSIBLE = 0.98;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(CompressionSampler.class);
+    }
+
+    /**
+     * Choose which codecs to run on the whole of the data.
+     * @param data The data to be compressed.
+     * @param comps The codecs we would otherwise try, in order of preference.
+     * @return The codecs worth trying, in the same order. May be empty if the data does not
+     * appear to be compressible at all. If the data is too small to sample, returns comps.
+     */
+    public static COMPRESSOR_TYPE[] selectCodecs(Bucket data, COMPRESSOR_TYPE[] comps)
+    throws IOException {
+        long size = data.size();
+        if(size < MIN_SIZE || comps.length == 0) return comps;
+        byte[][] samples = readSamples(data, size);
+        long total = 0;
+        for(byte[] sample : samples) total += sample.length;
+        long[] predicted = new long[comps.length];
+        long best = Long.MAX_VALUE;
+        for(int i=0;i<comps.length;i++) {
+            predicted[i] = compressedSize(comps[i], samples);
+            if(predicted[i] < best) best = predicted[i];
+        }
+        ArrayList<COMPRESSOR_TYPE> keep = new ArrayList<COMPRESSOR_TYPE>(comps.length);
+        if(best < total * INCOMPRESSIBLE) {
+            for(int i=0;i<comps.length;i++) {
+                if(predicted[i] <= best * (1.0 + MARGIN))
+                    keep.add(comps[i]);
+            }
+        }
+        if(logMINOR) {
+            StringBuilder sb = new StringBuilder();
+            for(int i=0;i<comps.length;i++)
+                sb.append(comps[i]).append('=').append(predicted[i]).append(' ');
+            Logger.minor(CompressionSampler.class, "Sampled "+total+" of "+size+" bytes: "+sb+
+                    "keeping "+keep);
+        }
+        return keep.toArray(new COMPRESSOR_TYPE[keep.size()]);
+    }
+
+    /** Read SAMPLES evenly spaced samples, the first at the start and the last at the end. */
+    static byte[][] readSamples(Bucket data, long size) throws IOException {
+        byte[][] samples = new byte[SAMPLES][SAMPLE_SIZE];
+        long gap = (size - (long)SAMPLES * SAMPLE_SIZE) / (SAMPLES - 1);
+        InputStream is = data.getInputStream();
+        try {
+            DataInputStream dis = new DataInputStream(is);
+            for(int i=0;i<SAMPLES;i++) {
+                if(i > 0) FileUtil.skipFully(is, gap);
+                dis.readFully(samples[i]);
+            }
+        } finally {
+            Closer.close(is);
+        }
+        return samples;
+    }
+
+    /** Total size of the samples compressed separately with a codec. If the codec fails,
+     * returns Long.MAX_VALUE so it is not chosen. */
+    static long compressedSize(COMPRESSOR_TYPE comp, byte[][] samples) {
+        long total = 0;
+        for(byte[] sample : samples) {
+            CountedOutputStream os = new CountedOutputStream(new NullOutputStream());
+            try {
+                comp.compress(new ByteArrayInputStream(sample), os, sample.length,
+                        Long.MAX_VALUE);
+            } catch (IOException e) {
+                // Including CompressionOutputSizeException.
+                return Long.MAX_VALUE;
+            } catch (RuntimeException e) {
+                // Same as InsertCompressor: Treat a codec bug as a failure of that codec.
+                Logger.error(CompressionSampler.class, "Compression failed with codec "+comp+
+                        " : "+e, e);
+                return Long.MAX_VALUE;
+            }
+            total += os.written();
+        }
+        return total;
+    }
+
+}
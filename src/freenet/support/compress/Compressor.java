@@ -27,7 +27,11 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Bzip2 compressed on several threads. Different bytes to BZIP2 for big files, so it
+		// needs its own ID to keep CHKs convergent, and older nodes can't decode it, so it is
+		// only used if asked for. FIXME make it a default with the next CompatibilityMode.
+		BZIP2_PARALLEL("BZIP2_PARALLEL", new Bzip2Compressor(true), (short)4);
 
 		public final String name;
 		public final Compressor compressor;
@@ -96,14 +100,14 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor, boolean pre1254) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					if((v == LZMA) && !pre1254) continue;
 					if((v == LZMA_NEW) && pre1254) continue;
-					ret[x++] = v;
+					if(v == BZIP2_PARALLEL) continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -155,6 +159,11 @@ public interface Compressor {
 			return compressor.decompress(dbuf, i, j, output);
 		}
 
+		@Override
+		public InputStream decompressingStream(InputStream input) throws IOException {
+			return compressor.decompressingStream(input);
+		}
+
 		public static int countCompressors() {
 			return values.length;
 		}
@@ -197,6 +206,16 @@ public interface Compressor {
 	 */
 	public abstract long decompress(InputStream input, OutputStream output, long maxLength, long maxEstimateSizeLength) throws IOException, CompressionOutputSizeException;
 
+	/**
+	 * Decompress data as it is read, on the reading thread. Does not enforce any length limit,
+	 * see DecompressorChain.
+	 * @param input Where to read the data to decompress from. Should be buffered.
+	 * @return A stream returning the decompressed data, or null if this codec can only
+	 * decompress by writing to an OutputStream (use decompress(InputStream, OutputStream, ...)).
+	 * @throws IOException If the stream header cannot be read.
+	 */
+	public abstract InputStream decompressingStream(InputStream input) throws IOException;
+
 	/** Decompress in RAM only.
 	 * @param dbuf Input buffer.
 	 * @param i Offset to start reading from.
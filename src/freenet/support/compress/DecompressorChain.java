@@ -0,0 +1,282 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/** Applies a list of decompressors to a stream. Where the codec supports it
+ * (Compressor.decompressingStream()), each stage is an InputStream wrapped around the previous
+ * one, so the data is decompressed by whichever thread reads the result, with no extra
+ * threads, pipes or hand-offs. Codecs which can only decompress to an OutputStream (LZMA) get
+ * a pooled thread and a large pipe for their stage, as before.
+ *
+ * Each stage is limited to maxLen bytes of output, and throws a
+ * CompressionOutputSizeException if there is more, after reading up to 4 * maxLen further bytes
+ * to estimate the real size, exactly as Compressor.decompress() does. Errors are thrown to the
+ * reader; errors in a threaded stage are also returned by waitFinished().
+ */
+public class DecompressorChain {
+
+	/** Size of the buffer in front of each stage. */
+	public static final int BUFFER_SIZE = 32768;
+	/** Size of pipes feeding a decompressor. Also used by callers for the pipe they write the
+	 * compressed data to, so the writer isn't woken for every kilobyte. */
+	public static final int PIPE_SIZE = 65536;
+
+	private final InputStream output;
+	private int runningStages;
+	private Throwable error;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final Executor threadedStageExecutor =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Decompressor thread");
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+
+	/** Set up the chain. Nothing is read until the stream returned by execute() is read.
+	 * @param input The stream that will be decompressed.
+	 * @param decompressors The decompressors, in the order they were applied when compressing,
+	 * so the last is used first. Not modified.
+	 * @param maxLen The maximum number of bytes to extract at each stage.
+	 */
+	public DecompressorChain(InputStream input, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+		if(input == null) throw new IOException("Input stream may not be null");
+		for(int i=decompressors.size()-1;i>=0;i--) {
+			Compressor compressor = decompressors.get(i);
+			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
+			input = new BufferedInputStream(input, BUFFER_SIZE);
+			input = new LimitedStream(new LazyStage(compressor, input, maxLen), maxLen);
+		}
+		output = input;
+	}
+
+	/** @return The stream from which the decompressed data can be read. Threaded stages are
+	 * started when it is first read. */
+	public InputStream execute() {
+		return output;
+	}
+
+	/** Wait for any threaded stages to finish. Errors in the other stages are thrown by the
+	 * stream when they happen.
+	 * @throws Throwable The first error in a threaded stage. */
+	public synchronized void waitFinished() throws Throwable {
+		while(runningStages > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+		if(error != null) throw error;
+	}
+
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	private synchronized void onStageFinished(Throwable t) {
+		if(t != null && error == null) error = t;
+		runningStages--;
+		notifyAll();
+	}
+
+	/** Creates the codec's stream on the first read, because the codecs read their headers
+	 * when created, and the data may not have been written yet. For codecs which can't
+	 * decompress as a stream, starts a threaded stage instead. */
+	private class LazyStage extends InputStream {
+
+		private final Compressor compressor;
+		private InputStream in;
+		private final long maxLen;
+		private boolean started;
+
+		LazyStage(Compressor compressor, InputStream in, long maxLen) {
+			this.compressor = compressor;
+			this.in = in;
+			this.maxLen = maxLen;
+		}
+
+		private InputStream stream() throws IOException {
+			if(!started) {
+				InputStream s = compressor.decompressingStream(in);
+				if(s == null) s = startThreaded(compressor, in, maxLen);
+				in = s;
+				started = true;
+			}
+			return in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return stream().read();
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			return stream().read(buf, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	private InputStream startThreaded(final Compressor compressor, final InputStream in, final long maxLen) throws IOException {
+		final PipedInputStream pipeIn = new PipedInputStream(PIPE_SIZE);
+		final PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		synchronized(this) {
+			runningStages++;
+		}
+		threadedStageExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				Throwable failure = null;
+				OutputStream os = new BufferedOutputStream(pipeOut, BUFFER_SIZE);
+				try {
+					compressor.decompress(in, os, maxLen, maxLen * 4);
+					os.close();
+					os = null;
+				} catch (Throwable t) {
+					failure = t;
+				} finally {
+					Closer.close(in);
+					Closer.close(os);
+					onStageFinished(failure);
+				}
+			}
+
+		});
+		return new FilterInputStream(pipeIn) {
+
+			// The pipe just ends if the decompressor fails, so tell the reader why.
+
+			@Override
+			public int read() throws IOException {
+				int x = super.read();
+				if(x == -1) checkError();
+				return x;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				int x = super.read(buf, off, len);
+				if(x == -1) checkError();
+				return x;
+			}
+
+			private void checkError() throws IOException {
+				Throwable t;
+				try {
+					waitFinished();
+					return;
+				} catch (Throwable e) {
+					t = e;
+				}
+				if(t instanceof IOException) throw (IOException) t;
+				throw new IOException(t);
+			}
+
+		};
+	}
+
+	/** Enforces maxLen on a stage, the same way as Compressor.decompress(). */
+	private static class LimitedStream extends FilterInputStream {
+
+		private final long maxLen;
+		private long read;
+
+		LimitedStream(InputStream in, long maxLen) {
+			super(in);
+			this.maxLen = maxLen;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int x = in.read();
+			if(x != -1) {
+				read++;
+				if(read > maxLen) tooBig();
+			}
+			return x;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int x = in.read(buf, off, len);
+			if(x > 0) {
+				read += x;
+				if(read > maxLen) tooBig();
+			}
+			return x;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Must count everything.
+			byte[] buf = new byte[(int)Math.min(n, BUFFER_SIZE)];
+			long skipped = 0;
+			while(skipped < n) {
+				int x = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+				if(x <= 0) break;
+				skipped += x;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void tooBig() throws IOException {
+			if(logMINOR) Logger.minor(this, "Decompressed more than "+maxLen+" bytes");
+			// Read up to 4 * maxLen more to estimate the size.
+			long limit = maxLen + maxLen * 4;
+			byte[] buf = new byte[BUFFER_SIZE];
+			while(read < limit) {
+				int x = in.read(buf, 0, (int)Math.min(buf.length, limit - read));
+				if(x == -1) throw new CompressionOutputSizeException(read);
+				read += x;
+			}
+			throw new CompressionOutputSizeException();
+		}
+
+	}
+
+}
@@ -110,6 +110,11 @@ public class GzipCompressor implements Compressor {
 		}
 	}
 
+	@Override
+	public InputStream decompressingStream(InputStream input) throws IOException {
+		return new GZIPInputStream(input, 32768);
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
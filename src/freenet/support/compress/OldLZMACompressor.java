@@ -128,6 +128,12 @@ public class OldLZMACompressor implements Compressor {
 		return cos.written();
 	}
 
+	@Override
+	public InputStream decompressingStream(InputStream input) {
+		// The LZMA decoder can only push to an OutputStream.
+		return null;
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
@@ -0,0 +1,378 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * Compresses bzip2, possibly using several threads, producing a single ordinary bzip2 stream.
+ *
+ * The input is cut into chunks which each fit in one 900k bzip2 block, and each chunk is
+ * compressed independently as a complete stream on a worker thread. Blocks in a bzip2 stream
+ * don't depend on each other, so we take the block out of each of these streams and splice
+ * them together, in order, behind one stream header, followed by one end of stream marker
+ * with the combined CRC. Blocks are not byte aligned, so splicing means shifting bits.
+ *
+ * We can't simply concatenate whole streams, which is what pbzip2 does: Bzip2Compressor does
+ * not decompress concatenated streams, and strips only the first "BZ" header, so existing
+ * nodes would silently truncate the data. A single stream decompresses anywhere.
+ *
+ * The output depends only on the input, never on the number of threads: CHKs must be
+ * convergent, so two nodes inserting the same file must produce the same bytes. BZIP2_PARALLEL
+ * always uses this format, and with one thread simply compresses the chunks one at a time on
+ * the calling thread. Input that fits in one chunk compresses to exactly what
+ * BZip2CompressorOutputStream would produce, but bigger input is split into smaller blocks than
+ * BZIP2 uses, which is why this is a separate codec.
+ *
+ * Each chunk being compressed needs about 8MB for bzip2's working state, so the chunks handed
+ * to the shared pool, by all callers together, are limited to MEMORY_LIMIT in the same way as
+ * MemoryLimitedJobRunner limits jobs. When there is no memory to spare, the caller compresses
+ * the next chunk itself.
+ */
+class ParallelBzip2Compressor {
+
+    /** Input bytes per chunk. The first (run length) stage of bzip2 can expand the input by up
+     * to 5/4, and a 900k block holds 900000-20 bytes after that, so this always fits in one
+     * block. A little smaller than a full block, but the difference in compression is tiny. */
+    static final int CHUNK_SIZE = 700*1000;
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    /** Bits in "BZh9". */
+    private static final int HEADER_BITS = 32;
+
+    /** Memory used by compressing one chunk: bzip2's working state for a 900k block (400k plus
+     * 8 times the block size), plus the chunk and its compressed output. */
+    static final long MEMORY_PER_CHUNK = 400*1024 + 8*900*1000 + 2*CHUNK_SIZE;
+    /** Maximum memory used by chunks queued or running on the shared pool: Enough to keep every
+     * thread busy with one chunk queued. */
+    static final long MEMORY_LIMIT = (Bzip2Compressor.THREADS + 1) * MEMORY_PER_CHUNK;
+
+    private static ExecutorService sharedExecutor;
+    /** Memory allocated to chunks queued or running on a pool, for all callers. */
+    private static long memoryUsed;
+
+    /** Shared worker pool, created when first needed. */
+    static synchronized ExecutorService getExecutor() {
+        if(sharedExecutor == null)
+            sharedExecutor = Executors.newFixedThreadPool(Bzip2Compressor.THREADS,
+                    new RealCompressor.CompressorThreadFactory());
+        return sharedExecutor;
+    }
+
+    /** Allocate memory for a chunk to be compressed on the pool.
+     * @return False if there isn't enough to spare. */
+    static synchronized boolean allocate(long memoryLimit) {
+        if(memoryUsed + MEMORY_PER_CHUNK > memoryLimit) return false;
+        memoryUsed += MEMORY_PER_CHUNK;
+        return true;
+    }
+
+    static synchronized void deallocate() {
+        assert(memoryUsed >= MEMORY_PER_CHUNK);
+        memoryUsed -= MEMORY_PER_CHUNK;
+    }
+
+    /** For tests. */
+    static synchronized long memoryUsed() {
+        return memoryUsed;
+    }
+
+    /** Compresses one chunk. If it was queued on a pool, gives back its memory when done, or
+     * when cancelled before it starts. */
+    private static class ChunkTask implements Callable<CompressedBlock> {
+
+        private final byte[] chunk;
+        private final boolean allocated;
+        /** Set when the task starts, or is cancelled before starting. */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        ChunkTask(byte[] chunk, boolean allocated) {
+            this.chunk = chunk;
+            this.allocated = allocated;
+        }
+
+        @Override
+        public CompressedBlock call() throws IOException {
+            if(!claimed.compareAndSet(false, true)) return null;
+            try {
+                return compressChunk(chunk);
+            } finally {
+                if(allocated) deallocate();
+            }
+        }
+
+        /** Stop the task from running if it hasn't started yet. */
+        void cancel() {
+            if(claimed.compareAndSet(false, true) && allocated)
+                deallocate();
+        }
+
+    }
+
+    /** A chunk compressed as a bzip2 stream, and where its block is. */
+    private static class CompressedBlock {
+        final byte[] stream;
+        final long startBit;
+        final long endBit;
+        final int crc;
+
+        CompressedBlock(byte[] stream, long startBit, long endBit, int crc) {
+            this.stream = stream;
+            this.startBit = startBit;
+            this.endBit = endBit;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Compress the input to the output, without the "BZ" header, like
+     * Bzip2Compressor.compress().
+     * @param executor The pool to compress chunks on, or null to compress them all on this
+     * thread. The output is the same either way.
+     * @param threads Maximum number of chunks being compressed at once.
+     * @return The number of bytes written.
+     */
+    static long compress(InputStream is, OutputStream os, long maxReadLength,
+            long maxWriteLength, ExecutorService executor, int threads)
+    throws IOException, CompressionOutputSizeException {
+        return compress(is, os, maxReadLength, maxWriteLength, executor, threads, MEMORY_LIMIT);
+    }
+
+    /** @param memoryLimit Don't queue more chunks on the pool if the memory used by all queued
+     * and running chunks would exceed this. */
+    static long compress(InputStream is, OutputStream os, long maxReadLength,
+            long maxWriteLength, ExecutorService executor, int threads, long memoryLimit)
+    throws IOException, CompressionOutputSizeException {
+        CountedOutputStream cos = new CountedOutputStream(os);
+        BitWriter out = new BitWriter(cos);
+        // The header, minus "BZ".
+        out.writeBits(8, 'h');
+        out.writeBits(8, '9');
+        ArrayDeque<ChunkTask> tasks = new ArrayDeque<ChunkTask>();
+        ArrayDeque<Future<CompressedBlock>> pending = new ArrayDeque<Future<CompressedBlock>>();
+        int combinedCRC = 0;
+        long read = 0;
+        try {
+            boolean eof = false;
+            while(!eof || !pending.isEmpty()) {
+                // Keep every thread busy, plus one chunk queued, as long as there is memory.
+                while(!eof && (pending.isEmpty() ||
+                        (executor != null && pending.size() <= threads))) {
+                    boolean allocated = executor != null && allocate(memoryLimit);
+                    if(!allocated && !pending.isEmpty()) break;
+                    boolean queued = false;
+                    try {
+                        int toRead = (int) Math.min(CHUNK_SIZE, maxReadLength - read);
+                        byte[] chunk = readChunk(is, toRead);
+                        if(chunk == null) {
+                            eof = true;
+                            break;
+                        }
+                        read += chunk.length;
+                        if(chunk.length < toRead || read == maxReadLength) eof = true;
+                        ChunkTask task = new ChunkTask(chunk, allocated);
+                        Future<CompressedBlock> future;
+                        if(allocated) {
+                            future = executor.submit(task);
+                        } else {
+                            // No pool, or no memory to spare: Compress it on this thread.
+                            FutureTask<CompressedBlock> f = new FutureTask<CompressedBlock>(task);
+                            f.run();
+                            future = f;
+                        }
+                        pending.add(future);
+                        tasks.add(task);
+                        queued = true;
+                    } finally {
+                        if(allocated && !queued) deallocate();
+                    }
+                }
+                if(pending.isEmpty()) break;
+                tasks.removeFirst();
+                CompressedBlock block = get(pending.removeFirst());
+                out.writeBits(block.stream, block.startBit, block.endBit);
+                combinedCRC = (combinedCRC << 1 | combinedCRC >>> 31) ^ block.crc;
+                if(cos.written() > maxWriteLength)
+                    throw new CompressionOutputSizeException();
+            }
+        } finally {
+            for(ChunkTask task : tasks)
+                task.cancel();
+            for(Future<CompressedBlock> f : pending)
+                f.cancel(false);
+        }
+        out.writeBits(48, EOS_MAGIC);
+        out.writeBits(32, combinedCRC & 0xFFFFFFFFL);
+        out.flush();
+        if(cos.written() > maxWriteLength)
+            throw new CompressionOutputSizeException();
+        return cos.written();
+    }
+
+    private static CompressedBlock get(Future<CompressedBlock> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof IOException) throw (IOException) cause;
+                    if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if(cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Read up to length bytes, or null if at end of stream. */
+    private static byte[] readChunk(InputStream is, int length) throws IOException {
+        if(length <= 0) return null;
+        byte[] buf = new byte[length];
+        int offset = 0;
+        while(offset < length) {
+            int x = is.read(buf, offset, length - offset);
+            if(x == -1) break;
+            if(x == 0) throw new IOException("Returned zero from read()");
+            offset += x;
+        }
+        if(offset == 0) return null;
+        if(offset < length) {
+            byte[] b = new byte[offset];
+            System.arraycopy(buf, 0, b, 0, offset);
+            buf = b;
+        }
+        return buf;
+    }
+
+    /** Compress one chunk to a complete stream, and find the block in it. */
+    static CompressedBlock compressChunk(byte[] chunk) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.length / 3 + 1024);
+        BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(baos);
+        bz2os.write(chunk);
+        bz2os.close();
+        byte[] stream = baos.toByteArray();
+        if(readBits(stream, HEADER_BITS, 48) != BLOCK_MAGIC)
+            throw new IllegalStateException("No block after bzip2 stream header");
+        int crc = (int) readBits(stream, HEADER_BITS + 48, 32);
+        // The stream ends with the end of stream marker, the combined CRC, and 0-7 bits of
+        // padding. With exactly one block, the combined CRC is the block CRC.
+        long totalBits = (long)stream.length * 8;
+        for(int pad=0;pad<8;pad++) {
+            long end = totalBits - pad - 80;
+            if(end <= HEADER_BITS) break;
+            if(readBits(stream, end, 48) == EOS_MAGIC && (int) readBits(stream, end + 48, 32) == crc)
+                return new CompressedBlock(stream, HEADER_BITS, end, crc);
+        }
+        // Can't happen given CHUNK_SIZE.
+        throw new IllegalStateException("Chunk did not compress to exactly one bzip2 block");
+    }
+
+    /** Read up to 64 bits, most significant first, starting at a bit offset. */
+    static long readBits(byte[] buf, long bitOffset, int count) {
+        long value = 0;
+        for(int i=0;i<count;i++) {
+            long bit = bitOffset + i;
+            value = (value << 1) | ((buf[(int)(bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+        }
+        return value;
+    }
+
+    /** Writes a bit stream, most significant bit first, as bzip2 does. */
+    static class BitWriter {
+
+        private final OutputStream os;
+        private final byte[] buffer = new byte[65536];
+        private int bufferUsed;
+        /** Bits not yet written, in the low bitCount bits. */
+        private long bits;
+        private int bitCount;
+
+        BitWriter(OutputStream os) {
+            this.os = os;
+        }
+
+        /** Write the low count bits of value, count at most 32. */
+        void writeBits(int count, long value) throws IOException {
+            if(count > 32) {
+                writeBits(count - 32, value >>> 32);
+                count = 32;
+            }
+            bits = (bits << count) | (value & ((1L << count) - 1));
+            bitCount += count;
+            while(bitCount >= 8) {
+                bitCount -= 8;
+                writeByte((int) (bits >>> bitCount));
+            }
+        }
+
+        /** Write bits [start, end) of a buffer. */
+        void writeBits(byte[] src, long start, long end) throws IOException {
+            long pos = start;
+            // Bytes are read from the source one at a time, shifted into place.
+            int shift = (int) (pos & 7);
+            if(shift == 0 && bitCount == 0) {
+                int from = (int) (pos >>> 3);
+                int to = (int) (end >>> 3);
+                flushBuffer();
+                os.write(src, from, to - from);
+                pos = (long)to << 3;
+            } else {
+                while(end - pos >= 8) {
+                    int index = (int) (pos >>> 3);
+                    int b = (src[index] << shift) & 0xFF;
+                    if(shift != 0) b |= (src[index+1] & 0xFF) >>> (8 - shift);
+                    writeBits(8, b);
+                    pos += 8;
+                }
+            }
+            if(end > pos) {
+                int count = (int) (end - pos);
+                writeBits(count, readBits(src, pos, count));
+            }
+        }
+
+        private void writeByte(int b) throws IOException {
+            if(bufferUsed == buffer.length) flushBuffer();
+            buffer[bufferUsed++] = (byte) b;
+        }
+
+        private void flushBuffer() throws IOException {
+            if(bufferUsed > 0) {
+                os.write(buffer, 0, bufferUsed);
+                bufferUsed = 0;
+            }
+        }
+
+        /** Pad to a byte boundary with zeros, and write everything out. */
+        void flush() throws IOException {
+            if(bitCount > 0) writeBits(8 - bitCount, 0);
+            flushBuffer();
+            os.flush();
+        }
+
+    }
+
+}
@@ -7,6 +7,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 
 import freenet.client.InsertException;
@@ -18,6 +19,10 @@ import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** Runs extra threads for jobs that compress with several codecs at once. */
+    private final ExecutorService helperExecutorService;
+    /** One permit per compression thread, whether running a job or helping one. */
+    private final Semaphore threads;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -26,8 +31,52 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
+        int maxThreads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(maxThreads,
                                                             new CompressorThreadFactory());
+        this.helperExecutorService = Executors.newCachedThreadPool(new CompressorThreadFactory());
+        this.threads = new Semaphore(maxThreads);
+    }
+
+    /** Reserve up to count extra compression threads, without exceeding the overall limit on
+     * compression threads. Each one reserved must be used by calling runHelper(), or given back
+     * with releaseHelperThreads().
+     * @return The number of threads reserved, possibly zero. */
+    public int reserveHelperThreads(int count) {
+        int reserved = 0;
+        while(reserved < count && threads.tryAcquire())
+            reserved++;
+        return reserved;
+    }
+
+    /** Give back threads reserved with reserveHelperThreads() that won't be used. */
+    public void releaseHelperThreads(int count) {
+        if(count > 0) threads.release(count);
+    }
+
+    /** Run a task on a thread reserved with reserveHelperThreads(). */
+    public void runHelper(final Runnable r) {
+        try {
+            helperExecutorService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        threads.release();
+                    }
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down. Run it on the caller's thread so it still completes.
+            try {
+                r.run();
+            } finally {
+                threads.release();
+            }
+        }
     }
 
     public void setClientContext(ClientContext context) {
@@ -45,6 +94,7 @@ public class RealCompressor {
                     @Override
                     public void run() {
                         freenet.support.Logger.OSThread.logPID(this);
+                        threads.acquireUninterruptibly();
                         try {
                             try {
                                 j.tryCompress(context);
@@ -63,6 +113,8 @@ public class RealCompressor {
 
                         } catch (Throwable t) {
                             Logger.error(this, "Caught " + t + " in " + this, t);
+                        } finally {
+                            threads.release();
                         }
                     }
 
@@ -107,6 +159,7 @@ public class RealCompressor {
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        this.helperExecutorService.shutdown();
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
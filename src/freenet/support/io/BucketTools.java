@@ -580,6 +580,8 @@ public class BucketTools {
             return new FileBucket(dis);
         case PersistentTempFileBucket.MAGIC:
             return new PersistentTempFileBucket(dis);
+        case SlabBucket.MAGIC:
+            return new SlabBucket(dis, fg, persistentFileTracker, masterKey);
         case DelayedFreeBucket.MAGIC:
             return new DelayedFreeBucket(dis, fg, persistentFileTracker, masterKey);
         case DelayedFreeRandomAccessBucket.MAGIC:
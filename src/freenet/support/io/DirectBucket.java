@@ -0,0 +1,287 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * An in-memory bucket stored in pages from a DirectBufferPool, i.e. outside the Java heap.
+ * Used by TempBucketFactory instead of ArrayBucket in off-heap mode.
+ *
+ * There can only be one writer at a time, and it only needs the lock when it starts a new
+ * page, so TempBucket can write to the current page without synchronization (tryWrite()). If
+ * the bucket is freed while the writer is still open, the pages are not returned to the pool,
+ * because the writer may still be writing to the last one.
+ */
+public class DirectBucket implements RandomAccessBucket {
+
+    private final DirectBufferPool pool;
+    /** Full pages, then the page being written to. Position is the end of the data. */
+    private final ArrayList<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private volatile long size;
+    private boolean readOnly;
+    private boolean freed;
+    private Writer writer;
+
+    public DirectBucket(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** @return The number of pages in use. */
+    public synchronized int pages() {
+        return pages.size();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        // Writes go straight into the pages anyway.
+        return getOutputStreamUnbuffered();
+    }
+
+    /** Replaces the current contents, like ArrayBucket. */
+    @Override
+    public synchronized Writer getOutputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(readOnly) throw new IOException("Read only");
+        if(writer != null) throw new IOException("Only one OutputStream at a time");
+        releasePages();
+        size = 0;
+        writer = new Writer();
+        return writer;
+    }
+
+    public class Writer extends OutputStream {
+
+        /** The current page. Only accessed by the writing thread. */
+        private ByteBuffer page;
+        private volatile boolean closed;
+
+        /** Write to the current page, if there is room, without locking.
+         * @return False if the caller should use write() instead. */
+        public boolean tryWrite(byte[] buf, int offset, int length) {
+            ByteBuffer p = page;
+            if(closed || p == null || p.remaining() < length) return false;
+            p.put(buf, offset, length);
+            size += length;
+            return true;
+        }
+
+        public boolean tryWrite(int b) {
+            ByteBuffer p = page;
+            if(closed || p == null || !p.hasRemaining()) return false;
+            p.put((byte) b);
+            size++;
+            return true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!tryWrite(b)) write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            if(closed) throw new IOException("Already closed");
+            while(length > 0) {
+                if(page == null || !page.hasRemaining()) nextPage();
+                int x = Math.min(length, page.remaining());
+                page.put(buf, offset, x);
+                size += x;
+                offset += x;
+                length -= x;
+            }
+        }
+
+        private void nextPage() throws IOException {
+            ByteBuffer p = pool.take();
+            synchronized(DirectBucket.this) {
+                if(freed) {
+                    pool.release(p);
+                    throw new IOException("Already freed");
+                }
+                pages.add(p);
+            }
+            page = p;
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            synchronized(DirectBucket.this) {
+                if(writer == this) writer = null;
+            }
+        }
+
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        return new Reader();
+    }
+
+    private class Reader extends InputStream {
+
+        private long pos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            int x = read(buf, 0, 1);
+            if(x <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            if(length == 0) return 0;
+            long end = size;
+            if(pos >= end) return -1;
+            ByteBuffer page;
+            synchronized(DirectBucket.this) {
+                if(freed) throw new IOException("Already freed");
+                page = pages.get((int)(pos / pool.pageSize)).duplicate();
+            }
+            int inPage = (int)(pos % pool.pageSize);
+            int x = (int)Math.min(length, Math.min(pool.pageSize - inPage, end - pos));
+            page.clear();
+            page.position(inPage);
+            page.get(buf, offset, x);
+            pos += x;
+            return x;
+        }
+
+        @Override
+        public long skip(long n) {
+            long x = Math.max(0, Math.min(n, size - pos));
+            pos += x;
+            return x;
+        }
+
+        @Override
+        public int available() {
+            return (int)Math.min(Integer.MAX_VALUE, Math.max(0, size - pos));
+        }
+
+    }
+
+    /** Write the first length bytes to a stream. If it is a FileOutputStream, the pages are
+     * written directly to its FileChannel, without copying them to the heap. */
+    public void copyTo(OutputStream os, long length) throws IOException {
+        ByteBuffer[] p;
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+            p = pages.toArray(new ByteBuffer[pages.size()]);
+        }
+        length = Math.min(length, size);
+        FileChannel channel = null;
+        byte[] buf = null;
+        if(os instanceof FileOutputStream)
+            channel = ((FileOutputStream) os).getChannel();
+        else
+            buf = new byte[Math.min(pool.pageSize, 32768)];
+        for(int i=0;i<p.length && length > 0;i++) {
+            ByteBuffer page = p[i].duplicate();
+            page.clear();
+            page.limit((int)Math.min(pool.pageSize, length));
+            length -= page.remaining();
+            if(channel != null) {
+                while(page.hasRemaining())
+                    channel.write(page);
+            } else {
+                while(page.hasRemaining()) {
+                    int x = Math.min(buf.length, page.remaining());
+                    page.get(buf, 0, x);
+                    os.write(buf, 0, x);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "DirectBucket";
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(freed) return;
+        freed = true;
+        releasePages();
+    }
+
+    private synchronized void releasePages() {
+        // If a writer is open it may still write to its last page, so let the GC have them.
+        if(writer == null) {
+            for(ByteBuffer page : pages)
+                pool.release(page);
+        }
+        pages.clear();
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) throws IOException {
+        throw new UnsupportedOperationException(); // Not persistent.
+    }
+
+    /** Copies the data to the heap. Frees the pages. */
+    @Override
+    public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        setReadOnly();
+        byte[] buf = new byte[(int)size];
+        InputStream is = getInputStreamUnbuffered();
+        try {
+            new DataInputStream(is).readFully(buf);
+        } finally {
+            is.close();
+        }
+        free();
+        return new ByteArrayRandomAccessBuffer(buf, 0, buf.length, true);
+    }
+
+}
@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed size direct (off-heap) ByteBuffer's. Direct buffers don't add to the Java
+ * heap or to garbage collection pauses, but they are expensive to allocate and are only freed
+ * when the GC gets round to it, so we keep some free pages for reuse.
+ */
+public class DirectBufferPool {
+
+    public final int pageSize;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private int maxFree;
+
+    /** @param maxFree The maximum number of unused pages to keep. */
+    public DirectBufferPool(int pageSize, int maxFree) {
+        if(pageSize <= 0) throw new IllegalArgumentException();
+        this.pageSize = pageSize;
+        this.maxFree = maxFree;
+    }
+
+    /** @return An empty page, with position 0 and limit pageSize. */
+    public ByteBuffer take() {
+        ByteBuffer buf;
+        synchronized(this) {
+            buf = free.pollFirst();
+        }
+        if(buf == null) return ByteBuffer.allocateDirect(pageSize);
+        buf.clear();
+        return buf;
+    }
+
+    /** Return a page to the pool. It must not be used afterwards. */
+    public void release(ByteBuffer buf) {
+        if(buf.capacity() != pageSize || !buf.isDirect()) throw new IllegalArgumentException();
+        synchronized(this) {
+            if(free.size() < maxFree) free.addFirst(buf);
+        }
+    }
+
+    public synchronized void setMaxFree(int maxFree) {
+        this.maxFree = maxFree;
+        while(free.size() > maxFree)
+            free.pollLast();
+    }
+
+    public synchronized int freePages() {
+        return free.size();
+    }
+
+}
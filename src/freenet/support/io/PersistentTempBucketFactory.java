@@ -68,6 +68,13 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 
 	static final int BLOB_SIZE = CHKBlock.DATA_LENGTH;
 	
+	/** Buckets expected to be no bigger than this go in a slab rather than a file of their own.
+	 * Sites with thousands of small files otherwise create thousands of tiny temp files. */
+	static final int MAX_SLAB_BUCKET_SIZE = CHKBlock.DATA_LENGTH;
+	
+	/** Small buckets. Null if it could not be opened, in which case we just use files. */
+	private final SlabStore slabs;
+	
         private static volatile boolean logMINOR;
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
@@ -122,6 +129,13 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 		
 		bucketsToFree = new ArrayList<DelayedFree>();
 		commitID = 1; // Must start > 0.
+		SlabStore s = null;
+		try {
+			s = new SlabStore(new File(dir, "slabs"), this, weakPRNG);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to open slabs, using a file for each bucket: "+e, e);
+		}
+		slabs = s;
 	}
 	
 	public void setDiskSpaceChecker(DiskSpaceChecker checker) {
@@ -163,6 +177,7 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 			f.delete();
 		}
 		originalFiles = null;
+		if(slabs != null) slabs.completedInit();
 	}
 
 	/** Create a persistent temporary bucket. Encrypted if appropriate. Wrapped in a 
@@ -172,6 +187,8 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	public RandomAccessBucket makeBucket(long size) throws IOException {
 		RandomAccessBucket rawBucket = null;
 		boolean mustWrap = true;
+		if(slabs != null && size > 0 && size <= MAX_SLAB_BUCKET_SIZE)
+			rawBucket = new SlabBucket(slabs, this);
 		if(rawBucket == null)
 			rawBucket = new PersistentTempFileBucket(fg.makeRandomFilename(), fg, this);
 		synchronized(encryptLock) {
@@ -203,6 +220,8 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
     /** Returns a list of buckets to free. The caller should write the buckets to the checkpoint, 
      * and free them after the checkpoint has written successfully, by calling postCommit(). */
 	public DelayedFree[] grabBucketsToFree() {
+		// The checkpoint will refer to the slots written so far.
+		if(slabs != null) slabs.sync();
 		synchronized(this) {
 			if(bucketsToFree.isEmpty()) return null;
 			DelayedFree[] buckets = bucketsToFree.toArray(new DelayedFree[bucketsToFree.size()]);
@@ -223,6 +242,11 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 		return fg.getDir();
 	}
 
+	/** Get the store for small buckets, or null if we are not using one. */
+	public SlabStore getSlabStore() {
+		return slabs;
+	}
+
 	/** Get the FilenameGenerator */
 	@Override
 	public FilenameGenerator getGenerator() {
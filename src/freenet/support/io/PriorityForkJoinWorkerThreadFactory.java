@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+package freenet.support.io;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon worker threads for a ForkJoinPool at a given NativeThread priority, so
+ * that background work split across the pool (e.g. FEC) doesn't run at normal priority just
+ * because it isn't running on our own executor. Only the Java priority is set: Workers can't be
+ * NativeThread's, so they are not reniced.
+ */
+public class PriorityForkJoinWorkerThreadFactory implements ForkJoinWorkerThreadFactory {
+
+    private final String name;
+    private final int priority;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param name The prefix for the thread names.
+     * @param priority The priority, e.g. NativeThread.LOW_PRIORITY.
+     */
+    public PriorityForkJoinWorkerThreadFactory(String name, int priority) {
+        this.name = name;
+        this.priority = priority;
+    }
+
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+        thread.setName(name + " " + count.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+
+}
@@ -0,0 +1,365 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import freenet.client.async.ClientContext;
+import freenet.crypt.MasterSecret;
+import freenet.support.Logger;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A small persistent temp bucket stored in a slot in a SlabStore, rather than in its own file.
+ * The data is kept in memory while it is written, and goes to a slot when the stream is
+ * closed. If it turns out to be too big for a slot, it is moved to a PersistentTempFileBucket
+ * instead, as it is if we need a RandomAccessBuffer. Slots we no longer need are freed after
+ * the next checkpoint, via the PersistentFileTracker.
+ */
+public class SlabBucket implements RandomAccessBucket, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /** Location of the slot, or slotSize = 0 if there is no data in a slot. */
+    private int slotSize;
+    private int slabNumber;
+    private int slotIndex;
+    /** ID of the data in the slot, from SlabStore.write(). */
+    private long slotID;
+    private long size;
+    /** Non-null if the data was too big for a slot, or we needed a RandomAccessBuffer. */
+    private RandomAccessBucket spilled;
+    private boolean readOnly;
+    private boolean freed;
+    private final boolean deleteOnFree;
+    private transient SlabStore.Slot slot;
+    /** commitID() when the slot was written, or 0 if before the last restart. */
+    private transient long slotCommitID;
+    private transient SlabStore store;
+    private transient PersistentFileTracker tracker;
+    private transient boolean resumed;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(SlabBucket.class);
+    }
+
+    public SlabBucket(SlabStore store, PersistentFileTracker tracker) {
+        this.store = store;
+        this.tracker = tracker;
+        this.deleteOnFree = true;
+    }
+
+    private SlabBucket(SlabBucket parent) {
+        store = parent.store;
+        tracker = parent.tracker;
+        slot = parent.slot;
+        slotSize = parent.slotSize;
+        slabNumber = parent.slabNumber;
+        slotIndex = parent.slotIndex;
+        slotID = parent.slotID;
+        size = parent.size;
+        spilled = parent.spilled == null ? null : parent.spilled.createShadow();
+        readOnly = true;
+        deleteOnFree = false;
+    }
+
+    protected SlabBucket() {
+        // For serialization.
+        deleteOnFree = false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        RandomAccessBucket s;
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+            if(readOnly) throw new IOException("Read only");
+            s = spilled;
+        }
+        if(s != null) return s.getOutputStream();
+        return new SlabOutputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStreamUnbuffered() throws IOException {
+        // Buffered in memory anyway.
+        return getOutputStream();
+    }
+
+    /** Keeps the data in memory until it is closed, then writes it to a slot. If there is too
+     * much, moves it to a file. */
+    private class SlabOutputStream extends OutputStream {
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private RandomAccessBucket file;
+        private OutputStream fileStream;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            if(closed) throw new IOException("Already closed");
+            if(fileStream == null && buffer.size() + length > SlabStore.MAX_DATA_LENGTH) {
+                file = makeFileBucket();
+                fileStream = file.getOutputStream();
+                buffer.writeTo(fileStream);
+                buffer = null;
+            }
+            if(fileStream != null)
+                fileStream.write(buf, offset, length);
+            else
+                buffer.write(buf, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(fileStream != null) fileStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            if(fileStream != null) {
+                fileStream.close();
+                if(logMINOR) Logger.minor(this, "Too big for a slot, moved to "+file);
+                setData(null, 0, 0, file, file.size());
+                return;
+            }
+            byte[] data = buffer.toByteArray();
+            buffer = null;
+            SlabStore.Slot newSlot = null;
+            long id = 0;
+            if(data.length > 0) {
+                newSlot = store.allocate(data.length);
+                try {
+                    id = store.write(newSlot, data, 0, data.length);
+                } catch (IOException e) {
+                    store.release(newSlot);
+                    throw e;
+                }
+            }
+            setData(newSlot, id, tracker.commitID(), null, data.length);
+        }
+
+    }
+
+    private RandomAccessBucket makeFileBucket() throws IOException {
+        FilenameGenerator fg = tracker.getGenerator();
+        return new PersistentTempFileBucket(fg.makeRandomFilename(), fg, tracker);
+    }
+
+    /** Replace the data, freeing the old slot after the next checkpoint. */
+    private void setData(SlabStore.Slot newSlot, long id, long commitID, RandomAccessBucket file, long newSize) {
+        SlabStore.Slot oldSlot;
+        long oldCommitID;
+        synchronized(this) {
+            oldSlot = slot;
+            oldCommitID = slotCommitID;
+            slot = newSlot;
+            slotCommitID = commitID;
+            slotID = id;
+            if(newSlot != null) {
+                slotSize = newSlot.slotSize();
+                slabNumber = newSlot.slabNumber();
+                slotIndex = newSlot.index();
+            } else {
+                slotSize = 0;
+            }
+            spilled = file;
+            size = newSize;
+        }
+        if(oldSlot != null)
+            tracker.delayedFree(new SlotFree(store, oldSlot), oldCommitID);
+    }
+
+    /** Frees a slot after the checkpoint no longer refers to it. Written to the checkpoint 
+     * like the other DelayedFree's, but does nothing after a restart, because a slot no bucket 
+     * has registered is free anyway. */
+    private static class SlotFree implements DelayedFree, Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final transient SlabStore store;
+        private final transient SlabStore.Slot slot;
+
+        SlotFree(SlabStore store, SlabStore.Slot slot) {
+            this.store = store;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean toFree() {
+            return true;
+        }
+
+        @Override
+        public void realFree() {
+            if(store != null) store.release(slot);
+        }
+
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public InputStream getInputStreamUnbuffered() throws IOException {
+        SlabStore.Slot s;
+        long id;
+        RandomAccessBucket file;
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+            s = slot;
+            id = slotID;
+            file = spilled;
+        }
+        if(file != null) return file.getInputStream();
+        if(s == null) return new ByteArrayInputStream(new byte[0]);
+        return new ByteArrayInputStream(store.read(s, id));
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket:"+slot;
+    }
+
+    @Override
+    public long size() {
+        RandomAccessBucket file;
+        synchronized(this) {
+            if(spilled == null) return size;
+            file = spilled;
+        }
+        return file.size();
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public void free() {
+        SlabStore.Slot s;
+        RandomAccessBucket file;
+        synchronized(this) {
+            if(freed || !deleteOnFree) return;
+            freed = true;
+            s = slot;
+            file = spilled;
+            slot = null;
+        }
+        // Not registered if it was freed before a restart.
+        if(s != null) store.release(s);
+        if(file != null) file.free();
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return new SlabBucket(this);
+    }
+
+    /** Moves the data to a file, since a slot can't be written once it has been read. */
+    @Override
+    public LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        RandomAccessBucket file;
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+            readOnly = true;
+            file = spilled;
+        }
+        if(file == null) {
+            file = makeFileBucket();
+            BucketTools.copy(this, file);
+            setData(null, 0, 0, file, file.size());
+        }
+        return file.toRandomAccessBuffer();
+    }
+
+    @Override
+    public void onResume(ClientContext context) throws ResumeFailedException {
+        RandomAccessBucket file;
+        synchronized(this) {
+            if(resumed) return;
+            resumed = true;
+            store = context.persistentBucketFactory.getSlabStore();
+            tracker = context.persistentFileTracker;
+            file = spilled;
+        }
+        if(file != null) {
+            file.onResume(context);
+        } else if(slotSize != 0) {
+            if(store == null) throw new ResumeFailedException("Slabs not available");
+            SlabStore.Slot s = store.register(slotSize, slabNumber, slotIndex);
+            synchronized(this) {
+                slot = s;
+            }
+        }
+    }
+
+    public static final int MAGIC = 0x3c8e2d41;
+    static final int VERSION = 1;
+
+    @Override
+    public void storeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        synchronized(this) {
+            dos.writeInt(slotSize);
+            dos.writeInt(slabNumber);
+            dos.writeInt(slotIndex);
+            dos.writeLong(slotID);
+            dos.writeLong(size);
+            dos.writeBoolean(readOnly);
+            dos.writeBoolean(freed);
+            dos.writeBoolean(deleteOnFree);
+            dos.writeBoolean(spilled != null);
+            if(spilled != null) spilled.storeTo(dos);
+        }
+    }
+
+    protected SlabBucket(DataInputStream dis, FilenameGenerator fg,
+            PersistentFileTracker persistentFileTracker, MasterSecret masterKey)
+    throws IOException, StorageFormatException, ResumeFailedException {
+        int version = dis.readInt();
+        if(version != VERSION) throw new StorageFormatException("Bad version");
+        slotSize = dis.readInt();
+        slabNumber = dis.readInt();
+        slotIndex = dis.readInt();
+        slotID = dis.readLong();
+        size = dis.readLong();
+        if(size < 0 || size > SlabStore.MAX_DATA_LENGTH && slotSize != 0)
+            throw new StorageFormatException("Bad size");
+        readOnly = dis.readBoolean();
+        freed = dis.readBoolean();
+        deleteOnFree = dis.readBoolean();
+        if(dis.readBoolean())
+            spilled = (RandomAccessBucket) BucketTools.restoreFrom(dis, fg, persistentFileTracker, masterKey);
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+getName();
+    }
+
+}
@@ -0,0 +1,387 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import freenet.support.Logger;
+
+/**
+ * Packs small persistent buckets into a few large files ("slabs"), rather than creating a file
+ * for each one. Each slab is preallocated and divided into fixed size slots, and has a single
+ * size class. A slot holds a header plus a power of two bytes of data, from MIN_DATA_LENGTH to
+ * MAX_DATA_LENGTH, so data which has been padded to a power of two (e.g. encrypted buckets, 
+ * see PaddedRandomAccessBucket) fits exactly. A bitmap of used slots is
+ * kept for each slab in memory, but it is not written anywhere: On startup the buckets
+ * register the slots they use as they are resumed, just as PersistentTempFileBucket's register
+ * their files, and after completedInit() any other slots are free. So the allocation state is
+ * always the state of the last checkpoint, plus what has been allocated since.
+ *
+ * Slots are only freed after the checkpoint recording it, via DelayedFree. Each slot starts
+ * with a header containing a random ID chosen when it was written, the length and a CRC, so if
+ * we restart from an old checkpoint (e.g. client.dat.bak) and the slot has since been reused,
+ * or the write was incomplete, we will get an IOException rather than the wrong data. sync()
+ * is called before each checkpoint so the slots it refers to are on disk.
+ *
+ * Slab files are named slab-[slot size]-[number]. Until completedInit(), we don't know which
+ * slots in existing slabs are free, so we only allocate from new slabs.
+ */
+public class SlabStore {
+
+    /** Amount of data that will fit in the smallest slots. */
+    public static final int MIN_DATA_LENGTH = 1024;
+    /** Largest amount of data that will fit in a slot. A CHK block, after padding. */
+    public static final int MAX_DATA_LENGTH = 65536;
+    /** ID, length and CRC. */
+    static final int HEADER_LENGTH = 16;
+    public static final int MIN_SLOT_SIZE = MIN_DATA_LENGTH + HEADER_LENGTH;
+    public static final int MAX_SLOT_SIZE = MAX_DATA_LENGTH + HEADER_LENGTH;
+    /** Maximum size of each slab file. Slabs hold as many slots as will fit. */
+    public static final int SLAB_SIZE = 4*1024*1024;
+    private static final String PREFIX = "slab-";
+
+    private final File dir;
+    private final DiskSpaceChecker checker;
+    private final Random random;
+    /** Slabs by size class: slabs[0] has MIN_SLOT_SIZE byte slots etc. */
+    private final List<Slab>[] slabs;
+    private int nextNumber;
+    private boolean completedInit;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(SlabStore.class);
+    }
+
+    /** A slot within a slab. */
+    public static final class Slot {
+        final Slab slab;
+        final int index;
+
+        private Slot(Slab slab, int index) {
+            this.slab = slab;
+            this.index = index;
+        }
+
+        public int slotSize() {
+            return slab.slotSize;
+        }
+
+        public int slabNumber() {
+            return slab.number;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        long offset() {
+            return (long)index * slab.slotSize;
+        }
+
+        @Override
+        public String toString() {
+            return slab.file.getName()+"#"+index;
+        }
+    }
+
+    final class Slab {
+        final int slotSize;
+        final int number;
+        final File file;
+        private final RandomAccessFile raf;
+        final FileChannel channel;
+        private final BitSet used;
+        private int usedCount;
+        /** Existing slab, not yet usable for allocation. */
+        private boolean frozen;
+        private boolean dirty;
+
+        Slab(int slotSize, int number, boolean create) throws IOException {
+            this.slotSize = slotSize;
+            this.number = number;
+            this.file = new File(dir, PREFIX+slotSize+"-"+number);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            used = new BitSet(slots());
+            if(create) {
+                long length = (long)slots() * slotSize;
+                try {
+                    Fallocate.forChannel(channel, length).execute();
+                } catch (UnsupportedOperationException e) {
+                    // Ignore, setLength() will do.
+                }
+                raf.setLength(length);
+            } else {
+                frozen = true;
+            }
+        }
+
+        int slots() {
+            return SLAB_SIZE / slotSize;
+        }
+
+        boolean isFull() {
+            return usedCount == slots();
+        }
+
+        void close() {
+            Closer.close(raf);
+        }
+    }
+
+    /** Open the slabs in a directory, creating it if necessary.
+     * @param checker Checked before creating a new slab. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SlabStore(File dir, DiskSpaceChecker checker, Random random) throws IOException {
+        this.dir = dir;
+        this.checker = checker;
+        this.random = random;
+        if(!(dir.mkdirs() || dir.isDirectory()))
+            throw new IOException("Unable to create directory "+dir);
+        slabs = new List[sizeClass(MAX_SLOT_SIZE) + 1];
+        for(int i=0;i<slabs.length;i++)
+            slabs[i] = new ArrayList<Slab>();
+        File[] files = dir.listFiles();
+        if(files == null) throw new IOException("Unable to list "+dir);
+        for(File f : files) {
+            String name = f.getName();
+            if(!name.startsWith(PREFIX)) continue;
+            String[] split = name.substring(PREFIX.length()).split("-");
+            int slotSize, number;
+            try {
+                if(split.length != 2) throw new NumberFormatException();
+                slotSize = Integer.parseInt(split[0]);
+                number = Integer.parseInt(split[1]);
+            } catch (NumberFormatException e) {
+                Logger.error(this, "Ignoring unrecognised file "+f);
+                continue;
+            }
+            if(!isValidSlotSize(slotSize) || number < 0) {
+                Logger.error(this, "Ignoring unrecognised file "+f);
+                continue;
+            }
+            slabs[sizeClass(slotSize)].add(new Slab(slotSize, number, false));
+            nextNumber = Math.max(nextNumber, number + 1);
+        }
+        // Fill the oldest slabs first.
+        for(List<Slab> list : slabs) {
+            Collections.sort(list, new Comparator<Slab>() {
+
+                @Override
+                public int compare(Slab slab0, Slab slab1) {
+                    return Integer.compare(slab0.number, slab1.number);
+                }
+
+            });
+        }
+    }
+
+    private static int sizeClass(int slotSize) {
+        return Integer.numberOfTrailingZeros(slotSize - HEADER_LENGTH) - 
+            Integer.numberOfTrailingZeros(MIN_DATA_LENGTH);
+    }
+
+    private static boolean isValidSlotSize(int slotSize) {
+        int dataLength = slotSize - HEADER_LENGTH;
+        return Integer.bitCount(dataLength) == 1 && dataLength >= MIN_DATA_LENGTH && 
+            dataLength <= MAX_DATA_LENGTH;
+    }
+
+    /** Allocate a slot for a given amount of data. */
+    public Slot allocate(int length) throws IOException {
+        if(length < 0 || length > MAX_DATA_LENGTH) throw new IllegalArgumentException();
+        int dataLength = MIN_DATA_LENGTH;
+        while(dataLength < length) dataLength <<= 1;
+        int slotSize = dataLength + HEADER_LENGTH;
+        List<Slab> list = slabs[sizeClass(slotSize)];
+        synchronized(this) {
+            for(Slab slab : list) {
+                if(slab.frozen || slab.isFull()) continue;
+                return take(slab, slab.used.nextClearBit(0));
+            }
+            File f = new File(dir, PREFIX+slotSize+"-"+nextNumber);
+            if(checker != null && !checker.checkDiskSpace(f, SLAB_SIZE, 0))
+                throw new InsufficientDiskSpaceException();
+            Slab slab = new Slab(slotSize, nextNumber++, true);
+            if(logMINOR) Logger.minor(this, "Created "+slab.file);
+            list.add(slab);
+            return take(slab, 0);
+        }
+    }
+
+    private synchronized Slot take(Slab slab, int index) {
+        slab.used.set(index);
+        slab.usedCount++;
+        return new Slot(slab, index);
+    }
+
+    /** While resuming, register a slot used by a bucket, so it won't be reused.
+     * @throws ResumeFailedException If the slab does not exist. */
+    public synchronized Slot register(int slotSize, int slabNumber, int index) throws ResumeFailedException {
+        if(!isValidSlotSize(slotSize))
+            throw new ResumeFailedException("Bad slot size "+slotSize);
+        for(Slab slab : slabs[sizeClass(slotSize)]) {
+            if(slab.number != slabNumber) continue;
+            if(index < 0 || index >= slab.slots())
+                throw new ResumeFailedException("Bad slot "+index+" in "+slab.file);
+            if(!slab.used.get(index)) {
+                slab.used.set(index);
+                slab.usedCount++;
+            }
+            return new Slot(slab, index);
+        }
+        throw new ResumeFailedException("Slab "+PREFIX+slotSize+"-"+slabNumber+" does not exist");
+    }
+
+    /** Free a slot. Must only be called after the checkpoint freeing it has been written. Deletes
+     * the slab if it is now empty. */
+    public synchronized void release(Slot slot) {
+        Slab slab = slot.slab;
+        if(!slab.used.get(slot.index)) {
+            Logger.error(this, "Releasing "+slot+" twice", new Exception("error"));
+            return;
+        }
+        slab.used.clear(slot.index);
+        slab.usedCount--;
+        if(slab.usedCount == 0 && !slab.frozen)
+            deleteSlab(slab);
+    }
+
+    private void deleteSlab(Slab slab) {
+        if(logMINOR) Logger.minor(this, "Deleting empty slab "+slab.file);
+        slab.close();
+        slabs[sizeClass(slab.slotSize)].remove(slab);
+        if(!slab.file.delete())
+            Logger.error(this, "Unable to delete "+slab.file);
+    }
+
+    /** Called when all the persistent buckets have been resumed. Any slots which have not been
+     * registered are free, and slabs with no used slots are deleted. */
+    public synchronized void completedInit() {
+        if(completedInit) return;
+        completedInit = true;
+        for(List<Slab> list : slabs) {
+            for(Slab slab : new ArrayList<Slab>(list)) {
+                slab.frozen = false;
+                if(slab.usedCount == 0) deleteSlab(slab);
+            }
+        }
+    }
+
+    /** Write data to a slot.
+     * @return The random ID of what was written, which must be passed to read(). */
+    public long write(Slot slot, byte[] buf, int offset, int length) throws IOException {
+        if(length > slot.slab.slotSize - HEADER_LENGTH) throw new IllegalArgumentException();
+        long id;
+        synchronized(random) {
+            id = random.nextLong();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf, offset, length);
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_LENGTH + length);
+        bb.putLong(id);
+        bb.putInt(length);
+        bb.putInt((int)crc.getValue());
+        bb.put(buf, offset, length);
+        bb.flip();
+        writeFully(slot.slab.channel, bb, slot.offset());
+        synchronized(this) {
+            slot.slab.dirty = true;
+        }
+        return id;
+    }
+
+    /** Read the data in a slot.
+     * @param id The value returned by write().
+     * @throws IOException If the slot has been overwritten or is corrupt. */
+    public byte[] read(Slot slot, long id) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(slot.slab.channel, header, slot.offset());
+        header.flip();
+        long readID = header.getLong();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if(readID != id)
+            throw new IOException("Slot "+slot+" has been overwritten");
+        if(length < 0 || length > slot.slab.slotSize - HEADER_LENGTH)
+            throw new IOException("Slot "+slot+" is corrupt");
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(slot.slab.channel, data, slot.offset() + HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), 0, length);
+        if((int)crc.getValue() != checksum)
+            throw new IOException("Slot "+slot+" is corrupt");
+        return data.array();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bb, long pos) throws IOException {
+        while(bb.hasRemaining())
+            pos += channel.write(bb, pos);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bb, long pos) throws IOException {
+        while(bb.hasRemaining()) {
+            int x = channel.read(bb, pos);
+            if(x == -1) throw new IOException("Slab truncated");
+            pos += x;
+        }
+    }
+
+    /** Force everything written so far to disk. Called before writing a checkpoint. */
+    public void sync() {
+        List<Slab> toSync = new ArrayList<Slab>();
+        synchronized(this) {
+            for(List<Slab> list : slabs) {
+                for(Slab slab : list) {
+                    if(!slab.dirty) continue;
+                    slab.dirty = false;
+                    toSync.add(slab);
+                }
+            }
+        }
+        for(Slab slab : toSync) {
+            try {
+                slab.channel.force(false);
+            } catch (IOException e) {
+                Logger.error(this, "Unable to sync "+slab.file+": "+e, e);
+            }
+        }
+    }
+
+    /** @return The number of slots in use. */
+    public synchronized int usedSlots() {
+        int count = 0;
+        for(List<Slab> list : slabs)
+            for(Slab slab : list)
+                count += slab.usedCount;
+        return count;
+    }
+
+    /** @return The number of slab files. */
+    public synchronized int slabCount() {
+        int count = 0;
+        for(List<Slab> list : slabs)
+            count += list.size();
+        return count;
+    }
+
+    public synchronized void close() {
+        for(List<Slab> list : slabs)
+            for(Slab slab : list)
+                slab.close();
+    }
+
+}
@@ -72,6 +72,13 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
 	private long maxRamUsed;
+	/** If true, keep RAM buckets in pages from directPool, outside the Java heap. */
+	private volatile boolean offHeap;
+	/** Size of the pages used by off-heap RAM buckets. Memory is accounted for in whole pages. */
+	static final int DIRECT_PAGE_SIZE = 16384;
+	/** Proportion of maxRamUsed to keep as free pages in directPool. */
+	static final double DIRECT_POOL_FREE = 0.1;
+	private final DirectBufferPool directPool;
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
@@ -101,12 +108,18 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public class TempBucket implements Bucket, Migratable, RandomAccessBucket {
 		/** The underlying bucket itself */
 		private RandomAccessBucket currentBucket;
-		/** We have to account the size of the underlying bucket ourself in order to be able to access it fast */
-		private long currentSize;
+		/** We have to account the size of the underlying bucket ourself in order to be able to access it fast.
+		 * Only changed by the writer. */
+		private volatile long currentSize;
 		/** Has an OutputStream been opened at some point? */
 		private boolean hasWritten;
 		/** A link to the "real" underlying outputStream, even if we migrated */
 		private OutputStream os = null;
+		/** Set if os is writing to a DirectBucket, so we can write to the current page without locking. */
+		private volatile DirectBucket.Writer directWriter;
+		/** Set if the cleaner wanted to migrate while a DirectBucket was being written to. The writer will 
+		 * migrate at the next page boundary, flush() or close(). */
+		private volatile boolean migrateRequested;
 		/** All the open-streams to reset or close on migration or free() */
 		private final ArrayList<TempBucketInputStream> tbis;
 		/** An identifier used to know when to deprecate the InputStreams */
@@ -154,27 +167,42 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		
 		/** A blocking method to force-migrate from a RAMBucket to a FileBucket */
 		public final boolean migrateToDisk() throws IOException {
+			return migrateToDisk(false);
+		}
+		
+		/** @param isWriter True if called by the thread writing to the bucket. Otherwise, if it is being
+		 * written to a DirectBucket, the writer may be writing to the current page without locking, so 
+		 * leave it to the writer to migrate. */
+		private boolean migrateToDisk(boolean isWriter) throws IOException {
 			Bucket toMigrate = null;
 			long size;
+			long ram;
 			synchronized(this) {
 				if(!isRAMBucket() || hasBeenFreed)
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
 					return false;
+				if(directWriter != null && !isWriter) {
+					migrateRequested = true;
+					return false;
+				}
 				toMigrate = currentBucket;
 				RandomAccessBucket tempFB = _makeFileBucket();
 				size = currentSize;
+				ram = ramUsage(size);
 				if(os != null) {
 					os.flush();
 					os.close();
+					directWriter = null;
+					migrateRequested = false;
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStreamUnbuffered();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						copyTo(toMigrate, os, size);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStreamUnbuffered();
 						try {
-						BucketTools.copyTo(toMigrate, temp, size);
+						copyTo(toMigrate, temp, size);
 						} finally {
 						temp.close();
 						}
@@ -183,10 +211,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				if(toMigrate.isReadOnly())
 					tempFB.setReadOnly();
 				
-				closeInputStreams(false);
-				
 				currentBucket = tempFB;
 				// We need streams to be reset to point to the new bucket
+				closeInputStreams(false);
 			}
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
@@ -198,12 +225,30 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			// We can free it on-thread as it's a rambucket
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(size);
+			_hasFreed(ram);
 			return true;
 		}
 		
+		/** Copy to a file. Pages of a DirectBucket go straight to the file without a copy on the heap,
+		 * unless we are encrypting. */
+		private void copyTo(Bucket from, OutputStream to, long size) throws IOException {
+			if(from instanceof DirectBucket)
+				((DirectBucket)from).copyTo(to, size);
+			else
+				BucketTools.copyTo(from, to, size);
+		}
+		
+		/** @return The memory accounted for a RAMBucket of the given size: whole pages for a DirectBucket. */
+		private synchronized long ramUsage(long size) {
+			if(currentBucket instanceof DirectBucket) {
+				long pageSize = directPool.pageSize;
+				return (size + pageSize - 1) / pageSize * pageSize;
+			}
+			return size;
+		}
+		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ArrayBucket || currentBucket instanceof DirectBucket);
 		}
 		
 		@Override
@@ -230,8 +275,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		    long CHECK_DISK_EVERY = 4096;
 			boolean closed = false;
 			TempBucketOutputStream(short idx) throws IOException {
-				if(os == null)
+				if(os == null) {
 					os = currentBucket.getOutputStreamUnbuffered();
+					if(os instanceof DirectBucket.Writer)
+						directWriter = (DirectBucket.Writer) os;
+				}
 			}
 			
 			private void _maybeMigrateRamBucket(long futureSize) throws IOException {
@@ -245,7 +293,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
 						isOversized = true;
 						shouldMigrate = true;
-					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
+					} else if ((ramUsage(futureSize) - ramUsage(currentSize)) + bytesInUse >= maxRamUsed)
+						shouldMigrate = true;
+					else if(migrateRequested)
 						shouldMigrate = true;
 					
 					if(shouldMigrate) {
@@ -255,7 +305,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 							else
 								Logger.minor(this, "The bucketpool is full: force-migrate before we go over the limit");
 						}
-						migrateToDisk();
+						migrateToDisk(true);
 					}
 				} else {
 				    // Check for excess disk usage.
@@ -270,27 +320,40 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			
 			@Override
 			public final void write(int b) throws IOException {
+				// Fast path: Room in the current page, already accounted for.
+				DirectBucket.Writer w = directWriter;
+				if(w != null && w.tryWrite(b)) {
+					currentSize++;
+					return;
+				}
 				synchronized(TempBucket.this) {
                     if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + 1;
 					_maybeMigrateRamBucket(futureSize);
+					long taken = ramUsage(futureSize) - ramUsage(currentSize);
 					os.write(b);
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(1);
+						_hasTaken(taken);
 				}
 			}
 			
 			@Override
 			public final void write(byte b[], int off, int len) throws IOException {
+				DirectBucket.Writer w = directWriter;
+				if(w != null && w.tryWrite(b, off, len)) {
+					currentSize += len;
+					return;
+				}
 				synchronized(TempBucket.this) {
 				    if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + len;
 					_maybeMigrateRamBucket(futureSize);
+					long taken = ramUsage(futureSize) - ramUsage(currentSize);
 					os.write(b, off, len);
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(len);
+						_hasTaken(taken);
 				}
 			}
 			
@@ -312,6 +375,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					os.flush();
 					os.close();
 					os = null;
+					directWriter = null;
 					closed = true;
 				}
 			}
@@ -449,12 +513,19 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		        if(hasBeenFreed) return;
 		        hasBeenFreed = true;
 		        
+		        if(directWriter != null) {
+		            // The writer may be writing to its page right now, so free the DirectBucket 
+		            // before closing the writer, so the pages aren't reused.
+		            directWriter = null;
+		            currentBucket.free();
+		        }
 		        Closer.close(os);
 		        closeInputStreams(true);
 		        if(isRAMBucket()) {
+		            long ram = ramUsage(currentSize);
 		            // If it's in memory we must free before removing from the queue.
 		            currentBucket.free();
-		            _hasFreed(currentSize);
+		            _hasFreed(ram);
 		            synchronized(ramBucketQueue) {
 		                ramBucketQueue.remove(getReference());
 		            }
@@ -520,6 +591,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 if(os != null) throw new IOException("Can't migrate with open OutputStream's");
                 if(!tbis.isEmpty()) throw new IOException("Can't migrate with open InputStream's");
                 setReadOnly();
+                // The TempRandomAccessBuffer accounts for exactly its size.
+                if(currentBucket instanceof DirectBucket)
+                    _hasFreed(ramUsage(currentSize) - currentSize);
                 TempRandomAccessBuffer raf = new TempRandomAccessBuffer(currentBucket.toRandomAccessBuffer(), creationTime, !isRAMBucket(), this);
                 if(isRAMBucket()) {
                     synchronized(ramBucketQueue) {
@@ -552,6 +626,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		this.directPool = new DirectBufferPool(DIRECT_PAGE_SIZE, maxFreePages(maxRamUsed));
+	}
+	
+	private static int maxFreePages(long maxRamUsed) {
+	    return (int) Math.min(Integer.MAX_VALUE, (long)(maxRamUsed * DIRECT_POOL_FREE) / DIRECT_PAGE_SIZE);
 	}
 	
 	@Override
@@ -577,6 +656,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		directPool.setMaxFree(maxFreePages(size));
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -605,6 +685,16 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public boolean isEncrypting() {
 	    return reallyEncrypt;
 	}
+	
+	/** Keep new RAM buckets in direct buffers outside the Java heap. Existing buckets aren't 
+	 * affected. RandomAccessBuffer's are always kept on the heap. */
+	public void setOffHeap(boolean value) {
+	    offHeap = value;
+	}
+	
+	public boolean isOffHeap() {
+	    return offHeap;
+	}
 
 	static final double MAX_USAGE_LOW = 0.8;
 	static final double MAX_USAGE_HIGH = 0.9;
@@ -638,7 +728,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? makeRAMBucket() : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -657,6 +747,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	boolean runningCleaner = false;
 	
+	private RandomAccessBucket makeRAMBucket() {
+		if(offHeap)
+			return new DirectBucket(directPool);
+		return new ArrayBucket();
+	}
+	
 	private final Runnable cleaner = new Runnable() {
 
 		@Override
@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.Random;
+
+import freenet.support.Fields;
+
+/**
+ * A fast, weak Random which uses a separate, unsynchronized Mersenne Twister for each thread,
+ * seeded from a strong generator the first time the thread uses it. A shared MersenneTwister is
+ * synchronized, so busy threads contend for it. Only for things like padding, jitter and
+ * picking among peers: never for key material.
+ */
+public class ThreadLocalWeakRandom extends Random {
+
+	private static final long serialVersionUID = -3226553151467411466L;
+
+	private final transient Random seedSource;
+	private final transient ThreadLocal<org.spaceroots.mantissa.random.MersenneTwister> local;
+
+	/**
+	 * @param seedSource A strong random source, used to seed each thread's generator.
+	 */
+	public ThreadLocalWeakRandom(Random seedSource) {
+		this.seedSource = seedSource;
+		this.local = new ThreadLocal<org.spaceroots.mantissa.random.MersenneTwister>() {
+			@Override
+			protected org.spaceroots.mantissa.random.MersenneTwister initialValue() {
+				return new org.spaceroots.mantissa.random.MersenneTwister(newSeed());
+			}
+		};
+	}
+
+	private int[] newSeed() {
+		byte[] buf = new byte[16];
+		seedSource.nextBytes(buf);
+		return Fields.bytesToInts(buf);
+	}
+
+	/** Reseeds the calling thread's generator only. */
+	@Override
+	public void setSeed(long seed) {
+		// Called by the Random constructor, before we are initialized.
+		if(local == null) return;
+		local.get().setSeed(seed);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return local.get().nextInt() >>> (32 - bits);
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		local.get().nextBytes(bytes);
+	}
+
+}
@@ -0,0 +1,211 @@
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final String LONG_NAME;
+	static {
+		StringBuilder sb = new StringBuilder("long/");
+		for(int i=0;i<30;i++) sb.append("dir"+i+"/");
+		sb.append("file.txt");
+		LONG_NAME = sb.toString();
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail();
+		}
+	}
+
+	private static byte[] makeData(int length, int seed) {
+		byte[] buf = new byte[length];
+		for(int i=0;i<length;i++) buf[i] = (byte)(i * 31 + seed);
+		return buf;
+	}
+
+	private static byte[] makeTAR(String[] names, byte[][] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+		TarArchiveEntry dir = new TarArchiveEntry("dir/");
+		tar.putArchiveEntry(dir);
+		tar.closeArchiveEntry();
+		for(int i=0;i<names.length;i++) {
+			TarArchiveEntry e = new TarArchiveEntry(names[i]);
+			e.setSize(data[i].length);
+			tar.putArchiveEntry(e);
+			tar.write(data[i]);
+			tar.closeArchiveEntry();
+		}
+		tar.close();
+		return baos.toByteArray();
+	}
+
+	private static byte[] read(Bucket b) throws IOException {
+		byte[] buf = new byte[(int)b.size()];
+		InputStream is = b.getInputStream();
+		try {
+			new DataInputStream(is).readFully(buf);
+			assertEquals(-1, is.read());
+		} finally {
+			is.close();
+		}
+		return buf;
+	}
+
+	private static FreenetURI key(int i) throws MalformedURLException {
+		return new FreenetURI("KSK@archive"+i);
+	}
+
+	private Callback extract(ArchiveManager manager, FreenetURI key, byte[] archive, COMPRESSOR_TYPE ctype, String element) throws Exception {
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.TAR, ctype, false);
+		Callback cb = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.TAR, ctype, new ArrayBucket(archive), new ArchiveContext(1024*1024, 10), ctx, element, cb, null);
+		return cb;
+	}
+
+	public void testIndexedElements() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 65536, 100, new ArrayBucketFactory());
+		String[] names = new String[] { "a.txt", "dir/b.html", LONG_NAME };
+		byte[][] data = new byte[][] { makeData(1000, 1), makeData(5000, 2), makeData(513, 3) };
+		FreenetURI key = key(0);
+		Callback cb = extract(manager, key, makeTAR(names, data), null, "dir/b.html");
+		assertFalse(cb.notInArchive);
+		assertTrue(Arrays.equals(data[1], read(cb.data)));
+		assertEquals(1, manager.indexedArchives());
+		assertEquals(5000, manager.indexedBytesTouched());
+		assertTrue(manager.indexedBytesRetained() > 6513);
+		for(int i=0;i<names.length;i++) {
+			Bucket b = manager.getCached(key, names[i]);
+			assertNotNull(b);
+			assertTrue(Arrays.equals(data[i], read(b)));
+			b.free();
+		}
+		assertEquals(6513, manager.indexedBytesTouched());
+		// Reading again doesn't count twice.
+		manager.getCached(key, "a.txt").free();
+		assertEquals(6513, manager.indexedBytesTouched());
+		assertNull(manager.getCached(key, "missing"));
+		assertNull(manager.getCached(key, "dir/"));
+		// Generated metadata.
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		// Still readable after the index is dropped.
+		extract(manager, key, makeTAR(new String[] { "c.txt" }, new byte[][] { data[0] }), null, null);
+		assertTrue(Arrays.equals(data[1], read(cb.data)));
+		assertNull(manager.getCached(key, "a.txt"));
+		assertNotNull(manager.getCached(key, "c.txt"));
+		assertEquals(1000, manager.indexedBytesTouched());
+		cb.data.free();
+	}
+
+	public void testCompressed() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 65536, 100, new ArrayBucketFactory());
+		byte[] data = makeData(20000, 4);
+		byte[] tar = makeTAR(new String[] { "index.html" }, new byte[][] { data });
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream os = new GZIPOutputStream(baos);
+		os.write(tar);
+		os.close();
+		Callback cb = extract(manager, key(0), baos.toByteArray(), COMPRESSOR_TYPE.GZIP, "index.html");
+		assertTrue(Arrays.equals(data, read(cb.data)));
+		assertEquals(1, manager.indexedArchives());
+	}
+
+	public void testNotInArchive() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 65536, 100, new ArrayBucketFactory());
+		Callback cb = extract(manager, key(0), makeTAR(new String[] { "a.txt" }, new byte[][] { makeData(10, 0) }), null, "b.txt");
+		assertTrue(cb.notInArchive);
+		assertNull(cb.data);
+	}
+
+	public void testTooBigElement() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 4096, 100, new ArrayBucketFactory());
+		byte[] data = makeData(5000, 5);
+		FreenetURI key = key(0);
+		Callback cb = extract(manager, key, makeTAR(new String[] { "big", "small" }, new byte[][] { data, data }), null, "big");
+		// Returned to the caller who asked for it, but not cached.
+		assertTrue(Arrays.equals(data, read(cb.data)));
+		assertNull(manager.getCached(key, "big"));
+		assertNull(manager.getCached(key, "small"));
+		assertEquals(0, manager.indexedBytesTouched());
+	}
+
+	public void testEviction() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 40000, 65536, 100, new ArrayBucketFactory());
+		byte[] data = makeData(15000, 6);
+		for(int i=0;i<3;i++)
+			extract(manager, key(i), makeTAR(new String[] { "x" }, new byte[][] { data }), null, "x").data.free();
+		// Only the elements actually read count, so the third pushes out the first.
+		assertEquals(2, manager.indexedArchives());
+		assertNull(manager.getCached(key(0), "x"));
+		assertNotNull(manager.getCached(key(1), "x"));
+		assertNotNull(manager.getCached(key(2), "x"));
+		assertEquals(30000, manager.indexedBytesTouched());
+	}
+
+	public void testTooBigToIndex() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 40000, 65536, 100, new ArrayBucketFactory());
+		byte[][] data = new byte[][] { makeData(30000, 7), makeData(30000, 8) };
+		FreenetURI key = key(0);
+		Callback cb = extract(manager, key, makeTAR(new String[] { "a", "b" }, data), null, "b");
+		assertTrue(Arrays.equals(data[1], read(cb.data)));
+		// Unpacked as before instead.
+		assertEquals(0, manager.indexedArchives());
+		Bucket b = manager.getCached(key, "b");
+		assertNotNull(b);
+		assertTrue(Arrays.equals(data[1], read(b)));
+	}
+
+	public void testNotIndexed() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 65536, 100, new ArrayBucketFactory());
+		manager.setIndexArchives(false);
+		byte[][] data = new byte[][] { makeData(100, 9), makeData(200, 10) };
+		FreenetURI key = key(0);
+		Callback cb = extract(manager, key, makeTAR(new String[] { "a", LONG_NAME }, data), null, LONG_NAME);
+		assertTrue(Arrays.equals(data[1], read(cb.data)));
+		assertEquals(0, manager.indexedArchives());
+		assertTrue(Arrays.equals(data[0], read(manager.getCached(key, "a"))));
+	}
+
+}
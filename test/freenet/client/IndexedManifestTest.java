@@ -0,0 +1,95 @@
+package freenet.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata.DocumentType;
+import freenet.keys.FreenetURI;
+
+public class IndexedManifestTest extends TestCase {
+
+	private static final String CHK1 = "CHK@DUiGC5D1ZsnFpH07WGkNVDujNlxhtgGxXBKrMT-9Rkw,~GrAWp02o9YylpxL1Fr4fPDozWmebhGv4qUoFlrxnY4,AAIC--8";
+	private static final String CHK2 = "CHK@~~vxVQDfC9m8sR~M9zWJQKzCxLeZRWy6T1pWLM2XX74,2LY7xwOdUGv0AeJ2WKRXZG6NmiUL~oqVLKnh3XdviZU,AAIC--8";
+
+	private static HashMap<String, Metadata> makeEntries(int count) throws Exception {
+		HashMap<String, Metadata> entries = new HashMap<String, Metadata>();
+		FreenetURI target = new FreenetURI(CHK1);
+		for(int i=0;i<count;i++)
+			entries.put(String.format("file%05d.html", i), new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, target, null));
+		return entries;
+	}
+
+	/** Resolve everything below an index node, as the inserter would, depth first. Each child
+	 * gets a different URI so we can check the routing. */
+	private static void resolveAll(Metadata m, ArrayList<Metadata> leaves) throws Exception {
+		if(!m.isIndexedManifest()) {
+			m.resolve(new FreenetURI(CHK2).pushMetaString("leaf"+leaves.size()));
+			leaves.add(m);
+			return;
+		}
+		for(Metadata child : m.indexChildren)
+			resolveAll(child, leaves);
+		m.resolve(new FreenetURI(CHK2).pushMetaString("node"+m.hashCode()));
+	}
+
+	public void testSmallDirectory() throws Exception {
+		Metadata m = Metadata.mkIndexedManifest(makeEntries(10), 16, 4);
+		assertTrue(m.isSimpleManifest());
+		assertEquals(10, m.countDocuments());
+	}
+
+	public void testRoundTrip() throws Exception {
+		// 1000 entries, 16 per leaf = 63 leaves, 4 per node = 16 + 4 + 1 nodes.
+		Metadata root = Metadata.mkIndexedManifest(makeEntries(1000), 16, 4);
+		assertTrue(root.isIndexedManifest());
+		try {
+			root.writeToByteArray();
+			fail("Children not inserted yet");
+		} catch (MetadataUnresolvedException e) {
+			assertEquals(4, e.mustResolve.length);
+		}
+		ArrayList<Metadata> leaves = new ArrayList<Metadata>();
+		for(Metadata child : root.indexChildren)
+			resolveAll(child, leaves);
+		assertEquals(63, leaves.size());
+		for(Metadata leaf : leaves)
+			assertTrue(leaf.countDocuments() <= 16);
+		Metadata parsed = Metadata.construct(root.writeToByteArray());
+		assertTrue(parsed.isIndexedManifest());
+		assertEquals(4, parsed.indexNames.length);
+		assertEquals("file00000.html", parsed.indexNames[0]);
+		// Lower than anything goes to the first child, which will say not found.
+		assertEquals(root.indexChildren[0].resolvedURI, parsed.getIndexedRedirect("a").getSingleTarget());
+		assertEquals(root.indexChildren[3].resolvedURI, parsed.getIndexedRedirect("z").getSingleTarget());
+		// Follow the index down to the leaf.
+		String name = "file00500.html";
+		Metadata node = root;
+		while(node.isIndexedManifest()) {
+			FreenetURI next = Metadata.construct(node.writeToByteArray()).getIndexedRedirect(name).getSingleTarget();
+			Metadata found = null;
+			for(Metadata child : node.indexChildren)
+				if(child.resolvedURI.equals(next)) found = child;
+			assertNotNull(found);
+			node = found;
+		}
+		assertNotNull(Metadata.construct(node.writeToByteArray()).getDocument(name));
+	}
+
+	public void testShortlinks() throws Exception {
+		HashMap<String, Metadata> entries = makeEntries(100);
+		entries.put("index.html", new Metadata(DocumentType.SYMBOLIC_SHORTLINK, null, null, "file00099.html", null));
+		Metadata root = Metadata.mkIndexedManifest(entries, 10, 4);
+		ArrayList<Metadata> leaves = new ArrayList<Metadata>();
+		resolveAll(root, leaves);
+		Metadata leaf = null;
+		for(Metadata m : leaves)
+			if(m.getDocument("index.html") != null) leaf = m;
+		assertNotNull(leaf);
+		// Not in the same leaf as the target, so it must have been replaced.
+		assertNull(leaf.getDocument("file00099.html"));
+		assertTrue(leaf.getDocument("index.html").isSingleFileRedirect());
+	}
+
+}
@@ -0,0 +1,113 @@
+package freenet.client;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+
+public class MetadataCacheTest extends TestCase {
+
+	private static final String CHK1 = "CHK@DUiGC5D1ZsnFpH07WGkNVDujNlxhtgGxXBKrMT-9Rkw,~GrAWp02o9YylpxL1Fr4fPDozWmebhGv4qUoFlrxnY4,AAIC--8";
+	private static final String CHK2 = "CHK@~~vxVQDfC9m8sR~M9zWJQKzCxLeZRWy6T1pWLM2XX74,2LY7xwOdUGv0AeJ2WKRXZG6NmiUL~oqVLKnh3XdviZU,AAIC--8";
+
+	private static Metadata makeManifest(String... names) {
+		HashMap<String, Object> dir = new HashMap<String, Object>();
+		for(String name : names)
+			dir.put(name, name);
+		return new Metadata(dir, "");
+	}
+
+	public void testGetReturnsCopy() throws Exception {
+		MetadataCache cache = new MetadataCache(1024*1024);
+		ClientCHK key = new ClientCHK(new FreenetURI(CHK1));
+		assertNull(cache.get(key));
+		Metadata m = makeManifest("a.html", "b.html");
+		m = cache.put(key, m, 100);
+		// Changing what put() returned doesn't change the cached copy.
+		m.grabDocument("a.html").setSimpleRedirect();
+		m.setSimpleRedirect();
+		Metadata got = cache.get(key);
+		assertNotNull(got);
+		assertTrue(got.isSimpleManifest());
+		assertEquals(2, got.countDocuments());
+		assertNotSame(got, cache.get(key));
+		assertEquals(2, cache.hits());
+		assertEquals(1, cache.misses());
+		assertEquals(2.0/3.0, cache.hitRate(), 0.0001);
+		assertNull(cache.get(new ClientCHK(new FreenetURI(CHK2))));
+	}
+
+	/** A hit on a large manifest doesn't copy the manifest: only the documents walked are
+	 * copied. */
+	public void testLargeManifestNotCopied() throws Exception {
+		MetadataCache cache = new MetadataCache(1024*1024*1024);
+		ClientCHK key = new ClientCHK(new FreenetURI(CHK1));
+		String[] names = new String[10000];
+		for(int i=0;i<names.length;i++)
+			names[i] = "file"+i+".html";
+		Metadata m = makeManifest(names);
+		HashMap<String, Metadata> entries = m.manifestEntries;
+		Metadata doc = entries.get("file5.html");
+		cache.put(key, m, 100);
+		Metadata got = cache.get(key);
+		assertNotSame(m, got);
+		assertSame(entries, got.manifestEntries);
+		// Looking up a document copies just that document.
+		String mime = doc.getMIMEType();
+		Metadata copy = got.getDocument("file5.html");
+		assertNotSame(doc, copy);
+		assertSame(entries, got.manifestEntries);
+		copy.setArchiveManifest();
+		assertFalse(doc.isArchiveManifest());
+		assertEquals(mime, doc.getMIMEType());
+		// Taking one out doesn't change the cached manifest.
+		copy = got.grabDocument("file6.html");
+		assertNotSame(entries.get("file6.html"), copy);
+		copy.setArchiveManifest();
+		assertFalse(entries.get("file6.html").isArchiveManifest());
+		assertSame(entries, got.manifestEntries);
+		assertEquals(names.length, cache.get(key).countDocuments());
+		// A deep clone doesn't share anything with the cache.
+		Metadata clone = (Metadata) cache.get(key).clone();
+		assertNotSame(entries.get("file7.html"), clone.manifestEntries.get("file7.html"));
+		assertNotSame(entries.get("file7.html"), clone.getDocument("file7.html"));
+	}
+
+	public void testArchiveKeys() throws Exception {
+		MetadataCache cache = new MetadataCache(1024*1024);
+		FreenetURI chk = new FreenetURI(CHK1);
+		FreenetURI ssk = new FreenetURI("SSK@DUiGC5D1ZsnFpH07WGkNVDujNlxhtgGxXBKrMT-9Rkw,~GrAWp02o9YylpxL1Fr4fPDozWmebhGv4qUoFlrxnY4,AQACAAE/site-1");
+		cache.put(chk, ArchiveManager.METADATA_NAME, makeManifest("a"), 100);
+		cache.put(ssk, ArchiveManager.METADATA_NAME, makeManifest("a"), 100);
+		assertEquals(1, cache.items());
+		assertNotNull(cache.get(chk, ArchiveManager.METADATA_NAME));
+		assertNull(cache.get(chk, "other"));
+		assertNull(cache.get(ssk, ArchiveManager.METADATA_NAME));
+	}
+
+	public void testEviction() throws Exception {
+		long itemSize = 1000 * MetadataCache.SIZE_FACTOR + MetadataCache.ITEM_OVERHEAD;
+		MetadataCache cache = new MetadataCache(itemSize * 8);
+		FreenetURI archive = new FreenetURI(CHK1);
+		for(int i=0;i<10;i++)
+			cache.put(archive, "m"+i, makeManifest("a"), 1000);
+		assertEquals(8, cache.items());
+		assertEquals(itemSize * 8, cache.size());
+		assertEquals(2, cache.evictions());
+		assertNull(cache.get(archive, "m0"));
+		assertNull(cache.get(archive, "m1"));
+		assertNotNull(cache.get(archive, "m2"));
+		// Too big to cache.
+		cache.put(archive, "big", makeManifest("a"), itemSize * 2);
+		assertNull(cache.get(archive, "big"));
+		// Replacing doesn't count twice.
+		cache.put(archive, "m9", makeManifest("a"), 1000);
+		assertEquals(itemSize * 8, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.items());
+	}
+
+}
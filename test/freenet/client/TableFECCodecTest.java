@@ -0,0 +1,206 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.Executor;
+import freenet.support.HelperThreads;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.io.NativeThread;
+
+import junit.framework.TestCase;
+
+/** Check that TableFECCodec produces the same check blocks as OnionFECCodec, and that each can
+ * decode the other's output. */
+public class TableFECCodecTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final TableFECCodec codec = new TableFECCodec();
+    private final OnionFECCodec onion = new OnionFECCodec();
+
+    public void testMultiplicationTable() {
+        for(int a=0;a<256;a++) {
+            assertEquals(0, TableFECCodec.mul(a, 0));
+            assertEquals(a, TableFECCodec.mul(a, 1));
+            for(int b=0;b<256;b++)
+                assertEquals(TableFECCodec.mul(a, b), TableFECCodec.mul(b, a));
+        }
+    }
+
+    public void testSameCheckBlocks() {
+        Random r = new Random(25102026);
+        checkSameCheckBlocks(128, 128, r);
+        checkSameCheckBlocks(127, 129, r);
+        checkSameCheckBlocks(129, 127, r);
+        checkSameCheckBlocks(1, 1, r);
+        checkSameCheckBlocks(1, 255, r);
+        checkSameCheckBlocks(200, 3, r);
+        // Block size not a multiple of the stripe size.
+        checkSameCheckBlocks(20, 20, r, TableFECCodec.STRIPE_SIZE * 2 + 17);
+    }
+
+    public void testPartialEncode() {
+        Random r = new Random(26102026);
+        byte[][] data = randomBlocks(r, 64, BLOCK_SIZE);
+        byte[][] expected = encode(onion, data, 64, BLOCK_SIZE);
+        byte[][] check = new byte[64][BLOCK_SIZE];
+        boolean[] present = new boolean[64];
+        for(int i=0;i<64;i+=2) {
+            check[i] = expected[i].clone();
+            present[i] = true;
+        }
+        codec.encode(data, check, present, BLOCK_SIZE);
+        assertBlocksEqual(expected, check);
+    }
+
+    public void testCrossDecode() {
+        Random r = new Random(27102026);
+        int iterations = TestProperty.EXTENSIVE ? 50 : 5;
+        for(int i=0;i<iterations;i++) {
+            crossDecode(128, 128, r, codec, onion);
+            crossDecode(128, 128, r, onion, codec);
+            crossDecode(100, 50, r, codec, codec);
+            crossDecode(3, 200, r, codec, onion);
+        }
+    }
+
+    public void testParallelSameAsSerial() {
+        Random r = new Random(30102026);
+        int blockSize = 32768 + 100; // Last stripe is partial.
+        byte[][] data = randomBlocks(r, 50, blockSize);
+        byte[][] coefficients = new byte[40][50];
+        for(byte[] row : coefficients) r.nextBytes(row);
+        for(int i=0;i<50;i++) coefficients[3][i] = 1;
+        byte[][] serial = new byte[40][blockSize];
+        TableFECCodec.multiply(coefficients, data, serial, blockSize, 1);
+        for(int threads : new int[] { 2, 3, 4, 7, 17, 100 }) {
+            byte[][] parallel = new byte[40][blockSize];
+            TableFECCodec.multiply(coefficients, data, parallel, blockSize, threads);
+            assertBlocksEqual(serial, parallel);
+        }
+    }
+
+    public void testThreadsFor() {
+        long bigJob = 128L * 128 * 32768;
+        assertEquals(1, TableFECCodec.threadsFor(1, 1024, 32768));
+        int max = Math.min(TableFECCodec.MAX_THREADS, 32768 / TableFECCodec.STRIPE_SIZE);
+        assertEquals(max, TableFECCodec.threadsFor(1, bigJob, 32768));
+        // Sharing with other running jobs.
+        assertEquals(Math.max(1, Math.min(max, TableFECCodec.MAX_THREADS / 2)),
+                TableFECCodec.threadsFor(2, bigJob, 32768));
+        assertEquals(1, TableFECCodec.threadsFor(TableFECCodec.MAX_THREADS + 1, bigJob, 32768));
+    }
+
+    public void testLimitedByJobRunner() {
+        Random r = new Random(19102026);
+        byte[][] data = randomBlocks(r, 128, 32768);
+        byte[][] expected = encode(onion, data, 128, 32768);
+        Executor executor = new PooledExecutor();
+        // A runner with no threads to spare still encodes, on the calling thread.
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1024*1024, 1, executor,
+                NativeThread.JAVA_PRIORITY_RANGE);
+        assertEquals(1, runner.reserveThreads(1, 0));
+        HelperThreads.setJobRunner(runner);
+        try {
+            assertBlocksEqual(expected, encode(codec, data, 128, 32768));
+            runner.releaseThreads(1, 0);
+            // Extra threads are released afterwards.
+            runner.setMaxThreads(TableFECCodec.MAX_THREADS);
+            assertBlocksEqual(expected, encode(codec, data, 128, 32768));
+            assertEquals(0, runner.getRunningThreads());
+        } finally {
+            HelperThreads.setJobRunner(null);
+        }
+    }
+
+    public void testNotEnoughBlocks() {
+        Random r = new Random(28102026);
+        byte[][] data = randomBlocks(r, 10, BLOCK_SIZE);
+        byte[][] check = encode(codec, data, 10, BLOCK_SIZE);
+        boolean[] dataPresent = new boolean[10];
+        boolean[] checkPresent = new boolean[10];
+        for(int i=0;i<9;i++) checkPresent[i] = true;
+        try {
+            codec.decode(data, check, dataPresent, checkPresent, BLOCK_SIZE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testGetInstance() {
+        boolean useTable = FECCodec.getUseTableCodec();
+        try {
+            FECCodec.setUseTableCodec(true);
+            assertTrue(FECCodec.getInstance(Metadata.SplitfileAlgorithm.ONION_STANDARD)
+                    instanceof TableFECCodec);
+            FECCodec.setUseTableCodec(false);
+            assertTrue(FECCodec.getInstance(Metadata.SplitfileAlgorithm.ONION_STANDARD)
+                    instanceof OnionFECCodec);
+        } finally {
+            FECCodec.setUseTableCodec(useTable);
+        }
+    }
+
+    private void checkSameCheckBlocks(int k, int m, Random r) {
+        checkSameCheckBlocks(k, m, r, BLOCK_SIZE);
+    }
+
+    private void checkSameCheckBlocks(int k, int m, Random r, int blockSize) {
+        byte[][] data = randomBlocks(r, k, blockSize);
+        byte[][] expected = encode(onion, data, m, blockSize);
+        byte[][] actual = encode(codec, data, m, blockSize);
+        assertBlocksEqual(expected, actual);
+    }
+
+    private void crossDecode(int k, int m, Random r, FECCodec encoder, FECCodec decoder) {
+        byte[][] original = randomBlocks(r, k, BLOCK_SIZE);
+        byte[][] check = encode(encoder, original, m, BLOCK_SIZE);
+        byte[][] data = copy(original);
+        boolean[] dataPresent = new boolean[k];
+        boolean[] checkPresent = new boolean[m];
+        // Keep a random k of the n blocks.
+        int[] order = new int[k+m];
+        for(int i=0;i<order.length;i++) order[i] = i;
+        for(int i=order.length-1;i>0;i--) {
+            int j = r.nextInt(i+1);
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+        for(int i=0;i<k;i++) {
+            if(order[i] < k) dataPresent[order[i]] = true;
+            else checkPresent[order[i]-k] = true;
+        }
+        for(int i=0;i<k;i++)
+            if(!dataPresent[i]) data[i] = new byte[BLOCK_SIZE];
+        decoder.decode(data, check, dataPresent, checkPresent, BLOCK_SIZE);
+        assertBlocksEqual(original, data);
+    }
+
+    private static byte[][] encode(FECCodec c, byte[][] data, int m, int blockSize) {
+        byte[][] check = new byte[m][blockSize];
+        c.encode(data, check, new boolean[m], blockSize);
+        return check;
+    }
+
+    private static byte[][] randomBlocks(Random r, int count, int blockSize) {
+        byte[][] blocks = new byte[count][blockSize];
+        for(byte[] block : blocks) r.nextBytes(block);
+        return blocks;
+    }
+
+    private static byte[][] copy(byte[][] blocks) {
+        byte[][] out = new byte[blocks.length][];
+        for(int i=0;i<blocks.length;i++) out[i] = blocks[i].clone();
+        return out;
+    }
+
+    private static void assertBlocksEqual(byte[][] expected, byte[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for(int i=0;i<expected.length;i++)
+            assertTrue("Block "+i+" differs", Arrays.equals(expected[i], actual[i]));
+    }
+
+}
@@ -0,0 +1,415 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.client.async.ClientLayerPersister.PartialLoad;
+import freenet.clients.fcp.ClientRequest;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.node.Node;
+import freenet.node.RequestStarterGroup;
+import freenet.support.Executor;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.DelayedFree;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+import junit.framework.TestCase;
+
+/** Tests merging the journal into a snapshot, and loading client.dat and replaying the journal.
+ * Entries are written in the same format as ClientLayerPersister, with strings in place of the 
+ * requests. */
+public class ClientLayerJournalTest extends TestCase {
+
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private final ArrayBucketFactory bf = new ArrayBucketFactory();
+    private final byte[] salt = new byte[32];
+    private File dir;
+    private ClientLayerJournal journal;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("journal", ".tmp");
+        dir.delete();
+        dir.mkdir();
+        journal = new ClientLayerJournal(dir, "client.dat", checker);
+        Arrays.fill(salt, (byte)7);
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    public void testCompact() throws IOException, ClassNotFoundException {
+        Bucket snapshot = snapshot(0, "old stats", "a", "a1", "b", "b1", "c", "c1");
+        List<Bucket> segments = new ArrayList<Bucket>();
+        segments.add(segment(1, "stats 1", new String[] { "b", "b2", "d", "d1" }, new String[0]));
+        segments.add(segment(2, "stats 2", new String[] { "d", "d2" }, new String[] { "c" }));
+        Bucket output = new ArrayBucket();
+        assertEquals(3, journal.compact(snapshot, segments, 2, output, bf));
+        // Unchanged first, in the original order, then the rest in the order first changed.
+        checkSnapshot(output, 2, "stats 2", "a", "a1", "b", "b2", "d", "d2");
+    }
+
+    public void testCompactNoChanges() throws IOException, ClassNotFoundException {
+        Bucket snapshot = snapshot(5, "old stats", "a", "a1");
+        List<Bucket> segments = new ArrayList<Bucket>();
+        segments.add(segment(6, "stats 6", new String[0], new String[0]));
+        Bucket output = new ArrayBucket();
+        assertEquals(1, journal.compact(snapshot, segments, 6, output, bf));
+        checkSnapshot(output, 6, "stats 6", "a", "a1");
+    }
+
+    public void testCompactRemoveAll() throws IOException, ClassNotFoundException {
+        Bucket snapshot = snapshot(0, "old stats", "a", "a1", "b", "b1");
+        List<Bucket> segments = new ArrayList<Bucket>();
+        segments.add(segment(1, "stats 1", new String[] { "c", "c1" }, new String[] { "a" }));
+        segments.add(segment(2, "stats 2", new String[0], new String[] { "b", "c" }));
+        Bucket output = new ArrayBucket();
+        assertEquals(0, journal.compact(snapshot, segments, 2, output, bf));
+        checkSnapshot(output, 2, "stats 2");
+    }
+
+    public void testCompactTruncatedSegment() throws IOException {
+        Bucket snapshot = snapshot(0, "old stats", "a", "a1");
+        ArrayBucket segment = segment(1, "stats 1", new String[] { "a", "a2" }, new String[0]);
+        byte[] buf = segment.toByteArray();
+        List<Bucket> segments = new ArrayList<Bucket>();
+        segments.add(new ArrayBucket(Arrays.copyOf(buf, buf.length / 2)));
+        try {
+            journal.compact(snapshot, segments, 1, new ArrayBucket(), bf);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testListAndDeleteSegments() throws IOException {
+        for(long seq : new long[] { 3, 1, 12 })
+            assertTrue(journal.getFile(seq, seq == 12).createNewFile());
+        new File(dir, "client.dat").createNewFile();
+        new File(dir, "client.dat.journal.bogus").createNewFile();
+        assertEquals(Arrays.asList(1L, 3L, 12L), new ArrayList<Long>(journal.listSegments().keySet()));
+        assertTrue(ClientLayerJournal.isEncrypted(journal.listSegments().get(12L)));
+        journal.deleteSegments(3, false);
+        assertEquals(Arrays.asList(12L), new ArrayList<Long>(journal.listSegments().keySet()));
+        journal.deleteSegments(Long.MAX_VALUE, false);
+        assertTrue(journal.listSegments().isEmpty());
+        assertTrue(new File(dir, "client.dat").exists());
+    }
+
+    public void testLoadReplaysJournal() throws Exception {
+        write(snapshot(0, stats(10), "a", "a1", "b", "b1", "c", "c1"), new File(dir, "client.dat"));
+        write(segment(1, stats(11), new String[] { "b", "b2", "d", "d1" }, new String[0]), journal.getFile(1, false));
+        write(segment(2, stats(12), new String[] { "d", "d2" }, new String[] { "c" }), journal.getFile(2, false));
+        PersistentStatsPutter stats = new PersistentStatsPutter();
+        checkLoaded(load(stats), "a", "a1", "b", "b2", "d", "d2");
+        // Only the stats from the last segment.
+        assertEquals(12, stats.getLatestBWData().totalBytesIn);
+    }
+
+    public void testLoadSkipsSegmentsInSnapshot() throws Exception {
+        // Segments 1 and 2 have been merged into client.dat but not deleted yet.
+        write(snapshot(2, stats(10), "a", "a1", "b", "b1"), new File(dir, "client.dat"));
+        write(segment(1, stats(11), new String[] { "a", "a0" }, new String[] { "b" }), journal.getFile(1, false));
+        write(segment(2, stats(12), new String[0], new String[] { "a" }), journal.getFile(2, false));
+        write(segment(3, stats(13), new String[] { "b", "b3" }, new String[0]), journal.getFile(3, false));
+        PersistentStatsPutter stats = new PersistentStatsPutter();
+        checkLoaded(load(stats), "a", "a1", "b", "b3");
+        assertEquals(13, stats.getLatestBWData().totalBytesIn);
+    }
+
+    public void testLoadStatsFromSnapshot() throws Exception {
+        write(snapshot(1, stats(10), "a", "a1"), new File(dir, "client.dat"));
+        write(segment(1, stats(11), new String[] { "a", "a0" }, new String[0]), journal.getFile(1, false));
+        PersistentStatsPutter stats = new PersistentStatsPutter();
+        checkLoaded(load(stats), "a", "a1");
+        assertEquals(10, stats.getLatestBWData().totalBytesIn);
+    }
+
+    public void testLoadRemovedInJournal() throws Exception {
+        write(snapshot(0, stats(10), "a", "a1", "b", "b1"), new File(dir, "client.dat"));
+        write(segment(1, stats(11), new String[] { "c", "c1" }, new String[] { "a" }), journal.getFile(1, false));
+        write(segment(2, stats(12), new String[0], new String[] { "b", "c" }), journal.getFile(2, false));
+        checkLoaded(load(new PersistentStatsPutter()));
+    }
+
+    public void testLoadTruncatedSegment() throws Exception {
+        write(snapshot(0, stats(10), "a", "a1", "b", "b1"), new File(dir, "client.dat"));
+        // Cut off part way through removing b. Without the stats, the segment ends with the end
+        // record and a separate block of data for the count of buckets to free, so this is
+        // where the removal starts.
+        int length = (int) segment(1, null, new String[] { "a", "a2" }, new String[0]).size() - 8;
+        byte[] buf = segment(1, stats(11), new String[] { "a", "a2" }, new String[] { "b" }).toByteArray();
+        write(new ArrayBucket(Arrays.copyOf(buf, length + 3)), journal.getFile(1, false));
+        write(segment(2, stats(12), new String[] { "c", "c2" }, new String[0]), journal.getFile(2, false));
+        // The changes before the damage are kept, and the next segment is still replayed.
+        checkLoaded(load(new PersistentStatsPutter()), "a", "a2", "b", "b1", "c", "c2");
+    }
+
+    public void testFreeBucketWithoutMarkChanged() throws Exception {
+        PersistentTempBucketFactory factory = mock(PersistentTempBucketFactory.class);
+        final ClientRequest request = mock(ClientRequest.class);
+        when(request.getRequestIdentifier()).thenReturn(requestIdentifier("a"));
+        final String[] version = new String[] { "a1" };
+        TempBucketFactory tempFactory = mock(TempBucketFactory.class);
+        when(tempFactory.makeBucket(anyLong())).thenAnswer(new Answer<ArrayBucket>() {
+
+            @Override
+            public ArrayBucket answer(InvocationOnMock invocation) {
+                return new ArrayBucket();
+            }
+
+        });
+        ClientLayerPersister persister = new ClientLayerPersister(mock(Executor.class), null, 
+                null, null, factory, tempFactory, new NoNodeStatsPutter()) {
+
+            @Override
+            ClientRequest[] getRequests() {
+                return new ClientRequest[] { request };
+            }
+
+            @Override
+            byte[] serializeRequest(ClientRequest req, ByteArrayOutputStream buffer) throws IOException {
+                buffer.reset();
+                writeEntry(buffer, "a", version[0]);
+                return buffer.toByteArray();
+            }
+
+        };
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null, 
+                null, null, null, null, null, null, null, null, null, null, null, null, null, 
+                new PersistentRequestRoot(), null, null, null, null);
+        persister.setFilesAndLoad(dir, "client.dat", false, false, null, context, 
+                mock(RequestStarterGroup.class), new Random(0));
+        persister.save(false);
+        // The request moves its data to a new bucket and frees the old one, but doesn't call
+        // markChanged(), so it isn't due to be written.
+        version[0] = "a2";
+        FreedBucket freed = new FreedBucket();
+        when(factory.grabBucketsToFree()).thenReturn(new DelayedFree[] { freed });
+        persister.save(false);
+        // After a restart the request refers to the new bucket.
+        checkLoaded(load(new PersistentStatsPutter()), "a", "a2");
+    }
+
+    private static class NoNodeStatsPutter extends PersistentStatsPutter {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+            // No node.
+        }
+
+    }
+
+    private static class FreedBucket implements DelayedFree, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean toFree() {
+            return true;
+        }
+
+        @Override
+        public void realFree() {
+            // Nothing to free.
+        }
+
+    }
+
+    /** Load client.dat and the journal, with a ClientLayerPersister which reads each request
+     * as a string and returns a mock ClientRequest for it. */
+    private Map<RequestIdentifier, String> load(PersistentStatsPutter stats) throws Exception {
+        final Map<ClientRequest, String> versions = new HashMap<ClientRequest, String>();
+        ClientLayerPersister persister = new ClientLayerPersister(null, null, null, null, 
+                mock(PersistentTempBucketFactory.class), null, stats) {
+
+            @Override
+            ClientRequest readClientRequest(ObjectInputStream ois, long length) throws IOException {
+                String version = readChecksummed(ois);
+                ClientRequest request = mock(ClientRequest.class);
+                when(request.getRequestIdentifier()).thenReturn(
+                        requestIdentifier(version.substring(0, 1)));
+                versions.put(request, version);
+                return request;
+            }
+
+        };
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null, 
+                null, null, null, null, null, null, null, null, null, null, null, null, null, 
+                new PersistentRequestRoot(), null, null, null, null);
+        PartialLoad loaded = persister.load(journal, dir, "client.dat", null, false, context, 
+                mock(RequestStarterGroup.class), new Random(0));
+        Map<RequestIdentifier, String> ret = new HashMap<RequestIdentifier, String>();
+        for(Map.Entry<RequestIdentifier, ClientRequest> entry : loaded.getRequests().entrySet())
+            ret.put(entry.getKey(), versions.get(entry.getValue()));
+        return ret;
+    }
+
+    /** @param entries Pairs of identifier and request. */
+    private void checkLoaded(Map<RequestIdentifier, String> loaded, String... entries) throws IOException {
+        Map<RequestIdentifier, String> expected = new HashMap<RequestIdentifier, String>();
+        for(int i=0;i<entries.length;i+=2)
+            expected.put(requestIdentifier(entries[i]), entries[i+1]);
+        assertEquals(expected, loaded);
+    }
+
+    private static PersistentStatsPutter stats(long bytesIn) {
+        PersistentStatsPutter stats = new PersistentStatsPutter();
+        stats.getLatestBWData().totalBytesIn = bytesIn;
+        return stats;
+    }
+
+    private static void write(ArrayBucket bucket, File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(bucket.toByteArray());
+        } finally {
+            fos.close();
+        }
+    }
+
+    /** Write a snapshot in the format of ClientLayerPersister.
+     * @param entries Pairs of identifier and request. */
+    private ArrayBucket snapshot(long sequence, Object stats, String... entries) throws IOException {
+        ArrayBucket bucket = new ArrayBucket();
+        ObjectOutputStream oos = new ObjectOutputStream(bucket.getOutputStream());
+        oos.writeLong(ClientLayerPersister.MAGIC);
+        oos.writeInt(ClientLayerPersister.VERSION);
+        checker.writeAndChecksum(oos, salt);
+        oos.writeLong(sequence);
+        oos.writeInt(entries.length / 2);
+        for(int i=0;i<entries.length;i+=2)
+            writeEntry(oos, entries[i], entries[i+1]);
+        oos.writeObject(stats);
+        oos.writeInt(0);
+        oos.close();
+        return bucket;
+    }
+
+    private ArrayBucket segment(long sequence, Object stats, String[] updated, String[] removed) throws IOException {
+        ArrayBucket bucket = new ArrayBucket();
+        ObjectOutputStream oos = journal.startSegment(bucket.getOutputStream(), sequence);
+        for(int i=0;i<updated.length;i+=2) {
+            oos.writeByte(ClientLayerJournal.RECORD_UPDATE);
+            writeEntry(oos, updated[i], updated[i+1]);
+        }
+        for(String id : removed) {
+            oos.writeByte(ClientLayerJournal.RECORD_REMOVE);
+            writeRequestIdentifier(oos, id);
+        }
+        oos.writeByte(ClientLayerJournal.RECORD_END);
+        oos.writeObject(stats);
+        oos.writeInt(0);
+        oos.close();
+        return bucket;
+    }
+
+    private void writeEntry(OutputStream os, String id, String request) throws IOException {
+        writeRequestIdentifier(os, id);
+        writeChecksummed(os, request);
+        writeChecksummed(os, "recovery data for "+request);
+    }
+
+    private void writeRequestIdentifier(OutputStream os, String id) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream cos = checker.checksumWriter(baos);
+        DataOutputStream dos = new DataOutputStream(cos);
+        requestIdentifier(id).writeTo(dos);
+        dos.close();
+        byte[] buf = baos.toByteArray();
+        new DataOutputStream(os).writeShort(buf.length - checker.checksumLength());
+        os.write(buf);
+    }
+
+    private void writeChecksummed(OutputStream os, String data) throws IOException {
+        OutputStream cos = checker.checksumWriterWithLength(os, bf);
+        DataOutputStream dos = new DataOutputStream(cos);
+        dos.writeUTF(data);
+        dos.close();
+    }
+
+    /** A global request identifier, as RequestIdentifier would write it. */
+    private static RequestIdentifier requestIdentifier(String id) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0x25ebd38d);
+        dos.writeShort(1);
+        dos.writeBoolean(true);
+        dos.writeUTF(id);
+        dos.writeShort(0);
+        return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    private void checkSnapshot(Bucket bucket, long sequence, String stats, String... entries) throws IOException, ClassNotFoundException {
+        InputStream is = bucket.getInputStream();
+        ObjectInputStream ois = new ObjectInputStream(is);
+        assertEquals(ClientLayerPersister.MAGIC, ois.readLong());
+        assertEquals(ClientLayerPersister.VERSION, ois.readInt());
+        byte[] readSalt = new byte[salt.length];
+        try {
+            checker.readAndChecksum(ois, readSalt, 0, readSalt.length);
+        } catch (Exception e) {
+            fail(e.toString());
+        }
+        assertTrue(Arrays.equals(salt, readSalt));
+        assertEquals(sequence, ois.readLong());
+        assertEquals(entries.length / 2, ois.readInt());
+        for(int i=0;i<entries.length;i+=2) {
+            short length = ois.readShort();
+            byte[] buf = new byte[length + checker.checksumLength()];
+            ois.readFully(buf);
+            RequestIdentifier id = new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(buf, 0, length)));
+            assertEquals(requestIdentifier(entries[i]), id);
+            assertEquals(entries[i+1], readChecksummed(ois));
+            assertEquals("recovery data for "+entries[i+1], readChecksummed(ois));
+        }
+        assertEquals(stats, ois.readObject());
+        assertEquals(0, ois.readInt());
+        ois.close();
+    }
+
+    private String readChecksummed(InputStream is) throws IOException {
+        try {
+            InputStream cis = checker.checksumReaderWithLength(is, bf, Long.MAX_VALUE);
+            String s = new DataInputStream(cis).readUTF();
+            cis.close();
+            return s;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -3,11 +3,17 @@ package freenet.client.async;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import junit.framework.TestCase;
 
 import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
@@ -30,8 +36,12 @@ import freenet.keys.ClientKey;
 import freenet.keys.FreenetURI;
 import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelGetException;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestScheduler;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
@@ -39,6 +49,9 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -373,6 +386,209 @@ public class ClientRequestSelectorTest extends TestCase {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
+    /** A SendableGet which always has a key to send. Also used by
+     * ClientRequestSelectorBenchmark. */
+    static class NullSendableGet extends SendableGet {
+
+        private final RequestClient client;
+        private final ClientRequestSchedulerGroup group;
+        private short prio;
+
+        NullSendableGet(ClientRequester parent, RequestClient client, 
+                ClientRequestSchedulerGroup group, short prio) {
+            super(parent, false);
+            this.client = client;
+            this.group = group;
+            this.prio = prio;
+        }
+
+        @Override
+        public ClientKey getKey(SendableRequestItem token) {
+            return null;
+        }
+
+        @Override
+        public Key[] listKeys() {
+            return new Key[0];
+        }
+
+        @Override
+        public FetchContext getContext() {
+            return null;
+        }
+
+        @Override
+        public void onFailure(LowLevelGetException e, SendableRequestItem token,
+                ClientContext context) {
+            // Ignore
+        }
+
+        @Override
+        public long getCooldownWakeup(SendableRequestItem token, ClientContext context) {
+            return 0;
+        }
+
+        @Override
+        protected ClientGetState getClientGetState() {
+            return null;
+        }
+
+        @Override
+        public boolean preRegister(ClientContext context, boolean toNetwork) {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return prio;
+        }
+
+        @Override
+        public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public long countAllKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public long countSendableKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+
+        @Override
+        public ClientRequester getClientRequest() {
+            return parent;
+        }
+
+        @Override
+        public ClientRequestSchedulerGroup getSchedulerGroup() {
+            return group;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+        @Override
+        public void internalError(Throwable t, RequestScheduler sched, ClientContext context,
+                boolean persistent) {
+            // Ignore
+        }
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            return 0;
+        }
+
+    }
+
+    static class NullExclusionList implements RandomGrabArrayItemExclusionList {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+
+    }
+
+    private ClientContext makeClientContext(Random random) {
+        return new ClientContext(0, null, executor, null, null, null, null, null, null, null, 
+                random, ticker, null, null, null, null, null, null, null, null, null, null, 
+                null, null, null, null);
+    }
+
+    /** Queue requests from several clients and groups. */
+    static List<NullSendableGet> queueRequests(ClientRequestSelector selector, 
+            ClientContext context, int clients, int groups, int requests, short prio) {
+        ClientRequester parent = mock(ClientRequester.class);
+        RequestClient[] requestClients = new RequestClient[clients];
+        for(int i=0;i<clients;i++)
+            requestClients[i] = mock(RequestClient.class);
+        ClientRequestSchedulerGroup[] schedulerGroups = new ClientRequestSchedulerGroup[groups];
+        for(int i=0;i<groups;i++)
+            schedulerGroups[i] = new ClientRequestSchedulerGroup() {};
+        List<NullSendableGet> gets = new ArrayList<NullSendableGet>(requests);
+        for(int i=0;i<requests;i++) {
+            NullSendableGet get = new NullSendableGet(parent, requestClients[i % groups % clients], 
+                    schedulerGroups[i % groups], prio);
+            selector.innerRegister(get, context, null);
+            gets.add(get);
+        }
+        return gets;
+    }
+
+    public void testChooseAndRemoveMany() {
+        Random random = new Random(1010101);
+        ClientContext context = makeClientContext(random);
+        ClientRequestSelector selector = 
+            new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+        RandomGrabArrayItemExclusionList starter = new NullExclusionList();
+        short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        List<NullSendableGet> gets = queueRequests(selector, context, 10, 200, 5000, prio);
+        assertEquals(5000, selector.priorities[prio].countItems());
+        assertEquals(10, selector.priorities[prio].size());
+        // Registering twice is harmless.
+        selector.innerRegister(gets.get(0), context, null);
+        assertEquals(5000, selector.priorities[prio].countItems());
+        for(int i=0;i<1000;i++) {
+            ClientRequestSelector.SelectorReturn r = 
+                selector.chooseRequestInner(0, new DummyRandomSource(i), null, starter, false, 
+                        context, System.currentTimeMillis());
+            assertTrue(r.req instanceof NullSendableGet);
+            assertTrue(((NullSendableGet)r.req).getParentGrabArray().contains(r.req));
+        }
+        int removed = 0;
+        for(NullSendableGet get : gets) {
+            RandomGrabArray rga = get.getParentGrabArray();
+            rga.remove(get, context);
+            assertEquals(5000 - ++removed, selector.priorities[prio].countItems());
+        }
+        assertTrue(selector.priorities[prio].isEmpty());
+        ClientRequestSelector.SelectorReturn r = 
+            selector.chooseRequestInner(0, new DummyRandomSource(1), null, starter, false, 
+                    context, System.currentTimeMillis());
+        assertNull(r.req);
+    }
+
+    public void testReregisterAll() {
+        Random random = new Random(2020202);
+        ClientContext context = makeClientContext(random);
+        ClientRequestSelector selector = 
+            new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+        short oldPrio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        short newPrio = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+        List<NullSendableGet> gets = queueRequests(selector, context, 2, 4, 100, oldPrio);
+        NullSendableGet moving = gets.get(0);
+        ClientRequester requester = mock(ClientRequester.class);
+        when(requester.getClient()).thenReturn(moving.getClient());
+        when(requester.getSchedulerGroup()).thenReturn(moving.getSchedulerGroup());
+        when(requester.getPriorityClass()).thenReturn(newPrio);
+        for(NullSendableGet get : gets)
+            if(get.getSchedulerGroup() == moving.getSchedulerGroup()) get.prio = newPrio;
+        selector.reregisterAll(requester, null, context, oldPrio);
+        assertEquals(75, selector.priorities[oldPrio].countItems());
+        assertEquals(25, selector.priorities[newPrio].countItems());
+        for(NullSendableGet get : gets) {
+            RandomGrabArray rga = get.getParentGrabArray();
+            assertTrue(rga.contains(get));
+            rga.remove(get, context);
+        }
+        assertTrue(selector.priorities[oldPrio].isEmpty());
+        assertTrue(selector.priorities[newPrio].isEmpty());
+    }
 
-    
 }
@@ -0,0 +1,105 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class KeyListenerIndexTest extends TestCase {
+
+    private final Random random = new Random(1234567);
+
+    private byte[] randomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+
+    private static List<KeyListener> get(KeyListenerIndex index, byte[] key) {
+        List<KeyListener> matches = new ArrayList<KeyListener>();
+        index.get(key, matches);
+        return matches;
+    }
+
+    public void testOnlyActiveListenersMatch() {
+        KeyListenerIndex index = new KeyListenerIndex();
+        KeyListener listener = mock(KeyListener.class);
+        byte[] key = randomKey();
+        index.add(listener, key);
+        assertFalse(index.contains(key));
+        index.setComplete(listener);
+        assertFalse(index.contains(key));
+        index.setRegistered(listener, true);
+        assertTrue(index.isActive(listener));
+        assertEquals(1, get(index, key).size());
+        assertSame(listener, get(index, key).get(0));
+        assertFalse(index.contains(randomKey()));
+    }
+
+    public void testSharedKey() {
+        KeyListenerIndex index = new KeyListenerIndex();
+        KeyListener a = mock(KeyListener.class);
+        KeyListener b = mock(KeyListener.class);
+        byte[] key = randomKey();
+        for(KeyListener listener : new KeyListener[] { a, b }) {
+            index.add(listener, key);
+            index.add(listener, key); // Duplicates are ignored.
+            index.setComplete(listener);
+            index.setRegistered(listener, true);
+        }
+        assertEquals(2, get(index, key).size());
+        assertEquals(2, index.countKeys());
+        index.remove(a, key);
+        assertEquals(1, get(index, key).size());
+        assertSame(b, get(index, key).get(0));
+        index.removeListener(b);
+        assertFalse(index.contains(key));
+        assertEquals(0, index.countKeys());
+    }
+
+    public void testManyKeys() {
+        KeyListenerIndex index = new KeyListenerIndex();
+        int listeners = 20;
+        int keysPerListener = 1000;
+        KeyListener[] l = new KeyListener[listeners];
+        byte[][][] keys = new byte[listeners][keysPerListener][];
+        for(int i=0;i<listeners;i++) {
+            l[i] = mock(KeyListener.class);
+            for(int j=0;j<keysPerListener;j++) {
+                keys[i][j] = randomKey();
+                index.add(l[i], keys[i][j]);
+            }
+            index.setComplete(l[i]);
+            index.setRegistered(l[i], true);
+        }
+        assertEquals(listeners * keysPerListener, index.countKeys());
+        for(int i=0;i<listeners;i++) {
+            for(int j=0;j<keysPerListener;j++) {
+                List<KeyListener> matches = get(index, keys[i][j]);
+                assertEquals(1, matches.size());
+                assertSame(l[i], matches.get(0));
+            }
+        }
+        // Remove every other listener, then check the rest survive purging and resizing.
+        for(int i=0;i<listeners;i+=2)
+            index.removeListener(l[i]);
+        index.purge();
+        for(int i=0;i<listeners;i++) {
+            for(int j=0;j<keysPerListener;j++) {
+                assertEquals(i % 2 == 1, index.contains(keys[i][j]));
+            }
+        }
+        KeyListener extra = mock(KeyListener.class);
+        for(int j=0;j<keysPerListener*5;j++)
+            index.add(extra, randomKey());
+        for(int i=1;i<listeners;i+=2) {
+            for(int j=0;j<keysPerListener;j++) {
+                assertTrue(index.contains(keys[i][j]));
+            }
+        }
+    }
+
+}
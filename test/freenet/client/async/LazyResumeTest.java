@@ -0,0 +1,241 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.fcp.MockClientRequest;
+import freenet.clients.fcp.PersistentRequestClient;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.crypt.DummyRandomSource;
+import freenet.node.RequestStarter;
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.DiskSpaceChecker;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.ResumeFailedException;
+import junit.framework.TestCase;
+
+/** Tests resuming requests loaded lazily, on demand, in the background, and when resuming
+ * fails. */
+public class LazyResumeTest extends TestCase {
+
+    private PersistentRequestRoot root;
+    private PersistentRequestClient client;
+    private ClientContext context;
+    private ClientLayerPersister persister;
+    /** The requests whose ClientRequester has been resumed, in order. */
+    private final List<String> resumed = new ArrayList<String>();
+
+    @Override
+    protected void setUp() {
+        root = new PersistentRequestRoot();
+        client = root.getGlobalForeverClient();
+        context = new ClientContext(0, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null, null, null, root, null,
+                null, null, null);
+        persister = new ClientLayerPersister(null, null, null, null, null, null, null);
+    }
+
+    public void testResumeOnDemand() throws ResumeFailedException {
+        MockClientRequest req = load("a", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false,
+                null);
+        assertTrue(req.isResumePending());
+        assertTrue(resumed.isEmpty());
+        assertSame(req, client.getRequest("a"));
+        assertFalse(req.isResumePending());
+        assertEquals(Arrays.asList("a"), resumed);
+        // Only once.
+        assertSame(req, client.getRequest("a"));
+        assertSame(req, req.finishResume());
+        assertEquals(Arrays.asList("a"), resumed);
+        assertEquals(0, req.started);
+        assertEquals(0, req.cancelled);
+    }
+
+    public void testResumeInBackground() throws ResumeFailedException {
+        load("bulk", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false, null);
+        load("interactive", RequestStarter.INTERACTIVE_PRIORITY_CLASS, false, null);
+        MockClientRequest used = load("used", RequestStarter.UPDATE_PRIORITY_CLASS, false, null);
+        load("prefetch", RequestStarter.PREFETCH_PRIORITY_CLASS, false, null);
+        persister.startBackgroundResume();
+        assertTrue(resumed.isEmpty());
+        // Used before its turn.
+        assertSame(used, client.getRequest("used"));
+        persister.resumeSome();
+        // Most urgent first, each only once.
+        assertEquals(Arrays.asList("used", "interactive", "bulk", "prefetch"), resumed);
+        for(String identifier : new String[] { "bulk", "interactive", "used", "prefetch" })
+            assertFalse(((MockClientRequest) client.getRequest(identifier)).isResumePending());
+    }
+
+    public void testResumeFailureRestarts() throws ResumeFailedException {
+        byte[] recoveryData = new byte[] { 1, 2, 3 };
+        MockClientRequest req = load("a", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, true,
+                recoveryData);
+        MockClientRequest copy = new MockClientRequest("a",
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, client, requester("a copy", false));
+        req.restarted = copy;
+        assertSame(copy, client.getRequest("a"));
+        assertTrue(Arrays.equals(recoveryData, req.recoveryData));
+        assertEquals(1, req.cancelled);
+        // The copy is resumed and started, and replaces the original.
+        assertEquals(Arrays.asList("a", "a copy"), resumed);
+        assertEquals(1, copy.started);
+        assertEquals(0, copy.cancelled);
+        assertSame(copy, client.getRequest("a"));
+        assertSame(copy, req.finishResume());
+        List<ClientRequester> requesters = new ArrayList<ClientRequester>();
+        client.addPersistentRequesters(requesters);
+        assertEquals(1, requesters.size());
+    }
+
+    public void testResumeFailureWithoutRecoveryData() throws ResumeFailedException {
+        MockClientRequest req = load("a", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, true,
+                null);
+        assertSame(req, client.getRequest("a"));
+        assertEquals(1, req.cancelled);
+        assertNull(req.recoveryData);
+        assertFalse(req.isResumePending());
+    }
+
+    public void testResumeFailureRestartFails() throws ResumeFailedException {
+        MockClientRequest req = load("a", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, true,
+                new byte[] { 1 });
+        // E.g. not supported for this type of request.
+        req.restarted = null;
+        assertSame(req, client.getRequest("a"));
+        assertEquals(1, req.cancelled);
+        assertNotNull(req.recoveryData);
+    }
+
+    public void testTempDataKeptUntilResumed() throws Exception {
+        File dir = File.createTempFile("lazy-resume", ".tmp");
+        dir.delete();
+        Random random = new Random(34);
+        byte[] fileData = new byte[100000];
+        random.nextBytes(fileData);
+        byte[] slabData = new byte[1000];
+        random.nextBytes(slabData);
+        try {
+            PersistentTempBucketFactory factory = makeFactory(dir, random);
+            factory.completedInit();
+            // One in a file of its own, one in a slab.
+            RandomAccessBucket fileBucket = factory.makeBucket(fileData.length);
+            BucketTools.copyFrom(fileBucket, new ByteArrayInputStream(fileData), -1);
+            RandomAccessBucket slabBucket = factory.makeBucket(slabData.length);
+            BucketTools.copyFrom(slabBucket, new ByteArrayInputStream(slabData), -1);
+            // Checkpoint and restart.
+            factory.grabBucketsToFree();
+            ByteArrayOutputStream saved = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(saved);
+            oos.writeObject(fileBucket);
+            oos.writeObject(slabBucket);
+            oos.close();
+            factory.getSlabStore().close();
+            final PersistentTempBucketFactory restarted = makeFactory(dir, random);
+            context = new ClientContext(0, null, null, null, restarted, null, null, null, null,
+                    null, null, null, null, null, restarted.getGenerator(), null, null, null,
+                    null, null, null, root, null, null, null, null);
+            persister = new ClientLayerPersister(null, null, null, null, restarted, null, null);
+            ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(saved.toByteArray()));
+            Bucket loadedFile = (Bucket) ois.readObject();
+            Bucket loadedSlab = (Bucket) ois.readObject();
+            MockClientRequest req = new MockClientRequest("a",
+                    RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, client,
+                    requester("a", false, loadedFile, loadedSlab));
+            persister.loadLazily(req, context, false, null);
+            persister.startBackgroundResume();
+            // As on startup, only delete unclaimed temp files after resuming.
+            final List<String> cleanedUp = new ArrayList<String>();
+            persister.whenResumed(new Runnable() {
+
+                @Override
+                public void run() {
+                    restarted.completedInit();
+                    cleanedUp.add("temp");
+                }
+
+            });
+            assertTrue(cleanedUp.isEmpty());
+            persister.resumeSome();
+            assertEquals(Arrays.asList("a"), resumed);
+            assertEquals(Arrays.asList("temp"), cleanedUp);
+            assertTrue(Arrays.equals(fileData, BucketTools.toByteArray(loadedFile)));
+            assertTrue(Arrays.equals(slabData, BucketTools.toByteArray(loadedSlab)));
+            assertEquals(1, restarted.getSlabStore().usedSlots());
+            // Nothing left to wait for.
+            persister.whenResumed(new Runnable() {
+
+                @Override
+                public void run() {
+                    cleanedUp.add("later");
+                }
+
+            });
+            assertEquals(Arrays.asList("temp", "later"), cleanedUp);
+            restarted.getSlabStore().close();
+        } finally {
+            FileUtil.removeAll(dir);
+        }
+    }
+
+    private static PersistentTempBucketFactory makeFactory(File dir, Random random)
+            throws IOException {
+        PersistentTempBucketFactory factory = new PersistentTempBucketFactory(dir, "junit",
+                new DummyRandomSource(34), random, false);
+        factory.setDiskSpaceChecker(new DiskSpaceChecker() {
+
+            @Override
+            public boolean checkDiskSpace(File file, int toWrite, int bufferSize) {
+                return true;
+            }
+
+        });
+        return factory;
+    }
+
+    private MockClientRequest load(String identifier, short priorityClass, boolean fail,
+            byte[] recoveryData) throws ResumeFailedException {
+        MockClientRequest req = new MockClientRequest(identifier, priorityClass, client,
+                requester(identifier, fail));
+        persister.loadLazily(req, context, false, recoveryData);
+        return req;
+    }
+
+    /** Create a ClientRequester which records when it is resumed, and optionally fails.
+     * @param data Buckets to resume along with it. */
+    private ClientRequester requester(final String name, final boolean fail,
+            final Bucket... data) {
+        return mock(ClientRequester.class, new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if(invocation.getMethod().getName().equals("innerOnResume")) {
+                    resumed.add(name);
+                    if(fail) throw new ResumeFailedException("Test");
+                    for(Bucket bucket : data)
+                        bucket.onResume(context);
+                }
+                return null;
+            }
+
+        });
+    }
+
+}
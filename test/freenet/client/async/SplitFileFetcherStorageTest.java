@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.List;
 
 import freenet.client.ClientMetadata;
@@ -36,6 +37,7 @@ import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItemKey;
 import freenet.support.CheatingTicker;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
@@ -363,6 +365,7 @@ public class SplitFileFetcherStorageTest extends TestCase {
         private boolean failed;
         private boolean hasRestartedOnCorruption;
         private LockableRandomAccessBuffer raf;
+        KeySalter salter = salt;
 
         public StorageCallback(TestSplitfile splitfile) {
             this.splitfile = splitfile;
@@ -556,7 +559,7 @@ public class SplitFileFetcherStorageTest extends TestCase {
 
         @Override
         public KeySalter getSalter() {
-            return salt;
+            return salter;
         }
 
         @Override
@@ -1153,4 +1156,66 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
     
+    /** Records the keys indexed, as the node's KeyListenerTracker would. */
+    static class RecordingKeyIndexer implements KeyIndexer {
+        
+        final Set<ByteArrayWrapper> indexed = new HashSet<ByteArrayWrapper>();
+        private boolean finished;
+
+        @Override
+        public byte[] saltKey(Key key) {
+            return salt.saltKey(key);
+        }
+
+        @Override
+        public synchronized void indexKey(KeyListener listener, byte[] saltedKey) {
+            indexed.add(new ByteArrayWrapper(saltedKey));
+        }
+
+        @Override
+        public synchronized void unindexKey(KeyListener listener, byte[] saltedKey) {
+            indexed.remove(new ByteArrayWrapper(saltedKey));
+        }
+
+        @Override
+        public synchronized void finishedIndexing(KeyListener listener) {
+            finished = true;
+        }
+        
+        synchronized boolean isIndexed(Key key) {
+            return indexed.contains(new ByteArrayWrapper(saltKey(key)));
+        }
+        
+        synchronized boolean hasFinished() {
+            return finished;
+        }
+        
+    }
+    
+    public void testPersistenceReloadDoesNotIndexFetchedBlocks() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        int checkBlocks = 3;
+        long size = 32768*2-1;
+        TestSplitfile test = TestSplitfile.constructSingleSegment(size, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        RecordingKeyIndexer indexer = new RecordingKeyIndexer();
+        cb.salter = indexer;
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        SplitFileFetcherSegmentStorage segment = storage.segments[0];
+        int total = test.dataBlocks.length+test.checkBlocks.length;
+        assertTrue(segment.onGotKey(test.getCHK(0), test.encodeBlock(0)));
+        cb.markDownloadedBlock(0);
+        exec.waitForIdle();
+        // Reload with an empty index.
+        indexer = new RecordingKeyIndexer();
+        cb.salter = indexer;
+        storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+        storage.start(false);
+        exec.waitForIdle();
+        assertTrue(indexer.hasFinished());
+        assertFalse(indexer.isIndexed(test.getCHK(0)));
+        for(int i=1;i<total;i++)
+            assertTrue(indexer.isIndexed(test.getCHK(i)));
+        cb.checkFailed();
+    }
+    
 }
@@ -300,6 +300,58 @@ public class SplitFileInserterStorageTest extends TestCase {
         assertTrue(storage.getStatus() == Status.ENCODED);
     }
 
+    public void testCHKOnlySameMetadata() throws IOException, InsertException, MissingKeyException, MetadataUnresolvedException {
+        long size = CHKBlock.DATA_LENGTH*128*2+1000;
+        SplitFileInserterStorage normal = encode(size, false, false);
+        SplitFileInserterStorage chkOnly = encode(size, true, false);
+        assertTrue(BucketTools.equalBuckets(normal.encodeMetadata().toBucket(smallBucketFactory),
+                chkOnly.encodeMetadata().toBucket(smallBucketFactory)));
+        // No space is allocated for the check blocks.
+        assertEquals(normal.getRAF().size() - normal.totalCheckBlocks * CHKBlock.DATA_LENGTH,
+                chkOnly.getRAF().size());
+    }
+
+    public void testCHKOnlyResume() throws IOException, InsertException, MissingKeyException, MetadataUnresolvedException, StorageFormatException, ChecksumFailedException, ResumeFailedException {
+        long size = CHKBlock.DATA_LENGTH*128*2+1000;
+        SplitFileInserterStorage normal = encode(size, false, true);
+        SplitFileInserterStorage chkOnly = encode(size, true, true);
+        assertEquals(normal.getRAF().size() - normal.totalCheckBlocks * CHKBlock.DATA_LENGTH,
+                chkOnly.getRAF().size());
+        // Knows there is no space for the check blocks after resuming.
+        MyCallback cb = new MyCallback();
+        SplitFileInserterStorage resumed = new SplitFileInserterStorage(chkOnly.getRAF(),
+                chkOnly.originalData, cb, new Random(12125), memoryLimitedJobRunner, jobRunner,
+                ticker, new MyKeysFetchingLocally(), fg, persistentFileTracker, null);
+        assertFalse(resumed.storeCheckBlocks);
+        assertTrue(BucketTools.equalBuckets(chkOnly.encodeMetadata().toBucket(smallBucketFactory),
+                resumed.encodeMetadata().toBucket(smallBucketFactory)));
+        resumed = new SplitFileInserterStorage(normal.getRAF(), normal.originalData, cb,
+                new Random(12125), memoryLimitedJobRunner, jobRunner, ticker,
+                new MyKeysFetchingLocally(), fg, persistentFileTracker, null);
+        assertTrue(resumed.storeCheckBlocks);
+    }
+
+    private SplitFileInserterStorage encode(long size, boolean getCHKOnly, boolean persistent) throws IOException, InsertException, MissingKeyException, MetadataUnresolvedException {
+        Random r = new Random(12124);
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        InsertContext context = baseContext.clone();
+        context.earlyEncode = true;
+        context.getCHKOnly = getCHKOnly;
+        KeysFetchingLocally keys = new MyKeysFetchingLocally();
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, persistent, context, 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        assertEquals(!getCHKOnly, storage.storeCheckBlocks);
+        storage.start();
+        cb.waitForFinishedEncode();
+        cb.waitForHasKeys();
+        executor.waitForIdle();
+        return storage;
+    }
+
     public void testSmallSplitfileCompletion() throws IOException, InsertException, MissingKeyException {
         Random r = new Random(12121);
         long size = 65536; // Exact multiple, so no last block
@@ -0,0 +1,269 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.ClientSSKBlock;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+import freenet.node.RequestStarter;
+
+public class USKPollSchedulerTest extends TestCase {
+
+    private USKPollScheduler scheduler;
+    private USK usk;
+    private FetchContext ctx;
+    private FetchContext ctxNoStore;
+
+    @Override
+    protected void setUp() throws MalformedURLException {
+        scheduler = new USKPollScheduler();
+        usk = new USK(InsertableClientSSK.createRandom(new DummyRandomSource(4321), "test"), 0);
+        ctx = mock(FetchContext.class);
+        ctxNoStore = mock(FetchContext.class);
+        ctxNoStore.ignoreStore = true;
+    }
+
+    public void testShareProbes() {
+        MockCallback a = new MockCallback(RequestStarter.PREFETCH_PRIORITY_CLASS);
+        MockCallback b = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        MockCallback c = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        MockCallback d = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        USKPollScheduler.Probe pa = scheduler.join(a, usk.getSSK(1), -1, ctx, null, false);
+        USKPollScheduler.Probe pb = scheduler.join(b, usk.getSSK(1), -1, ctx, null, false);
+        assertSame(pa, pb);
+        // Different edition or settings.
+        assertNotSame(pa, scheduler.join(c, usk.getSSK(2), -1, ctx, null, false));
+        assertNotSame(pa, scheduler.join(d, usk.getSSK(1), -1, ctxNoStore, null, false));
+        assertNotSame(pa, scheduler.join(d, usk.getSSK(1), 3, ctx, null, false));
+        assertNotSame(pa, scheduler.join(d, usk.getSSK(1), -1, ctx, null, true));
+        assertEquals(5, scheduler.runningProbes());
+        assertEquals(5, scheduler.probesStarted());
+        assertEquals(1, scheduler.probesShared());
+        // Runs at the best priority.
+        assertEquals(RequestStarter.UPDATE_PRIORITY_CLASS, pa.getPriority());
+        // Results go to everyone waiting.
+        pa.onEnterFiniteCooldown(null);
+        assertTrue(pa.everInCooldown());
+        pa.onDNF(null);
+        assertEquals(1, a.cooldowns);
+        assertEquals(1, b.cooldowns);
+        assertEquals(1, a.dnfs);
+        assertEquals(1, b.dnfs);
+        assertEquals(0, c.dnfs);
+        assertEquals(4, scheduler.runningProbes());
+        // Only once.
+        pa.onSuccess(null, null);
+        assertEquals(0, a.successes);
+        // A finished probe isn't reused.
+        assertNotSame(pa, scheduler.join(a, usk.getSSK(1), -1, ctx, null, false));
+    }
+
+    public void testLeave() {
+        MockCallback a = new MockCallback(RequestStarter.PREFETCH_PRIORITY_CLASS);
+        MockCallback b = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        USKPollScheduler.Probe p = scheduler.join(a, usk.getSSK(1), -1, ctx, null, false);
+        scheduler.join(b, usk.getSSK(1), -1, ctx, null, false);
+        p.leave(b, null);
+        assertEquals(RequestStarter.PREFETCH_PRIORITY_CLASS, p.getPriority());
+        assertEquals(1, scheduler.runningProbes());
+        p.onSuccess(null, null);
+        assertEquals(1, a.successes);
+        assertEquals(0, b.successes);
+        p = scheduler.join(a, usk.getSSK(1), -1, ctx, null, false);
+        // The last one to leave cancels it.
+        p.leave(a, null);
+        assertEquals(0, scheduler.runningProbes());
+        p.onDNF(null);
+        assertEquals(0, a.dnfs);
+    }
+
+    public void testFirstJoinerCancels() {
+        final List<USKChecker> started = new ArrayList<USKChecker>();
+        scheduler = new USKPollScheduler() {
+            @Override
+            void start(USKChecker checker, ClientContext context) {
+                started.add(checker);
+            }
+        };
+        ClientRequester parentA = mock(ClientRequester.class);
+        ClientRequester parentB = mock(ClientRequester.class);
+        MockCallback a = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        MockCallback b = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        USKPollScheduler.Probe p = scheduler.join(a, usk.getSSK(1), -1, ctx, parentA, false);
+        p.schedule(null);
+        scheduler.join(b, usk.getSSK(1), -1, ctx, parentB, false);
+        p.schedule(null);
+        assertEquals(1, started.size());
+        assertSame(parentA, started.get(0).parent);
+        // The first requester is cancelled, so its checker is too.
+        when(parentA.isCancelled()).thenReturn(true);
+        started.get(0).cb.onCancelled(null);
+        assertEquals(1, a.cancels);
+        assertEquals(0, b.cancels);
+        // Restarted for the other one.
+        assertEquals(2, started.size());
+        assertSame(parentB, started.get(1).parent);
+        assertEquals(1, scheduler.runningProbes());
+        assertEquals(1, p.waiters());
+        started.get(1).cb.onDNF(null);
+        assertEquals(0, a.dnfs);
+        assertEquals(1, b.dnfs);
+        assertEquals(0, scheduler.runningProbes());
+    }
+
+    public void testFirstJoinerLeaves() {
+        final List<USKChecker> started = new ArrayList<USKChecker>();
+        final List<USKChecker> stopped = new ArrayList<USKChecker>();
+        scheduler = new USKPollScheduler() {
+            @Override
+            void start(USKChecker checker, ClientContext context) {
+                started.add(checker);
+            }
+
+            @Override
+            void stop(USKChecker checker, ClientContext context) {
+                stopped.add(checker);
+            }
+        };
+        ClientRequester parentA = mock(ClientRequester.class);
+        ClientRequester parentB = mock(ClientRequester.class);
+        MockCallback a = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        MockCallback b = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        USKPollScheduler.Probe p = scheduler.join(a, usk.getSSK(1), -1, ctx, parentA, false);
+        scheduler.join(b, usk.getSSK(1), -1, ctx, parentB, false);
+        p.schedule(null);
+        USKChecker first = started.get(0);
+        assertSame(parentA, first.parent);
+        // Moved to the other requester.
+        p.leave(a, null);
+        assertEquals(Arrays.asList(first), stopped);
+        assertEquals(2, started.size());
+        assertSame(parentB, started.get(1).parent);
+        // The old checker's results are ignored.
+        first.cb.onCancelled(null);
+        first.cb.onSuccess(null, null);
+        assertEquals(0, b.cancels);
+        assertEquals(0, b.successes);
+        started.get(1).cb.onSuccess(null, null);
+        assertEquals(1, b.successes);
+        assertEquals(0, a.successes);
+    }
+
+    public void testCancelledForEveryone() {
+        final List<USKChecker> started = new ArrayList<USKChecker>();
+        scheduler = new USKPollScheduler() {
+            @Override
+            void start(USKChecker checker, ClientContext context) {
+                started.add(checker);
+            }
+        };
+        MockCallback a = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        MockCallback b = new MockCallback(RequestStarter.UPDATE_PRIORITY_CLASS);
+        USKPollScheduler.Probe p = scheduler.join(a, usk.getSSK(1), -1, ctx, mock(ClientRequester.class), false);
+        scheduler.join(b, usk.getSSK(1), -1, ctx, mock(ClientRequester.class), false);
+        p.schedule(null);
+        // Neither requester was cancelled, so don't retry.
+        started.get(0).cb.onCancelled(null);
+        assertEquals(1, started.size());
+        assertEquals(1, a.cancels);
+        assertEquals(1, b.cancels);
+        assertEquals(0, scheduler.runningProbes());
+    }
+
+    public void testSleepTime() {
+        long min = MINUTES.toMillis(30);
+        long max = HOURS.toMillis(24);
+        USK clear = usk.clearCopy();
+        assertEquals(max, scheduler.getMaxSleepTime(clear, min, max));
+        long now = 1000000;
+        scheduler.onNewSlot(clear, now);
+        // No interval yet.
+        assertEquals(max, scheduler.getMaxSleepTime(clear, min, max));
+        // Updated every 4 hours.
+        for(int i=0;i<5;i++) {
+            now += HOURS.toMillis(4);
+            scheduler.onNewSlot(clear, now);
+        }
+        assertEquals(HOURS.toMillis(2), scheduler.getMaxSleepTime(clear, min, max));
+        // Rarely updated.
+        for(int i=0;i<20;i++) {
+            now += DAYS.toMillis(7);
+            scheduler.onNewSlot(clear, now);
+        }
+        assertEquals(max, scheduler.getMaxSleepTime(clear, min, max));
+        // Very often, but we don't poll more often than when starting.
+        for(int i=0;i<50;i++) {
+            now += MINUTES.toMillis(1);
+            scheduler.onNewSlot(clear, now);
+        }
+        assertEquals(min, scheduler.getMaxSleepTime(clear, min, max));
+    }
+
+    public void testDateHints() {
+        USK clear = usk.clearCopy();
+        long now = 1000000;
+        assertTrue(scheduler.shouldFetchDateHints(clear, now));
+        assertFalse(scheduler.shouldFetchDateHints(clear, now + 1000));
+        assertTrue(scheduler.shouldFetchDateHints(clear, now + USKPollScheduler.DATE_HINT_INTERVAL));
+    }
+
+    private static class MockCallback implements USKCheckerCallback {
+
+        final short priority;
+        int dnfs;
+        int successes;
+        int cooldowns;
+        int cancels;
+
+        MockCallback(short priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void onDNF(ClientContext context) {
+            dnfs++;
+        }
+
+        @Override
+        public void onSuccess(ClientSSKBlock block, ClientContext context) {
+            successes++;
+        }
+
+        @Override
+        public void onFatalAuthorError(ClientContext context) {
+        }
+
+        @Override
+        public void onNetworkError(ClientContext context) {
+        }
+
+        @Override
+        public void onCancelled(ClientContext context) {
+            cancels++;
+        }
+
+        @Override
+        public short getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void onEnterFiniteCooldown(ClientContext context) {
+            cooldowns++;
+        }
+
+    }
+
+}
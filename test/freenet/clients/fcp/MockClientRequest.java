@@ -0,0 +1,144 @@
+package freenet.clients.fcp;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.support.io.ResumeFailedException;
+
+/** A persistent request on the global queue which does nothing except count calls, for testing
+ * resuming requests. */
+public class MockClientRequest extends ClientRequest {
+
+    private final ClientRequester requester;
+    /** Returned by readRecoveryData(). */
+    public ClientRequest restarted;
+    /** The recovery data passed to readRecoveryData(). */
+    public byte[] recoveryData;
+    public int started;
+    public int cancelled;
+
+    public MockClientRequest(String identifier, short priorityClass, PersistentRequestClient client,
+            ClientRequester requester) {
+        super(null, identifier, 0, null, null, client, priorityClass, Persistence.FOREVER, false,
+                null, true);
+        this.requester = requester;
+    }
+
+    @Override
+    ClientRequest readRecoveryData(byte[] recoveryData, ClientContext context) {
+        this.recoveryData = recoveryData;
+        return restarted;
+    }
+
+    @Override
+    public void cancel(ClientContext context) {
+        cancelled++;
+        super.cancel(context);
+    }
+
+    @Override
+    public void start(ClientContext context) {
+        started++;
+    }
+
+    @Override
+    protected ClientRequester getClientRequest() {
+        return requester;
+    }
+
+    @Override
+    public void onLostConnection(ClientContext context) {
+        // Ignore.
+    }
+
+    @Override
+    public void sendPendingMessages(FCPConnectionOutputHandler handler,
+            String listRequestIdentifier, boolean includeData, boolean onlyData) {
+        // Ignore.
+    }
+
+    @Override
+    void register(boolean noTags) throws IdentifierCollisionException {
+        client.register(this);
+    }
+
+    @Override
+    protected void freeData() {
+        // Ignore.
+    }
+
+    @Override
+    public double getSuccessFraction() {
+        return 0;
+    }
+
+    @Override
+    public double getTotalBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getMinBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFetchedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFatalyFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public String getFailureReason(boolean longDescription) {
+        return null;
+    }
+
+    @Override
+    public boolean isTotalFinalized() {
+        return false;
+    }
+
+    @Override
+    public boolean hasSucceeded() {
+        return false;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return false;
+    }
+
+    @Override
+    public boolean restart(ClientContext context, boolean disableFilterData) {
+        return false;
+    }
+
+    @Override
+    RequestStatus getStatus() {
+        return null;
+    }
+
+    @Override
+    protected void innerResume(ClientContext context) throws ResumeFailedException {
+        // Ignore.
+    }
+
+    @Override
+    RequestIdentifier.RequestType getType() {
+        return RequestIdentifier.RequestType.GET;
+    }
+
+    @Override
+    public boolean fullyResumed() {
+        return false;
+    }
+
+}
@@ -18,6 +18,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Security;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
@@ -27,10 +28,14 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import freenet.client.async.ClientContext;
+import freenet.support.HelperThreads;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
 import freenet.support.io.BucketTools;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FileRandomAccessBuffer;
+import freenet.support.io.NativeThread;
 import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
 
@@ -336,4 +341,109 @@ public class EncryptedRandomAccessBufferTest {
         restored.free();
     }
     
+    /** Big reads and writes are split into chunks, small ones are not. Either way the data on 
+     * disk must be the same. */
+    @Test
+    public void testBigAndSmallAccess() throws IOException, GeneralSecurityException {
+        int length = 20 * EncryptedRandomAccessBuffer.CHUNK_SIZE + 1234;
+        int offset = 999;
+        byte[] data = new byte[length];
+        new Random(1267613).nextBytes(data);
+        for(EncryptedRandomAccessBufferType type: types){
+            ByteArrayRandomAccessBuffer barat = 
+                new ByteArrayRandomAccessBuffer(new byte[offset+length+type.headerLen]);
+            EncryptedRandomAccessBuffer erat = 
+                new EncryptedRandomAccessBuffer(type, barat, secret, true);
+            // Big write, small reads.
+            erat.pwrite(offset, data, 0, length);
+            byte[] result = new byte[length];
+            for(int i=0;i<length;i+=7777)
+                erat.pread(offset+i, result, i, Math.min(7777, length-i));
+            assertArrayEquals(data, result);
+            // Small writes, big read.
+            for(int i=0;i<length;i+=5555)
+                erat.pwrite(offset+i, data, i, Math.min(5555, length-i));
+            result = new byte[length];
+            erat.pread(offset, result, 0, length);
+            assertArrayEquals(data, result);
+            erat.close();
+        }
+    }
+
+    /** If the node has no threads to spare, big reads and writes are encrypted on the calling 
+     * thread. */
+    @Test
+    public void testBigAccessLimitedByJobRunner() throws IOException, GeneralSecurityException {
+        int length = 20 * EncryptedRandomAccessBuffer.CHUNK_SIZE;
+        byte[] data = new byte[length];
+        new Random(1267615).nextBytes(data);
+        EncryptedRandomAccessBufferType type = types[0];
+        ByteArrayRandomAccessBuffer barat = 
+            new ByteArrayRandomAccessBuffer(new byte[length+type.headerLen]);
+        EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(type, barat, secret, 
+                true);
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1024*1024, 1, 
+                new PooledExecutor(), NativeThread.JAVA_PRIORITY_RANGE);
+        assertEquals(1, runner.reserveThreads(1, 0));
+        HelperThreads.setJobRunner(runner);
+        try {
+            erat.pwrite(0, data, 0, length);
+            runner.releaseThreads(1, 0);
+            // Extra threads are released afterwards.
+            runner.setMaxThreads(EncryptedRandomAccessBuffer.MAX_THREADS);
+            byte[] result = new byte[length];
+            erat.pread(0, result, 0, length);
+            assertArrayEquals(data, result);
+            assertEquals(0, runner.getRunningThreads());
+            // Same as small reads.
+            for(int i=0;i<length;i+=5555)
+                erat.pread(i, result, i, Math.min(5555, length-i));
+            assertArrayEquals(data, result);
+        } finally {
+            HelperThreads.setJobRunner(null);
+        }
+        erat.close();
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int length = 64 * 1024;
+        final byte[] data = new byte[length];
+        new Random(1267614).nextBytes(data);
+        ByteArrayRandomAccessBuffer barat = 
+            new ByteArrayRandomAccessBuffer(new byte[length+types[0].headerLen]);
+        final EncryptedRandomAccessBuffer erat = 
+            new EncryptedRandomAccessBuffer(types[0], barat, secret, true);
+        erat.pwrite(0, data, 0, length);
+        final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for(int i=0;i<threads.length;i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random r = new Random(seed);
+                    byte[] buf = new byte[1024];
+                    try {
+                        for(int j=0;j<1000;j++) {
+                            int offset = r.nextInt(length - buf.length);
+                            erat.pread(offset, buf, 0, buf.length);
+                            for(int k=0;k<buf.length;k++) {
+                                if(buf[k] != data[offset+k])
+                                    throw new AssertionError("Wrong data at "+(offset+k));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failed.set(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        if(failed.get() != null) throw new AssertionError(failed.get());
+        erat.close();
+    }
+
 }
@@ -0,0 +1,115 @@
+package freenet.crypt;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class EntropyStagingBufferTest extends TestCase {
+
+	private static class CountingRandomSource extends DummyRandomSource {
+		private static final long serialVersionUID = 1L;
+		final AtomicInteger batches = new AtomicInteger();
+		final AtomicInteger samples = new AtomicInteger();
+		final List<Long> values = Collections.synchronizedList(new ArrayList<Long>());
+
+		@Override
+		public int acceptEntropySamples(EntropySource source, long[] data, int count, int entropyGuess, double bias) {
+			batches.incrementAndGet();
+			samples.addAndGet(count);
+			for(int i = 0; i < count; i++)
+				values.add(data[i]);
+			return 0;
+		}
+	}
+
+	public void testBatches() throws InterruptedException {
+		final CountingRandomSource random = new CountingRandomSource();
+		final EntropyStagingBuffer buffer = new EntropyStagingBuffer(random, 0.25);
+		final int THREADS = 4;
+		final int EVENTS = 1000;
+		Thread[] threads = new Thread[THREADS];
+		for(int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < EVENTS; j++)
+						buffer.timerEvent();
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		int expected = (THREADS * EVENTS) / EntropyStagingBuffer.BATCH_SIZE;
+		assertTrue(random.batches.get() <= expected);
+		assertTrue(random.batches.get() > 0);
+		// No event is passed on twice. The first has nothing to compare with.
+		assertTrue(random.samples.get() <= THREADS * EVENTS - 1);
+		for(long delta : random.values)
+			assertTrue(delta >= 0);
+	}
+
+	public void testDeltas() {
+		CountingRandomSource random = new CountingRandomSource();
+		EntropyStagingBuffer buffer = new EntropyStagingBuffer(random, 0.25);
+		long t = 123456789;
+		List<Long> expected = new ArrayList<Long>();
+		for(int i = 0; i < EntropyStagingBuffer.BATCH_SIZE * 2; i++) {
+			long delta = MILLISECONDS.toNanos(i % 5) + 1000;
+			t += delta;
+			buffer.timerEvent(t);
+			if(i > 0) expected.add(NANOSECONDS.toMillis(delta));
+		}
+		// Milliseconds since the previous event, as acceptTimerEntropy() would use, including
+		// between batches.
+		assertEquals(2, random.batches.get());
+		assertEquals(expected, random.values);
+	}
+
+	public void testStaleSlotsNotCountedTwice() {
+		CountingRandomSource random = new CountingRandomSource();
+		EntropyStagingBuffer buffer = new EntropyStagingBuffer(random, 0.25);
+		long t = 1000000;
+		for(int i = 0; i < EntropyStagingBuffer.BATCH_SIZE; i++)
+			buffer.timerEvent(t += 1000000);
+		assertEquals(EntropyStagingBuffer.BATCH_SIZE - 1, random.samples.get());
+		// Only the slot which finishes the batch is written, e.g. because the other threads
+		// haven't written theirs yet. The old values aren't passed on again.
+		for(int i = 0; i < EntropyStagingBuffer.BATCH_SIZE - 1; i++)
+			buffer.timerEvent(0);
+		buffer.timerEvent(t += 5000000);
+		assertEquals(2, random.batches.get());
+		assertEquals(EntropyStagingBuffer.BATCH_SIZE, random.samples.get());
+		assertEquals(Long.valueOf(5), random.values.get(random.values.size() - 1));
+	}
+
+	public void testYarrowAcceptsSamples() {
+		File seed = new File("entropy-staging-test.seed");
+		try {
+			Yarrow y = new Yarrow(seed, "SHA1", "Rijndael", false, false, false);
+			EntropySource source = new EntropySource();
+			long[] samples = new long[EntropyStagingBuffer.BATCH_SIZE];
+			long t = 1000000;
+			for(int i = 0; i < samples.length; i++) {
+				t += 1000 + (i * 7919) % 4096;
+				samples[i] = t;
+			}
+			int entropy = y.acceptEntropySamples(source, samples, samples.length, 32, 1.0);
+			assertTrue(entropy > 0);
+			assertTrue(entropy <= 32 * samples.length);
+			// A bias reduces it.
+			assertTrue(y.acceptEntropySamples(source, samples, samples.length, 32, 0.0) == 0);
+			y.nextBytes(new byte[32]);
+		} finally {
+			seed.delete();
+		}
+	}
+
+}
@@ -71,6 +71,54 @@ public class HMACTest extends TestCase {
     assertEquals(Hex.toHexString(hmac), Hex.toHexString(knownSHA256));
   }
 
+  public void testMacInto() {
+    byte[] buf = new byte[100];
+    random.nextBytes(buf);
+    byte[] out = new byte[40];
+    HMAC.macInto(HMAC.SHA2_256, knownKey, buf, 10, 50, out, 5, 32);
+    byte[] expected = HMAC.macWithSHA256(knownKey, java.util.Arrays.copyOfRange(buf, 10, 60));
+    assertEquals(Hex.toHexString(expected), Hex.toHexString(java.util.Arrays.copyOfRange(out, 5, 37)));
+    try {
+      HMAC.macInto(HMAC.SHA2_256, knownKey, buf, 0, 10, out, 10, 32);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Not enough space.
+    }
+    // Truncated, in front of the data, as in a packet.
+    expected = HMAC.macWithSHA256(knownKey, java.util.Arrays.copyOfRange(buf, 10, 100));
+    HMAC.macInto(HMAC.SHA2_256, knownKey, buf, 10, 90, buf, 0, 10);
+    assertEquals(Hex.toHexString(java.util.Arrays.copyOf(expected, 10)),
+        Hex.toHexString(java.util.Arrays.copyOf(buf, 10)));
+    assertTrue(HMAC.verifyWithSHA256(knownKey, buf, 10, 90, buf, 0, 10));
+    // Still works afterwards.
+    assertEquals(Hex.toHexString(knownSHA256), Hex.toHexString(HMAC.macWithSHA256(knownKey, plaintext)));
+  }
+
+  public void testChangingKey() {
+    // The same thread's Mac is reused with different keys.
+    byte[] key = new byte[32];
+    random.nextBytes(key);
+    byte[] hmac = HMAC.macWithSHA256(key, plaintext);
+    assertEquals(Hex.toHexString(knownSHA256), Hex.toHexString(HMAC.macWithSHA256(knownKey, plaintext)));
+    key[0] ^= 1;
+    assertFalse(Hex.toHexString(hmac).equals(Hex.toHexString(HMAC.macWithSHA256(key, plaintext))));
+    key[0] ^= 1;
+    assertEquals(Hex.toHexString(hmac), Hex.toHexString(HMAC.macWithSHA256(key, plaintext)));
+  }
+
+  public void testTruncatedVerify() {
+    // MAC of "Hi There", truncated to 10 bytes, in front of the data, as in a packet.
+    byte[] packet = new byte[10 + plaintext.length];
+    System.arraycopy(knownSHA256, 0, packet, 0, 10);
+    System.arraycopy(plaintext, 0, packet, 10, plaintext.length);
+    assertTrue(HMAC.verifyWithSHA256(knownKey, packet, 10, plaintext.length, packet, 0, 10));
+    packet[9] ^= 1;
+    assertFalse(HMAC.verifyWithSHA256(knownKey, packet, 10, plaintext.length, packet, 0, 10));
+    packet[9] ^= 1;
+    packet[packet.length-1] ^= 1;
+    assertFalse(HMAC.verifyWithSHA256(knownKey, packet, 10, plaintext.length, packet, 0, 10));
+  }
+
   // ant -Dtest.skip=false -Dtest.class=freenet.crypt.HMACTest -Dtest.benchmark=true unit
   public void testBenchmark() {
     if (!TestProperty.BENCHMARK) {
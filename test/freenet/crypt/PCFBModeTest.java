@@ -1,7 +1,12 @@
 package freenet.crypt;
 
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import junit.framework.TestCase;
 
 import freenet.crypt.ciphers.Rijndael;
@@ -164,4 +169,36 @@ public class PCFBModeTest extends TestCase {
 		}
 	}
 
+	// With 128-bit blocks PCFB is standard CFB, and Rijndael uses JCA, which can decrypt many
+	// blocks at once.
+	public void testRandom128() throws GeneralSecurityException, UnsupportedCipherException {
+		for(int i=0;i<256;i++) {
+			byte[] plaintext = new byte[mt.nextInt(8192)+1];
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			mt.nextBytes(plaintext);
+			mt.nextBytes(key);
+			mt.nextBytes(iv);
+			Cipher c = Cipher.getInstance("AES/CFB/NoPadding");
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			byte[] ciphertext = c.doFinal(plaintext);
+			Rijndael cipher = new Rijndael(256, 128);
+			cipher.initialize(key);
+			PCFBMode pcfb = PCFBMode.create(cipher, iv);
+			byte[] output = plaintext.clone();
+			pcfb.blockEncipher(output, 0, output.length);
+			assertTrue(Arrays.equals(output, ciphertext));
+			// Decrypt in random pieces.
+			pcfb.reset(iv);
+			int ptr = 0;
+			while (ptr < output.length) {
+				int max = output.length - ptr;
+				int count = (max == 1) ? 1 : (mt.nextInt(max - 1) + 1);
+				pcfb.blockDecipher(output, ptr, count);
+				ptr += count;
+			}
+			assertTrue(Arrays.equals(output, plaintext));
+		}
+	}
+
 }
@@ -0,0 +1,35 @@
+package freenet.crypt;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.util.encoders.Hex;
+
+public class SHA256Test extends TestCase {
+
+	// FIPS 180-2 test vector
+	private static final byte[] ABC = new byte[] { 'a', 'b', 'c' };
+	private static final String ABC_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	public void testDigest() {
+		assertEquals(ABC_HASH, Hex.toHexString(SHA256.digest(ABC)));
+		assertEquals(ABC_HASH, Hex.toHexString(SHA256.digest(new byte[] { 'a' }, new byte[] { 'b', 'c' })));
+		assertEquals(ABC_HASH, Hex.toHexString(SHA256.digest(new byte[] { 'x', 'a', 'b', 'c', 'x' }, 1, 3)));
+	}
+
+	public void testDigestInto() {
+		byte[] out = new byte[40];
+		SHA256.digestInto(new byte[] { 'a', 'b' }, new byte[] { 'c' }, out, 8);
+		assertEquals(ABC_HASH, Hex.toHexString(Arrays.copyOfRange(out, 8, 40)));
+		try {
+			SHA256.digestInto(ABC, new byte[0], out, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Not enough space.
+		}
+		// Doesn't affect the next hash.
+		assertEquals(ABC_HASH, Hex.toHexString(SHA256.digest(ABC)));
+	}
+
+}
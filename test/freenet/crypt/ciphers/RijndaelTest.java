@@ -19,6 +19,7 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import junit.framework.TestCase;
+import freenet.crypt.BlockCipher;
 import freenet.crypt.CTRBlockCipherTest;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.support.HexUtil;
@@ -2011,4 +2012,84 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	/** Rijndael_Algorithm with 128-bit blocks, as Rijndael used to be. */
+	private static class BuiltinAES implements BlockCipher {
+		private final int keysize;
+		private Object sessionKey;
+
+		BuiltinAES(int keysize) {
+			this.keysize = keysize;
+		}
+
+		@Override
+		public void initialize(byte[] key) {
+			try {
+				sessionKey = Rijndael_Algorithm.makeKey(Arrays.copyOf(key, keysize/8), 16);
+			} catch (InvalidKeyException e) {
+				throw new Error(e);
+			}
+		}
+
+		@Override
+		public int getKeySize() {
+			return keysize;
+		}
+
+		@Override
+		public int getBlockSize() {
+			return 128;
+		}
+
+		@Override
+		public void encipher(byte[] block, byte[] result) {
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, 16);
+		}
+
+		@Override
+		public void decipher(byte[] block, byte[] result) {
+			Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, 16);
+		}
+	}
+
+	public void testAESBlockCipher() throws UnsupportedCipherException {
+		for(int keySize : new int[] { 128, 192, 256 }) {
+			if(!AESBlockCipher.isAvailable(keySize)) continue;
+			AESBlockCipher aes = new AESBlockCipher(keySize);
+			BuiltinAES builtin = new BuiltinAES(keySize);
+			for(int i=0;i<64;i++) {
+				byte[] key = new byte[32];
+				rand.nextBytes(key);
+				aes.initialize(key);
+				builtin.initialize(key);
+				byte[] data = new byte[16 * (i+1)];
+				rand.nextBytes(data);
+				byte[] expected = new byte[data.length];
+				byte[] block = new byte[16];
+				for(int j=0;j<data.length;j+=16) {
+					System.arraycopy(data, j, block, 0, 16);
+					builtin.encipher(block, block);
+					System.arraycopy(block, 0, expected, j, 16);
+				}
+				byte[] output = new byte[data.length + 16];
+				aes.encipherBlocks(data, 0, output, 16, data.length);
+				assertTrue(Arrays.equals(expected, Arrays.copyOfRange(output, 16, output.length)));
+				// In place.
+				aes.decipherBlocks(output, 16, output, 16, data.length);
+				assertTrue(Arrays.equals(data, Arrays.copyOfRange(output, 16, output.length)));
+				// One block at a time.
+				byte[] last = Arrays.copyOfRange(data, data.length-16, data.length);
+				byte[] encrypted = new byte[16];
+				aes.encipher(last, encrypted);
+				assertTrue(Arrays.equals(encrypted, block));
+				aes.decipher(encrypted, encrypted);
+				assertTrue(Arrays.equals(encrypted, last));
+			}
+		}
+	}
+
+	public void testUsesJCA() throws UnsupportedCipherException {
+		assertEquals(AESBlockCipher.isAvailable(256), new Rijndael(256, 128).getAESBlockCipher() != null);
+		assertNull(new Rijndael(256, 256).getAESBlockCipher());
+	}
 }
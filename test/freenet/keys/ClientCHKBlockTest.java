@@ -91,4 +91,33 @@ public class ClientCHKBlockTest extends TestCase {
 		}
 	}
 
+	public void testDecodeInto() throws CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		MersenneTwister random = new MersenneTwister(43);
+		byte[] splitfileKey = new byte[32];
+		random.nextBytes(splitfileKey);
+		for(byte cryptoAlgorithm : new byte[] { Key.ALGO_AES_CTR_256_SHA256, Key.ALGO_AES_PCFB_256_SHA256 }) {
+			for(int i=0;i<4;i++) {
+				byte[] data = new byte[CHKBlock.DATA_LENGTH];
+				random.nextBytes(data);
+				ClientCHKBlock block = ClientCHKBlock.encodeSplitfileBlock(data, i % 2 == 0 ? splitfileKey : null, cryptoAlgorithm);
+				ClientCHKBlock checkBlock = new ClientCHKBlock(block.getBlock(), block.getClientKey());
+				byte[] output = new byte[CHKBlock.DATA_LENGTH + 10];
+				assertEquals(CHKBlock.DATA_LENGTH, checkBlock.decodeInto(output, 10));
+				assertTrue(Arrays.equals(data, Arrays.copyOfRange(output, 10, output.length)));
+				assertTrue(Arrays.equals(data, checkBlock.memoryDecode()));
+				// Wrong key.
+				byte[] wrongKey = block.getClientKey().getCryptoKey().clone();
+				wrongKey[0] ^= 1;
+				ClientCHK key = block.getClientKey();
+				ClientCHK badKey = new ClientCHK(key.getRoutingKey(), wrongKey, false, cryptoAlgorithm, (short)-1);
+				try {
+					new ClientCHKBlock(block.getBlock(), badKey).decodeInto(output, 0);
+					fail();
+				} catch (CHKDecodeException e) {
+					// Expected.
+				}
+			}
+		}
+	}
+
 }
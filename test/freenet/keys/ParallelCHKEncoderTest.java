@@ -0,0 +1,70 @@
+package freenet.keys;
+
+import java.util.Random;
+
+import freenet.support.HelperThreads;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
+import freenet.support.io.NativeThread;
+
+import junit.framework.TestCase;
+
+public class ParallelCHKEncoderTest extends TestCase {
+
+    private static byte[][] makeBlocks(int count, Random random) {
+        byte[][] blocks = new byte[count][CHKBlock.DATA_LENGTH];
+        for(byte[] block : blocks)
+            random.nextBytes(block);
+        return blocks;
+    }
+
+    private static void checkSameAsSerial(byte[][] blocks, byte[] cryptoKey) throws CHKEncodeException {
+        ClientCHK[] keys = ParallelCHKEncoder.encodeSplitfileKeys(blocks, cryptoKey,
+                Key.ALGO_AES_CTR_256_SHA256);
+        assertEquals(blocks.length, keys.length);
+        for(int i=0;i<blocks.length;i++) {
+            ClientCHK expected = ClientCHKBlock.encodeSplitfileBlock(blocks[i], cryptoKey,
+                    Key.ALGO_AES_CTR_256_SHA256).getClientKey();
+            assertEquals(expected, keys[i]);
+        }
+    }
+
+    public void testSameAsSerial() throws CHKEncodeException {
+        Random random = new Random(1234);
+        byte[][] blocks = makeBlocks(100, random);
+        checkSameAsSerial(blocks, null);
+        byte[] cryptoKey = new byte[32];
+        random.nextBytes(cryptoKey);
+        checkSameAsSerial(blocks, cryptoKey);
+        checkSameAsSerial(makeBlocks(3, random), null);
+        checkSameAsSerial(new byte[0][], null);
+    }
+
+    public void testLimitedByJobRunner() throws CHKEncodeException {
+        Random random = new Random(20102026);
+        byte[][] blocks = makeBlocks(64, random);
+        // A runner with no threads to spare still encodes, on the calling thread.
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1024*1024, 1,
+                new PooledExecutor(), NativeThread.JAVA_PRIORITY_RANGE);
+        assertEquals(1, runner.reserveThreads(1, 0));
+        HelperThreads.setJobRunner(runner);
+        try {
+            checkSameAsSerial(blocks, null);
+            runner.releaseThreads(1, 0);
+            // Extra threads are released afterwards.
+            runner.setMaxThreads(ParallelCHKEncoder.MAX_THREADS);
+            checkSameAsSerial(blocks, null);
+            assertEquals(0, runner.getRunningThreads());
+        } finally {
+            HelperThreads.setJobRunner(null);
+        }
+    }
+
+    public void testThreadsFor() {
+        assertEquals(1, ParallelCHKEncoder.threadsFor(1, ParallelCHKEncoder.MIN_BLOCKS_PER_TASK - 1));
+        assertEquals(Math.min(ParallelCHKEncoder.MAX_THREADS, 256 / ParallelCHKEncoder.MIN_BLOCKS_PER_TASK),
+                ParallelCHKEncoder.threadsFor(1, 256));
+        assertEquals(1, ParallelCHKEncoder.threadsFor(ParallelCHKEncoder.MAX_THREADS, 256));
+    }
+
+}
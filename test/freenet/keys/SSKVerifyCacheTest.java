@@ -0,0 +1,80 @@
+package freenet.keys;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+public class SSKVerifyCacheTest extends TestCase {
+
+	private SSKBlock encode(String docName, RandomSource random) throws Exception {
+		byte[] data = docName.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		InsertableClientSSK ik = InsertableClientSSK.createRandom(random, docName);
+		ClientSSKBlock block = ik.encode(bucket, false, false, (short)-1, bucket.size(), random, Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false);
+		return (SSKBlock) block.getBlock();
+	}
+
+	public void testVerifyOnce() throws Exception {
+		SSKVerifyCache.clear();
+		RandomSource random = new DummyRandomSource(1234);
+		SSKBlock block = encode("test", random);
+		NodeSSK key = block.getKey();
+		// The inserter doesn't verify, so the first copy must.
+		SSKBlock copy = new SSKBlock(block.getRawData().clone(), block.getRawHeaders().clone(), key, false);
+		assertEquals(block, copy);
+		assertEquals(0, SSKVerifyCache.avoidedVerifications());
+		assertEquals(1, SSKVerifyCache.verifications());
+		copy = new SSKBlock(block.getRawData().clone(), block.getRawHeaders().clone(), key, false);
+		assertEquals(block, copy);
+		assertEquals(1, SSKVerifyCache.avoidedVerifications());
+		assertEquals(1, SSKVerifyCache.verifications());
+		// A different pubkey object with the same hash only needs comparing.
+		long pubKeyChecksAvoided = SSKVerifyCache.avoidedPubKeyChecks();
+		long pubKeyChecks = SSKVerifyCache.pubKeyChecks();
+		new NodeSSK(key.getPubKeyHash(), key.getKeyBytes(), key.getPubKey().cloneKey(), key.cryptoAlgorithm);
+		assertEquals(pubKeyChecksAvoided + 1, SSKVerifyCache.avoidedPubKeyChecks());
+		assertEquals(pubKeyChecks, SSKVerifyCache.pubKeyChecks());
+	}
+
+	public void testBadSignature() throws Exception {
+		SSKVerifyCache.clear();
+		RandomSource random = new DummyRandomSource(1235);
+		SSKBlock block = encode("test", random);
+		new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		byte[] headers = block.getRawHeaders().clone();
+		// Corrupt S, so the cache entry is different.
+		headers[SSKBlock.TOTAL_HEADERS_LENGTH-1] ^= 1;
+		try {
+			new SSKBlock(block.getRawData(), headers, block.getKey(), false);
+			fail();
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+		// Corrupt the data, so the signed hash is different.
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		try {
+			new SSKBlock(data, block.getRawHeaders(), block.getKey(), false);
+			fail();
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+		assertEquals(0, SSKVerifyCache.avoidedVerifications());
+	}
+
+	public void testWrongPubKey() throws Exception {
+		RandomSource random = new DummyRandomSource(1236);
+		NodeSSK key1 = encode("a", random).getKey();
+		NodeSSK key2 = encode("b", random).getKey();
+		try {
+			new NodeSSK(key1.getPubKeyHash(), key1.getKeyBytes(), key2.getPubKey(), key1.cryptoAlgorithm);
+			fail();
+		} catch (SSKVerifyException e) {
+			// Expected.
+		}
+	}
+
+}
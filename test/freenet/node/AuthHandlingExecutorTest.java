@@ -0,0 +1,79 @@
+package freenet.node;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import freenet.support.PooledExecutor;
+
+public class AuthHandlingExecutorTest extends TestCase {
+
+	private static InetAddress address(int last) throws Exception {
+		return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+	}
+
+	public void testLimitPerAddress() throws Exception {
+		AuthHandlingExecutor executor = new AuthHandlingExecutor(2, 100, 4);
+		executor.start(new PooledExecutor(), "test");
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(5);
+		Runnable job = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+				done.countDown();
+			}
+
+		};
+		InetAddress a = address(1);
+		for(int i=0;i<4;i++)
+			assertTrue(executor.execute(job, null, a));
+		assertFalse(executor.execute(job, null, a));
+		assertEquals(1, executor.getDropped());
+		// Another address is not affected.
+		assertTrue(executor.execute(job, null, address(2)));
+		assertEquals(2, executor.queuedAddresses());
+		blocked.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		// The count is released after the job has run.
+		for(int i=0;i<100 && executor.queuedAddresses() > 0;i++)
+			Thread.sleep(10);
+		assertEquals(0, executor.queuedAddresses());
+		assertTrue(executor.execute(job, null, a));
+	}
+
+	public void testSameAddressInOrder() throws Exception {
+		AuthHandlingExecutor executor = new AuthHandlingExecutor(4, 1000, 1000);
+		executor.start(new PooledExecutor(), "test");
+		final List<Integer> order = new ArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(100);
+		InetAddress a = address(3);
+		for(int i=0;i<100;i++) {
+			final int x = i;
+			assertTrue(executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized(order) {
+						order.add(x);
+					}
+					done.countDown();
+				}
+
+			}, null, a));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(int i=0;i<100;i++)
+			assertEquals(i, (int) order.get(i));
+	}
+
+}
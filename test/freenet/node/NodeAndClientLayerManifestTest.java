@@ -0,0 +1,155 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.FetchResult;
+import freenet.client.FetchWaiter;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertContext;
+import freenet.client.InsertException;
+import freenet.client.PutWaiter;
+import freenet.client.async.BaseManifestPutter;
+import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.PlainManifestPutter;
+import freenet.client.async.TooManyFilesInsertException;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Logger;
+import freenet.support.LoggerHook.InvalidThresholdException;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+/** Inserts sites of redirects to a node, as ordinary and as indexed manifests, and fetches
+ * files from them. One node for the whole class, see NodeAndClientLayerTest.
+ */
+public class NodeAndClientLayerManifestTest extends NodeAndClientLayerTestBase {
+
+    private static final File dir = new File("test-fetch-manifest-single-node");
+    private static Node node;
+    private static HighLevelSimpleClient client;
+
+    /** Ordinary manifests with redirects resolve as before: each file, a file in a
+     * subdirectory, and a missing file. */
+    @Test
+    public void testSimpleManifest() throws Exception {
+        if(!TestProperty.EXTENSIVE) return;
+        HashMap<String, Object> files = makeFiles(20);
+        HashMap<String, Object> subdir = makeFiles(3);
+        files.put("subdir", subdir);
+        FreenetURI uri = insertSite(files, 0);
+        for(int i=0;i<20;i++)
+            checkFetch(uri, name(i));
+        checkFetch(uri.pushMetaString("subdir"), name(2));
+        checkNotFound(uri, "missing.html");
+    }
+
+    /** A directory bigger than the threshold is inserted as an indexed manifest, and each
+     * file is found through the index, including those at the edges of each leaf. */
+    @Test
+    public void testIndexedManifest() throws Exception {
+        if(!TestProperty.EXTENSIVE) return;
+        // More than two leaves' worth, so the root is an index node with three children.
+        int count = 300;
+        FreenetURI uri = insertSite(makeFiles(count), 200);
+        for(int i : new int[] { 0, 1, 127, 128, 129, 255, 256, 299 })
+            checkFetch(uri, name(i));
+        checkNotFound(uri, "missing.html");
+        // Below the first name, so it goes to the first leaf.
+        checkNotFound(uri, "a.html");
+    }
+
+    private static synchronized HighLevelSimpleClient getClient() throws InvalidThresholdException, NodeInitException {
+        if(client != null) return client;
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        NodeStarter.globalTestInit(dir, false,
+                Logger.LogLevel.ERROR, "", true, new DummyRandomSource(25313));
+        TestNodeParameters params = new TestNodeParameters();
+        params.random = new DummyRandomSource(253131);
+        params.ramStore = true;
+        params.storeSize = FILE_SIZE * 32;
+        params.baseDirectory = dir;
+        params.executor = new PooledExecutor();
+        node = NodeStarter.createTestNode(params);
+        node.start(false);
+        client = node.clientCore.makeClient((short)0, false, false);
+        return client;
+    }
+
+    private static String name(int i) {
+        return String.format("file%05d.html", i);
+    }
+
+    private static byte[] data(String name) {
+        return ("Contents of "+name).getBytes();
+    }
+
+    private static HashMap<String, Object> makeFiles(int count) {
+        HashMap<String, Object> files = new HashMap<String, Object>();
+        for(int i=0;i<count;i++)
+            files.put(name(i), new SimpleReadOnlyArrayBucket(data(name(i))));
+        return files;
+    }
+
+    /** Insert a site with every file as a redirect.
+     * @param indexedManifestThreshold Insert directories bigger than this as indexed
+     * manifests. 0 means never. */
+    private FreenetURI insertSite(HashMap<String, Object> files, int indexedManifestThreshold)
+    throws InvalidThresholdException, NodeInitException, InsertException, TooManyFilesInsertException, PersistenceDisabledException {
+        HighLevelSimpleClient client = getClient();
+        InsertContext ictx = client.getInsertContext(true);
+        ictx.localRequestOnly = true;
+        ictx.indexedManifestThreshold = indexedManifestThreshold;
+        PutWaiter pw = new PutWaiter(rc);
+        PlainManifestPutter putter = new PlainManifestPutter(pw,
+                BaseManifestPutter.bucketsByNameToManifestEntries(files), (short)0,
+                FreenetURI.EMPTY_CHK_URI, null, ictx, false, false, false, null,
+                node.clientCore.clientContext);
+        node.clientCore.clientContext.start(putter);
+        FreenetURI uri = pw.waitForCompletion();
+        assertEquals("CHK", uri.getKeyType());
+        return uri;
+    }
+
+    private FetchResult fetch(FreenetURI uri) throws FetchException {
+        FetchContext ctx = client.getFetchContext(FILE_SIZE);
+        ctx.localRequestOnly = true;
+        FetchWaiter fw = new FetchWaiter(rc);
+        client.fetch(uri, FILE_SIZE, fw, ctx, (short)0);
+        return fw.waitForCompletion();
+    }
+
+    private void checkFetch(FreenetURI site, String name) throws FetchException, IOException {
+        FetchResult result = fetch(site.pushMetaString(name));
+        assertArrayEquals(data(name), BucketTools.toByteArray(result.asBucket()));
+    }
+
+    private void checkNotFound(FreenetURI site, String name) {
+        try {
+            fetch(site.pushMetaString(name));
+            fail("Fetched "+name);
+        } catch (FetchException e) {
+            assertEquals(FetchExceptionMode.NOT_IN_ARCHIVE, e.getMode());
+        }
+    }
+
+    @AfterClass
+    public static void cleanUp() {
+        FileUtil.removeAll(dir);
+    }
+
+}
@@ -0,0 +1,49 @@
+package freenet.support;
+
+import java.util.concurrent.Callable;
+
+import freenet.support.io.NativeThread;
+
+import junit.framework.TestCase;
+
+public class HelperThreadsTest extends TestCase {
+
+    public void testWorkerPriority() throws Exception {
+        Thread t = HelperThreads.getPool().submit(new Callable<Thread>() {
+
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+
+        }).get();
+        assertEquals(NativeThread.LOW_PRIORITY, t.getPriority());
+        assertTrue(t.isDaemon());
+    }
+
+    public void testReserve() {
+        // Without a runner, e.g. in tests, everything asked for is available.
+        assertEquals(0, HelperThreads.reserve(0, 10));
+        assertEquals(3, HelperThreads.reserve(3, 10));
+        HelperThreads.release(3, 10);
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 4, new PooledExecutor(),
+                NativeThread.JAVA_PRIORITY_RANGE);
+        HelperThreads.setJobRunner(runner);
+        try {
+            assertEquals(2, HelperThreads.reserve(2, 40));
+            assertEquals(2, runner.getRunningThreads());
+            assertEquals(80, runner.used());
+            // Limited by memory.
+            assertEquals(0, HelperThreads.reserve(1, 40));
+            // Limited by threads.
+            assertEquals(2, HelperThreads.reserve(3, 0));
+            HelperThreads.release(2, 0);
+            HelperThreads.release(2, 40);
+            assertEquals(0, runner.getRunningThreads());
+            assertEquals(0, runner.used());
+        } finally {
+            HelperThreads.setJobRunner(null);
+        }
+    }
+
+}
@@ -324,6 +324,31 @@ public class MemoryLimitedJobRunnerTest extends TestCase {
         waitForZero(runner);
     }
 
+    public void testReserveThreads() throws InterruptedException {
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 4, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        assertEquals(3, runner.reserveThreads(3, 10));
+        assertEquals(3, runner.getRunningThreads());
+        assertEquals(30, runner.used());
+        // Limited by threads.
+        assertEquals(1, runner.reserveThreads(3, 10));
+        runner.releaseThreads(4, 10);
+        assertEquals(0, runner.used());
+        // Limited by memory.
+        assertEquals(2, runner.reserveThreads(3, 40));
+        // Queued jobs take priority over helper threads.
+        Object completion = new Object();
+        SynchronousJob job = new SynchronousJob(50, true, completion);
+        runner.queueJob(job);
+        assertFalse(job.isStarted());
+        assertEquals(0, runner.reserveThreads(1, 0));
+        runner.releaseThreads(2, 40);
+        waitForAllStarted(new SynchronousJob[] { job }, completion);
+        job.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { job }, completion);
+        waitForZero(runner);
+        assertEquals(0, runner.getRunningThreads());
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
@@ -8,8 +8,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import freenet.crypt.SHA256;
+import freenet.support.HexUtil;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.ArrayBucket;
@@ -166,6 +173,63 @@ public class Bzip2CompressorTest extends TestCase {
 		return outBuf;
 	}
 
+	/** CHKs are derived from the compressed data, so BZIP2 must produce exactly the same bytes
+	 * as older builds, for files of several 900k blocks too, or reinserting a file would give a
+	 * different key. */
+	public void testLegacyMultiBlockOutputUnchanged() throws IOException {
+		byte[] data = multiBlockText();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Compressor.COMPRESSOR_TYPE.BZIP2.compress(new ByteArrayInputStream(data), baos,
+				data.length, Long.MAX_VALUE);
+		byte[] compressed = baos.toByteArray();
+		// Produced by builds before parallel bzip2.
+		assertEquals(297484, compressed.length);
+		assertEquals("1a402566f74b2a7e7c12e22f8f001ef85044247005b95e051b12307dfae7452d",
+				HexUtil.bytesToHex(SHA256.digest(compressed)));
+		// A single stream from commons-compress, without the "BZ".
+		baos = new ByteArrayOutputStream();
+		BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(baos);
+		bz2os.write(data);
+		bz2os.close();
+		byte[] expected = baos.toByteArray();
+		assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 2, expected.length), compressed));
+	}
+
+	/** BZIP2_PARALLEL is a different codec, with different bytes, which decompresses the same. */
+	public void testParallelIsSeparateCodec() throws IOException, InvalidCompressionCodecException {
+		byte[] data = multiBlockText();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL.compress(new ByteArrayInputStream(data), baos,
+				data.length, Long.MAX_VALUE);
+		byte[] compressed = baos.toByteArray();
+		assertFalse(HexUtil.bytesToHex(SHA256.digest(compressed)).equals(
+				"1a402566f74b2a7e7c12e22f8f001ef85044247005b95e051b12307dfae7452d"));
+		baos = new ByteArrayOutputStream();
+		Compressor.COMPRESSOR_TYPE.BZIP2.decompress(new ByteArrayInputStream(compressed), baos,
+				data.length, -1);
+		assertTrue(Arrays.equals(data, baos.toByteArray()));
+		assertSame(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL,
+				Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		// Only used if asked for, because older nodes can't decode it.
+		for(boolean pre1254 : new boolean[] { false, true })
+			assertFalse(Arrays.asList(Compressor.COMPRESSOR_TYPE.getCompressorsArray(null,
+					pre1254)).contains(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL));
+		assertEquals(Arrays.asList(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL),
+				Arrays.asList(Compressor.COMPRESSOR_TYPE.getCompressorsArray("BZIP2_PARALLEL",
+						false)));
+	}
+
+	/** About 2.5MB of text, three 900k blocks. */
+	private static byte[] multiBlockText() throws IOException {
+		String[] words = { "the", "freenet", "node", "splitfile", "block", "key", "insert", "of",
+				"and", " ", "\n" };
+		Random r = new Random(31102026);
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		while(text.size() < 2500000)
+			text.write(words[r.nextInt(words.length)].getBytes("UTF-8"));
+		return text.toByteArray();
+	}
+
 	private byte[] doCompress(byte[] uncompressedData) throws IOException {
 		Bucket inBucket = new ArrayBucket(uncompressedData);
 		BucketFactory factory = new ArrayBucketFactory();
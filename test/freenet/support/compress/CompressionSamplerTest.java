@@ -0,0 +1,76 @@
+package freenet.support.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * Test case for {@link freenet.support.compress.CompressionSampler}.
+ */
+public class CompressionSamplerTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] ALL =
+		{ COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.LZMA_NEW };
+
+	private static final String[] WORDS = { "the", "freenet", "node", "insert", "request",
+		"splitfile", "segment", "block", "key", "compression", "of", "and", "a", "to", "is",
+		"peer", "bandwidth", "<p>", "</p>", "\n", "data", "manifest", "metadata", "1234" };
+
+	public void testSmallFileNotSampled() throws IOException {
+		byte[] data = randomBytes(new Random(1), 1024*1024);
+		assertSame(ALL, CompressionSampler.selectCodecs(new ArrayBucket(data), ALL));
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = randomBytes(new Random(2), (int)CompressionSampler.MIN_SIZE);
+		assertEquals(0, CompressionSampler.selectCodecs(new ArrayBucket(data), ALL).length);
+	}
+
+	public void testCompressibleKeepsBest() throws IOException {
+		byte[] data = text(new Random(3), (int)CompressionSampler.MIN_SIZE);
+		COMPRESSOR_TYPE[] selected = CompressionSampler.selectCodecs(new ArrayBucket(data), ALL);
+		assertTrue(selected.length > 0);
+		// Order is preserved.
+		int last = -1;
+		for(COMPRESSOR_TYPE comp : selected) {
+			int index = Arrays.asList(ALL).indexOf(comp);
+			assertTrue(index > last);
+			last = index;
+		}
+		// Gzip is never within 3% of the others on text.
+		assertFalse(Arrays.asList(selected).contains(COMPRESSOR_TYPE.GZIP));
+	}
+
+	public void testSamplesSpanFile() throws IOException {
+		int size = CompressionSampler.SAMPLES * CompressionSampler.SAMPLE_SIZE * 3;
+		byte[] data = new byte[size];
+		for(int i=0;i<size;i++) data[i] = (byte)(i / CompressionSampler.SAMPLE_SIZE);
+		byte[][] samples = CompressionSampler.readSamples(new ArrayBucket(data), size);
+		assertEquals(CompressionSampler.SAMPLES, samples.length);
+		assertEquals(data[0], samples[0][0]);
+		byte[] last = samples[CompressionSampler.SAMPLES-1];
+		assertEquals(data[size-1], last[last.length-1]);
+	}
+
+	private static byte[] text(Random r, int size) {
+		StringBuilder sb = new StringBuilder(size + 16);
+		while(sb.length() < size) {
+			sb.append(WORDS[r.nextInt(WORDS.length)]);
+			sb.append(' ');
+		}
+		byte[] data = new byte[size];
+		for(int i=0;i<size;i++) data[i] = (byte) sb.charAt(i);
+		return data;
+	}
+
+	private static byte[] randomBytes(Random r, int size) {
+		byte[] data = new byte[size];
+		r.nextBytes(data);
+		return data;
+	}
+
+}
@@ -0,0 +1,145 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Test case for {@link freenet.support.compress.DecompressorChain}.
+ */
+public class DecompressorChainTest extends TestCase {
+
+	public void testSingleCodec() throws Throwable {
+		byte[] data = text(new Random(1), 200*1000);
+		for(COMPRESSOR_TYPE comp : COMPRESSOR_TYPE.values()) {
+			byte[] compressed = compress(data, comp);
+			assertTrue(comp.name, Arrays.equals(data, decompress(compressed, list(comp), 1000*1000)));
+		}
+	}
+
+	public void testTwoStages() throws Throwable {
+		byte[] data = text(new Random(2), 100*1000);
+		// Compressed with GZIP, then LZMA_NEW, then BZIP2.
+		byte[] compressed = compress(compress(compress(data, COMPRESSOR_TYPE.GZIP),
+				COMPRESSOR_TYPE.LZMA_NEW), COMPRESSOR_TYPE.BZIP2);
+		List<COMPRESSOR_TYPE> decompressors =
+			list(COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.LZMA_NEW, COMPRESSOR_TYPE.BZIP2);
+		assertTrue(Arrays.equals(data, decompress(compressed, decompressors, 1000*1000)));
+		// The list is not modified.
+		assertEquals(3, decompressors.size());
+	}
+
+	public void testNoDecompressors() throws Throwable {
+		byte[] data = text(new Random(3), 1000);
+		assertTrue(Arrays.equals(data,
+				decompress(data, new ArrayList<COMPRESSOR_TYPE>(), 1000)));
+	}
+
+	public void testTooBig() throws Throwable {
+		byte[] data = text(new Random(4), 100*1000);
+		for(COMPRESSOR_TYPE comp : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 }) {
+			byte[] compressed = compress(data, comp);
+			try {
+				decompress(compressed, list(comp), 50*1000);
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				// Less than five times the limit, so we know the real size.
+				assertEquals(data.length, e.estimatedSize);
+			}
+			try {
+				decompress(compressed, list(comp), 10*1000);
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				assertEquals(-1, e.estimatedSize);
+			}
+		}
+	}
+
+	public void testCorruptData() throws Throwable {
+		byte[] data = text(new Random(5), 100*1000);
+		for(COMPRESSOR_TYPE comp : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 }) {
+			byte[] compressed = compress(data, comp);
+			for(int i=compressed.length/2;i<compressed.length/2+100;i++)
+				compressed[i] ^= 0x55;
+			try {
+				decompress(compressed, list(comp), 1000*1000);
+				fail(comp.name);
+			} catch (IOException e) {
+				// Expected, thrown to the reader.
+			}
+		}
+	}
+
+	public void testThreadedStageErrorPropagates() throws Throwable {
+		// LZMA runs in its own thread. A bad dictionary size fails in that thread.
+		byte[] data = text(new Random(6), 100*1000);
+		byte[] compressed = compress(data, COMPRESSOR_TYPE.LZMA_NEW);
+		compressed[4] = 0x7F;
+		DecompressorChain chain = new DecompressorChain(new ByteArrayInputStream(compressed),
+				list(COMPRESSOR_TYPE.LZMA_NEW), 1000*1000);
+		try {
+			readFully(chain.execute());
+			fail();
+		} catch (TooBigDictionaryException e) {
+			// Expected, thrown to the reader at the end of the stream.
+		}
+		try {
+			chain.waitFinished();
+			fail();
+		} catch (TooBigDictionaryException e) {
+			// Expected.
+		}
+	}
+
+	private static byte[] decompress(byte[] compressed, List<COMPRESSOR_TYPE> decompressors, long maxLen) throws Throwable {
+		DecompressorChain chain = new DecompressorChain(new ByteArrayInputStream(compressed),
+				decompressors, maxLen);
+		byte[] out = readFully(chain.execute());
+		chain.waitFinished();
+		return out;
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[32768];
+		int x;
+		try {
+			while((x = is.read(buf)) != -1)
+				baos.write(buf, 0, x);
+		} finally {
+			is.close();
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] compress(byte[] data, COMPRESSOR_TYPE comp) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		comp.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static List<COMPRESSOR_TYPE> list(COMPRESSOR_TYPE... comps) {
+		return new ArrayList<COMPRESSOR_TYPE>(Arrays.asList(comps));
+	}
+
+	private static byte[] text(Random r, int size) {
+		String[] words = { "the ", "freenet ", "node ", "insert ", "request ", "splitfile ",
+				"segment ", "block ", "<p>", "</p>\n", "data ", "1234 " };
+		byte[] data = new byte[size];
+		int x = 0;
+		while(x < size) {
+			String w = words[r.nextInt(words.length)];
+			for(int i=0;i<w.length() && x<size;i++) data[x++] = (byte) w.charAt(i);
+		}
+		return data;
+	}
+
+}
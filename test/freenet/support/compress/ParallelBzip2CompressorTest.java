@@ -0,0 +1,185 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Test case for {@link freenet.support.compress.ParallelBzip2Compressor}: The output must
+ * decompress with the ordinary (single stream) Bzip2Compressor.
+ */
+public class ParallelBzip2CompressorTest extends TestCase {
+
+	private static final int CHUNK = ParallelBzip2Compressor.CHUNK_SIZE;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@Override
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	public void testEmpty() throws IOException {
+		checkRoundTrip(new byte[0], 4);
+	}
+
+	public void testSmall() throws IOException {
+		checkRoundTrip("Hello world".getBytes("UTF-8"), 4);
+	}
+
+	public void testSeveralChunks() throws IOException {
+		Random r = new Random(31);
+		// Not a multiple of the chunk size, mixed compressible and random data.
+		byte[] data = new byte[CHUNK * 3 + 12345];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + r.nextInt(4));
+		byte[] noise = new byte[CHUNK];
+		r.nextBytes(noise);
+		System.arraycopy(noise, 0, data, CHUNK / 2, noise.length);
+		checkRoundTrip(data, 1);
+		checkRoundTrip(data, 2);
+		checkRoundTrip(data, 4);
+	}
+
+	/** Runs of exactly four bytes are the worst case for bzip2's first stage, which must still
+	 * leave each chunk in one block. */
+	public void testWorstCaseRuns() throws IOException {
+		byte[] data = new byte[CHUNK * 2];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) (i / 4);
+		checkRoundTrip(data, 2);
+	}
+
+	public void testBlocksSpliced() throws IOException {
+		Random r = new Random(32);
+		byte[] data = new byte[CHUNK * 2];
+		r.nextBytes(data);
+		byte[] compressed = compress(data, 2, Long.MAX_VALUE);
+		// One stream: The stream header appears only once.
+		int headers = 0;
+		for(int i=0;i<compressed.length-3;i++) {
+			if(compressed[i] == 'B' && compressed[i+1] == 'Z' && compressed[i+2] == 'h' &&
+					compressed[i+3] == '9')
+				headers++;
+		}
+		assertEquals(0, headers);
+		assertEquals('h', compressed[0]);
+		assertEquals('9', compressed[1]);
+	}
+
+	/** CHKs must be convergent: The output must not depend on the number of threads, or on
+	 * how much memory there is to spare. */
+	public void testSameOutputAnyThreads() throws IOException {
+		Random r = new Random(36);
+		byte[] data = new byte[CHUNK * 3 + 999];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		byte[] inline = compress(data, 1, Long.MAX_VALUE, null);
+		assertTrue(Arrays.equals(data, decompress(inline)));
+		for(int threads : new int[] { 1, 2, 4 })
+			assertTrue(Arrays.equals(inline, compress(data, threads, Long.MAX_VALUE)));
+		// Limited memory: Some or all chunks are compressed on the calling thread.
+		for(long limit : new long[] { 0, ParallelBzip2Compressor.MEMORY_PER_CHUNK }) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ParallelBzip2Compressor.compress(new ByteArrayInputStream(data), baos, data.length,
+					Long.MAX_VALUE, executor, 4, limit);
+			assertTrue(Arrays.equals(inline, baos.toByteArray()));
+		}
+		assertEquals(0, ParallelBzip2Compressor.memoryUsed());
+		// And the same through the Compressor API, whatever THREADS is set to.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL.compress(new ByteArrayInputStream(data), baos, data.length,
+				Long.MAX_VALUE);
+		assertTrue(Arrays.equals(inline, baos.toByteArray()));
+	}
+
+	/** Data that fits in one chunk compresses to exactly what older builds produced. */
+	public void testSingleChunkUnchanged() throws IOException {
+		Random r = new Random(37);
+		byte[] data = new byte[CHUNK];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(baos);
+		bz2os.write(data);
+		bz2os.close();
+		byte[] expected = baos.toByteArray();
+		// Without the "BZ".
+		expected = Arrays.copyOfRange(expected, 2, expected.length);
+		assertTrue(Arrays.equals(expected, compress(data, 1, Long.MAX_VALUE, null)));
+		assertTrue(Arrays.equals(expected, compress(data, 4, Long.MAX_VALUE)));
+	}
+
+	public void testMemoryReleasedOnFailure() throws IOException {
+		byte[] data = new byte[CHUNK * 4];
+		new Random(38).nextBytes(data);
+		try {
+			compress(data, 2, CHUNK / 2);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		// Wait for any chunks still running to finish.
+		for(int i=0;i<100 && ParallelBzip2Compressor.memoryUsed() != 0;i++) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+		assertEquals(0, ParallelBzip2Compressor.memoryUsed());
+	}
+
+	public void testMaxWriteLength() throws IOException {
+		byte[] data = new byte[CHUNK * 2];
+		new Random(33).nextBytes(data);
+		try {
+			compress(data, 2, data.length / 2);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testMaxReadLength() throws IOException {
+		byte[] data = new byte[CHUNK * 2];
+		new Random(34).nextBytes(data);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ParallelBzip2Compressor.compress(new ByteArrayInputStream(data), baos, CHUNK + 100,
+				Long.MAX_VALUE, executor, 2);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, CHUNK + 100), decompress(baos.toByteArray())));
+	}
+
+	private void checkRoundTrip(byte[] data, int threads) throws IOException {
+		byte[] compressed = compress(data, threads, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(data, decompress(compressed)));
+	}
+
+	private byte[] compress(byte[] data, int threads, long maxWriteLength) throws IOException {
+		return compress(data, threads, maxWriteLength, executor);
+	}
+
+	private static byte[] compress(byte[] data, int threads, long maxWriteLength,
+			ExecutorService pool) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ParallelBzip2Compressor.compress(new ByteArrayInputStream(data), baos,
+				Math.max(1, data.length), maxWriteLength, pool, threads);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompress(byte[] compressed) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new Bzip2Compressor().decompress(new ByteArrayInputStream(compressed), baos,
+				Long.MAX_VALUE, -1);
+		return baos.toByteArray();
+	}
+
+}
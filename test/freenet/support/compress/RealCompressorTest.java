@@ -0,0 +1,27 @@
+package freenet.support.compress;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for the helper thread accounting in {@link freenet.support.compress.RealCompressor}.
+ */
+public class RealCompressorTest extends TestCase {
+
+	public void testReleaseHelperThreads() {
+		RealCompressor rc = new RealCompressor();
+		try {
+			int max = rc.reserveHelperThreads(Integer.MAX_VALUE);
+			assertTrue(max >= 1);
+			assertEquals(0, rc.reserveHelperThreads(1));
+			// Released threads can be reserved again.
+			rc.releaseHelperThreads(max);
+			assertEquals(max, rc.reserveHelperThreads(Integer.MAX_VALUE));
+			rc.releaseHelperThreads(max);
+			rc.releaseHelperThreads(0);
+			assertEquals(max, rc.reserveHelperThreads(max + 1));
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+
+public class DirectBucketTest extends BucketTestBase {
+
+    private static final int PAGE = 1024;
+    private final DirectBufferPool pool = new DirectBufferPool(PAGE, 16);
+
+    @Override
+    protected Bucket makeBucket(long size) throws IOException {
+        return new DirectBucket(pool);
+    }
+
+    @Override
+    protected void freeBucket(Bucket bucket) throws IOException {
+        bucket.free();
+    }
+
+    public void testPages() throws IOException {
+        DirectBucket b = new DirectBucket(pool);
+        DirectBucket.Writer w = b.getOutputStreamUnbuffered();
+        assertFalse(w.tryWrite(1));
+        w.write(1);
+        assertEquals(1, b.pages());
+        assertTrue(w.tryWrite(new byte[PAGE - 1], 0, PAGE - 1));
+        assertFalse(w.tryWrite(2));
+        w.write(new byte[PAGE + 1]);
+        assertEquals(3, b.pages());
+        assertEquals(PAGE * 2 + 1, b.size());
+        w.close();
+        assertFalse(w.tryWrite(3));
+        b.free();
+        assertEquals(3, pool.freePages());
+        // Pages are reused.
+        b = new DirectBucket(pool);
+        w = b.getOutputStreamUnbuffered();
+        w.write(new byte[PAGE]);
+        assertEquals(2, pool.freePages());
+        w.close();
+        b.free();
+    }
+
+    public void testFreeWhileWriting() throws IOException {
+        DirectBucket b = new DirectBucket(pool);
+        DirectBucket.Writer w = b.getOutputStreamUnbuffered();
+        w.write(new byte[10]);
+        int free = pool.freePages();
+        b.free();
+        // The writer might still be using the page.
+        assertEquals(free, pool.freePages());
+        try {
+            w.write(new byte[PAGE]);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testCopyTo() throws IOException {
+        byte[] data = new byte[PAGE * 3 + 17];
+        new Random(1234).nextBytes(data);
+        DirectBucket b = new DirectBucket(pool);
+        OutputStream os = b.getOutputStream();
+        os.write(data);
+        os.close();
+        // To a FileChannel.
+        File f = File.createTempFile("direct", ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            b.copyTo(fos, data.length);
+            fos.close();
+            assertTrue(Arrays.equals(data, Files.readAllBytes(f.toPath())));
+        } finally {
+            f.delete();
+        }
+        // To any other stream.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        b.copyTo(baos, PAGE + 5);
+        assertTrue(Arrays.equals(Arrays.copyOf(data, PAGE + 5), baos.toByteArray()));
+        b.free();
+    }
+
+}
@@ -0,0 +1,249 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.MasterSecret;
+import freenet.keys.CHKBlock;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+public class SlabBucketTest extends BucketTestBase {
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private final Random random = new Random(12345);
+    private File dir;
+    private SlabStore store;
+    private TrivialPersistentFileTracker tracker;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("slabs", ".tmp");
+        dir.delete();
+        dir.mkdir();
+        store = new SlabStore(new File(dir, "slabs"), null, random);
+        store.completedInit();
+        tracker = new TrivialPersistentFileTracker(dir, new FilenameGenerator(random, false, dir, "junit"));
+    }
+
+    @Override
+    protected void tearDown() {
+        store.close();
+        FileUtil.removeAll(dir);
+    }
+
+    @Override
+    protected Bucket makeBucket(long size) throws IOException {
+        return new SlabBucket(store, tracker);
+    }
+
+    @Override
+    protected void freeBucket(Bucket bucket) throws IOException {
+        bucket.free();
+        assertEquals(0, store.usedSlots());
+    }
+
+    public void testSlotSizes() throws IOException {
+        SlabStore.Slot slot = store.allocate(0);
+        assertEquals(SlabStore.MIN_SLOT_SIZE, slot.slotSize());
+        assertEquals(SlabStore.MIN_SLOT_SIZE, store.allocate(SlabStore.MIN_DATA_LENGTH).slotSize());
+        assertEquals(SlabStore.MIN_DATA_LENGTH * 2 + SlabStore.HEADER_LENGTH, store.allocate(SlabStore.MIN_DATA_LENGTH + 1).slotSize());
+        assertEquals(SlabStore.MAX_SLOT_SIZE, store.allocate(SlabStore.MAX_DATA_LENGTH).slotSize());
+        try {
+            store.allocate(SlabStore.MAX_DATA_LENGTH + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(4, store.usedSlots());
+        assertEquals(3, store.slabCount());
+    }
+
+    public void testManySmallBuckets() throws IOException {
+        // More than fit in one slab.
+        int count = SlabStore.SLAB_SIZE / SlabStore.MIN_SLOT_SIZE + 10;
+        SlabBucket[] buckets = new SlabBucket[count];
+        for(int i=0;i<count;i++) {
+            buckets[i] = new SlabBucket(store, tracker);
+            write(buckets[i], data(i, 100));
+        }
+        assertEquals(2, store.slabCount());
+        assertEquals(count, store.usedSlots());
+        for(int i=0;i<count;i++)
+            assertTrue(Arrays.equals(data(i, 100), BucketTools.toByteArray(buckets[i])));
+        // Freed slots are reused.
+        buckets[5].free();
+        SlabBucket b = new SlabBucket(store, tracker);
+        write(b, data(-1, 100));
+        assertEquals(2, store.slabCount());
+        for(int i=0;i<count;i++)
+            if(i != 5) buckets[i].free();
+        b.free();
+        // Empty slabs are deleted.
+        assertEquals(0, store.slabCount());
+        assertEquals(0, new File(dir, "slabs").list().length);
+    }
+
+    public void testRewrite() throws IOException {
+        SlabBucket b = new SlabBucket(store, tracker);
+        write(b, data(1, 2000));
+        write(b, data(2, 500));
+        // The old slot was freed.
+        assertEquals(1, store.usedSlots());
+        assertTrue(Arrays.equals(data(2, 500), BucketTools.toByteArray(b)));
+        b.free();
+    }
+
+    public void testTooBigForSlot() throws IOException {
+        SlabBucket b = new SlabBucket(store, tracker);
+        byte[] data = data(3, SlabStore.MAX_DATA_LENGTH + 1);
+        write(b, data);
+        assertEquals(0, store.usedSlots());
+        assertEquals(data.length, b.size());
+        assertTrue(Arrays.equals(data, BucketTools.toByteArray(b)));
+        b.free();
+        assertEquals(0, dir.listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("junit");
+            }
+        }).length);
+    }
+
+    public void testShadow() throws IOException {
+        SlabBucket b = new SlabBucket(store, tracker);
+        write(b, data(4, 1000));
+        Bucket shadow = b.createShadow();
+        assertTrue(shadow.isReadOnly());
+        assertTrue(Arrays.equals(data(4, 1000), BucketTools.toByteArray(shadow)));
+        shadow.free();
+        assertEquals(1, store.usedSlots());
+        b.free();
+    }
+
+    public void testToRandomAccessBuffer() throws IOException {
+        SlabBucket b = new SlabBucket(store, tracker);
+        write(b, data(5, 1000));
+        LockableRandomAccessBuffer raf = b.toRandomAccessBuffer();
+        assertEquals(0, store.usedSlots());
+        assertEquals(1000, raf.size());
+        byte[] buf = new byte[1000];
+        raf.pread(0, buf, 0, buf.length);
+        assertTrue(Arrays.equals(data(5, 1000), buf));
+        assertTrue(b.isReadOnly());
+        raf.free();
+    }
+
+    public void testOverwrittenSlot() throws IOException {
+        SlabStore.Slot slot = store.allocate(100);
+        long id = store.write(slot, data(6, 100), 0, 100);
+        assertTrue(Arrays.equals(data(6, 100), store.read(slot, id)));
+        store.write(slot, data(7, 100), 0, 100);
+        try {
+            store.read(slot, id);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testRestart() throws IOException, ResumeFailedException {
+        SlabStore.Slot kept = store.allocate(100);
+        long keptID = store.write(kept, data(8, 100), 0, 100);
+        SlabStore.Slot lost = store.allocate(100);
+        store.write(lost, data(9, 100), 0, 100);
+        store.allocate(5000);
+        store.close();
+        store = new SlabStore(new File(dir, "slabs"), null, random);
+        assertEquals(2, store.slabCount());
+        // Only the slots registered while resuming are in use.
+        SlabStore.Slot slot = store.register(kept.slotSize(), kept.slabNumber(), kept.index());
+        assertTrue(Arrays.equals(data(8, 100), store.read(slot, keptID)));
+        try {
+            store.register(kept.slotSize(), kept.slabNumber() + 100, 0);
+            fail();
+        } catch (ResumeFailedException e) {
+            // Expected.
+        }
+        // Existing slabs aren't used until completedInit().
+        SlabStore.Slot before = store.allocate(100);
+        assertEquals(3, store.slabCount());
+        assertFalse(before.slabNumber() == kept.slabNumber());
+        store.completedInit();
+        // The 8KB slab was empty.
+        assertEquals(2, store.slabCount());
+        assertEquals(2, store.usedSlots());
+        SlabStore.Slot after = store.allocate(100);
+        assertEquals(kept.slabNumber(), after.slabNumber());
+        assertEquals(lost.index(), after.index());
+    }
+
+    public void testFactoryCHKBuckets() throws IOException {
+        File factoryDir = new File(dir, "factory");
+        PersistentTempBucketFactory factory = new PersistentTempBucketFactory(factoryDir, "junit", 
+                new DummyRandomSource(12345), random, false);
+        factory.setMasterSecret(new MasterSecret());
+        factory.setDiskSpaceChecker(new DiskSpaceChecker() {
+            @Override
+            public boolean checkDiskSpace(File file, int toWrite, int bufferSize) {
+                return true;
+            }
+        });
+        factory.completedInit();
+        SlabStore slabs = factory.getSlabStore();
+        byte[] data = data(4, CHKBlock.DATA_LENGTH);
+        RandomAccessBucket plain = factory.makeBucket(data.length);
+        write(plain, data);
+        // Encrypted, the bucket is padded to the next power of two.
+        factory.setEncryption(true);
+        RandomAccessBucket encrypted = factory.makeBucket(data.length);
+        write(encrypted, data);
+        assertTrue(Arrays.equals(data, BucketTools.toByteArray(plain)));
+        assertTrue(Arrays.equals(data, BucketTools.toByteArray(encrypted)));
+        assertEquals(2, slabs.usedSlots());
+        List<String> slabFiles = Arrays.asList(new File(factoryDir, "slabs").list());
+        Collections.sort(slabFiles);
+        assertEquals(Arrays.asList("slab-"+(CHKBlock.DATA_LENGTH + SlabStore.HEADER_LENGTH)+"-0",
+                "slab-"+SlabStore.MAX_SLOT_SIZE+"-1"), slabFiles);
+        // Neither spilled to a file of its own.
+        assertEquals(0, factoryDir.listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("junit");
+            }
+        }).length);
+        slabs.close();
+    }
+
+    private static void write(Bucket b, byte[] data) throws IOException {
+        OutputStream os = b.getOutputStream();
+        // In pieces, to check switching to a file part way through.
+        int half = data.length / 2;
+        os.write(data, 0, half);
+        os.write(data, half, data.length - half);
+        os.close();
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] buf = new byte[length];
+        new Random(seed).nextBytes(buf);
+        return buf;
+    }
+
+}
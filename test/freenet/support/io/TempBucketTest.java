@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -21,6 +22,7 @@ import freenet.crypt.RandomSource;
 import freenet.support.Executor;
 import freenet.support.SerialExecutor;
 import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.io.TempBucketFactory.TempBucket;
 
 public class TempBucketTest extends TestSuite {
@@ -153,6 +155,113 @@ public class TempBucketTest extends TestSuite {
 		
 	}
 
+	public static class OffHeapTest extends TestCase {
+		private Random weakPRNG = new Random(12341);
+		private Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		private FilenameGenerator fg;
+		private static final int PAGE = TempBucketFactory.DIRECT_PAGE_SIZE;
+
+		public OffHeapTest() throws IOException {
+			fg = new FilenameGenerator(weakPRNG, false, null, "junit");
+		}
+		
+		private TempBucketFactory makeFactory(long maxRamBucket, long maxRamUsed) {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, maxRamBucket, maxRamUsed, weakPRNG, false, MIN_DISK_SPACE, secret);
+			tbf.setOffHeap(true);
+			return tbf;
+		}
+
+		public void testPageAccounting() throws IOException {
+			TempBucketFactory tbf = makeFactory(PAGE * 4, PAGE * 16);
+			TempBucket b = (TempBucket) tbf.makeBucket(PAGE);
+			try {
+				assertTrue(b.getUnderlying() instanceof DirectBucket);
+				OutputStream os = b.getOutputStreamUnbuffered();
+				os.write(new byte[1]);
+				assertEquals(PAGE, tbf.getRamUsed());
+				os.write(new byte[PAGE - 1]);
+				assertEquals(PAGE, tbf.getRamUsed());
+				os.write(new byte[2]);
+				assertEquals(PAGE * 2, tbf.getRamUsed());
+				for(int i=0;i<PAGE;i++)
+					os.write(i);
+				assertEquals(PAGE * 3, tbf.getRamUsed());
+				os.close();
+				assertEquals(PAGE * 2 + 2, b.size());
+				assertTrue(b.isRAMBucket());
+			} finally {
+				b.free();
+			}
+			assertEquals(0, tbf.getRamUsed());
+		}
+
+		public void testMigrateWhileWriting() throws IOException {
+			TempBucketFactory tbf = makeFactory(PAGE * 4, PAGE * 16);
+			TempBucket b = (TempBucket) tbf.makeBucket(PAGE);
+			byte[] data = new byte[PAGE + 100];
+			new Random(90).nextBytes(data);
+			try {
+				OutputStream os = b.getOutputStreamUnbuffered();
+				os.write(data, 0, 100);
+				// The writer might be writing to the page, so it migrates at the next page.
+				assertFalse(b.migrateToDisk());
+				assertTrue(b.isRAMBucket());
+				os.write(data, 100, PAGE - 100);
+				assertTrue(b.isRAMBucket());
+				os.write(data, PAGE, 100);
+				assertFalse(b.isRAMBucket());
+				assertEquals(0, tbf.getRamUsed());
+				os.close();
+				assertEquals(data.length, b.size());
+				byte[] buf = new byte[data.length];
+				DataInputStream dis = new DataInputStream(b.getInputStream());
+				dis.readFully(buf);
+				dis.close();
+				assertTrue(Arrays.equals(data, buf));
+			} finally {
+				b.free();
+			}
+		}
+
+		public void testMigrateAfterClose() throws IOException {
+			TempBucketFactory tbf = makeFactory(PAGE * 4, PAGE * 16);
+			TempBucket b = (TempBucket) tbf.makeBucket(PAGE);
+			byte[] data = new byte[PAGE * 2 + 100];
+			new Random(91).nextBytes(data);
+			try {
+				OutputStream os = b.getOutputStream();
+				os.write(data);
+				os.close();
+				assertEquals(PAGE * 3, tbf.getRamUsed());
+				InputStream is = b.getInputStream();
+				byte[] buf = new byte[data.length];
+				DataInputStream dis = new DataInputStream(is);
+				dis.readFully(buf, 0, 10);
+				assertTrue(b.migrateToDisk());
+				assertEquals(0, tbf.getRamUsed());
+				dis.readFully(buf, 10, buf.length - 10);
+				dis.close();
+				assertTrue(Arrays.equals(data, buf));
+			} finally {
+				b.free();
+			}
+		}
+
+		public void testToRandomAccessBuffer() throws IOException {
+			TempBucketFactory tbf = makeFactory(PAGE * 4, PAGE * 16);
+			TempBucket b = (TempBucket) tbf.makeBucket(PAGE);
+			OutputStream os = b.getOutputStream();
+			os.write(new byte[100]);
+			os.close();
+			assertEquals(PAGE, tbf.getRamUsed());
+			LockableRandomAccessBuffer raf = b.toRandomAccessBuffer();
+			assertEquals(100, tbf.getRamUsed());
+			raf.free();
+			assertEquals(0, tbf.getRamUsed());
+		}
+
+	}
+
 	// Private because we only use it as a base class for the actual tests.
 	private static class RealTempBucketTest_ extends BucketTestBase {
 		private RandomSource strongPRNG = new DummyRandomSource(12345);
@@ -163,8 +272,13 @@ public class TempBucketTest extends TestSuite {
 		private TempBucketFactory tbf;
 
 		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted) throws IOException {
+			this(maxRamSize, maxTotalRamSize, encrypted, false);
+		}
+
+		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted, boolean offHeap) throws IOException {
 			fg = new FilenameGenerator(weakPRNG, false, null, "junit");
 			tbf = new TempBucketFactory(exec, fg, maxRamSize, maxTotalRamSize, weakPRNG, encrypted, MIN_DISK_SPACE, secret);
+			tbf.setOffHeap(offHeap);
 
 			canOverwrite = false;
 		}
@@ -210,6 +324,18 @@ public class TempBucketTest extends TestSuite {
 		}
 	}
 
+	public static class RealTempBucketTest_64k_128k_F_OffHeap extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_128k_F_OffHeap() throws IOException {
+			super(64 * 1024, 128 * 1024, false, true);
+		}
+	}
+
+	public static class RealTempBucketTest_64k_128k_T_OffHeap extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_128k_T_OffHeap() throws IOException {
+			super(64 * 1024, 128 * 1024, true, true);
+		}
+	}
+
     public TempBucketTest() {
 		super("TempBucketTest");
 		addTest(new TestSuite(RealTempBucketTest_8_16_F.class));
@@ -217,7 +343,10 @@ public class TempBucketTest extends TestSuite {
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_128k_F_OffHeap.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_128k_T_OffHeap.class));
 		addTest(new TestSuite(TempBucketMigrationTest.class));
+		addTest(new TestSuite(OffHeapTest.class));
 	}
 
 	public static Test suite() {
@@ -227,7 +356,10 @@ public class TempBucketTest extends TestSuite {
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_F_OffHeap.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_T_OffHeap.class));
 		suite.addTest(new TestSuite(TempBucketMigrationTest.class));
+		suite.addTest(new TestSuite(OffHeapTest.class));
 		return suite;
 	}
 
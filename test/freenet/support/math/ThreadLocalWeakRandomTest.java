@@ -0,0 +1,48 @@
+package freenet.support.math;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ThreadLocalWeakRandomTest extends TestCase {
+
+	public void testThreadsDiffer() throws InterruptedException {
+		final ThreadLocalWeakRandom random = new ThreadLocalWeakRandom(new Random(1234));
+		final byte[] mine = new byte[32];
+		random.nextBytes(mine);
+		final byte[] other = new byte[32];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				random.nextBytes(other);
+			}
+		};
+		t.start();
+		t.join();
+		assertFalse(Arrays.equals(mine, other));
+	}
+
+	public void testRanges() {
+		ThreadLocalWeakRandom random = new ThreadLocalWeakRandom(new Random(1234));
+		boolean[] seen = new boolean[10];
+		for(int i = 0; i < 1000; i++) {
+			int x = random.nextInt(10);
+			assertTrue(x >= 0 && x < 10);
+			seen[x] = true;
+			double d = random.nextDouble();
+			assertTrue(d >= 0.0 && d < 1.0);
+		}
+		for(boolean b : seen)
+			assertTrue(b);
+	}
+
+	public void testSetSeed() {
+		ThreadLocalWeakRandom random = new ThreadLocalWeakRandom(new Random(1234));
+		random.setSeed(42);
+		long a = random.nextLong();
+		random.setSeed(42);
+		assertEquals(a, random.nextLong());
+	}
+
+}